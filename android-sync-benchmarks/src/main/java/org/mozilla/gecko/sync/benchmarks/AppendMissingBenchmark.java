@@ -0,0 +1,82 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.mozilla.gecko.sync.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging the local children of a bookmark folder into the children the
+ * server sent, as repositioning does: half the server's children are also
+ * local, and the folder has as many local-only children again.
+ * <p>
+ * <code>containsMerge</code> is the <code>contains</code>-based merge that
+ * {@link Utils#appendMissing(JSONArray, JSONArray)} replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AppendMissingBenchmark {
+  @Param({ "100", "1000", "10000" })
+  public int children;
+
+  protected JSONArray onServer;
+  protected JSONArray inDB;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setUp() {
+    onServer = new JSONArray();
+    inDB = new JSONArray();
+    for (int i = 0; i < children; i++) {
+      onServer.add("server" + i);
+      inDB.add("local" + i);
+      if (i % 2 == 0) {
+        inDB.add("server" + i);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  protected JSONArray target() {
+    final JSONArray target = new JSONArray();
+    target.addAll(onServer);
+    return target;
+  }
+
+  @Benchmark
+  public JSONArray appendMissing() {
+    final JSONArray target = target();
+    Utils.appendMissing(target, inDB);
+    return target;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Benchmark
+  public JSONArray containsMerge() {
+    final JSONArray target = target();
+    for (Object o : inDB) {
+      if (!target.contains(o)) {
+        target.add(o);
+      }
+    }
+    return target;
+  }
+}
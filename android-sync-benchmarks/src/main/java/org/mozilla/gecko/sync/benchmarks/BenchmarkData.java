@@ -0,0 +1,91 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+
+/**
+ * Deterministic records for the benchmarks, shaped like those a real
+ * profile uploads.
+ */
+public class BenchmarkData {
+  public static final long BASE_TIMESTAMP = 1300000000000L;
+
+  /**
+   * Benchmarks measure sync code, not log writers.
+   */
+  public static void quietLogging() {
+    Logger.stopLoggingToAll();
+  }
+
+  protected static String guid(String prefix, int i) {
+    return String.format("%s%08d", prefix, i);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static HistoryRecord historyRecord(int i, int visitCount) {
+    HistoryRecord record = new HistoryRecord(guid("hist", i), HistoryRecord.COLLECTION_NAME, BASE_TIMESTAMP + i);
+    record.histURI = "http://example.com/path/" + i + "/index.html?query=" + i;
+    record.title = "Example page number " + i;
+    record.visits = new JSONArray();
+    for (int v = 0; v < visitCount; v++) {
+      JSONObject visit = new JSONObject();
+      visit.put("date", (BASE_TIMESTAMP - v * 60000L) * 1000L);
+      visit.put("type", 1L);
+      record.visits.add(visit);
+    }
+    return record;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static BookmarkRecord bookmarkRecord(int i) {
+    BookmarkRecord record = new BookmarkRecord(guid("bkmk", i), BookmarkRecord.COLLECTION_NAME, BASE_TIMESTAMP + i);
+    record.type = "bookmark";
+    record.title = "Example bookmark number " + i;
+    record.bookmarkURI = "http://example.com/bookmark/" + i;
+    record.description = "A bookmark used for benchmarking.";
+    record.parentID = "toolbar";
+    record.parentName = "Bookmarks Toolbar";
+    record.tags = new JSONArray();
+    record.tags.add("benchmark");
+    record.tags.add("tag" + (i % 10));
+    return record;
+  }
+
+  public static List<HistoryRecord> historyRecords(int count, int visitCount) {
+    final List<HistoryRecord> records = new ArrayList<HistoryRecord>(count);
+    for (int i = 0; i < count; i++) {
+      records.add(historyRecord(i, visitCount));
+    }
+    return records;
+  }
+
+  /**
+   * @return a cleartext envelope for a history record with
+   *         <code>visitCount</code> visits.
+   */
+  public static CryptoRecord historyEnvelope(int i, int visitCount) {
+    return historyRecord(i, visitCount).getEnvelope();
+  }
+
+  /**
+   * @return an encrypted history WBO, serialized the way the server sends
+   *         one per line of an <code>application/newlines</code> response.
+   */
+  public static String encryptedHistoryLine(int i, int visitCount, KeyBundle keyBundle) throws Exception {
+    final CryptoRecord envelope = historyEnvelope(i, visitCount);
+    envelope.keyBundle = keyBundle;
+    envelope.encrypt();
+    return envelope.toJSONString();
+  }
+}
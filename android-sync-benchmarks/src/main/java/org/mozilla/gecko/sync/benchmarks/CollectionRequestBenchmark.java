@@ -0,0 +1,215 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
+import org.mozilla.gecko.sync.net.SyncStorageCollectionRequestDelegate;
+import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * Fetching a collection of encrypted history records from an in-process
+ * server, one request per invocation.
+ * <p>
+ * <code>lines</code> hands each line to the delegate as text;
+ * <code>records</code> parses each record from the stream; and
+ * <code>recordsDecrypted</code> also decrypts each record, which is the
+ * whole of the inbound network path up to the record factory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class CollectionRequestBenchmark {
+  @Param({ "100", "1000" })
+  public int records;
+
+  protected final HTTPServerTestHelper data = new HTTPServerTestHelper();
+  protected URI uri;
+  protected KeyBundle keyBundle;
+  protected byte[] collectionBody;
+
+  public class CollectionMockServer extends MockServer {
+    @Override
+    public void handle(Request request, Response response) {
+      try {
+        PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines");
+        bodyStream.write(collectionBody);
+        bodyStream.close();
+      } catch (IOException e) {
+        System.err.println("Failed to write collection: " + e);
+      }
+    }
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkData.quietLogging();
+    BaseResource.rewriteLocalhost = false;
+
+    keyBundle = KeyBundle.withRandomKeys();
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < records; i++) {
+      sb.append(BenchmarkData.encryptedHistoryLine(i, 10, keyBundle)).append('\n');
+    }
+    collectionBody = sb.toString().getBytes("UTF-8");
+
+    uri = new URI("http://localhost:" + HTTPServerTestHelper.getTestPort() + "/1.1/benchmark/storage/history?full=1");
+    data.startHTTPServer(new CollectionMockServer());
+  }
+
+  @TearDown
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  // Requests complete synchronously, and each benchmark thread makes one at
+  // a time, so there's no need to guard these.
+  protected int count;
+  protected Exception error;
+
+  public class LineDelegate extends SyncStorageCollectionRequestDelegate {
+    @Override
+    public void handleRequestProgress(String progress) {
+      count++;
+    }
+
+    @Override
+    public AuthHeaderProvider getAuthHeaderProvider() {
+      return null;
+    }
+
+    @Override
+    public String ifUnmodifiedSince() {
+      return null;
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+    }
+
+    @Override
+    public void handleRequestFailure(SyncStorageResponse response) {
+      BaseResource.consumeEntity(response);
+      error = new IllegalStateException("Request failed: " + response.getStatusCode());
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      error = ex;
+    }
+  }
+
+  public class RecordDelegate extends WBOCollectionRequestDelegate {
+    protected final boolean decrypt;
+
+    public RecordDelegate(boolean decrypt) {
+      this.decrypt = decrypt;
+    }
+
+    @Override
+    public KeyBundle keyBundle() {
+      return keyBundle;
+    }
+
+    @Override
+    public void handleWBO(CryptoRecord record) {
+      if (decrypt) {
+        try {
+          record.decrypt();
+        } catch (Exception e) {
+          handleRequestError(e);
+          return;
+        }
+      }
+      count++;
+    }
+
+    @Override
+    public AuthHeaderProvider getAuthHeaderProvider() {
+      return null;
+    }
+
+    @Override
+    public String ifUnmodifiedSince() {
+      return null;
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+    }
+
+    @Override
+    public void handleRequestFailure(SyncStorageResponse response) {
+      BaseResource.consumeEntity(response);
+      error = new IllegalStateException("Request failed: " + response.getStatusCode());
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      error = ex;
+    }
+  }
+
+  /**
+   * Requests complete synchronously, so the delegate is done when
+   * <code>get</code> returns.
+   */
+  protected int fetch(SyncStorageCollectionRequestDelegate delegate) throws Exception {
+    count = 0;
+    error = null;
+    final SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(uri);
+    request.delegate = delegate;
+    request.get();
+    if (error != null) {
+      throw error;
+    }
+    if (count != records) {
+      throw new IllegalStateException("Expected " + records + " records, got " + count + ".");
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int lines() throws Exception {
+    return fetch(new LineDelegate());
+  }
+
+  @Benchmark
+  public int records() throws Exception {
+    return fetch(new RecordDelegate(false));
+  }
+
+  @Benchmark
+  public int recordsDecrypted() throws Exception {
+    return fetch(new RecordDelegate(true));
+  }
+}
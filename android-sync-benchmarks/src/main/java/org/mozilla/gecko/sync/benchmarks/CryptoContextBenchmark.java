@@ -0,0 +1,86 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.crypto.CryptoContext;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * An encrypt and decrypt round trip of a raw message, with HMACs.
+ * <p>
+ * <code>sharedContext</code> goes through {@link CryptoInfo}, which reuses
+ * this thread's {@link CryptoContext}; <code>freshInstances</code> looks up
+ * a new <code>Cipher</code> and <code>Mac</code> for every step, as was done
+ * before <code>CryptoContext</code> existed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CryptoContextBenchmark {
+  @Param({ "600", "20000" })
+  public int bytes;
+
+  protected KeyBundle keyBundle;
+  protected byte[] plaintext;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkData.quietLogging();
+    keyBundle = KeyBundle.withRandomKeys();
+    plaintext = new byte[bytes];
+    new Random(42).nextBytes(plaintext);
+  }
+
+  @Benchmark
+  public byte[] sharedContext() throws Exception {
+    final CryptoInfo info = CryptoInfo.encrypt(plaintext, keyBundle);
+    info.decrypt();
+    return info.getMessage();
+  }
+
+  protected byte[] freshHMACFor(byte[] message) throws Exception {
+    final Mac hmacHasher = HKDF.makeHMACHasher(keyBundle.getHMACKey());
+    return hmacHasher.doFinal(Base64.encodeBase64(message));
+  }
+
+  @Benchmark
+  public byte[] freshInstances() throws Exception {
+    final SecretKeySpec spec = new SecretKeySpec(keyBundle.getEncryptionKey(), CryptoContext.KEY_ALGORITHM_SPEC);
+    final Cipher cipher = Cipher.getInstance(CryptoContext.TRANSFORMATION);
+    cipher.init(Cipher.ENCRYPT_MODE, spec);
+    final byte[] ciphertext = cipher.doFinal(plaintext);
+    final byte[] iv = cipher.getIV();
+    freshHMACFor(ciphertext);
+
+    freshHMACFor(ciphertext);
+    final Cipher decipher = Cipher.getInstance(CryptoContext.TRANSFORMATION);
+    decipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(iv));
+    return decipher.doFinal(ciphertext);
+  }
+}
@@ -0,0 +1,67 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypting and decrypting a single WBO payload, by payload size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CryptoRecordBenchmark {
+  /**
+   * Number of visits in the history payload: roughly 100 bytes, 2 kB and 20 kB.
+   */
+  @Param({ "1", "20", "200" })
+  public int visits;
+
+  protected KeyBundle keyBundle;
+  protected ExtendedJSONObject cleartext;
+  protected ExtendedJSONObject ciphertext;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkData.quietLogging();
+    keyBundle = KeyBundle.withRandomKeys();
+
+    final CryptoRecord record = BenchmarkData.historyEnvelope(0, visits);
+    cleartext = record.payload;
+    record.keyBundle = keyBundle;
+    ciphertext = record.encrypt().payload;
+  }
+
+  @Benchmark
+  public ExtendedJSONObject encrypt() throws Exception {
+    final CryptoRecord record = new CryptoRecord(cleartext);
+    record.keyBundle = keyBundle;
+    return record.encrypt().payload;
+  }
+
+  @Benchmark
+  public ExtendedJSONObject decrypt() throws Exception {
+    final CryptoRecord record = new CryptoRecord(ciphertext);
+    record.keyBundle = keyBundle;
+    return record.decrypt().payload;
+  }
+}
@@ -0,0 +1,80 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.parser.JSONParser;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the JSON that arrives from the server: whole WBOs, cleartext
+ * payloads, and the UTF-8 bytes that decryption produces.
+ * <p>
+ * <code>parsePayloadUTF8FreshParser</code> is the way decrypted bytes were
+ * parsed before: through an intermediate string, with a new parser each
+ * time. Run with <code>-prof gc</code> to compare allocation per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class JSONParsingBenchmark {
+  @Param({ "1", "20", "200" })
+  public int visits;
+
+  protected String wbo;
+  protected ExtendedJSONObject cleartext;
+  protected String payload;
+  protected byte[] payloadBytes;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkData.quietLogging();
+    wbo = BenchmarkData.encryptedHistoryLine(0, visits, KeyBundle.withRandomKeys());
+    cleartext = BenchmarkData.historyEnvelope(0, visits).payload;
+    payload = cleartext.toJSONString();
+    payloadBytes = payload.getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public ExtendedJSONObject parsePayload() throws Exception {
+    return ExtendedJSONObject.parseJSONObject(payload);
+  }
+
+  @Benchmark
+  public ExtendedJSONObject parsePayloadUTF8() throws Exception {
+    return ExtendedJSONObject.parseUTF8AsJSONObject(payloadBytes);
+  }
+
+  @Benchmark
+  public Object parsePayloadUTF8FreshParser() throws Exception {
+    return new JSONParser().parse(new String(payloadBytes, "UTF-8"));
+  }
+
+  @Benchmark
+  public CryptoRecord parseWBO() throws Exception {
+    return CryptoRecord.fromJSONRecord(wbo);
+  }
+
+  @Benchmark
+  public String serializePayload() throws Exception {
+    return cleartext.toJSONString();
+  }
+}
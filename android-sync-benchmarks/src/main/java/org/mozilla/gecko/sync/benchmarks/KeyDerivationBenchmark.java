@@ -0,0 +1,74 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.JavaKeyDerivation;
+import org.mozilla.gecko.sync.crypto.KeyDerivation;
+import org.mozilla.gecko.sync.crypto.PBKDF2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Key derivation as done at Firefox Account sign in: the quick-stretch
+ * PBKDF2, then HKDF for the derived tokens. The <code>reference</code>
+ * benchmarks use <code>javax.crypto.Mac</code>. Native PBKDF2 needs mozglue,
+ * so it can only be measured on a device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class KeyDerivationBenchmark {
+  // FxAccountUtils.NUMBER_OF_QUICK_STRETCH_ROUNDS.
+  protected static final int QUICK_STRETCH_ROUNDS = 1000;
+
+  protected final KeyDerivation keyDerivation = new JavaKeyDerivation();
+
+  protected byte[] password;
+  protected byte[] salt;
+  protected byte[] quickStretchedPW;
+  protected byte[] info;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkData.quietLogging();
+    password = HKDF.bytes("correct horse battery staple");
+    salt = HKDF.bytes("identity.mozilla.com/picl/v1/quickStretch:andre@example.org");
+    quickStretchedPW = keyDerivation.pbkdf2SHA256(password, salt, QUICK_STRETCH_ROUNDS, 32);
+    info = HKDF.bytes("identity.mozilla.com/picl/v1/keyFetchToken");
+  }
+
+  @Benchmark
+  public byte[] pbkdf2Reference() throws Exception {
+    return PBKDF2.pbkdf2SHA256(password, salt, QUICK_STRETCH_ROUNDS, 32);
+  }
+
+  @Benchmark
+  public byte[] pbkdf2Java() throws Exception {
+    return keyDerivation.pbkdf2SHA256(password, salt, QUICK_STRETCH_ROUNDS, 32);
+  }
+
+  @Benchmark
+  public byte[] hkdfReference() throws Exception {
+    return HKDF.hkdfExpand(HKDF.hkdfExtract(new byte[0], quickStretchedPW), info, 3 * 32);
+  }
+
+  @Benchmark
+  public byte[] hkdfJava() throws Exception {
+    return keyDerivation.hkdf(quickStretchedPW, new byte[0], info, 3 * 32);
+  }
+}
@@ -0,0 +1,71 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecordFactory;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning decrypted envelopes into domain records, and back again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RecordFactoryBenchmark {
+  protected final HistoryRecordFactory historyFactory = new HistoryRecordFactory();
+  protected final BookmarkRecordFactory bookmarkFactory = new BookmarkRecordFactory();
+
+  protected HistoryRecord historyRecord;
+  protected BookmarkRecord bookmarkRecord;
+  protected CryptoRecord historyEnvelope;
+  protected CryptoRecord bookmarkEnvelope;
+
+  @Setup
+  public void setUp() {
+    BenchmarkData.quietLogging();
+    historyRecord = BenchmarkData.historyRecord(0, 20);
+    bookmarkRecord = BenchmarkData.bookmarkRecord(0);
+    historyEnvelope = historyRecord.getEnvelope();
+    bookmarkEnvelope = bookmarkRecord.getEnvelope();
+  }
+
+  @Benchmark
+  public Record historyFromEnvelope() {
+    return historyFactory.createRecord(historyEnvelope);
+  }
+
+  @Benchmark
+  public Record bookmarkFromEnvelope() {
+    return bookmarkFactory.createRecord(bookmarkEnvelope);
+  }
+
+  @Benchmark
+  public CryptoRecord historyToEnvelope() {
+    return historyRecord.getEnvelope();
+  }
+
+  @Benchmark
+  public CryptoRecord bookmarkToEnvelope() {
+    return bookmarkRecord.getEnvelope();
+  }
+}
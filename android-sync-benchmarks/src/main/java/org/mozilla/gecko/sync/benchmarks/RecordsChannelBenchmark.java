@@ -0,0 +1,134 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mozilla.gecko.background.testhelpers.WBORepository;
+import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+import org.mozilla.gecko.sync.synchronizer.RecordsChannel;
+import org.mozilla.gecko.sync.synchronizer.RecordsChannelDelegate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A complete flow of history records from one in-memory repository to an
+ * empty one: begin both sessions, fetch, queue, store and finish.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class RecordsChannelBenchmark {
+  public static final long FLOW_TIMEOUT_MSEC = 60 * 1000;
+
+  @Param({ "100", "1000" })
+  public int records;
+
+  @Param({ "1", "4" })
+  public int storeWorkers;
+
+  protected BenchmarkRepository source;
+
+  /**
+   * A <code>WBORepository</code> whose sessions release their threads when
+   * the benchmark is done with them. Otherwise every invocation would leak
+   * an idle delegate thread.
+   */
+  public static class BenchmarkRepository extends WBORepository {
+    public BenchmarkRepository() {
+      super(false);
+    }
+
+    public class BenchmarkSession extends WBORepositorySession {
+      public BenchmarkSession() {
+        super(BenchmarkRepository.this);
+      }
+
+      public void close() {
+        abort();
+        delegateExecutor.shutdown();
+      }
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    BenchmarkData.quietLogging();
+    source = new BenchmarkRepository();
+    for (HistoryRecord record : BenchmarkData.historyRecords(records, 10)) {
+      source.wbos.put(record.guid, record);
+    }
+  }
+
+  @Benchmark
+  public int flow() throws Exception {
+    final BenchmarkRepository sink = new BenchmarkRepository();
+    final BenchmarkRepository.BenchmarkSession sourceSession = source.new BenchmarkSession();
+    final BenchmarkRepository.BenchmarkSession sinkSession = sink.new BenchmarkSession();
+
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    final RecordsChannelDelegate delegate = new RecordsChannelDelegate() {
+      @Override
+      public void onFlowCompleted(RecordsChannel recordsChannel, long fetchEnd, long storeEnd) {
+        done.countDown();
+      }
+
+      @Override
+      public void onFlowBeginFailed(RecordsChannel recordsChannel, Exception ex) {
+        error.compareAndSet(null, ex);
+        done.countDown();
+      }
+
+      @Override
+      public void onFlowFetchFailed(RecordsChannel recordsChannel, Exception ex) {
+        error.compareAndSet(null, ex);
+      }
+
+      @Override
+      public void onFlowStoreFailed(RecordsChannel recordsChannel, Exception ex, String recordGuid) {
+        error.compareAndSet(null, ex);
+      }
+
+      @Override
+      public void onFlowFinishFailed(RecordsChannel recordsChannel, Exception ex) {
+        error.compareAndSet(null, ex);
+        done.countDown();
+      }
+    };
+
+    try {
+      final RecordsChannel channel = new RecordsChannel(sourceSession, sinkSession, delegate);
+      channel.setStoreWorkerCount(storeWorkers);
+      channel.beginAndFlow();
+      if (!done.await(FLOW_TIMEOUT_MSEC, TimeUnit.MILLISECONDS)) {
+        throw new IllegalStateException("Flow did not complete.");
+      }
+      if (error.get() != null) {
+        throw error.get();
+      }
+      if (sinkSession.wbos.size() != records) {
+        throw new IllegalStateException("Expected " + records + " records, stored " + sinkSession.wbos.size() + ".");
+      }
+      return channel.getStoreCount();
+    } finally {
+      sourceSession.close();
+      sinkSession.close();
+    }
+  }
+}
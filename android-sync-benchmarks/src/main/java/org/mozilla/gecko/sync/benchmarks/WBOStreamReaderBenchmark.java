@@ -0,0 +1,78 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.WBOStreamReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing an <code>application/newlines</code> collection body held in
+ * memory, without the network.
+ * <p>
+ * <code>streamReader</code> parses records straight from the bytes;
+ * <code>lineByLine</code> is the <code>BufferedReader</code> and
+ * <code>fromJSONRecord</code> path that {@link WBOStreamReader} replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WBOStreamReaderBenchmark {
+  @Param({ "100", "1000" })
+  public int records;
+
+  protected byte[] body;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkData.quietLogging();
+    final KeyBundle keyBundle = KeyBundle.withRandomKeys();
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < records; i++) {
+      sb.append(BenchmarkData.encryptedHistoryLine(i, 10, keyBundle)).append('\n');
+    }
+    body = sb.toString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public int streamReader() throws Exception {
+    final WBOStreamReader reader = new WBOStreamReader(new ByteArrayInputStream(body));
+    int count = 0;
+    while (reader.next() != null) {
+      count++;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int lineByLine() throws Exception {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"), WBOStreamReader.DEFAULT_BUFFER_SIZE);
+    int count = 0;
+    String line;
+    while (null != (line = reader.readLine())) {
+      CryptoRecord.fromJSONRecord(line);
+      count++;
+    }
+    return count;
+  }
+}
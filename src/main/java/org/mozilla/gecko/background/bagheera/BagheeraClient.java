@@ -125,9 +125,33 @@ public class BagheeraClient {
       throw new IllegalArgumentException("Must provide payload.");
     }
 
-    final BaseResource resource = makeResource(namespace, id);
-    final HttpEntity deflatedBody = DeflateHelper.deflateBody(payload);
+    uploadDeflatedJSONDocument(namespace, id, DeflateHelper.deflateBody(payload), oldIDs, delegate);
+  }
 
+  /**
+   * Upload an already-deflated JSON document, such as one produced by a
+   * {@link DeflateHelper.DeflatingWriter}. Otherwise identical to
+   * {@link #uploadJSONDocument(String, String, String, Collection, BagheeraRequestDelegate)}.
+   *
+   * @param deflatedBody
+   *          the zlib-deflated UTF-8 document.
+   */
+  public void uploadDeflatedJSONDocument(final String namespace,
+                                         final String id,
+                                         final HttpEntity deflatedBody,
+                                         Collection<String> oldIDs,
+                                         final BagheeraRequestDelegate delegate) throws URISyntaxException {
+    if (namespace == null) {
+      throw new IllegalArgumentException("Must provide namespace.");
+    }
+    if (id == null) {
+      throw new IllegalArgumentException("Must provide id.");
+    }
+    if (deflatedBody == null) {
+      throw new IllegalArgumentException("Must provide payload.");
+    }
+
+    final BaseResource resource = makeResource(namespace, id);
     resource.delegate = new BagheeraUploadResourceDelegate(resource, namespace, id, oldIDs, delegate);
     resource.post(deflatedBody);
   }
@@ -4,8 +4,14 @@
 
 package org.mozilla.gecko.background.bagheera;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import ch.boye.httpclientandroidlib.HttpEntity;
 
@@ -64,6 +70,93 @@ public class DeflateHelper {
     return new BoundedByteArrayEntity(out, 0, outLength);
   }
 
+  /**
+   * A <code>Writer</code> that encodes its input as UTF-8 and deflates it as it
+   * goes, so that a large document never has to exist uncompressed in memory.
+   *
+   * Write the document, {@link #close()} the writer, then call
+   * {@link #getEntity()}. The output is identical in format to that of
+   * {@link #deflateBody(String)}.
+   */
+  public static class DeflatingWriter extends Writer {
+    protected static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Lets us wrap the output buffer in an entity without copying it.
+     */
+    protected static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+      public ExposedByteArrayOutputStream(int size) {
+        super(size);
+      }
+
+      public byte[] getBuffer() {
+        return buf;
+      }
+    }
+
+    protected final Deflater deflater = new Deflater();
+    protected final ExposedByteArrayOutputStream output = new ExposedByteArrayOutputStream(BUFFER_SIZE);
+    protected final Writer writer;
+    protected boolean closed = false;
+
+    public DeflatingWriter() {
+      final DeflaterOutputStream deflating = new DeflaterOutputStream(output, deflater, BUFFER_SIZE);
+      try {
+        this.writer = new BufferedWriter(new OutputStreamWriter(deflating, "UTF-8"), BUFFER_SIZE);
+      } catch (UnsupportedEncodingException ex) {
+        // This will never happen. Thanks, Java!
+        throw new RuntimeException(ex);
+      }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      writer.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      writer.write(str, off, len);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      writer.write(c);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      writer.flush();
+    }
+
+    /**
+     * Finish deflating. Safe to call more than once.
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        writer.close();
+      } finally {
+        deflater.end();
+      }
+    }
+
+    /**
+     * @return the deflated output as a repeatable entity.
+     * @throws IllegalStateException if the writer has not been closed.
+     */
+    public HttpEntity getEntity() {
+      if (!closed) {
+        throw new IllegalStateException("Writer must be closed before its output is used.");
+      }
+      return new BoundedByteArrayEntity(output.getBuffer(), 0, output.size());
+    }
+  }
+
   public static HttpEntity deflateBody(final String payload) {
     final byte[] bytes;
     try {
@@ -5,13 +5,14 @@
 package org.mozilla.gecko.background.common.log;
 
 import java.io.PrintWriter;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
 import org.mozilla.gecko.background.common.GlobalConstants;
 import org.mozilla.gecko.background.common.log.writers.AndroidLevelCachingLogWriter;
 import org.mozilla.gecko.background.common.log.writers.AndroidLogWriter;
+import org.mozilla.gecko.background.common.log.writers.AsyncLogWriter;
 import org.mozilla.gecko.background.common.log.writers.LogWriter;
 import org.mozilla.gecko.background.common.log.writers.PrintLogWriter;
 import org.mozilla.gecko.background.common.log.writers.SimpleTagLogWriter;
@@ -20,7 +21,20 @@ import org.mozilla.gecko.background.common.log.writers.ThreadLocalTagLogWriter;
 import android.util.Log;
 
 /**
- * Logging helper class. Serializes all log operations (by synchronizing).
+ * Logging helper class.
+ * <p>
+ * Logging calls take no locks: each call writes to a snapshot of the current
+ * set of writers, which is replaced (under a lock) when writers are added or
+ * removed. Writers must therefore be safe to call from several threads at
+ * once. By default, messages are written to the Android log by a background
+ * thread; see {@link AsyncLogWriter}.
+ * <p>
+ * On hot paths, avoid building messages that will be discarded: either check
+ * {@link #shouldLog(String, int)} (or {@link #shouldLogVerbose(String)})
+ * first, or use the overloads that take a format and arguments, such as
+ * <code>Logger.trace(LOG_TAG, "Storing record {}.", record.guid)</code>. Each
+ * <code>{}</code> is replaced by the next argument, and the message is only
+ * built if some writer wants it.
  */
 public class Logger {
   public static final String LOGGER_TAG = "Logger";
@@ -54,16 +68,33 @@ public class Logger {
     return Logger.logTag.get();
   }
 
+  private static final LogWriter[] NO_WRITERS = new LogWriter[0];
+
   /**
-   * Current set of writers to which we will log.
+   * Current set of writers to which we will log. Guarded by the
+   * <code>Logger</code> class lock.
    * <p>
    * We want logging to be available while running tests, so we initialize
    * this set statically.
    */
   protected final static Set<LogWriter> logWriters;
+
+  /**
+   * Snapshot of <code>logWriters</code> read by logging calls.
+   */
+  private static volatile LogWriter[] currentWriters = NO_WRITERS;
+
   static {
     final Set<LogWriter> defaultWriters = Logger.defaultLogWriters();
     logWriters = new LinkedHashSet<LogWriter>(defaultWriters);
+    writersChanged();
+  }
+
+  /**
+   * Must be called with the <code>Logger</code> class lock held.
+   */
+  private static void writersChanged() {
+    currentWriters = logWriters.toArray(new LogWriter[logWriters.size()]);
   }
 
   /**
@@ -74,7 +105,9 @@ public class Logger {
 
     final Set<LogWriter> defaultLogWriters = new LinkedHashSet<LogWriter>();
 
-    final LogWriter log = new AndroidLogWriter();
+    // Tags and levels are resolved on the logging thread; only debug and
+    // trace writes happen in the background.
+    final LogWriter log = new AsyncLogWriter(new AndroidLogWriter());
     final LogWriter cache = new AndroidLevelCachingLogWriter(log);
 
     final LogWriter single = new SimpleTagLogWriter(processedPackage, new ThreadLocalTagLogWriter(Logger.logTag, cache));
@@ -85,30 +118,35 @@ public class Logger {
 
   public static synchronized void startLoggingTo(LogWriter logWriter) {
     logWriters.add(logWriter);
+    writersChanged();
   }
 
   public static synchronized void startLoggingToWriters(Set<LogWriter> writers) {
     logWriters.addAll(writers);
+    writersChanged();
   }
 
   public static synchronized void stopLoggingTo(LogWriter logWriter) {
+    logWriters.remove(logWriter);
+    writersChanged();
     try {
       logWriter.close();
     } catch (Exception e) {
       Log.e(LOGGER_TAG, "Got exception closing and removing LogWriter " + logWriter + ".", e);
     }
-    logWriters.remove(logWriter);
   }
 
   public static synchronized void stopLoggingToAll() {
-    for (LogWriter logWriter : logWriters) {
+    final LogWriter[] writers = currentWriters;
+    logWriters.clear();
+    writersChanged();
+    for (LogWriter logWriter : writers) {
       try {
         logWriter.close();
       } catch (Exception e) {
         Log.e(LOGGER_TAG, "Got exception closing and removing LogWriter " + logWriter + ".", e);
       }
     }
-    logWriters.clear();
   }
 
   /**
@@ -117,6 +155,7 @@ public class Logger {
   public static synchronized void resetLogging() {
     stopLoggingToAll();
     logWriters.addAll(Logger.defaultLogWriters());
+    writersChanged();
   }
 
   /**
@@ -129,9 +168,14 @@ public class Logger {
     startLoggingTo(new PrintLogWriter(new PrintWriter(System.out, true)));
   }
 
-  // Synchronized version for other classes to use.
-  public static synchronized boolean shouldLogVerbose(String logTag) {
-    for (LogWriter logWriter : logWriters) {
+  private static synchronized void removeFailedWriter(LogWriter logWriter, Exception e) {
+    Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + logWriter + ".", e);
+    logWriters.remove(logWriter);
+    writersChanged();
+  }
+
+  public static boolean shouldLogVerbose(String logTag) {
+    for (LogWriter logWriter : currentWriters) {
       if (logWriter.shouldLogVerbose(logTag)) {
         return true;
       }
@@ -139,24 +183,39 @@ public class Logger {
     return false;
   }
 
+  /**
+   * Would a message logged at <code>level</code> with <code>logTag</code> be
+   * written anywhere?
+   *
+   * @param level one of the <code>android.util.Log</code> levels.
+   */
+  public static boolean shouldLog(String logTag, int level) {
+    for (LogWriter logWriter : currentWriters) {
+      if (logWriter.shouldLog(logTag, level)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public static void error(String tag, String message) {
-    Logger.error(tag, message, null);
+    Logger.error(tag, message, (Throwable) null);
   }
 
   public static void warn(String tag, String message) {
-    Logger.warn(tag, message, null);
+    Logger.warn(tag, message, (Throwable) null);
   }
 
   public static void info(String tag, String message) {
-    Logger.info(tag, message, null);
+    Logger.info(tag, message, (Throwable) null);
   }
 
   public static void debug(String tag, String message) {
-    Logger.debug(tag, message, null);
+    Logger.debug(tag, message, (Throwable) null);
   }
 
   public static void trace(String tag, String message) {
-    Logger.trace(tag, message, null);
+    Logger.trace(tag, message, (Throwable) null);
   }
 
   public static void pii(String tag, String message) {
@@ -165,67 +224,135 @@ public class Logger {
     }
   }
 
-  public static synchronized void error(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
-      try {
-        writer.error(tag, message, error);
-      } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
-      }
+  public static void error(String tag, String message, Throwable error) {
+    log(Log.ERROR, tag, message, error);
+  }
+
+  public static void warn(String tag, String message, Throwable error) {
+    log(Log.WARN, tag, message, error);
+  }
+
+  public static void info(String tag, String message, Throwable error) {
+    log(Log.INFO, tag, message, error);
+  }
+
+  public static void debug(String tag, String message, Throwable error) {
+    log(Log.DEBUG, tag, message, error);
+  }
+
+  public static void trace(String tag, String message, Throwable error) {
+    log(Log.VERBOSE, tag, message, error);
+  }
+
+  public static void info(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.INFO)) {
+      log(Log.INFO, tag, format(format, arg), null);
     }
   }
 
-  public static synchronized void warn(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
-      try {
-        writer.warn(tag, message, error);
-      } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
-      }
+  public static void info(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.INFO)) {
+      log(Log.INFO, tag, format(format, arg1, arg2), null);
     }
   }
 
-  public static synchronized void info(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
-      try {
-        writer.info(tag, message, error);
-      } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
-      }
+  public static void info(String tag, String format, Object... args) {
+    if (shouldLog(tag, Log.INFO)) {
+      log(Log.INFO, tag, format(format, args), null);
     }
   }
 
-  public static synchronized void debug(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
-      try {
-        writer.debug(tag, message, error);
-      } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+  public static void debug(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      log(Log.DEBUG, tag, format(format, arg), null);
+    }
+  }
+
+  public static void debug(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      log(Log.DEBUG, tag, format(format, arg1, arg2), null);
+    }
+  }
+
+  public static void debug(String tag, String format, Object... args) {
+    if (shouldLog(tag, Log.DEBUG)) {
+      log(Log.DEBUG, tag, format(format, args), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object arg) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      log(Log.VERBOSE, tag, format(format, arg), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object arg1, Object arg2) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      log(Log.VERBOSE, tag, format(format, arg1, arg2), null);
+    }
+  }
+
+  public static void trace(String tag, String format, Object... args) {
+    if (shouldLog(tag, Log.VERBOSE)) {
+      log(Log.VERBOSE, tag, format(format, args), null);
+    }
+  }
+
+  /**
+   * Replace each <code>{}</code> in <code>format</code> with the string value
+   * of the next argument. Surplus placeholders are left alone; surplus
+   * arguments are ignored.
+   */
+  public static String format(String format, Object... args) {
+    if (format == null || args == null || args.length == 0) {
+      return format;
+    }
+    final StringBuilder out = new StringBuilder(format.length() + 16 * args.length);
+    int start = 0;
+    int arg = 0;
+    while (arg < args.length) {
+      final int placeholder = format.indexOf("{}", start);
+      if (placeholder < 0) {
+        break;
+      }
+      out.append(format, start, placeholder);
+      final Object value = args[arg++];
+      if (value instanceof Object[]) {
+        out.append(Arrays.toString((Object[]) value));
+      } else {
+        out.append(value);
       }
+      start = placeholder + 2;
     }
+    out.append(format, start, format.length());
+    return out.toString();
   }
 
-  public static synchronized void trace(String tag, String message, Throwable error) {
-    Iterator<LogWriter> it = logWriters.iterator();
-    while (it.hasNext()) {
-      LogWriter writer = it.next();
+  private static void log(int level, String tag, String message, Throwable error) {
+    for (LogWriter writer : currentWriters) {
       try {
-        writer.trace(tag, message, error);
+        if (!writer.shouldLog(tag, level)) {
+          continue;
+        }
+        switch (level) {
+        case Log.ERROR:
+          writer.error(tag, message, error);
+          break;
+        case Log.WARN:
+          writer.warn(tag, message, error);
+          break;
+        case Log.INFO:
+          writer.info(tag, message, error);
+          break;
+        case Log.DEBUG:
+          writer.debug(tag, message, error);
+          break;
+        default:
+          writer.trace(tag, message, error);
+          break;
+        }
       } catch (Exception e) {
-        Log.e(LOGGER_TAG, "Got exception logging; removing LogWriter " + writer + ".", e);
-        it.remove();
+        removeFailedWriter(writer, e);
       }
     }
   }
@@ -4,8 +4,7 @@
 
 package org.mozilla.gecko.background.common.log.writers;
 
-import java.util.IdentityHashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Log;
 
@@ -20,76 +19,99 @@ public class AndroidLevelCachingLogWriter extends LogWriter {
   }
 
   // I can't believe we have to implement this ourselves.
-  // These aren't synchronized (and neither are the setters) because
-  // the logging calls themselves are synchronized.
-  private Map<String, Boolean> isErrorLoggable   = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isWarnLoggable    = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isInfoLoggable    = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isDebugLoggable   = new IdentityHashMap<String, Boolean>();
-  private Map<String, Boolean> isVerboseLoggable = new IdentityHashMap<String, Boolean>();
+  // Logging calls aren't serialized, so these must be safe to use from many
+  // threads at once. A racing lookup at worst asks Log twice.
+  private volatile ConcurrentHashMap<String, Boolean> isErrorLoggable   = new ConcurrentHashMap<String, Boolean>();
+  private volatile ConcurrentHashMap<String, Boolean> isWarnLoggable    = new ConcurrentHashMap<String, Boolean>();
+  private volatile ConcurrentHashMap<String, Boolean> isInfoLoggable    = new ConcurrentHashMap<String, Boolean>();
+  private volatile ConcurrentHashMap<String, Boolean> isDebugLoggable   = new ConcurrentHashMap<String, Boolean>();
+  private volatile ConcurrentHashMap<String, Boolean> isVerboseLoggable = new ConcurrentHashMap<String, Boolean>();
 
   /**
    * Empty the caches of log levels.
    */
   public void refreshLogLevels() {
-    isErrorLoggable   = new IdentityHashMap<String, Boolean>();
-    isWarnLoggable    = new IdentityHashMap<String, Boolean>();
-    isInfoLoggable    = new IdentityHashMap<String, Boolean>();
-    isDebugLoggable   = new IdentityHashMap<String, Boolean>();
-    isVerboseLoggable = new IdentityHashMap<String, Boolean>();
+    isErrorLoggable   = new ConcurrentHashMap<String, Boolean>();
+    isWarnLoggable    = new ConcurrentHashMap<String, Boolean>();
+    isInfoLoggable    = new ConcurrentHashMap<String, Boolean>();
+    isDebugLoggable   = new ConcurrentHashMap<String, Boolean>();
+    isVerboseLoggable = new ConcurrentHashMap<String, Boolean>();
   }
 
   private boolean shouldLogError(String logTag) {
-    Boolean out = isErrorLoggable.get(logTag);
+    final ConcurrentHashMap<String, Boolean> cache = isErrorLoggable;
+    Boolean out = cache.get(logTag);
     if (out != null) {
       return out;
     }
     out = Log.isLoggable(logTag, Log.ERROR);
-    isErrorLoggable.put(logTag, out);
+    cache.put(logTag, out);
     return out;
   }
 
   private boolean shouldLogWarn(String logTag) {
-    Boolean out = isWarnLoggable.get(logTag);
+    final ConcurrentHashMap<String, Boolean> cache = isWarnLoggable;
+    Boolean out = cache.get(logTag);
     if (out != null) {
       return out;
     }
     out = Log.isLoggable(logTag, Log.WARN);
-    isWarnLoggable.put(logTag, out);
+    cache.put(logTag, out);
     return out;
   }
 
   private boolean shouldLogInfo(String logTag) {
-    Boolean out = isInfoLoggable.get(logTag);
+    final ConcurrentHashMap<String, Boolean> cache = isInfoLoggable;
+    Boolean out = cache.get(logTag);
     if (out != null) {
       return out;
     }
     out = Log.isLoggable(logTag, Log.INFO);
-    isInfoLoggable.put(logTag, out);
+    cache.put(logTag, out);
     return out;
   }
 
   private boolean shouldLogDebug(String logTag) {
-    Boolean out = isDebugLoggable.get(logTag);
+    final ConcurrentHashMap<String, Boolean> cache = isDebugLoggable;
+    Boolean out = cache.get(logTag);
     if (out != null) {
       return out;
     }
     out = Log.isLoggable(logTag, Log.DEBUG);
-    isDebugLoggable.put(logTag, out);
+    cache.put(logTag, out);
     return out;
   }
 
   @Override
   public boolean shouldLogVerbose(String logTag) {
-    Boolean out = isVerboseLoggable.get(logTag);
+    final ConcurrentHashMap<String, Boolean> cache = isVerboseLoggable;
+    Boolean out = cache.get(logTag);
     if (out != null) {
       return out;
     }
     out = Log.isLoggable(logTag, Log.VERBOSE);
-    isVerboseLoggable.put(logTag, out);
+    cache.put(logTag, out);
     return out;
   }
 
+  @Override
+  public boolean shouldLog(String tag, int level) {
+    switch (level) {
+    case Log.ERROR:
+      return shouldLogError(tag);
+    case Log.WARN:
+      return shouldLogWarn(tag);
+    case Log.INFO:
+      return shouldLogInfo(tag);
+    case Log.DEBUG:
+      return shouldLogDebug(tag);
+    case Log.VERBOSE:
+      return shouldLogVerbose(tag);
+    default:
+      return true;
+    }
+  }
+
   @Override
   public void error(String tag, String message, Throwable error) {
     if (shouldLogError(tag)) {
@@ -0,0 +1,209 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.background.common.log.writers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A log writer that hands debug and trace messages to a background thread,
+ * which writes them to an inner log writer.
+ * <p>
+ * Those messages wait in a bounded buffer. Logging them never blocks: if the
+ * buffer is full the message is dropped and counted, and the count is
+ * reported with the next message that is written.
+ * <p>
+ * Info, warning, and error messages are written to the inner writer
+ * immediately, on the calling thread, so they are never dropped and aren't
+ * lost if the process dies. They can therefore overtake debug and trace
+ * messages still in the buffer.
+ * <p>
+ * Queued messages from a single thread are written in order. Anything that
+ * depends on the logging thread, such as a thread-local tag, must be resolved
+ * before messages reach this writer, so wrap the innermost writer only.
+ */
+public class AsyncLogWriter extends LogWriter {
+  public static final String LOG_TAG = "AsyncLogWriter";
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * How long <code>close</code> waits for queued messages to be written.
+   */
+  protected static final long CLOSE_TIMEOUT_MSEC = 1000;
+
+  protected static final class Entry {
+    public final int level;
+    public final String tag;
+    public final String message;
+    public final Throwable error;
+
+    public Entry(int level, String tag, String message, Throwable error) {
+      this.level = level;
+      this.tag = tag;
+      this.message = message;
+      this.error = error;
+    }
+  }
+
+  // Tells the writing thread to stop.
+  protected static final Entry CLOSE = new Entry(Log.ASSERT, null, null, null);
+
+  protected final LogWriter inner;
+  protected final BlockingQueue<Entry> queue;
+  protected final AtomicLong dropped = new AtomicLong(0);
+  protected final Thread thread;
+  protected volatile boolean closed = false;
+
+  public AsyncLogWriter(LogWriter inner) {
+    this(inner, DEFAULT_CAPACITY);
+  }
+
+  public AsyncLogWriter(LogWriter inner, int capacity) {
+    if (inner == null) {
+      throw new IllegalArgumentException("inner must not be null.");
+    }
+    this.inner = inner;
+    this.queue = new ArrayBlockingQueue<Entry>(capacity);
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, LOG_TAG);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * @return the number of messages dropped because the buffer was full.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  protected void drain() {
+    while (true) {
+      final Entry entry;
+      try {
+        entry = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (entry == CLOSE) {
+        return;
+      }
+
+      final long lost = dropped.getAndSet(0);
+      if (lost > 0) {
+        inner.warn(LOG_TAG, "Dropped " + lost + " log messages.", null);
+      }
+
+      try {
+        write(entry);
+      } catch (Exception e) {
+        // Nothing else will tell anyone: the caller has long since moved on.
+        Log.e(LOG_TAG, "Got exception logging.", e);
+      }
+    }
+  }
+
+  protected void write(Entry entry) {
+    switch (entry.level) {
+    case Log.ERROR:
+      inner.error(entry.tag, entry.message, entry.error);
+      break;
+    case Log.WARN:
+      inner.warn(entry.tag, entry.message, entry.error);
+      break;
+    case Log.INFO:
+      inner.info(entry.tag, entry.message, entry.error);
+      break;
+    case Log.DEBUG:
+      inner.debug(entry.tag, entry.message, entry.error);
+      break;
+    default:
+      inner.trace(entry.tag, entry.message, entry.error);
+      break;
+    }
+  }
+
+  protected void enqueue(int level, String tag, String message, Throwable error) {
+    if (closed) {
+      return;
+    }
+    if (!queue.offer(new Entry(level, tag, message, error))) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void error(String tag, String message, Throwable error) {
+    if (!closed) {
+      inner.error(tag, message, error);
+    }
+  }
+
+  @Override
+  public void warn(String tag, String message, Throwable error) {
+    if (!closed) {
+      inner.warn(tag, message, error);
+    }
+  }
+
+  @Override
+  public void info(String tag, String message, Throwable error) {
+    if (!closed) {
+      inner.info(tag, message, error);
+    }
+  }
+
+  @Override
+  public void debug(String tag, String message, Throwable error) {
+    enqueue(Log.DEBUG, tag, message, error);
+  }
+
+  @Override
+  public void trace(String tag, String message, Throwable error) {
+    enqueue(Log.VERBOSE, tag, message, error);
+  }
+
+  @Override
+  public boolean shouldLogVerbose(String tag) {
+    return inner.shouldLogVerbose(tag);
+  }
+
+  @Override
+  public boolean shouldLog(String tag, int level) {
+    return inner.shouldLog(tag, level);
+  }
+
+  /**
+   * Write any queued messages, waiting a short while for them, then close the
+   * inner writer.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (queue.offer(CLOSE, CLOSE_TIMEOUT_MSEC, TimeUnit.MILLISECONDS)) {
+        thread.join(CLOSE_TIMEOUT_MSEC);
+      } else {
+        thread.interrupt();
+      }
+    } catch (InterruptedException e) {
+      thread.interrupt();
+      Thread.currentThread().interrupt();
+    }
+    inner.close();
+  }
+}
@@ -4,6 +4,8 @@
 
 package org.mozilla.gecko.background.common.log.writers;
 
+import android.util.Log;
+
 /**
  * An abstract object that logs information in some way.
  * <p>
@@ -26,4 +28,17 @@ public abstract class LogWriter {
   public abstract void close();
 
   public abstract boolean shouldLogVerbose(String tag);
+
+  /**
+   * Return false only if this writer would certainly discard a message at
+   * <code>level</code>, so that callers can skip building it.
+   * <p>
+   * Writers are called from many threads at once, so this must be cheap and
+   * thread-safe.
+   *
+   * @param level one of the <code>android.util.Log</code> levels.
+   */
+  public boolean shouldLog(String tag, int level) {
+    return level > Log.VERBOSE || shouldLogVerbose(tag);
+  }
 }
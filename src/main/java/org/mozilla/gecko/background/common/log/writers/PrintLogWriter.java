@@ -23,7 +23,8 @@ public class PrintLogWriter extends LogWriter {
     this.pw = pw;
   }
 
-  protected void log(String tag, String message, Throwable error) {
+  // Synchronized so that a message and its stack trace stay together.
+  protected synchronized void log(String tag, String message, Throwable error) {
     if (closed) {
       return;
     }
@@ -65,7 +66,7 @@ public class PrintLogWriter extends LogWriter {
   }
 
   @Override
-  public void close() {
+  public synchronized void close() {
     if (closed) {
       return;
     }
@@ -15,11 +15,10 @@ import java.security.NoSuchAlgorithmException;
 import org.mozilla.gecko.AppConstants;
 import org.mozilla.gecko.R;
 import org.mozilla.gecko.background.common.log.Logger;
-import org.mozilla.gecko.background.nativecode.NativeCrypto;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.HKDF;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
-import org.mozilla.gecko.sync.crypto.PBKDF2;
+import org.mozilla.gecko.sync.crypto.KeyDerivationProvider;
 
 import android.content.Context;
 
@@ -124,16 +123,7 @@ public class FxAccountUtils {
    */
   public static byte[] generateQuickStretchedPW(byte[] emailUTF8, byte[] passwordUTF8) throws GeneralSecurityException, UnsupportedEncodingException {
     byte[] S = FxAccountUtils.KWE("quickStretch", emailUTF8);
-    try {
-      return NativeCrypto.pbkdf2SHA256(passwordUTF8, S, NUMBER_OF_QUICK_STRETCH_ROUNDS, 32);
-    } catch (final LinkageError e) {
-      // This will throw UnsatisfiedLinkError (missing mozglue) the first time it is called, and
-      // ClassNotDefFoundError, for the uninitialized NativeCrypto class, each subsequent time this
-      // is called; LinkageError is their common ancestor.
-      Logger.warn(LOG_TAG, "Got throwable stretching password using native pbkdf2SHA256 " +
-          "implementation; ignoring and using Java implementation.", e);
-      return PBKDF2.pbkdf2SHA256(passwordUTF8, S, NUMBER_OF_QUICK_STRETCH_ROUNDS, 32);
-    }
+    return KeyDerivationProvider.get().pbkdf2SHA256(passwordUTF8, S, NUMBER_OF_QUICK_STRETCH_ROUNDS, 32);
   }
 
   /**
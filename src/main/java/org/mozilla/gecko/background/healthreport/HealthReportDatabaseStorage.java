@@ -5,11 +5,20 @@
 package org.mozilla.gecko.background.healthreport;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONObject;
 import org.mozilla.gecko.background.common.DateUtils;
@@ -109,6 +118,12 @@ import android.util.SparseArray;
  *
  * To retrieve values, use {@link #getRawEventsSince(long)}.
  *
+ * Recorded values are buffered in memory and written in a single transaction
+ * shortly afterwards: repeated increments and daily-last values for the same
+ * day, environment, and field are coalesced. Pending values are written before
+ * any read or deletion, and on {@link #close()}, so readers always see them.
+ * Call {@link #flushPendingEvents()} to write them out sooner.
+ *
  * For safety, perform operations on the storage executor thread:
  *
  * <pre>
@@ -185,6 +200,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
 
   @Override
   public void close() {
+    flushPendingEvents();
     this.helper.close();
     this.fields.clear();
     this.envs.clear();
@@ -1130,6 +1146,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
   }
 
   protected int getIntFromQuery(final String sql, final String[] selectionArgs) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final Cursor c = db.rawQuery(sql, selectionArgs);
     try {
@@ -1152,14 +1169,225 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     return this.getDay(System.currentTimeMillis());
   }
 
+  /**
+   * How long a recorded value may wait in memory before it is written.
+   */
+  public static final long WRITE_BACK_DELAY_MSEC = 2000;
+
+  // A single daemon thread times flushes for every storage instance; the
+  // flushes themselves run on each instance's storage executor.
+  private static final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, "HealthReportFlush");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Identifies the single value a day, environment, and field can have for
+   * counters and daily-last fields.
+   */
+  private static final class EventKey {
+    public final int env;
+    public final int day;
+    public final int field;
+
+    public EventKey(int env, int day, int field) {
+      this.env = env;
+      this.day = day;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof EventKey)) {
+        return false;
+      }
+      final EventKey other = (EventKey) o;
+      return env == other.env && day == other.day && field == other.field;
+    }
+
+    @Override
+    public int hashCode() {
+      return (env * 31 + day) * 31 + field;
+    }
+  }
+
+  private static final class PendingValue {
+    public final EventKey key;
+    public final Object value;
+    public final String table;
+
+    public PendingValue(EventKey key, Object value, String table) {
+      this.key = key;
+      this.value = value;
+      this.table = table;
+    }
+  }
+
+  // Guarded by pendingLock.
+  private final Object pendingLock = new Object();
+  private LinkedHashMap<EventKey, Integer> pendingCounts = new LinkedHashMap<EventKey, Integer>();
+  private LinkedHashMap<EventKey, PendingValue> pendingLasts = new LinkedHashMap<EventKey, PendingValue>();
+  private ArrayList<PendingValue> pendingDiscretes = new ArrayList<PendingValue>();
+  private boolean flushScheduled = false;
+
+  // Held for the whole of a flush, so that a reader that flushes can't
+  // overtake values another thread has taken but not yet written.
+  private final Object flushLock = new Object();
+
+  // IDs we know to exist, so that we can reject bad events when they're
+  // recorded rather than when they're written.
+  private final Set<Integer> knownEnvIDs = Collections.synchronizedSet(new HashSet<Integer>());
+  private final Set<Integer> knownFieldIDs = Collections.synchronizedSet(new HashSet<Integer>());
+
+  private final Runnable flushOnExecutor = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        flushPendingEvents();
+      } catch (Exception e) {
+        Logger.error(LOG_TAG, "Unable to write pending events.", e);
+      }
+    }
+  };
+
+  private final Runnable scheduledFlush = new Runnable() {
+    @Override
+    public void run() {
+      executor.execute(flushOnExecutor);
+    }
+  };
+
+  private void forgetKnownIDs() {
+    knownEnvIDs.clear();
+    knownFieldIDs.clear();
+  }
+
+  private boolean rowExists(final String table, final int id, final Set<Integer> known) {
+    if (known.contains(id)) {
+      return true;
+    }
+    final SQLiteDatabase db = this.helper.getReadableDatabase();
+    final Cursor c = db.query(table, COLUMNS_ID, "id = ?", new String[] { Integer.toString(id) },
+                              null, null, null, "1");
+    try {
+      if (!c.moveToFirst()) {
+        return false;
+      }
+    } finally {
+      c.close();
+    }
+    known.add(id);
+    return true;
+  }
+
+  private boolean isValidEvent(final int env, final int field) {
+    return rowExists("environments", env, knownEnvIDs) &&
+           rowExists("fields", field, knownFieldIDs);
+  }
+
+  /**
+   * Must be called with <code>pendingLock</code> held.
+   */
+  private void scheduleFlushLocked() {
+    if (flushScheduled) {
+      return;
+    }
+    flushScheduled = true;
+    flushScheduler.schedule(scheduledFlush, WRITE_BACK_DELAY_MSEC, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Write all buffered values to the database in a single transaction.
+   * Values that can't be written, for instance because their environment or
+   * field has since been deleted, are dropped individually; the rest are still
+   * written.
+   */
+  public void flushPendingEvents() {
+    synchronized (flushLock) {
+      final Map<EventKey, Integer> counts;
+      final Map<EventKey, PendingValue> lasts;
+      final ArrayList<PendingValue> discretes;
+      synchronized (pendingLock) {
+        flushScheduled = false;
+        if (pendingCounts.isEmpty() && pendingLasts.isEmpty() && pendingDiscretes.isEmpty()) {
+          return;
+        }
+        counts = pendingCounts;
+        lasts = pendingLasts;
+        discretes = pendingDiscretes;
+        pendingCounts = new LinkedHashMap<EventKey, Integer>();
+        pendingLasts = new LinkedHashMap<EventKey, PendingValue>();
+        pendingDiscretes = new ArrayList<PendingValue>();
+      }
+
+      Logger.debug(LOG_TAG, "Writing " + counts.size() + " counts, " + lasts.size() + " last values, and " +
+                            discretes.size() + " discrete values.");
+      final SQLiteDatabase db = this.helper.getWritableDatabase();
+      db.beginTransaction();
+      try {
+        for (Map.Entry<EventKey, Integer> entry : counts.entrySet()) {
+          final EventKey key = entry.getKey();
+          try {
+            writeDailyCount(db, key.env, key.day, key.field, entry.getValue());
+          } catch (Exception e) {
+            Logger.warn(LOG_TAG, "Dropping count for field " + key.field + ".", e);
+          }
+        }
+        for (PendingValue last : lasts.values()) {
+          try {
+            writeDailyLast(db, last.key.env, last.key.day, last.key.field, last.value, last.table);
+          } catch (Exception e) {
+            Logger.warn(LOG_TAG, "Dropping last value for field " + last.key.field + ".", e);
+          }
+        }
+        for (PendingValue discrete : discretes) {
+          try {
+            writeDailyDiscrete(db, discrete.key.env, discrete.key.day, discrete.key.field, discrete.value, discrete.table);
+          } catch (Exception e) {
+            Logger.warn(LOG_TAG, "Dropping discrete value for field " + discrete.key.field + ".", e);
+          }
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Forget buffered values without writing them.
+   */
+  private void discardPendingEvents() {
+    synchronized (flushLock) {
+      synchronized (pendingLock) {
+        pendingCounts.clear();
+        pendingLasts.clear();
+        pendingDiscretes.clear();
+      }
+    }
+  }
+
   private void recordDailyLast(int env, int day, int field, Object value, String table) {
     if (env == -1) {
       Logger.warn(LOG_TAG, "Refusing to record with environment = -1.");
       return;
     }
+    if (!isValidEvent(env, field)) {
+      throw new IllegalStateException("Event did not reference existing an environment or field.");
+    }
 
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
+    final EventKey key = new EventKey(env, day, field);
+    synchronized (pendingLock) {
+      pendingLasts.put(key, new PendingValue(key, value, table));
+      scheduleFlushLocked();
+    }
+  }
 
+  private void writeDailyLast(SQLiteDatabase db, int env, int day, int field, Object value, String table) {
     final String envString = Integer.toString(env);
     final String fieldIDString = Integer.toString(field, 10);
     final String dayString = Integer.toString(day, 10);
@@ -1206,12 +1434,24 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
       return;
     }
 
+    // Events recorded with environment IDs removed by the prune service are
+    // expected, and dropped here (bug 961526).
+    if (!isValidEvent(env, field)) {
+      Logger.error(LOG_TAG, "Unable to record daily discrete event. Ignoring.");
+      return;
+    }
+
+    synchronized (pendingLock) {
+      pendingDiscretes.add(new PendingValue(new EventKey(env, day, field), value, table));
+      scheduleFlushLocked();
+    }
+  }
+
+  private void writeDailyDiscrete(SQLiteDatabase db, int env, int day, int field, Object value, String table) {
     final ContentValues v = new ContentValues();
     v.put("env", env);
     v.put("field", field);
     v.put("date", day);
-
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
     putValue(v, value);
 
     // Using SQLiteDatabase.insertOrThrow throws SQLiteConstraintException we cannot catch for
@@ -1245,9 +1485,8 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * Increment the specified field value by the specified amount. Counts start
    * at zero.
    *
-   * Note that this method can misbehave or throw if not executed within a
-   * transaction, because correct behavior involves querying then
-   * insert-or-update, and a race condition can otherwise occur.
+   * Increments are buffered, and increments of the same counter are summed
+   * before they're written.
    *
    * @param env the environment ID
    * @param day the current day, in days since epoch
@@ -1260,8 +1499,24 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
       Logger.warn(LOG_TAG, "Refusing to record with environment = -1.");
       return;
     }
+    if (!isValidEvent(env, field)) {
+      throw new IllegalStateException("Event did not reference existing an environment or field.");
+    }
 
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
+    final EventKey key = new EventKey(env, day, field);
+    synchronized (pendingLock) {
+      final Integer pending = pendingCounts.get(key);
+      pendingCounts.put(key, (pending == null) ? by : pending + by);
+      scheduleFlushLocked();
+    }
+  }
+
+  /**
+   * Note that this method can misbehave or throw if not executed within a
+   * transaction, because correct behavior involves querying then
+   * insert-or-update, and a race condition can otherwise occur.
+   */
+  private void writeDailyCount(SQLiteDatabase db, int env, int day, int field, int by) {
     final String envString = Integer.toString(env);
     final String fieldIDString = Integer.toString(field, 10);
     final String dayString = Integer.toString(day, 10);
@@ -1314,6 +1569,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public boolean hasEventSince(long time) {
+    flushPendingEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final String dayString = Integer.toString(start, 10);
@@ -1343,6 +1599,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public Cursor getRawEventsSince(long time) {
+    flushPendingEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final String dayString = Integer.toString(start, 10);
@@ -1363,6 +1620,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public Cursor getEventsSince(long time) {
+    flushPendingEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final String dayString = Integer.toString(start, 10);
@@ -1398,6 +1656,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public int deleteDataBefore(final long time, final int curEnv) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     db.beginTransaction();
     int numRowsDeleted = 0;
@@ -1420,6 +1679,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * @return The number of environments (not events) deleted.
    */
   protected int deleteEnvAndEventsBefore(final long time, final int curEnv) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     return deleteEnvAndEventsBefore(db, time, curEnv);
   }
@@ -1448,6 +1708,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     } finally {
       db.endTransaction();
     }
+    forgetKnownIDs();
     return numEnvDeleted;
   }
 
@@ -1455,21 +1716,24 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    * Deletes environments not referenced by any events except for the given current environment.
    */
   protected int deleteOrphanedEnv(final int curEnv) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     return deleteOrphanedEnv(db, curEnv);
   }
 
   // Called internally only to ensure the same db instance is used.
-  @SuppressWarnings("static-method")
   protected int deleteOrphanedEnv(final SQLiteDatabase db, final int curEnv) {
     final String whereClause =
         "id != ? AND " +
         "id NOT IN (SELECT env FROM events)";
     final String[] whereArgs = new String[] {Integer.toString(curEnv)};
-    return db.delete("environments", whereClause, whereArgs);
+    final int deleted = db.delete("environments", whereClause, whereArgs);
+    forgetKnownIDs();
+    return deleted;
   }
 
   protected int deleteEventsBefore(final String dayString) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     return deleteEventsBefore(db, dayString);
   }
@@ -1563,11 +1827,14 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
 
   @Override
   public void deleteEverything() {
+    discardPendingEvents();
     this.helper.deleteEverything();
+    forgetKnownIDs();
   }
 
   @Override
   public void deleteEnvironments() {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     db.beginTransaction();
     try {
@@ -1577,10 +1844,12 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     } finally {
       db.endTransaction();
     }
+    forgetKnownIDs();
   }
 
   @Override
   public void deleteMeasurements() {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     db.beginTransaction();
     try {
@@ -1595,6 +1864,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     } finally {
       db.endTransaction();
     }
+    forgetKnownIDs();
   }
 
   /**
@@ -1603,6 +1873,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public void pruneEnvironments(final int numToPrune) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     db.beginTransaction();
     try {
@@ -1620,6 +1891,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     } finally {
       db.endTransaction();
     }
+    forgetKnownIDs();
   }
 
   /**
@@ -1631,6 +1903,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public void pruneEvents(final int maxNumToPrune) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
 
     final Cursor c = db.rawQuery(
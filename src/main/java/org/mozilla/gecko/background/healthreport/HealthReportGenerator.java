@@ -4,6 +4,9 @@
 
 package org.mozilla.gecko.background.healthreport;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -44,20 +47,66 @@ public class HealthReportGenerator {
    * @throws JSONException if there was an error adding environment data to the resulting document.
    */
   public JSONObject generateDocument(long since, long lastPingTime, String profilePath, ConfigurationProvider config) throws JSONException {
+    final StringWriter writer = new StringWriter();
+    try {
+      if (!writeDocument(since, lastPingTime, profilePath, config, writer)) {
+        return null;
+      }
+    } catch (IOException e) {
+      // StringWriter doesn't throw.
+      throw new IllegalStateException(e);
+    }
+    return new JSONObject(writer.toString());
+  }
+
+  /**
+   * See {@link #writeDocument(long, long, Environment, Writer)} for the
+   * contents of the document.
+   *
+   * @return null if the current environment has no hash, or else the resulting document.
+   * @throws JSONException if there was an error adding environment data to the resulting document.
+   */
+  public JSONObject generateDocument(long since, long lastPingTime, Environment currentEnvironment) throws JSONException {
+    final StringWriter writer = new StringWriter();
+    try {
+      if (!writeDocument(since, lastPingTime, currentEnvironment, writer)) {
+        return null;
+      }
+    } catch (IOException e) {
+      // StringWriter doesn't throw.
+      throw new IllegalStateException(e);
+    }
+    return new JSONObject(writer.toString());
+  }
+
+  /**
+   * Ensure that you have initialized the Locale to your satisfaction
+   * prior to calling this method.
+   *
+   * @return false if no environment could be computed, in which case nothing
+   *         has been written; true if the document has been written.
+   * @throws JSONException if there was an error adding environment data to the resulting document.
+   * @throws IOException if the writer fails.
+   */
+  public boolean writeDocument(long since, long lastPingTime, String profilePath, ConfigurationProvider config, Writer writer) throws JSONException, IOException {
     Logger.info(LOG_TAG, "Generating FHR document from " + since + "; last ping " + lastPingTime);
     Logger.pii(LOG_TAG, "Generating for profile " + profilePath);
 
     ProfileInformationCache cache = new ProfileInformationCache(profilePath);
     if (!cache.restoreUnlessInitialized()) {
       Logger.warn(LOG_TAG, "Not enough profile information to compute current environment.");
-      return null;
+      return false;
     }
 
     Environment current = EnvironmentBuilder.getCurrentEnvironment(cache, config);
-    return generateDocument(since, lastPingTime, current);
+    return writeDocument(since, lastPingTime, current, writer);
   }
 
   /**
+   * Write the document as JSON, without ever holding the whole document in
+   * memory: only the events for a single day and environment are
+   * materialized at once.
+   *
    * The document consists of:
    *
    *<ul>
@@ -68,63 +117,77 @@ public class HealthReportGenerator {
    *</ul>
    *
    * <code>days</code> is a map from date strings to <tt>{hash: {measurement: {_v: version, fields...}}}</tt>.
+   *
+   * @return false if the current environment has no hash, in which case
+   *         nothing has been written; true if the document has been written.
    * @throws JSONException if there was an error adding environment data to the resulting document.
+   * @throws IOException if the writer fails.
    */
-  public JSONObject generateDocument(long since, long lastPingTime, Environment currentEnvironment) throws JSONException {
+  public boolean writeDocument(long since, long lastPingTime, Environment currentEnvironment, Writer writer) throws JSONException, IOException {
     final String currentHash = currentEnvironment.getHash();
 
     Logger.debug(LOG_TAG, "Current environment hash: " + currentHash);
     if (currentHash == null) {
       Logger.warn(LOG_TAG, "Current hash is null; aborting.");
-      return null;
+      return false;
     }
 
     // We want to map field IDs to some strings as we go.
     SparseArray<Environment> envs = storage.getEnvironmentRecordsByID();
 
-    JSONObject document = new JSONObject();
+    writer.write('{');
 
     if (lastPingTime >= HealthReportConstants.EARLIEST_LAST_PING) {
-      document.put("lastPingDate", dateFormatter.getDateString(lastPingTime));
+      writeKey(writer, "lastPingDate");
+      writer.write(JSONObject.quote(dateFormatter.getDateString(lastPingTime)));
+      writer.write(',');
     }
 
-    document.put("thisPingDate", dateFormatter.getDateString(now()));
-    document.put("version", PAYLOAD_VERSION);
+    writeKey(writer, "thisPingDate");
+    writer.write(JSONObject.quote(dateFormatter.getDateString(now())));
+    writer.write(',');
+    writeKey(writer, "version");
+    writer.write(Integer.toString(PAYLOAD_VERSION));
+    writer.write(',');
 
-    document.put("environments", getEnvironmentsJSON(currentEnvironment, envs));
-    document.put("data", getDataJSON(currentEnvironment, envs, since));
+    writeKey(writer, "environments");
+    writeEnvironments(writer, currentEnvironment, envs);
+    writer.write(',');
 
-    return document;
-  }
+    writeKey(writer, "data");
+    writeData(writer, envs, since);
 
-  protected JSONObject getDataJSON(Environment currentEnvironment,
-                                   SparseArray<Environment> envs, long since) throws JSONException {
-    SparseArray<Field> fields = storage.getFieldsByID();
+    writer.write('}');
+    return true;
+  }
 
-    JSONObject days = getDaysJSON(currentEnvironment, envs, fields, since);
+  private static void writeKey(Writer writer, String key) throws IOException {
+    writer.write(JSONObject.quote(key));
+    writer.write(':');
+  }
 
-    JSONObject last = new JSONObject();
+  protected void writeData(Writer writer, SparseArray<Environment> envs, long since) throws JSONException, IOException {
+    SparseArray<Field> fields = storage.getFieldsByID();
 
-    JSONObject data = new JSONObject();
-    data.put("days", days);
-    data.put("last", last);
-    return data;
+    writer.write('{');
+    writeKey(writer, "days");
+    writeDays(writer, envs, fields, since);
+    writer.write(',');
+    writeKey(writer, "last");
+    writer.write("{}");
+    writer.write('}');
   }
 
-  protected JSONObject getDaysJSON(Environment currentEnvironment, SparseArray<Environment> envs, SparseArray<Field> fields, long since) throws JSONException {
+  protected void writeDays(Writer writer, SparseArray<Environment> envs, SparseArray<Field> fields, long since) throws JSONException, IOException {
     if (Logger.shouldLogVerbose(LOG_TAG)) {
       for (int i = 0; i < envs.size(); ++i) {
         Logger.trace(LOG_TAG, "Days environment " + envs.keyAt(i) + ": " + envs.get(envs.keyAt(i)).getHash());
       }
     }
 
-    JSONObject days = new JSONObject();
+    writer.write('{');
     Cursor cursor = storage.getRawEventsSince(since);
     try {
-      if (!cursor.moveToFirst()) {
-        return days;
-      }
-
       // A classic walking partition.
       // Columns are "date", "env", "field", "value".
       // Note that we care about the type (integer, string) and kind
@@ -132,18 +195,18 @@ public class HealthReportGenerator {
       // Each field will be accessed once for each date/env pair, so
       // Field memoizes these facts.
       // We also care about which measurement contains each field.
+      // The cursor is ordered by date then environment, so each date/env
+      // object is complete, and can be written out, as soon as we move on.
       int lastDate  = -1;
       int lastEnv   = -1;
-      JSONObject dateObject = null;
       JSONObject envObject = null;
 
-      while (!cursor.isAfterLast()) {
+      while (cursor.moveToNext()) {
         int cEnv = cursor.getInt(1);
         if (cEnv == -1 ||
             (cEnv != lastEnv &&
              envs.indexOfKey(cEnv) < 0)) {
           Logger.warn(LOG_TAG, "Invalid environment " + cEnv + " in cursor. Skipping.");
-          cursor.moveToNext();
           continue;
         }
 
@@ -154,18 +217,26 @@ public class HealthReportGenerator {
         boolean dateChanged = cDate != lastDate;
         boolean envChanged = cEnv != lastEnv;
 
-        if (dateChanged) {
-          if (dateObject != null) {
-            days.put(dateFormatter.getDateStringForDay(lastDate), dateObject);
+        if (dateChanged || envChanged) {
+          if (envObject != null) {
+            writer.write(envObject.toString());
+          }
+
+          if (dateChanged) {
+            if (envObject != null) {
+              // Close the previous date.
+              writer.write("},");
+            }
+            writeKey(writer, dateFormatter.getDateStringForDay(cDate));
+            writer.write('{');
+            lastDate = cDate;
+          } else {
+            writer.write(',');
           }
-          dateObject = new JSONObject();
-          lastDate = cDate;
-        }
 
-        if (dateChanged || envChanged) {
-          envObject = new JSONObject();
           // This is safe because we checked above that cEnv is valid.
-          dateObject.put(envs.get(cEnv).getHash(), envObject);
+          writeKey(writer, envs.get(cEnv).getHash());
+          envObject = new JSONObject();
           lastEnv = cEnv;
         }
 
@@ -184,15 +255,16 @@ public class HealthReportGenerator {
         // How we record depends on the type of the field, so we
         // break this out into a separate method for clarity.
         recordMeasurementFromCursor(field, measurement, cursor);
+      }
 
-        cursor.moveToNext();
-        continue;
+      if (envObject != null) {
+        writer.write(envObject.toString());
+        writer.write('}');
       }
-      days.put(dateFormatter.getDateStringForDay(lastDate), dateObject);
     } finally {
       cursor.close();
     }
-    return days;
+    writer.write('}');
   }
 
   /**
@@ -253,6 +325,31 @@ public class HealthReportGenerator {
     measurement.put(field.fieldName, cursor.getLong(3));
   }
 
+  /**
+   * Write the same object as {@link #getEnvironmentsJSON(Environment, SparseArray)},
+   * one environment at a time.
+   */
+  protected static void writeEnvironments(Writer writer, Environment currentEnvironment,
+                                          SparseArray<Environment> envs) throws JSONException, IOException {
+    writer.write('{');
+
+    // Always do this, even if it hasn't recorded anything in the DB.
+    writeKey(writer, "current");
+    writer.write(jsonify(currentEnvironment, null).toString());
+
+    String currentHash = currentEnvironment.getHash();
+    for (int i = 0; i < envs.size(); i++) {
+      Environment e = envs.valueAt(i);
+      if (currentHash.equals(e.getHash())) {
+        continue;
+      }
+      writer.write(',');
+      writeKey(writer, e.getHash());
+      writer.write(jsonify(e, currentEnvironment).toString());
+    }
+    writer.write('}');
+  }
+
   public static JSONObject getEnvironmentsJSON(Environment currentEnvironment,
                                                SparseArray<Environment> envs) throws JSONException {
     JSONObject environments = new JSONObject();
@@ -6,15 +6,16 @@ package org.mozilla.gecko.background.healthreport.upload;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.mozilla.gecko.BrowserLocaleManager;
 import org.mozilla.gecko.background.bagheera.BagheeraClient;
 import org.mozilla.gecko.background.bagheera.BagheeraRequestDelegate;
+import org.mozilla.gecko.background.bagheera.DeflateHelper;
 import org.mozilla.gecko.background.common.GlobalConstants;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.background.healthreport.AndroidConfigurationProvider;
@@ -33,6 +34,7 @@ import org.mozilla.gecko.sync.net.BaseResource;
 import android.content.ContentProviderClient;
 import android.content.Context;
 import android.content.SharedPreferences;
+import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.HttpResponse;
 
 public class AndroidSubmissionClient implements SubmissionClient {
@@ -92,21 +94,35 @@ public class AndroidSubmissionClient implements SubmissionClient {
     return EnvironmentBuilder.getStorage(client, profilePath);
   }
 
-  protected JSONObject generateDocument(final long localTime, final long last,
-      final SubmissionsTracker tracker) throws JSONException {
+  /**
+   * Generate the document straight into a deflated buffer, so that neither the
+   * document tree nor its uncompressed text is ever held in memory.
+   *
+   * @return the deflated document, or null if no document could be generated.
+   */
+  protected HttpEntity generateDeflatedDocument(final long localTime, final long last,
+      final SubmissionsTracker tracker) throws JSONException, IOException {
     final long since = localTime - GlobalConstants.MILLISECONDS_PER_SIX_MONTHS;
     final HealthReportGenerator generator = tracker.getGenerator();
-    return generator.generateDocument(since, last, profilePath, config);
+    final DeflateHelper.DeflatingWriter writer = new DeflateHelper.DeflatingWriter();
+    try {
+      if (!generator.writeDocument(since, last, profilePath, config, writer)) {
+        return null;
+      }
+    } finally {
+      writer.close();
+    }
+    return writer.getEntity();
   }
 
-  protected void uploadPayload(String id, String payload, Collection<String> oldIds, BagheeraRequestDelegate uploadDelegate) {
+  protected void uploadPayload(String id, HttpEntity payload, Collection<String> oldIds, BagheeraRequestDelegate uploadDelegate) {
     final BagheeraClient client = new BagheeraClient(getDocumentServerURI());
 
     Logger.pii(LOG_TAG, "New health report has id " + id +
         "and obsoletes " + (oldIds != null ? Integer.toString(oldIds.size()) : "no") + " old ids.");
 
     try {
-      client.uploadJSONDocument(getDocumentServerNamespace(),
+      client.uploadDeflatedJSONDocument(getDocumentServerNamespace(),
           id,
           payload,
           oldIds,
@@ -154,7 +170,7 @@ public class AndroidSubmissionClient implements SubmissionClient {
           getSubmissionsTracker(storage, localTime, hasUploadBeenRequested());
       try {
         // TODO: Bug 910898 - Add errors from sharedPrefs to tracker.
-        final JSONObject document = generateDocument(localTime, last, tracker);
+        final HttpEntity document = generateDeflatedDocument(localTime, last, tracker);
         if (document == null) {
           delegate.onHardFailure(localTime, null, "Generator returned null document.", null);
           return;
@@ -162,7 +178,7 @@ public class AndroidSubmissionClient implements SubmissionClient {
 
         final BagheeraRequestDelegate uploadDelegate = tracker.getDelegate(delegate, localTime,
             true, id);
-        this.uploadPayload(id, document.toString(), oldIds, uploadDelegate);
+        this.uploadPayload(id, document, oldIds, uploadDelegate);
       } catch (Exception e) {
         // Incrementing the failure count here could potentially cause the failure count to be
         // incremented twice, but this helper class checks and prevents this.
@@ -406,25 +422,25 @@ public class AndroidSubmissionClient implements SubmissionClient {
       }
 
       @Override
-      public JSONObject generateDocument(long since, long lastPingTime,
-          String generationProfilePath, ConfigurationProvider providedConfig) throws JSONException {
+      public boolean writeDocument(long since, long lastPingTime,
+          String generationProfilePath, ConfigurationProvider providedConfig, Writer writer) throws JSONException, IOException {
 
         // Let's make sure we have an accurate locale.
         BrowserLocaleManager.getInstance().getAndApplyPersistedLocale(context);
 
-        final JSONObject document;
+        final boolean written;
         // If the given profilePath matches the one we cached for the tracker, use the cached env.
         if (profilePath != null && profilePath.equals(generationProfilePath)) {
           final Environment environment = getCurrentEnvironment();
-          document = super.generateDocument(since, lastPingTime, environment);
+          written = super.writeDocument(since, lastPingTime, environment, writer);
         } else {
-          document = super.generateDocument(since, lastPingTime, generationProfilePath, providedConfig);
+          written = super.writeDocument(since, lastPingTime, generationProfilePath, providedConfig, writer);
         }
 
-        if (document == null) {
+        if (!written) {
           incrementUploadClientFailureCount();
         }
-        return document;
+        return written;
       }
 
       protected Environment getCurrentEnvironment() {
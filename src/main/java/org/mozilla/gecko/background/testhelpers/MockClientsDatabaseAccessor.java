@@ -16,6 +16,7 @@ public class MockClientsDatabaseAccessor extends ClientsDatabaseAccessor {
   public boolean storedRecord = false;
   public boolean dbWiped = false;
   public boolean clientsTableWiped = false;
+  public boolean clientsReplaced = false;
   public boolean closed = false;
   public boolean storedArrayList = false;
   public boolean storedCommand;
@@ -27,7 +28,13 @@ public class MockClientsDatabaseAccessor extends ClientsDatabaseAccessor {
 
   @Override
   public void store(Collection<ClientRecord> records) {
-    storedArrayList = false;
+    storedArrayList = true;
+  }
+
+  @Override
+  public int replaceClients(Collection<ClientRecord> records) {
+    clientsReplaced = true;
+    return records.size();
   }
 
   @Override
@@ -55,6 +62,11 @@ public class MockClientsDatabaseAccessor extends ClientsDatabaseAccessor {
     return 0;
   }
 
+  @Override
+  public int commandsCount() {
+    return 0;
+  }
+
   @Override
   public void wipeDB() {
     dbWiped = true;
@@ -71,6 +83,6 @@ public class MockClientsDatabaseAccessor extends ClientsDatabaseAccessor {
   }
 
   public void resetVars() {
-    storedRecord = dbWiped = clientsTableWiped = closed = storedArrayList = false;
+    storedRecord = dbWiped = clientsTableWiped = clientsReplaced = closed = storedArrayList = false;
   }
 }
\ No newline at end of file
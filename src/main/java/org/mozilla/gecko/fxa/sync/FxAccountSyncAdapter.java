@@ -177,6 +177,7 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
     @Override
     public void handleSuccess(GlobalSession globalSession) {
       Logger.info(LOG_TAG, "Global session succeeded.");
+      Logger.info(LOG_TAG, "Sync metrics: {}", globalSession.metrics);
 
       // Get the number of clients, so we can schedule the sync interval accordingly.
       try {
@@ -192,6 +193,9 @@ public class FxAccountSyncAdapter extends AbstractThreadedSyncAdapter {
     @Override
     public void handleError(GlobalSession globalSession, Exception e) {
       Logger.warn(LOG_TAG, "Global session failed."); // Exception will be dumped by delegate below.
+      if (globalSession != null) {
+        Logger.info(LOG_TAG, "Sync metrics: {}", globalSession.metrics);
+      }
       syncDelegate.handleError(e);
       // TODO: should we reduce the periodic sync interval?
     }
@@ -10,6 +10,7 @@ import java.io.StringReader;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -29,15 +30,67 @@ public class ExtendedJSONObject {
   public JSONObject object;
 
   /**
-   * Return a <code>JSONParser</code> instance for immediate use.
+   * Inputs longer than this many characters are parsed with a throwaway
+   * parser. A parser's lexer buffer grows to fit its largest token and never
+   * shrinks, and we don't want pooled parsers to retain huge buffers.
+   */
+  protected static final int MAX_POOLED_INPUT_LENGTH = 16 * 1024;
+
+  private static final AtomicLong parsersCreated = new AtomicLong(0);
+
+  private static final class PooledParser {
+    final JSONParser parser = newJSONParser();
+    boolean inUse = false;
+  }
+
+  /**
+   * <code>JSONParser</code> is not thread-safe, and each instance allocates a
+   * 16kb lexer buffer, so we keep one parser per thread. Every parse resets
+   * the parser's state.
+   */
+  private static final ThreadLocal<PooledParser> parsers = new ThreadLocal<PooledParser>() {
+    @Override
+    protected PooledParser initialValue() {
+      return new PooledParser();
+    }
+  };
+
+  private static JSONParser newJSONParser() {
+    parsersCreated.incrementAndGet();
+    return new JSONParser();
+  }
+
+  /**
+   * @return how many <code>JSONParser</code> instances have been created.
+   */
+  public static long getParsersCreatedCount() {
+    return parsersCreated.get();
+  }
+
+  /**
+   * Return a new <code>JSONParser</code> instance for immediate use.
    * <p>
-   * <code>JSONParser</code> is not thread-safe, so we return a new instance
-   * each call. This is extremely inefficient in execution time and especially
-   * memory use -- each instance allocates a 16kb temporary buffer -- and we
-   * hope to improve matters eventually.
+   * Prefer the <code>parse*</code> methods, which reuse a parser per thread.
    */
   protected static JSONParser getJSONParser() {
-    return new JSONParser();
+    return newJSONParser();
+  }
+
+  /**
+   * Parse with this thread's parser, or with a new parser if this thread's is
+   * already busy.
+   */
+  private static Object parseWithPooledParser(Reader in) throws ParseException, IOException {
+    final PooledParser pooled = parsers.get();
+    if (pooled.inUse) {
+      return newJSONParser().parse(in);
+    }
+    pooled.inUse = true;
+    try {
+      return pooled.parser.parse(in);
+    } finally {
+      pooled.inUse = false;
+    }
   }
 
   /**
@@ -51,7 +104,7 @@ public class ExtendedJSONObject {
    */
   protected static Object parseRaw(Reader in) throws ParseException, IOException {
     try {
-      return getJSONParser().parse(in);
+      return parseWithPooledParser(in);
     } catch (Error e) {
       // Don't be stupid, org.json.simple. Bug 1042929.
       throw new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
@@ -69,7 +122,36 @@ public class ExtendedJSONObject {
    */
   protected static Object parseRaw(String input) throws ParseException {
     try {
-      return getJSONParser().parse(input);
+      if (input.length() > MAX_POOLED_INPUT_LENGTH) {
+        return getJSONParser().parse(input);
+      }
+      return parseWithPooledParser(new StringReader(input));
+    } catch (IOException e) {
+      // Can't happen: we're reading from a string.
+      throw new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
+    } catch (Error e) {
+      // Don't be stupid, org.json.simple. Bug 1042929.
+      throw new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
+    }
+  }
+
+  /**
+   * Parse JSON encoded as UTF-8, without first decoding it to a string.
+   *
+   * @param in UTF-8 bytes; not necessarily a JSON object.
+   * @return a regular Java <code>Object</code>.
+   * @throws ParseException
+   */
+  protected static Object parseRaw(byte[] in) throws ParseException {
+    final Reader reader = new UTF8ByteArrayReader(in);
+    try {
+      if (in.length > MAX_POOLED_INPUT_LENGTH) {
+        return getJSONParser().parse(reader);
+      }
+      return parseWithPooledParser(reader);
+    } catch (IOException e) {
+      // Can't happen: we're reading from a byte array.
+      throw new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
     } catch (Error e) {
       // Don't be stupid, org.json.simple. Bug 1042929.
       throw new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
@@ -162,7 +244,11 @@ public class ExtendedJSONObject {
    */
   public static ExtendedJSONObject parseUTF8AsJSONObject(byte[] in)
       throws ParseException, NonObjectJSONException, IOException {
-    return parseJSONObject(new String(in, "UTF-8"));
+    Object obj = parseRaw(in);
+    if (obj instanceof JSONObject) {
+      return new ExtendedJSONObject((JSONObject) obj);
+    }
+    throw new NonObjectJSONException("value must be a JSON object");
   }
 
   public ExtendedJSONObject() {
@@ -183,7 +269,7 @@ public class ExtendedJSONObject {
       if (value instanceof JSONArray) {
         // Oh god.
         try {
-          out.put(key, new JSONParser().parse(((JSONArray) value).toJSONString()));
+          out.put(key, parseRaw(((JSONArray) value).toJSONString()));
         } catch (ParseException e) {
           // This should never occur, because we're round-tripping.
         }
@@ -219,7 +305,17 @@ public class ExtendedJSONObject {
   }
 
   public ExtendedJSONObject(String jsonString) throws IOException, ParseException, NonObjectJSONException {
-    this(jsonString == null ? null : new StringReader(jsonString));
+    if (jsonString == null) {
+      this.object = new JSONObject();
+      return;
+    }
+
+    Object obj = parseRaw(jsonString);
+    if (obj instanceof JSONObject) {
+      this.object = ((JSONObject) obj);
+    } else {
+      throw new NonObjectJSONException("value must be a JSON object");
+    }
   }
 
   @Override
@@ -11,8 +11,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -48,6 +50,7 @@ import org.mozilla.gecko.sync.stage.EnsureClusterURLStage;
 import org.mozilla.gecko.sync.stage.EnsureCrypto5KeysStage;
 import org.mozilla.gecko.sync.stage.FennecTabsServerSyncStage;
 import org.mozilla.gecko.sync.stage.FetchInfoCollectionsStage;
+import org.mozilla.gecko.sync.stage.FetchInfoConfigurationStage;
 import org.mozilla.gecko.sync.stage.FetchMetaGlobalStage;
 import org.mozilla.gecko.sync.stage.FormHistoryServerSyncStage;
 import org.mozilla.gecko.sync.stage.GlobalSyncStage;
@@ -80,7 +83,38 @@ public class GlobalSession implements HttpResponseObserver {
    * Map from engine name to new settings for an updated meta/global record.
    * Engines to remove will have <code>null</code> EngineSettings.
    */
-  public final Map<String, EngineSettings> enginesToUpdate = new HashMap<String, EngineSettings>();
+  public final Map<String, EngineSettings> enginesToUpdate =
+      Collections.synchronizedMap(new HashMap<String, EngineSettings>());
+
+  /**
+   * Collection stages touch different server collections and different local
+   * data, so they can run at the same time.
+   */
+  public static final Set<Stage> CONCURRENT_STAGES =
+      Collections.unmodifiableSet(EnumSet.range(Stage.syncTabs, Stage.syncFormHistory));
+
+  /**
+   * How many of <code>CONCURRENT_STAGES</code> may run at once. Read from
+   * the configuration; the default, 1, runs every stage in order.
+   */
+  protected int maxConcurrentStages = 1;
+
+  /**
+   * Non-null while <code>CONCURRENT_STAGES</code> are running concurrently.
+   */
+  protected volatile ConcurrentStageRunner concurrentStageRunner;
+
+  /**
+   * Measurements of this sync. Finished before the callback is told that the
+   * sync succeeded or failed.
+   */
+  public final SyncMetrics metrics = new SyncMetrics();
+
+  /**
+   * When the running stage, or set of concurrent stages, started; -1 if
+   * nothing is being timed.
+   */
+  protected volatile long stageStartTime = -1;
 
    /*
    * Key accessors.
@@ -116,6 +150,7 @@ public class GlobalSession implements HttpResponseObserver {
     this.nodeAssignmentCallback = nodeAssignmentCallback;
 
     this.config = config;
+    this.maxConcurrentStages = Math.max(1, config.maxConcurrentStages);
     registerCommands();
     prepareStages();
 
@@ -181,6 +216,7 @@ public class GlobalSession implements HttpResponseObserver {
     stages.put(Stage.checkPreconditions,      new CheckPreconditionsStage());
     stages.put(Stage.ensureClusterURL,        new EnsureClusterURLStage(nodeAssignmentCallback));
     stages.put(Stage.fetchInfoCollections,    new FetchInfoCollectionsStage());
+    stages.put(Stage.fetchInfoConfiguration,  new FetchInfoConfigurationStage());
     stages.put(Stage.fetchMetaGlobal,         new FetchMetaGlobalStage());
     stages.put(Stage.ensureKeysStage,         new EnsureCrypto5KeysStage());
     stages.put(Stage.attemptMigrationStage,   new MigrationSentinelSyncStage());
@@ -249,10 +285,208 @@ public class GlobalSession implements HttpResponseObserver {
     return Stage.values()[index % max];
   }
 
+  public int getMaxConcurrentStages() {
+    return maxConcurrentStages;
+  }
+
+  /**
+   * Allow up to <code>maxConcurrentStages</code> collection stages to run at
+   * once, overriding the configuration. Must be called before the sync starts.
+   *
+   * @param maxConcurrentStages a positive number of stages.
+   */
+  public void setMaxConcurrentStages(int maxConcurrentStages) {
+    if (maxConcurrentStages < 1) {
+      throw new IllegalArgumentException("maxConcurrentStages must be positive.");
+    }
+    this.maxConcurrentStages = maxConcurrentStages;
+  }
+
+  /**
+   * Runs <code>CONCURRENT_STAGES</code>, at most
+   * <code>maxConcurrentStages</code> at a time, then advances the session
+   * past them once every stage has finished.
+   * <p>
+   * Stages report completion by calling
+   * {@link GlobalSession#advance(GlobalSyncStage)} and failure by calling
+   * {@link GlobalSession#abort(GlobalSyncStage, Exception, String)}. Each
+   * started stage finishes with its first report; later reports from the same
+   * stage are ignored. A report that doesn't name its stage can't finish any
+   * stage: an abort stops the sync once the running stages have finished, and
+   * an advance is ignored.
+   * <p>
+   * The first abort stops further stages from starting. It is delivered once
+   * the stages already running have finished, so that no stage is still
+   * running when the sync reports its result.
+   */
+  protected class ConcurrentStageRunner {
+    protected final List<Stage> order;
+    protected final List<Stage> waiting;
+    protected final Map<GlobalSyncStage, Stage> running = new HashMap<GlobalSyncStage, Stage>();
+
+    protected boolean aborting = false;
+    protected boolean finished = false;
+    protected Exception abortException;
+    protected String abortReason;
+
+    public ConcurrentStageRunner(List<Stage> order) {
+      this.order = order;
+      this.waiting = new ArrayList<Stage>(order);
+    }
+
+    public void start() {
+      startStages();
+    }
+
+    /**
+     * Called for each <code>advance</code> while stages are running.
+     *
+     * @param from the stage that finished, or null if it's unknown.
+     */
+    public void stageCompleted(GlobalSyncStage from) {
+      final long existingBackoff = largestBackoffObserved.get();
+      if (existingBackoff > 0) {
+        stageAborted(from, null, "Aborting sync because of backoff of " + existingBackoff + " milliseconds.");
+        return;
+      }
+
+      synchronized (this) {
+        if (finished) {
+          return;
+        }
+        if (from == null) {
+          Logger.warn(LOG_TAG, "Ignoring advance from an unknown stage while concurrent stages are running.");
+          return;
+        }
+        final Stage stage = running.remove(from);
+        if (stage == null) {
+          Logger.warn(LOG_TAG, "Ignoring advance from a stage that isn't running: " + from);
+          return;
+        }
+        Logger.info(LOG_TAG, "Concurrent stage " + stage + " finished.");
+      }
+      startStages();
+    }
+
+    /**
+     * Called for each <code>abort</code> while stages are running.
+     *
+     * @param from the stage that failed, or null if it's unknown.
+     */
+    public void stageAborted(GlobalSyncStage from, Exception e, String reason) {
+      synchronized (this) {
+        if (finished) {
+          Logger.warn(LOG_TAG, "Ignoring abort after concurrent stages finished: " + reason, e);
+          return;
+        }
+        if (from != null && running.remove(from) == null) {
+          Logger.warn(LOG_TAG, "Ignoring abort from a stage that isn't running: " + reason, e);
+          return;
+        }
+        recordAbort(e, reason);
+      }
+      startStages();
+    }
+
+    protected synchronized void recordAbort(Exception e, String reason) {
+      if (!aborting) {
+        aborting = true;
+        abortException = e;
+        abortReason = reason;
+      } else {
+        Logger.warn(LOG_TAG, "Another concurrent stage aborted: " + reason, e);
+      }
+      waiting.clear();
+    }
+
+    /**
+     * Start as many waiting stages as the limit allows, or finish if
+     * nothing is waiting or running.
+     */
+    protected void startStages() {
+      final Map<GlobalSyncStage, Stage> toStart = new LinkedHashMap<GlobalSyncStage, Stage>();
+      final boolean done;
+      synchronized (this) {
+        if (finished) {
+          return;
+        }
+        while (!waiting.isEmpty() && running.size() < maxConcurrentStages) {
+          final Stage next = waiting.remove(0);
+          final GlobalSyncStage nextStage;
+          try {
+            nextStage = getSyncStageByName(next);
+          } catch (NoSuchStageException e) {
+            recordAbort(e, "No such stage " + next);
+            break;
+          }
+          running.put(nextStage, next);
+          toStart.put(nextStage, next);
+        }
+        done = toStart.isEmpty() && running.isEmpty();
+        finished = done;
+      }
+
+      if (done) {
+        finish();
+        return;
+      }
+
+      for (final Entry<GlobalSyncStage, Stage> entry : toStart.entrySet()) {
+        ThreadPool.run(new Runnable() {
+          @Override
+          public void run() {
+            runStage(entry.getKey(), entry.getValue());
+          }
+        });
+      }
+    }
+
+    protected void runStage(GlobalSyncStage nextStage, Stage next) {
+      Logger.info(LOG_TAG, "Running concurrent stage " + next + " (" + nextStage + ")...");
+      try {
+        nextStage.execute(GlobalSession.this);
+      } catch (Exception ex) {
+        Logger.warn(LOG_TAG, "Caught exception " + ex + " running stage " + next);
+        stageAborted(nextStage, ex, "Uncaught exception in stage.");
+      }
+    }
+
+    protected void finish() {
+      stageFinished(SyncMetrics.CONCURRENT_STAGES);
+      concurrentStageRunner = null;
+      if (aborting) {
+        abort(abortException, abortReason);
+        return;
+      }
+      // advance reports the last stage; report the others here.
+      for (Stage stage : order.subList(0, order.size() - 1)) {
+        callback.handleStageCompleted(stage, GlobalSession.this);
+      }
+      currentState = order.get(order.size() - 1);
+      advance();
+    }
+  }
+
   /**
    * Move to the next stage in the syncing process.
    */
   public void advance() {
+    advance(null);
+  }
+
+  /**
+   * Move on from the given stage. Stages that can run concurrently report
+   * completion this way, so that it's matched to the stage that finished.
+   *
+   * @param from the stage that finished, or null if it's unknown.
+   */
+  public void advance(GlobalSyncStage from) {
+    final ConcurrentStageRunner activeRunner = this.concurrentStageRunner;
+    if (activeRunner != null) {
+      activeRunner.stageCompleted(from);
+      return;
+    }
+
     // If we have a backoff, request a backoff and don't advance to next stage.
     long existingBackoff = largestBackoffObserved.get();
     if (existingBackoff > 0) {
@@ -260,8 +494,25 @@ public class GlobalSession implements HttpResponseObserver {
       return;
     }
 
+    stageFinished(this.currentState.name());
     this.callback.handleStageCompleted(this.currentState, this);
     Stage next = nextStage(this.currentState);
+
+    if (maxConcurrentStages > 1 && CONCURRENT_STAGES.contains(next)) {
+      final List<Stage> order = new ArrayList<Stage>();
+      while (CONCURRENT_STAGES.contains(next)) {
+        order.add(next);
+        next = nextStage(next);
+      }
+      Logger.info(LOG_TAG, "Running " + order.size() + " stages, " + maxConcurrentStages + " at a time.");
+      final ConcurrentStageRunner runner = new ConcurrentStageRunner(order);
+      this.currentState = order.get(0);
+      this.concurrentStageRunner = runner;
+      this.stageStartTime = System.currentTimeMillis();
+      runner.start();
+      return;
+    }
+
     GlobalSyncStage nextStage;
     try {
       nextStage = this.getSyncStageByName(next);
@@ -270,6 +521,7 @@ public class GlobalSession implements HttpResponseObserver {
       return;
     }
     this.currentState = next;
+    this.stageStartTime = System.currentTimeMillis();
     Logger.info(LOG_TAG, "Running next stage " + next + " (" + nextStage + ")...");
     try {
       nextStage.execute(this);
@@ -280,6 +532,19 @@ public class GlobalSession implements HttpResponseObserver {
     }
   }
 
+  /**
+   * Record the time taken by the stage, or set of concurrent stages, that
+   * has just finished.
+   */
+  protected void stageFinished(String name) {
+    final long start = this.stageStartTime;
+    if (start < 0) {
+      return;
+    }
+    this.stageStartTime = -1;
+    metrics.recordStage(name, System.currentTimeMillis() - start);
+  }
+
   public Context getContext() {
     return this.context;
   }
@@ -300,6 +565,10 @@ public class GlobalSession implements HttpResponseObserver {
     if (this.currentState != GlobalSyncStage.Stage.idle) {
       throw new AlreadySyncingException(this.currentState);
     }
+    this.concurrentStageRunner = null;
+    this.stageStartTime = -1;
+    metrics.start();
+    BaseResource.addHttpTimingObserver(metrics); // Removed by completeSync or abort.
     installAsHttpResponseObserver(); // Uninstalled by completeSync or abort.
     this.advance();
   }
@@ -322,10 +591,13 @@ public class GlobalSession implements HttpResponseObserver {
    */
   protected void cleanUp() {
     uninstallAsHttpResponseObserver();
+    BaseResource.removeHttpTimingObserver(metrics);
+    metrics.finish();
     this.stages = null;
   }
 
   public void completeSync() {
+    stageFinished(this.currentState.name());
     cleanUp();
     this.currentState = GlobalSyncStage.Stage.idle;
     this.callback.handleSuccess(this);
@@ -450,7 +722,25 @@ public class GlobalSession implements HttpResponseObserver {
 
 
   public void abort(Exception e, String reason) {
+    abort(null, e, reason);
+  }
+
+  /**
+   * Abort the sync because the given stage failed. Stages that can run
+   * concurrently report failure this way, so that it's matched to the stage
+   * that failed.
+   *
+   * @param from the stage that failed, or null if it's unknown.
+   */
+  public void abort(GlobalSyncStage from, Exception e, String reason) {
+    final ConcurrentStageRunner runner = this.concurrentStageRunner;
+    if (runner != null) {
+      runner.stageAborted(from, e, reason);
+      return;
+    }
+
     Logger.warn(LOG_TAG, "Aborting sync: " + reason, e);
+    stageFinished(this.currentState.name());
     cleanUp();
     long existingBackoff = largestBackoffObserved.get();
     if (existingBackoff > 0) {
@@ -466,11 +756,15 @@ public class GlobalSession implements HttpResponseObserver {
   }
 
   public void handleHTTPError(SyncStorageResponse response, String reason) {
+    handleHTTPError(null, response, reason);
+  }
+
+  public void handleHTTPError(GlobalSyncStage from, SyncStorageResponse response, String reason) {
     // TODO: handling of 50x (backoff), 401 (node reassignment or auth error).
     // Fall back to aborting.
     Logger.warn(LOG_TAG, "Aborting sync due to HTTP " + response.getStatusCode());
     this.interpretHTTPFailure(response.httpResponse());
-    this.abort(new HTTPFailureException(response), reason);
+    this.abort(from, new HTTPFailureException(response), reason);
   }
 
   /**
@@ -524,6 +818,11 @@ public class GlobalSession implements HttpResponseObserver {
     fetcher.fetch(callback);
   }
 
+  public void fetchInfoConfiguration(JSONRecordFetchDelegate callback) throws URISyntaxException {
+    final JSONRecordFetcher fetcher = new JSONRecordFetcher(config.infoConfigurationURL(), getAuthHeaderProvider());
+    fetcher.fetch(callback);
+  }
+
   /**
    * Upload new crypto/keys.
    *
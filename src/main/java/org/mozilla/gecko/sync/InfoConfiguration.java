@@ -0,0 +1,62 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * Wraps the limits advertised by the Sync server in
+ * <code>info/configuration</code>.
+ * <p>
+ * Servers that don't provide this document, or that omit or mangle a limit,
+ * get local defaults that every server we talk to is known to accept.
+ */
+public class InfoConfiguration {
+  private static final String LOG_TAG = "InfoConfiguration";
+
+  public static final String MAX_POST_RECORDS_KEY = "max_post_records";
+  public static final String MAX_POST_BYTES_KEY = "max_post_bytes";
+
+  public static final int DEFAULT_MAX_POST_RECORDS = 100;
+  public static final long DEFAULT_MAX_POST_BYTES = 1024 * 1024;    // 1MB.
+
+  /**
+   * Maximum number of records in a single POST.
+   */
+  public final int maxPostRecords;
+
+  /**
+   * Maximum size in bytes of the body of a single POST.
+   */
+  public final long maxPostBytes;
+
+  /**
+   * Use local defaults.
+   */
+  public InfoConfiguration() {
+    this.maxPostRecords = DEFAULT_MAX_POST_RECORDS;
+    this.maxPostBytes = DEFAULT_MAX_POST_BYTES;
+  }
+
+  public InfoConfiguration(final ExtendedJSONObject record) {
+    Logger.debug(LOG_TAG, "info/configuration is " + record.toJSONString());
+    this.maxPostRecords = (int) getPositiveLong(record, MAX_POST_RECORDS_KEY, DEFAULT_MAX_POST_RECORDS);
+    this.maxPostBytes = getPositiveLong(record, MAX_POST_BYTES_KEY, DEFAULT_MAX_POST_BYTES);
+  }
+
+  private static long getPositiveLong(final ExtendedJSONObject record, final String key, final long defaultValue) {
+    final Object value = record.get(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    if ((value instanceof Integer || value instanceof Long) &&
+        ((Number) value).longValue() > 0 &&
+        ((Number) value).longValue() <= Integer.MAX_VALUE) {
+      return ((Number) value).longValue();
+    }
+    Logger.warn(LOG_TAG, "Ignoring malformed info/configuration entry for " + key);
+    return defaultValue;
+  }
+}
@@ -32,6 +32,7 @@ public class SyncConfiguration {
 
   public CollectionKeys  collectionKeys;
   public InfoCollections infoCollections;
+  public InfoConfiguration infoConfiguration;
   public MetaGlobal      metaGlobal;
   public String          syncID;
 
@@ -84,6 +85,13 @@ public class SyncConfiguration {
   public Map<String, Boolean> userSelectedEngines;
   public long userSelectedEnginesTimestamp;
 
+  /**
+   * How many collection stages may run at once; see
+   * {@link GlobalSession#CONCURRENT_STAGES}. Read from prefs but never
+   * written, like the user-selected engines.
+   */
+  public int maxConcurrentStages = 1;
+
   public SharedPreferences prefs;
 
   protected final AuthHeaderProvider authHeaderProvider;
@@ -94,6 +102,9 @@ public class SyncConfiguration {
   public static final String CLIENTS_COLLECTION_TIMESTAMP = "serverClientsTimestamp";  // When the collection was touched.
   public static final String CLIENT_RECORD_TIMESTAMP = "serverClientRecordTimestamp";  // When our record was touched.
   public static final String MIGRATION_SENTINEL_CHECK_TIMESTAMP = "migrationSentinelCheckTimestamp";  // When we last looked in meta/fxa_credentials.
+  public static final String INFO_CONFIGURATION_TIMESTAMP = "infoConfigurationTimestamp";  // When we last fetched info/configuration.
+  public static final String PREF_INFO_CONFIGURATION = "infoConfiguration";  // Absent if the server has none.
+  public static final String PREF_INFO_CONFIGURATION_URL = "infoConfigurationURL";  // Where we fetched it from.
 
   public static final String PREF_CLUSTER_URL = "clusterURL";
   public static final String PREF_SYNC_ID = "syncID";
@@ -105,6 +116,8 @@ public class SyncConfiguration {
 
   public static final String PREF_CLUSTER_URL_IS_STALE = "clusterurlisstale";
 
+  public static final String PREF_MAX_CONCURRENT_STAGES = "maxConcurrentStages";
+
   public static final String PREF_ACCOUNT_GUID = "account.guid";
   public static final String PREF_CLIENT_NAME = "account.clientName";
   public static final String PREF_NUM_CLIENTS = "account.numClients";
@@ -290,6 +303,7 @@ public class SyncConfiguration {
     declinedEngineNames = getDeclinedEngineNames(prefs);
     userSelectedEngines = getUserSelectedEngines(prefs);
     userSelectedEnginesTimestamp = prefs.getLong(PREF_USER_SELECTED_ENGINES_TO_SYNC_TIMESTAMP, 0);
+    maxConcurrentStages = prefs.getInt(PREF_MAX_CONCURRENT_STAGES, 1);
     // We don't set crypto/keys here because we need the syncKeyBundle to decrypt the JSON
     // and we won't have it on construction.
     // TODO: MetaGlobal, password, infoCollections.
@@ -370,6 +384,10 @@ public class SyncConfiguration {
     return infoBaseURL() + "collection_counts";
   }
 
+  public String infoConfigurationURL() {
+    return infoBaseURL() + "configuration";
+  }
+
   public String metaURL() {
     return storageURL() + "/meta/global";
   }
@@ -452,6 +470,57 @@ public class SyncConfiguration {
     return getPrefs().getLong(SyncConfiguration.MIGRATION_SENTINEL_CHECK_TIMESTAMP, 0L);
   }
 
+  /**
+   * Remember the server's <code>info/configuration</code>, or that the server
+   * doesn't have one.
+   *
+   * @param record the fetched document, or null if the server has none.
+   * @param timestamp when it was fetched.
+   */
+  public void persistInfoConfiguration(ExtendedJSONObject record, long timestamp) {
+    final Editor edit = getEditor();
+    if (record == null) {
+      edit.remove(PREF_INFO_CONFIGURATION);
+    } else {
+      edit.putString(PREF_INFO_CONFIGURATION, record.toJSONString());
+    }
+    edit.putString(PREF_INFO_CONFIGURATION_URL, infoConfigurationURL());
+    edit.putLong(INFO_CONFIGURATION_TIMESTAMP, timestamp);
+    edit.commit();
+  }
+
+  /**
+   * @return when <code>info/configuration</code> was last fetched from the
+   *         current server, or 0 if it hasn't been.
+   */
+  public long getPersistedInfoConfigurationTimestamp() {
+    final SharedPreferences prefs = getPrefs();
+    if (!infoConfigurationURL().equals(prefs.getString(PREF_INFO_CONFIGURATION_URL, null))) {
+      return 0L;
+    }
+    return prefs.getLong(INFO_CONFIGURATION_TIMESTAMP, 0L);
+  }
+
+  /**
+   * Only meaningful if {@link #getPersistedInfoConfigurationTimestamp()} is
+   * not 0.
+   *
+   * @return the persisted <code>info/configuration</code>, defaults if the
+   *         server has none, or null if what was persisted can't be read.
+   */
+  public InfoConfiguration getPersistedInfoConfiguration() {
+    final String json = getPrefs().getString(PREF_INFO_CONFIGURATION, null);
+    if (json == null) {
+      return new InfoConfiguration();
+    }
+    try {
+      return new InfoConfiguration(ExtendedJSONObject.parseJSONObject(json));
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Ignoring unreadable persisted info/configuration.", e);
+      return null;
+    }
+  }
+
   public void purgeCryptoKeys() {
     if (collectionKeys != null) {
       collectionKeys.clear();
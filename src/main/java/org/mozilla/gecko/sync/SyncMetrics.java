@@ -0,0 +1,438 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.HttpTimingObserver;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
+
+/**
+ * Measurements of a single sync: how long each stage took, how many records
+ * each engine moved and how quickly, time spent on crypto and in the local
+ * database, and the HTTP traffic the sync generated.
+ * <p>
+ * A <code>GlobalSession</code> owns one instance, which is finished before the
+ * session calls <code>handleSuccess</code> or <code>handleError</code>, so
+ * callbacks can read or dump it.
+ * <p>
+ * Instances are thread-safe: stages, record channels and HTTP requests report
+ * from many threads at once.
+ */
+public class SyncMetrics implements HttpTimingObserver {
+  /**
+   * Upper bounds, inclusive, of the HTTP latency histogram buckets. A final
+   * bucket counts everything slower.
+   */
+  public static final long[] LATENCY_BUCKETS_MSEC = { 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+  /**
+   * Stages run concurrently are timed together, under this name.
+   */
+  public static final String CONCURRENT_STAGES = "concurrent";
+
+  /**
+   * Counts of values falling into fixed buckets, with the count, total and
+   * maximum of all values.
+   */
+  public static class Histogram {
+    protected final long[] bounds;
+    protected final AtomicLongArray counts;
+    protected final AtomicLong count = new AtomicLong(0);
+    protected final AtomicLong total = new AtomicLong(0);
+    protected final AtomicLong max = new AtomicLong(0);
+
+    public Histogram(long[] bounds) {
+      this.bounds = bounds;
+      this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+      int bucket = 0;
+      while (bucket < bounds.length && value > bounds[bucket]) {
+        bucket++;
+      }
+      counts.incrementAndGet(bucket);
+      count.incrementAndGet();
+      total.addAndGet(value);
+      while (true) {
+        final long existing = max.get();
+        if (existing >= value || max.compareAndSet(existing, value)) {
+          return;
+        }
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getBucketCount(int bucket) {
+      return counts.get(bucket);
+    }
+
+    public ExtendedJSONObject toJSON() {
+      final ExtendedJSONObject buckets = new ExtendedJSONObject();
+      for (int i = 0; i < bounds.length; i++) {
+        buckets.put("<=" + bounds[i], counts.get(i));
+      }
+      buckets.put(">" + bounds[bounds.length - 1], counts.get(bounds.length));
+
+      final ExtendedJSONObject json = new ExtendedJSONObject();
+      json.put("count", count.get());
+      json.put("total", total.get());
+      json.put("max", max.get());
+      json.put("buckets", buckets);
+      return json;
+    }
+  }
+
+  /**
+   * Records moved by one <code>RecordsChannel</code> flow.
+   * <p>
+   * Fetch time runs from the start of the flow until the source has delivered
+   * every record. Store time runs from the first store until the sink reports
+   * that storing is complete.
+   */
+  public static class FlowMetrics {
+    protected final AtomicLong fetched = new AtomicLong(0);
+    protected final AtomicLong fetchFailed = new AtomicLong(0);
+    protected final AtomicLong stored = new AtomicLong(0);
+    protected final AtomicLong storeFailed = new AtomicLong(0);
+
+    protected volatile long flowStarted = -1;
+    protected volatile long fetchCompleted = -1;
+    protected final AtomicLong firstStore = new AtomicLong(-1);
+    protected volatile long storeCompleted = -1;
+
+    public void flowStarted(long now) {
+      flowStarted = now;
+    }
+
+    public void recordFetched() {
+      fetched.incrementAndGet();
+    }
+
+    public void recordFetchFailed() {
+      fetchFailed.incrementAndGet();
+    }
+
+    public void recordStored() {
+      if (firstStore.get() < 0) {
+        firstStore.compareAndSet(-1, System.currentTimeMillis());
+      }
+      stored.incrementAndGet();
+    }
+
+    public void recordStoreFailed() {
+      storeFailed.incrementAndGet();
+    }
+
+    public void fetchCompleted(long now) {
+      fetchCompleted = now;
+    }
+
+    public void storeCompleted(long now) {
+      storeCompleted = now;
+    }
+
+    public long getFetchedCount() {
+      return fetched.get();
+    }
+
+    public long getFetchFailedCount() {
+      return fetchFailed.get();
+    }
+
+    public long getStoredCount() {
+      return stored.get();
+    }
+
+    public long getStoreFailedCount() {
+      return storeFailed.get();
+    }
+
+    /**
+     * @return milliseconds spent fetching, or -1 if the fetch didn't complete.
+     */
+    public long getFetchMsec() {
+      if (flowStarted < 0 || fetchCompleted < 0) {
+        return -1;
+      }
+      return fetchCompleted - flowStarted;
+    }
+
+    /**
+     * @return milliseconds spent storing, or -1 if storing didn't complete.
+     */
+    public long getStoreMsec() {
+      final long start = (firstStore.get() >= 0) ? firstStore.get() : fetchCompleted;
+      if (start < 0 || storeCompleted < 0) {
+        return -1;
+      }
+      return Math.max(0, storeCompleted - start);
+    }
+
+    public ExtendedJSONObject toJSON() {
+      final long fetchMsec = getFetchMsec();
+      final long storeMsec = getStoreMsec();
+      final ExtendedJSONObject json = new ExtendedJSONObject();
+      json.put("fetched", fetched.get());
+      json.put("fetchFailed", fetchFailed.get());
+      json.put("stored", stored.get());
+      json.put("storeFailed", storeFailed.get());
+      json.put("fetchMsec", fetchMsec);
+      json.put("storeMsec", storeMsec);
+      json.put("fetchedPerSecond", perSecond(fetched.get(), fetchMsec));
+      json.put("storedPerSecond", perSecond(stored.get(), storeMsec));
+      return json;
+    }
+  }
+
+  /**
+   * Measurements of one engine's stage.
+   * <p>
+   * For server stages the inbound flow fetches from the server and stores
+   * locally; the outbound flow fetches locally and stores to the server. The
+   * database time reported is the store time of the former plus the fetch
+   * time of the latter. Local stores are asynchronous, so this is an upper
+   * bound: it includes time the database spent waiting for records.
+   */
+  public static class EngineMetrics {
+    public final FlowMetrics inbound = new FlowMetrics();
+    public final FlowMetrics outbound = new FlowMetrics();
+
+    protected final AtomicLong cryptoNanos = new AtomicLong(0);
+    protected volatile long msec = -1;
+    protected volatile boolean succeeded = false;
+
+    public void recordCrypto(long nanos) {
+      cryptoNanos.addAndGet(nanos);
+    }
+
+    public void stageFinished(long start, long end, boolean succeeded) {
+      this.msec = (start < 0) ? -1 : end - start;
+      this.succeeded = succeeded;
+    }
+
+    public long getCryptoMsec() {
+      return cryptoNanos.get() / 1000000;
+    }
+
+    public long getDatabaseMsec() {
+      return Math.max(0, inbound.getStoreMsec()) + Math.max(0, outbound.getFetchMsec());
+    }
+
+    public ExtendedJSONObject toJSON() {
+      final ExtendedJSONObject json = new ExtendedJSONObject();
+      json.put("msec", msec);
+      json.put("succeeded", succeeded);
+      json.put("cryptoMsec", getCryptoMsec());
+      json.put("dbMsec", getDatabaseMsec());
+      json.put("inbound", inbound.toJSON());
+      json.put("outbound", outbound.toJSON());
+      return json;
+    }
+  }
+
+  protected volatile long startTime = -1;
+  protected volatile long endTime = -1;
+
+  // Insertion ordered, so stages are listed in the order they finished.
+  protected final Map<String, Long> stageMsec = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+  protected final ConcurrentHashMap<String, EngineMetrics> engines = new ConcurrentHashMap<String, EngineMetrics>();
+
+  protected final AtomicLong httpRequests = new AtomicLong(0);
+  protected final AtomicLong httpFailures = new AtomicLong(0);
+  protected final ConcurrentHashMap<Integer, AtomicLong> httpStatuses = new ConcurrentHashMap<Integer, AtomicLong>();
+  protected final Histogram httpLatency = new Histogram(LATENCY_BUCKETS_MSEC);
+
+  // BaseResource counts bytes for every request; we report the difference
+  // between the start and end of the sync.
+  protected volatile long requestBytesAtStart = 0;
+  protected volatile long responseBytesAtStart = 0;
+  protected volatile long requestBytesAtEnd = -1;
+  protected volatile long responseBytesAtEnd = -1;
+
+  /**
+   * Start, or restart, measuring. Measurements already taken are kept.
+   */
+  public synchronized void start() {
+    if (startTime < 0) {
+      startTime = System.currentTimeMillis();
+      requestBytesAtStart = BaseResource.getRequestBodyBytes();
+      responseBytesAtStart = BaseResource.getResponseBodyBytes();
+    }
+    endTime = -1;
+    requestBytesAtEnd = -1;
+    responseBytesAtEnd = -1;
+  }
+
+  public synchronized void finish() {
+    if (startTime < 0 || endTime >= 0) {
+      return;
+    }
+    endTime = System.currentTimeMillis();
+    requestBytesAtEnd = BaseResource.getRequestBodyBytes();
+    responseBytesAtEnd = BaseResource.getResponseBodyBytes();
+  }
+
+  /**
+   * @return milliseconds from start to finish, or until now if not finished.
+   */
+  public long getDurationMsec() {
+    final long start = startTime;
+    if (start < 0) {
+      return 0;
+    }
+    final long end = endTime;
+    return ((end < 0) ? System.currentTimeMillis() : end) - start;
+  }
+
+  /**
+   * Add <code>msec</code> to the time taken by the named stage.
+   */
+  public void recordStage(String name, long msec) {
+    synchronized (stageMsec) {
+      final Long existing = stageMsec.get(name);
+      stageMsec.put(name, (existing == null) ? msec : existing + msec);
+    }
+  }
+
+  /**
+   * @return the time taken by the named stage, or -1 if it wasn't recorded.
+   */
+  public long getStageMsec(String name) {
+    final Long msec = stageMsec.get(name);
+    return (msec == null) ? -1 : msec;
+  }
+
+  /**
+   * Get the measurements for the named engine, creating them if necessary.
+   */
+  public EngineMetrics engine(String name) {
+    final EngineMetrics existing = engines.get(name);
+    if (existing != null) {
+      return existing;
+    }
+    final EngineMetrics created = new EngineMetrics();
+    final EngineMetrics raced = engines.putIfAbsent(name, created);
+    return (raced == null) ? created : raced;
+  }
+
+  @Override
+  public void observeHttpTiming(HttpUriRequest request, HttpResponse response, long latencyMsec) {
+    httpRequests.incrementAndGet();
+    httpLatency.record(latencyMsec);
+    if (response == null || response.getStatusLine() == null) {
+      httpFailures.incrementAndGet();
+      return;
+    }
+    final Integer status = response.getStatusLine().getStatusCode();
+    AtomicLong counter = httpStatuses.get(status);
+    if (counter == null) {
+      final AtomicLong created = new AtomicLong(0);
+      counter = httpStatuses.putIfAbsent(status, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    counter.incrementAndGet();
+  }
+
+  public long getHttpRequestCount() {
+    return httpRequests.get();
+  }
+
+  public long getHttpFailureCount() {
+    return httpFailures.get();
+  }
+
+  public Histogram getHttpLatency() {
+    return httpLatency;
+  }
+
+  public long getBytesSent() {
+    final long end = requestBytesAtEnd;
+    return ((end < 0) ? BaseResource.getRequestBodyBytes() : end) - requestBytesAtStart;
+  }
+
+  public long getBytesReceived() {
+    final long end = responseBytesAtEnd;
+    return ((end < 0) ? BaseResource.getResponseBodyBytes() : end) - responseBytesAtStart;
+  }
+
+  public ExtendedJSONObject toJSON() {
+    final ExtendedJSONObject stages = new ExtendedJSONObject();
+    synchronized (stageMsec) {
+      for (Entry<String, Long> entry : stageMsec.entrySet()) {
+        stages.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    long cryptoMsec = 0;
+    long databaseMsec = 0;
+    final ExtendedJSONObject engineJSON = new ExtendedJSONObject();
+    final List<String> names = new ArrayList<String>(engines.keySet());
+    Collections.sort(names);
+    for (String name : names) {
+      final EngineMetrics engine = engines.get(name);
+      cryptoMsec += engine.getCryptoMsec();
+      databaseMsec += engine.getDatabaseMsec();
+      engineJSON.put(name, engine.toJSON());
+    }
+
+    final ExtendedJSONObject statuses = new ExtendedJSONObject();
+    for (Entry<Integer, AtomicLong> entry : httpStatuses.entrySet()) {
+      statuses.put(String.valueOf(entry.getKey()), entry.getValue().get());
+    }
+
+    final ExtendedJSONObject http = new ExtendedJSONObject();
+    http.put("requests", httpRequests.get());
+    http.put("failures", httpFailures.get());
+    http.put("statuses", statuses);
+    http.put("latencyMsec", httpLatency.toJSON());
+    http.put("bytesSent", getBytesSent());
+    http.put("bytesReceived", getBytesReceived());
+
+    final ExtendedJSONObject json = new ExtendedJSONObject();
+    json.put("when", startTime);
+    json.put("msec", getDurationMsec());
+    json.put("cryptoMsec", cryptoMsec);
+    json.put("dbMsec", databaseMsec);
+    json.put("stages", stages);
+    json.put("engines", engineJSON);
+    json.put("http", http);
+    return json;
+  }
+
+  public String toJSONString() {
+    return toJSON().toJSONString();
+  }
+
+  @Override
+  public String toString() {
+    return toJSONString();
+  }
+
+  protected static double perSecond(long count, long msec) {
+    if (msec <= 0) {
+      return 0.0;
+    }
+    // One decimal place is plenty.
+    return Math.round(count * 10000.0 / msec) / 10.0;
+  }
+}
@@ -0,0 +1,140 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A <code>Reader</code> that decodes UTF-8 directly from a byte array.
+ * <p>
+ * Unlike <code>new String(bytes, "UTF-8")</code> this doesn't materialize the
+ * whole decoded input, and unlike an <code>InputStreamReader</code> it
+ * doesn't allocate intermediate buffers. Malformed input is replaced with
+ * U+FFFD.
+ * <p>
+ * Not thread-safe.
+ */
+public class UTF8ByteArrayReader extends Reader {
+  private static final char REPLACEMENT = '\uFFFD';
+
+  private final byte[] bytes;
+  private final int end;
+  private int pos;
+
+  // Low half of a surrogate pair that didn't fit in the caller's buffer.
+  private char pendingLowSurrogate;
+
+  public UTF8ByteArrayReader(byte[] bytes) {
+    this(bytes, 0, bytes.length);
+  }
+
+  public UTF8ByteArrayReader(byte[] bytes, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    this.bytes = bytes;
+    this.pos = offset;
+    this.end = offset + length;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (pos >= end && pendingLowSurrogate == 0) {
+      return -1;
+    }
+
+    int n = 0;
+    if (pendingLowSurrogate != 0) {
+      cbuf[off + n++] = pendingLowSurrogate;
+      pendingLowSurrogate = 0;
+    }
+
+    while (n < len && pos < end) {
+      final int b0 = bytes[pos];
+      if (b0 >= 0) {
+        // ASCII: by far the common case for Sync records.
+        cbuf[off + n++] = (char) b0;
+        pos++;
+        continue;
+      }
+
+      final int lead = b0 & 0xff;
+      final int needed;
+      int codePoint;
+      int min;
+      int max = 0xBF;
+      if (lead >= 0xC2 && lead <= 0xDF) {
+        needed = 1;
+        codePoint = lead & 0x1F;
+        min = 0x80;
+      } else if (lead >= 0xE0 && lead <= 0xEF) {
+        needed = 2;
+        codePoint = lead & 0x0F;
+        // Reject overlong encodings and surrogates.
+        min = (lead == 0xE0) ? 0xA0 : 0x80;
+        max = (lead == 0xED) ? 0x9F : 0xBF;
+      } else if (lead >= 0xF0 && lead <= 0xF4) {
+        needed = 3;
+        codePoint = lead & 0x07;
+        // Reject overlong encodings and code points above U+10FFFF.
+        min = (lead == 0xF0) ? 0x90 : 0x80;
+        max = (lead == 0xF4) ? 0x8F : 0xBF;
+      } else {
+        cbuf[off + n++] = REPLACEMENT;
+        pos++;
+        continue;
+      }
+
+      int consumed = 1;
+      boolean malformed = false;
+      for (int i = 0; i < needed; i++) {
+        if (pos + consumed >= end) {
+          malformed = true;
+          break;
+        }
+        final int b = bytes[pos + consumed] & 0xff;
+        if (b < min || b > max) {
+          malformed = true;
+          break;
+        }
+        codePoint = (codePoint << 6) | (b & 0x3F);
+        consumed++;
+        // Only the second byte has a restricted range.
+        min = 0x80;
+        max = 0xBF;
+      }
+      pos += consumed;
+
+      if (malformed) {
+        cbuf[off + n++] = REPLACEMENT;
+      } else if (codePoint < 0x10000) {
+        cbuf[off + n++] = (char) codePoint;
+      } else {
+        cbuf[off + n++] = (char) ((codePoint >>> 10) + 0xD7C0);
+        final char low = (char) ((codePoint & 0x3FF) + 0xDC00);
+        if (n < len) {
+          cbuf[off + n++] = low;
+        } else {
+          pendingLowSurrogate = low;
+        }
+      }
+    }
+    return n;
+  }
+
+  @Override
+  public boolean ready() {
+    return true;
+  }
+
+  @Override
+  public void close() {
+    // Nothing to release.
+  }
+}
@@ -326,6 +326,26 @@ public class Utils {
     return true;
   }
 
+  /**
+   * Append each element of <code>source</code> that isn't already in
+   * <code>target</code> to <code>target</code>, preserving order. Runs in
+   * time linear in the size of both arrays.
+   *
+   * @return the number of elements appended.
+   */
+  @SuppressWarnings("unchecked")
+  public static int appendMissing(JSONArray target, JSONArray source) {
+    final HashSet<Object> present = new HashSet<Object>(target);
+    int added = 0;
+    for (Object o : source) {
+      if (present.add(o)) {
+        target.add(o);
+        added++;
+      }
+    }
+    return added;
+  }
+
   /**
    * Takes a URI, extracting URI components.
    * @param scheme the URI scheme on which to match.
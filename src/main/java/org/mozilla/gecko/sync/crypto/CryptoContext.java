@@ -0,0 +1,216 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread cache of initialized crypto primitives.
+ * <p>
+ * Looking up a <code>Cipher</code> or <code>Mac</code> from the provider and
+ * scheduling an HMAC key is expensive compared to encrypting or verifying a
+ * single record, and every record in a collection is usually handled with
+ * the same <code>KeyBundle</code>. A <code>CryptoContext</code> holds one
+ * <code>Cipher</code> and one <code>Mac</code>, and re-keys them only when
+ * it sees different key material.
+ * <p>
+ * Neither <code>Cipher</code> nor <code>Mac</code> is thread-safe, so
+ * contexts are confined to a thread: use {@link #get()}.
+ * <p>
+ * <code>KeyBundle</code> is mutable and has no <code>hashCode</code>, so
+ * contexts compare key bytes rather than bundle identity.
+ */
+public class CryptoContext {
+  public static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
+  public static final String KEY_ALGORITHM_SPEC = "AES";
+
+  /**
+   * Size of the chunks of Base64 output fed to the <code>Mac</code>. Must be
+   * a multiple of 4.
+   */
+  protected static final int BASE64_CHUNK_SIZE = 4096;
+
+  private static final byte[] BASE64_ALPHABET = {
+    'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+    'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+    'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+    'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+    '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/',
+  };
+  private static final byte BASE64_PAD = '=';
+
+  private static final ThreadLocal<CryptoContext> contexts = new ThreadLocal<CryptoContext>() {
+    @Override
+    protected CryptoContext initialValue() {
+      return new CryptoContext();
+    }
+  };
+
+  /**
+   * @return the <code>CryptoContext</code> for the current thread.
+   */
+  public static CryptoContext get() {
+    return contexts.get();
+  }
+
+  private Cipher cipher;
+  private byte[] cipherKeyBytes;
+  private SecretKeySpec cipherKey;
+
+  private Mac mac;
+  private byte[] macKeyBytes;
+
+  private final byte[] base64Scratch = new byte[BASE64_CHUNK_SIZE];
+
+  // Counters, mostly so that tests can verify reuse.
+  private long cipherInstances = 0;
+  private long macInits = 0;
+
+  protected CryptoContext() {
+  }
+
+  /**
+   * Return this context's <code>Cipher</code>. Callers must
+   * <code>init</code> it before use, typically with {@link #getEncryptionKey(KeyBundle)}.
+   */
+  public Cipher getCipher() throws CryptoException {
+    if (cipher == null) {
+      try {
+        cipher = Cipher.getInstance(TRANSFORMATION);
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new CryptoException(e);
+      }
+      cipherInstances++;
+    }
+    return cipher;
+  }
+
+  /**
+   * Return an AES key spec for the encryption key of <code>keys</code>,
+   * reusing the previous spec if the key is unchanged.
+   */
+  public SecretKeySpec getEncryptionKey(KeyBundle keys) {
+    final byte[] encryptionKey = keys.getEncryptionKey();
+    if (cipherKey == null || !Arrays.equals(cipherKeyBytes, encryptionKey)) {
+      cipherKeyBytes = encryptionKey.clone();
+      cipherKey = new SecretKeySpec(cipherKeyBytes, KEY_ALGORITHM_SPEC);
+    }
+    return cipherKey;
+  }
+
+  /**
+   * Return a reset <code>Mac</code> initialized with the HMAC key of
+   * <code>keys</code>. The <code>Mac</code> is only re-keyed if the key
+   * differs from the one it was last initialized with.
+   */
+  public Mac getHMACHasher(KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
+    final byte[] hmacKey = keys.getHMACKey();
+    if (mac == null) {
+      mac = Mac.getInstance(HKDF.HMAC_ALGORITHM);
+    }
+    if (macKeyBytes == null || !Arrays.equals(macKeyBytes, hmacKey)) {
+      // Forget the old key first, so a failed init doesn't leave us
+      // believing the Mac holds the new one.
+      macKeyBytes = null;
+      mac.init(HKDF.makeHMACKey(hmacKey));
+      macKeyBytes = hmacKey.clone();
+      macInits++;
+    } else {
+      mac.reset();
+    }
+    return mac;
+  }
+
+  /**
+   * Compute the HMAC of the Base64 encoding of <code>message</code>, as used
+   * by Sync. The encoding is streamed into the <code>Mac</code> in chunks
+   * rather than materialized.
+   *
+   * @return the HMAC bytes.
+   */
+  public byte[] hmacOfBase64(byte[] message, KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
+    final Mac hasher = getHMACHasher(keys);
+    updateWithBase64(hasher, message, base64Scratch);
+    return hasher.doFinal();
+  }
+
+  /**
+   * Feed the standard, unchunked, padded Base64 encoding of <code>data</code>
+   * into <code>hasher</code>, using <code>scratch</code> as a buffer.
+   * <p>
+   * The bytes fed are identical to those produced by
+   * <code>Base64.encodeBase64(data)</code>.
+   *
+   * @param scratch buffer whose length is a positive multiple of 4.
+   */
+  protected static void updateWithBase64(Mac hasher, byte[] data, byte[] scratch) {
+    final int length = data.length;
+    final int whole = length - (length % 3);
+    final int limit = scratch.length - 4;
+
+    int out = 0;
+    int in = 0;
+    while (in < whole) {
+      final int bits = ((data[in] & 0xff) << 16) |
+                       ((data[in + 1] & 0xff) << 8) |
+                       (data[in + 2] & 0xff);
+      in += 3;
+      scratch[out++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+      scratch[out++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+      scratch[out++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+      scratch[out++] = BASE64_ALPHABET[bits & 0x3f];
+      if (out > limit) {
+        hasher.update(scratch, 0, out);
+        out = 0;
+      }
+    }
+
+    switch (length - whole) {
+    case 1: {
+      final int bits = (data[in] & 0xff) << 16;
+      scratch[out++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+      scratch[out++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+      scratch[out++] = BASE64_PAD;
+      scratch[out++] = BASE64_PAD;
+      break;
+    }
+    case 2: {
+      final int bits = ((data[in] & 0xff) << 16) | ((data[in + 1] & 0xff) << 8);
+      scratch[out++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+      scratch[out++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+      scratch[out++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+      scratch[out++] = BASE64_PAD;
+      break;
+    }
+    default:
+      break;
+    }
+
+    if (out > 0) {
+      hasher.update(scratch, 0, out);
+    }
+  }
+
+  /**
+   * @return how many times this context has fetched a <code>Cipher</code> from the provider.
+   */
+  public long getCipherInstanceCount() {
+    return cipherInstances;
+  }
+
+  /**
+   * @return how many times this context has keyed its <code>Mac</code>.
+   */
+  public long getMacInitCount() {
+    return macInits;
+  }
+}
@@ -12,20 +12,16 @@ import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.mozilla.apache.commons.codec.binary.Base64;
-
 /*
  * All info in these objects should be decoded (i.e. not BaseXX encoded).
+ *
+ * Ciphers and HMAC hashers are reused across records via the current
+ * thread's {@link CryptoContext}.
  */
 public class CryptoInfo {
-  private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
-  private static final String KEY_ALGORITHM_SPEC = "AES";
-
   private byte[] message;
   private byte[] iv;
   private byte[] hmac;
@@ -112,8 +108,7 @@ public class CryptoInfo {
    * Generate HMAC for given cipher text.
    */
   public static byte[] generatedHMACFor(byte[] message, KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
-    return hmacHasher.doFinal(Base64.encodeBase64(message));
+    return CryptoContext.get().hmacOfBase64(message, keys);
   }
 
   /*
@@ -151,10 +146,10 @@ public class CryptoInfo {
    */
   public void encrypt() throws CryptoException {
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    final CryptoContext context = CryptoContext.get();
+    Cipher cipher = context.getCipher();
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
+      SecretKeySpec spec = context.getEncryptionKey(getKeys());
 
       // If no IV is provided, we allow the cipher to provide one.
       if (getIV() == null || getIV().length == 0) {
@@ -200,10 +195,10 @@ public class CryptoInfo {
       throw new CryptoException(e);
     }
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    final CryptoContext context = CryptoContext.get();
+    Cipher cipher = context.getCipher();
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
+      SecretKeySpec spec = context.getEncryptionKey(getKeys());
       cipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(getIV()));
     } catch (GeneralSecurityException ex) {
       throw new CryptoException(ex);
@@ -216,17 +211,4 @@ public class CryptoInfo {
     this.setIV(iv);
     this.setMessage(decryptedBytes);
   }
-
-  /**
-   * Helper to get a Cipher object.
-   *
-   * @param transformation The type of Cipher to get.
-   */
-  private static Cipher getCipher(String transformation) throws CryptoException {
-    try {
-      return Cipher.getInstance(transformation);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-      throw new CryptoException(e);
-    }
-  }
 }
@@ -109,8 +109,13 @@ public class HKDF {
     return ret;
   }
 
+  /**
+   * Extract and expand using {@link KeyDerivationProvider#get()}, which gives
+   * the same output as {@link #hkdfExpand(byte[], byte[], int)} without a
+   * <code>Mac</code> or intermediate arrays per block.
+   */
   public static byte[] derive(byte[] skm, byte[] xts, byte[] ctxInfo, int dkLen) throws InvalidKeyException, NoSuchAlgorithmException {
-    return hkdfExpand(hkdfExtract(xts, skm), ctxInfo, dkLen);
+    return KeyDerivationProvider.get().hkdf(skm, xts, ctxInfo, dkLen);
   }
 
   public static void deriveMany(byte[] skm, byte[] xts, byte[] ctxInfo, byte[]... keys) throws InvalidKeyException, NoSuchAlgorithmException {
@@ -118,7 +123,7 @@ public class HKDF {
     for (byte[] key : keys) {
       length += key.length;
     }
-    byte[] derived = hkdfExpand(hkdfExtract(xts, skm), ctxInfo, length);
+    byte[] derived = derive(skm, xts, ctxInfo, length);
     int offset = 0;
     for (byte[] key : keys) {
       System.arraycopy(derived, offset, key, 0, key.length);
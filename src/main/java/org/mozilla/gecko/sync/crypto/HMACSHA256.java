@@ -0,0 +1,199 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+/**
+ * HMAC-SHA-256 for a fixed key, for key derivation loops.
+ * <p>
+ * <code>javax.crypto.Mac</code> hashes the padded key again for every
+ * message, and allocates as it goes. Here the SHA-256 states after the inner
+ * and outer padded keys are computed once, so a 32-byte message costs two
+ * compressions and no allocation.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class HMACSHA256 {
+  public static final int BLOCK_LENGTH = 64;
+  public static final int MAC_LENGTH = 32;
+
+  private static final int[] IV = {
+    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+    0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19,
+  };
+
+  private static final int[] K = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2,
+  };
+
+  // SHA-256 states after absorbing the key XOR ipad and the key XOR opad.
+  private final int[] innerState = new int[8];
+  private final int[] outerState = new int[8];
+
+  // Scratch space.
+  private final int[] state = new int[8];
+  private final int[] w = new int[64];
+  private final byte[] block = new byte[BLOCK_LENGTH];
+
+  public HMACSHA256(byte[] key) {
+    if (key == null) {
+      throw new IllegalArgumentException("key must not be null.");
+    }
+    if (key.length > BLOCK_LENGTH) {
+      // Long keys are hashed first.
+      final byte[] hashed = new byte[MAC_LENGTH];
+      System.arraycopy(IV, 0, state, 0, 8);
+      hash(state, 0, key, 0, key.length);
+      writeState(state, hashed, 0);
+      key = hashed;
+    }
+
+    final byte[] pad = new byte[BLOCK_LENGTH];
+    for (int i = 0; i < BLOCK_LENGTH; i++) {
+      pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x36);
+    }
+    System.arraycopy(IV, 0, innerState, 0, 8);
+    compress(innerState, pad, 0);
+
+    for (int i = 0; i < BLOCK_LENGTH; i++) {
+      pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x5c);
+    }
+    System.arraycopy(IV, 0, outerState, 0, 8);
+    compress(outerState, pad, 0);
+  }
+
+  /**
+   * Write the MAC of <code>input[offset, offset + length)</code> to
+   * <code>out[outOffset, outOffset + 32)</code>. The input is consumed before
+   * any output is written, so the two may overlap.
+   */
+  public void mac(byte[] input, int offset, int length, byte[] out, int outOffset) {
+    // Inner hash: H(K ^ ipad || input).
+    System.arraycopy(innerState, 0, state, 0, 8);
+    hash(state, BLOCK_LENGTH, input, offset, length);
+
+    // Outer hash: H(K ^ opad || inner), where inner fits in one block.
+    writeState(state, block, 0);
+    block[MAC_LENGTH] = (byte) 0x80;
+    for (int i = MAC_LENGTH + 1; i < BLOCK_LENGTH - 8; i++) {
+      block[i] = 0;
+    }
+    writeBitLength(block, BLOCK_LENGTH + MAC_LENGTH);
+    System.arraycopy(outerState, 0, state, 0, 8);
+    compress(state, block, 0);
+    writeState(state, out, outOffset);
+  }
+
+  public byte[] mac(byte[] input) {
+    final byte[] out = new byte[MAC_LENGTH];
+    mac(input, 0, input.length, out, 0);
+    return out;
+  }
+
+  /**
+   * Finish hashing into <code>s</code>, which has already absorbed
+   * <code>prefixLength</code> bytes, a multiple of the block length.
+   */
+  private void hash(int[] s, int prefixLength, byte[] input, int offset, int length) {
+    int remaining = length;
+    int position = offset;
+    while (remaining >= BLOCK_LENGTH) {
+      compress(s, input, position);
+      position += BLOCK_LENGTH;
+      remaining -= BLOCK_LENGTH;
+    }
+
+    System.arraycopy(input, position, block, 0, remaining);
+    block[remaining] = (byte) 0x80;
+    for (int i = remaining + 1; i < BLOCK_LENGTH; i++) {
+      block[i] = 0;
+    }
+    if (remaining + 1 > BLOCK_LENGTH - 8) {
+      // No room for the length.
+      compress(s, block, 0);
+      for (int i = 0; i < BLOCK_LENGTH; i++) {
+        block[i] = 0;
+      }
+    }
+    writeBitLength(block, (long) prefixLength + length);
+    compress(s, block, 0);
+  }
+
+  private static void writeBitLength(byte[] dest, long byteLength) {
+    final long bits = byteLength * 8;
+    for (int i = 0; i < 8; i++) {
+      dest[BLOCK_LENGTH - 1 - i] = (byte) (bits >>> (8 * i));
+    }
+  }
+
+  private static void writeState(int[] s, byte[] dest, int offset) {
+    for (int i = 0; i < 8; i++) {
+      final int v = s[i];
+      dest[offset + 4 * i + 0] = (byte) (v >>> 24);
+      dest[offset + 4 * i + 1] = (byte) (v >>> 16);
+      dest[offset + 4 * i + 2] = (byte) (v >>> 8);
+      dest[offset + 4 * i + 3] = (byte) v;
+    }
+  }
+
+  private void compress(int[] s, byte[] buf, int offset) {
+    final int[] w = this.w;
+    for (int i = 0; i < 16; i++) {
+      final int j = offset + 4 * i;
+      w[i] = ((buf[j] & 0xff) << 24) |
+             ((buf[j + 1] & 0xff) << 16) |
+             ((buf[j + 2] & 0xff) << 8) |
+             (buf[j + 3] & 0xff);
+    }
+    for (int i = 16; i < 64; i++) {
+      final int w15 = w[i - 15];
+      final int w2 = w[i - 2];
+      final int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+      final int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+      w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+    }
+
+    int a = s[0];
+    int b = s[1];
+    int c = s[2];
+    int d = s[3];
+    int e = s[4];
+    int f = s[5];
+    int g = s[6];
+    int h = s[7];
+
+    for (int i = 0; i < 64; i++) {
+      final int S1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+      final int ch = (e & f) ^ (~e & g);
+      final int t1 = h + S1 + ch + K[i] + w[i];
+      final int S0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+      final int maj = (a & b) ^ (a & c) ^ (b & c);
+      final int t2 = S0 + maj;
+      h = g;
+      g = f;
+      f = e;
+      e = d + t1;
+      d = c;
+      c = b;
+      b = a;
+      a = t1 + t2;
+    }
+
+    s[0] += a;
+    s[1] += b;
+    s[2] += c;
+    s[3] += d;
+    s[4] += e;
+    s[5] += f;
+    s[6] += g;
+    s[7] += h;
+  }
+}
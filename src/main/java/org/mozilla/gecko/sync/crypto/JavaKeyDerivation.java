@@ -0,0 +1,80 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+/**
+ * Key derivation in pure Java, using {@link HMACSHA256}.
+ */
+public class JavaKeyDerivation implements KeyDerivation {
+  public static final int MAX_HKDF_LENGTH = 255 * HMACSHA256.MAC_LENGTH;
+
+  @Override
+  public byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen) {
+    if (c < 1) {
+      throw new IllegalArgumentException("c must be at least 1.");
+    }
+    if (dkLen < 1) {
+      throw new IllegalArgumentException("dkLen must be at least 1.");
+    }
+
+    final int hLen = HMACSHA256.MAC_LENGTH;
+    final HMACSHA256 prf = new HMACSHA256(password);
+    final byte[] dk = new byte[dkLen];
+
+    // S || INT(i).
+    final byte[] saltIndex = new byte[salt.length + 4];
+    System.arraycopy(salt, 0, saltIndex, 0, salt.length);
+
+    final byte[] u = new byte[hLen];
+    final byte[] t = new byte[hLen];
+    final int blocks = (dkLen + hLen - 1) / hLen;
+    for (int i = 1; i <= blocks; i++) {
+      saltIndex[salt.length + 0] = (byte) (i >>> 24);
+      saltIndex[salt.length + 1] = (byte) (i >>> 16);
+      saltIndex[salt.length + 2] = (byte) (i >>> 8);
+      saltIndex[salt.length + 3] = (byte) i;
+
+      prf.mac(saltIndex, 0, saltIndex.length, u, 0);
+      System.arraycopy(u, 0, t, 0, hLen);
+      for (int j = 1; j < c; j++) {
+        prf.mac(u, 0, hLen, u, 0);
+        for (int k = 0; k < hLen; k++) {
+          t[k] ^= u[k];
+        }
+      }
+
+      final int offset = (i - 1) * hLen;
+      System.arraycopy(t, 0, dk, offset, Math.min(hLen, dkLen - offset));
+    }
+    return dk;
+  }
+
+  @Override
+  public byte[] hkdf(byte[] ikm, byte[] salt, byte[] info, int len) {
+    if (len < 0 || len > MAX_HKDF_LENGTH) {
+      throw new IllegalArgumentException("len must be between 0 and " + MAX_HKDF_LENGTH + ".");
+    }
+    final int hLen = HMACSHA256.MAC_LENGTH;
+
+    // Extract. An empty salt is hLen zeroes, which HMAC pads to the same key.
+    final byte[] prk = new HMACSHA256(salt).mac(ikm);
+
+    // Expand: T(i) = HMAC(PRK, T(i - 1) || info || i).
+    final HMACSHA256 prf = new HMACSHA256(prk);
+    final byte[] okm = new byte[len];
+    final byte[] input = new byte[hLen + info.length + 1];
+    final byte[] t = new byte[hLen];
+    int tLength = 0;
+    for (int i = 1, offset = 0; offset < len; i++, offset += hLen) {
+      System.arraycopy(t, 0, input, 0, tLength);
+      System.arraycopy(info, 0, input, tLength, info.length);
+      input[tLength + info.length] = (byte) i;
+      prf.mac(input, 0, tLength + info.length + 1, t, 0);
+      tLength = hLen;
+      System.arraycopy(t, 0, okm, offset, Math.min(hLen, len - offset));
+    }
+    return okm;
+  }
+}
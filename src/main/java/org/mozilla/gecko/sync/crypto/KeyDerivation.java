@@ -0,0 +1,38 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Password- and key-based key derivation, both built on HMAC-SHA-256.
+ * <p>
+ * Use {@link KeyDerivationProvider#get()} to get the fastest implementation
+ * available.
+ */
+public interface KeyDerivation {
+  /**
+   * PBKDF2 (RFC 2898) with HMAC-SHA-256.
+   *
+   * @param password
+   * @param salt
+   * @param c iteration count; at least 1.
+   * @param dkLen length of the derived key in bytes; at least 1.
+   * @return the derived key.
+   * @throws GeneralSecurityException
+   */
+  public byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen) throws GeneralSecurityException;
+
+  /**
+   * HKDF (RFC 5869) with HMAC-SHA-256: extract, then expand.
+   *
+   * @param ikm input keying material.
+   * @param salt may be empty, but not null.
+   * @param info context; may be empty, but not null.
+   * @param len length of output keying material in bytes; at most 255 * 32.
+   * @return output keying material.
+   */
+  public byte[] hkdf(byte[] ikm, byte[] salt, byte[] info, int len);
+}
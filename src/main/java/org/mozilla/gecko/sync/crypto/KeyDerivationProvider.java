@@ -0,0 +1,47 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * Chooses a {@link KeyDerivation} implementation once per process: native
+ * when mozglue is available, pure Java otherwise.
+ */
+public class KeyDerivationProvider {
+  private static final String LOG_TAG = "KeyDerivationProvider";
+
+  private static KeyDerivation instance;
+
+  public static synchronized KeyDerivation get() {
+    if (instance == null) {
+      instance = choose();
+    }
+    return instance;
+  }
+
+  /**
+   * Replace the implementation in use. Pass <code>null</code> to choose again.
+   */
+  public static synchronized void set(KeyDerivation keyDerivation) {
+    instance = keyDerivation;
+  }
+
+  protected static KeyDerivation choose() {
+    final KeyDerivation nativeKeyDerivation = new NativeKeyDerivation();
+    try {
+      nativeKeyDerivation.pbkdf2SHA256(new byte[] { 0 }, new byte[] { 0 }, 1, 1);
+      Logger.debug(LOG_TAG, "Using native key derivation.");
+      return nativeKeyDerivation;
+    } catch (final LinkageError e) {
+      // UnsatisfiedLinkError or ExceptionInInitializerError if mozglue can't be
+      // loaded; LinkageError is their common ancestor.
+      Logger.warn(LOG_TAG, "Native key derivation unavailable; using Java implementation.", e);
+    } catch (final Exception e) {
+      Logger.warn(LOG_TAG, "Native key derivation failed; using Java implementation.", e);
+    }
+    return new JavaKeyDerivation();
+  }
+}
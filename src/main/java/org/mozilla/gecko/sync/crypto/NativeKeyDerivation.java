@@ -0,0 +1,31 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.GeneralSecurityException;
+
+import org.mozilla.gecko.background.nativecode.NativeCrypto;
+
+/**
+ * PBKDF2 in mozglue. HKDF does a handful of HMACs, which isn't worth a JNI
+ * call, so it stays in Java.
+ * <p>
+ * Calling into {@link NativeCrypto} throws a <code>LinkageError</code> if
+ * mozglue can't be loaded; {@link KeyDerivationProvider} checks that before
+ * choosing this implementation.
+ */
+public class NativeKeyDerivation implements KeyDerivation {
+  protected final KeyDerivation javaKeyDerivation = new JavaKeyDerivation();
+
+  @Override
+  public byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen) throws GeneralSecurityException {
+    return NativeCrypto.pbkdf2SHA256(password, salt, c, dkLen);
+  }
+
+  @Override
+  public byte[] hkdf(byte[] ikm, byte[] salt, byte[] info, int len) {
+    return javaKeyDerivation.hkdf(ikm, salt, info, len);
+  }
+}
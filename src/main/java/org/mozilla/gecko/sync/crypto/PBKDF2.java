@@ -11,6 +11,10 @@ import javax.crypto.Mac;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Reference PBKDF2-HMAC-SHA-256 using <code>javax.crypto.Mac</code>. Prefer
+ * {@link KeyDerivationProvider#get()}, which is faster.
+ */
 public class PBKDF2 {
   public static byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen)
       throws GeneralSecurityException {
@@ -25,7 +29,7 @@ public class PBKDF2 {
     byte U_i[] = new byte[salt.length + 4];
     byte scratch[] = new byte[hLen];
 
-    int l = Math.max(dkLen, hLen);
+    int l = (dkLen + hLen - 1) / hLen;
     int r = dkLen - (l - 1) * hLen;
     byte T[] = new byte[l * hLen];
     int ti_offset = 0;
@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.middleware;
 
+import org.mozilla.gecko.sync.SyncMetrics;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.repositories.IdentityRecordFactory;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
@@ -55,6 +56,19 @@ public class Crypto5MiddlewareRepository extends MiddlewareRepository {
   }
 
   public KeyBundle keyBundle;
+
+  /**
+   * Number of threads used to decrypt and transform fetched records. With
+   * the default of 1, records are processed in order on the thread that
+   * fetched them; larger values trade ordering for throughput.
+   */
+  public int decryptWorkerCount = 1;
+
+  /**
+   * If non-null, time spent encrypting and decrypting is added here.
+   */
+  public SyncMetrics.EngineMetrics metrics;
+
   private final Repository inner;
 
   public Crypto5MiddlewareRepository(Repository inner, KeyBundle keys) {
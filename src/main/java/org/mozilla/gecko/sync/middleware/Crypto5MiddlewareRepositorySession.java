@@ -6,14 +6,22 @@ package org.mozilla.gecko.sync.middleware;
 
 import java.io.UnsupportedEncodingException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.DelayedWorkTracker;
+import org.mozilla.gecko.sync.SyncMetrics;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
@@ -54,17 +62,39 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
                  +------------------------------------+
 
 
+ * By default, fetched records are decrypted and transformed on the thread
+ * that delivers them. If the repository's <code>decryptWorkerCount</code> is
+ * greater than one, that work is instead fanned out to a bounded pool; see
+ * {@link ParallelDecryptingTransformingFetchDelegate}.
+ *
  * @author rnewman
  *
  */
 public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySession {
+  private static final String LOG_TAG = "Crypto5MiddlewareSession";
+
+  /**
+   * How many records may wait for a decrypt worker, per worker, before the
+   * delivering thread does the work itself.
+   */
+  protected static final int DECRYPT_QUEUE_DEPTH_PER_WORKER = 16;
+
+  /**
+   * How long idle decrypt workers are kept around.
+   */
+  protected static final long DECRYPT_WORKER_KEEPALIVE_MSEC = 5000;
+
   private final KeyBundle keyBundle;
   private final RecordFactory recordFactory;
+  private final int decryptWorkerCount;
+  private final SyncMetrics.EngineMetrics metrics;
 
   public Crypto5MiddlewareRepositorySession(RepositorySession session, Crypto5MiddlewareRepository repository, RecordFactory recordFactory) {
     super(session, repository);
     this.keyBundle = repository.keyBundle;
     this.recordFactory = recordFactory;
+    this.decryptWorkerCount = repository.decryptWorkerCount;
+    this.metrics = repository.metrics;
   }
 
   public class DecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
@@ -78,9 +108,23 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
       this.recordFactory = recordFactory;
     }
 
+    /**
+     * Pass a transformed record to the next delegate.
+     */
+    protected void emitFetchedRecord(Record record) {
+      next.onFetchedRecord(record);
+    }
+
+    /**
+     * Pass a failure to the next delegate.
+     */
+    protected void emitFetchFailed(Exception ex, Record record) {
+      next.onFetchFailed(ex, record);
+    }
+
     @Override
     public void onFetchFailed(Exception ex, Record record) {
-      next.onFetchFailed(ex, record);
+      emitFetchFailed(ex, record);
     }
 
     @Override
@@ -89,24 +133,29 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
       try {
         r = (CryptoRecord) record;
       } catch (ClassCastException e) {
-        next.onFetchFailed(e, record);
+        emitFetchFailed(e, record);
         return;
       }
       r.keyBundle = keyBundle;
+      final long start = (metrics == null) ? 0 : System.nanoTime();
       try {
         r.decrypt();
       } catch (Exception e) {
-        next.onFetchFailed(e, r);
+        emitFetchFailed(e, r);
         return;
+      } finally {
+        if (metrics != null) {
+          metrics.recordCrypto(System.nanoTime() - start);
+        }
       }
       Record transformed;
       try {
         transformed = this.recordFactory.createRecord(r);
       } catch (Exception e) {
-        next.onFetchFailed(e, r);
+        emitFetchFailed(e, r);
         return;
       }
-      next.onFetchedRecord(transformed);
+      emitFetchedRecord(transformed);
     }
 
     @Override
@@ -122,10 +171,89 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     }
   }
 
+  /**
+   * Decrypts and transforms records on a bounded pool of workers, so that
+   * the thread delivering records (typically reading from the network) is
+   * not held up by crypto and JSON work.
+   * <p>
+   * Calls to the next delegate are serialized, but records may be passed on
+   * in a different order to that in which they were fetched. When the pool
+   * is saturated the delivering thread does the work itself, which bounds
+   * memory use.
+   * <p>
+   * <code>onFetchCompleted</code> is passed on only once every record
+   * received before it has been decrypted and passed on.
+   */
+  public class ParallelDecryptingTransformingFetchDelegate extends DecryptingTransformingFetchDelegate {
+    private final ThreadPoolExecutor decryptExecutor;
+    private final DelayedWorkTracker workTracker = new DelayedWorkTracker();
+
+    ParallelDecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory, int workerCount) {
+      super(next, bundle, recordFactory);
+      this.decryptExecutor = new ThreadPoolExecutor(workerCount, workerCount,
+          DECRYPT_WORKER_KEEPALIVE_MSEC, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(workerCount * DECRYPT_QUEUE_DEPTH_PER_WORKER),
+          new ThreadPoolExecutor.CallerRunsPolicy());
+      this.decryptExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    protected synchronized void emitFetchedRecord(Record record) {
+      super.emitFetchedRecord(record);
+    }
+
+    @Override
+    protected synchronized void emitFetchFailed(Exception ex, Record record) {
+      super.emitFetchFailed(ex, record);
+    }
+
+    @Override
+    public void onFetchedRecord(final Record record) {
+      workTracker.incrementOutstanding();
+      try {
+        decryptExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              ParallelDecryptingTransformingFetchDelegate.super.onFetchedRecord(record);
+            } finally {
+              workTracker.decrementOutstanding();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        workTracker.decrementOutstanding();
+        emitFetchFailed(e, record);
+      }
+    }
+
+    @Override
+    public void onFetchCompleted(final long fetchEnd) {
+      Logger.trace(LOG_TAG, "Fetch completed with " + workTracker.getOutstandingOperations() + " records in flight.");
+      workTracker.delayWorkItem(new Runnable() {
+        @Override
+        public void run() {
+          ParallelDecryptingTransformingFetchDelegate.super.onFetchCompleted(fetchEnd);
+          decryptExecutor.shutdown();
+        }
+      });
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      // In-flight accounting must be shared, so hop onto the executor and
+      // come back to this instance.
+      return new DeferredRepositorySessionFetchRecordsDelegate(this, executor);
+    }
+  }
+
   private DecryptingTransformingFetchDelegate makeUnwrappingDelegate(RepositorySessionFetchRecordsDelegate inner) {
     if (inner == null) {
       throw new IllegalArgumentException("Inner delegate cannot be null!");
     }
+    if (this.decryptWorkerCount > 1) {
+      return new ParallelDecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory, this.decryptWorkerCount);
+    }
     return new DecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory);
   }
 
@@ -153,6 +281,14 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     this.delegate = delegate;             // So we can handle errors without involving inner.
   }
 
+  /**
+   * Encrypt <code>record</code> and pass it to the inner session.
+   * <p>
+   * Encryption uses only the calling thread's <code>CryptoContext</code>, so
+   * if the inner session's <code>store</code> is thread-safe, so is this:
+   * callers such as <code>RecordsChannel</code> can encrypt on several
+   * threads at once.
+   */
   @Override
   public void store(Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -160,11 +296,16 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     }
     CryptoRecord rec = record.getEnvelope();
     rec.keyBundle = this.keyBundle;
+    final long start = (metrics == null) ? 0 : System.nanoTime();
     try {
       rec.encrypt();
     } catch (UnsupportedEncodingException | CryptoException e) {
       delegate.onRecordStoreFailed(e, record.guid);
       return;
+    } finally {
+      if (metrics != null) {
+        metrics.recordCrypto(System.nanoTime() - start);
+      }
     }
     // Allow the inner session to do delegate handling.
     inner.store(rec);
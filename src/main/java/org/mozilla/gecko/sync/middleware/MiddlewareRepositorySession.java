@@ -173,6 +173,11 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
     return inner.dataAvailable();
   }
 
+  @Override
+  public boolean storeIsThreadSafe() {
+    return inner.storeIsThreadSafe();
+  }
+
   @Override
   public void unbundle(RepositorySessionBundle bundle) {
     inner.unbundle(bundle);
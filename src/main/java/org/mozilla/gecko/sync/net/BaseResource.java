@@ -8,13 +8,18 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 
@@ -26,10 +31,13 @@ import org.mozilla.gecko.sync.ExtendedJSONObject;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpEntityEnclosingRequest;
+import ch.boye.httpclientandroidlib.HttpHost;
 import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.HttpVersion;
 import ch.boye.httpclientandroidlib.client.AuthCache;
 import ch.boye.httpclientandroidlib.client.ClientProtocolException;
+import ch.boye.httpclientandroidlib.client.entity.GzipDecompressingEntity;
 import ch.boye.httpclientandroidlib.client.methods.HttpDelete;
 import ch.boye.httpclientandroidlib.client.methods.HttpGet;
 import ch.boye.httpclientandroidlib.client.methods.HttpPatch;
@@ -39,13 +47,18 @@ import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
 import ch.boye.httpclientandroidlib.client.protocol.ClientContext;
 import ch.boye.httpclientandroidlib.conn.ClientConnectionManager;
+import ch.boye.httpclientandroidlib.conn.ClientConnectionOperator;
+import ch.boye.httpclientandroidlib.conn.OperatedClientConnection;
 import ch.boye.httpclientandroidlib.conn.scheme.PlainSocketFactory;
 import ch.boye.httpclientandroidlib.conn.scheme.Scheme;
 import ch.boye.httpclientandroidlib.conn.scheme.SchemeRegistry;
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
 import ch.boye.httpclientandroidlib.entity.StringEntity;
 import ch.boye.httpclientandroidlib.impl.client.BasicAuthCache;
+import ch.boye.httpclientandroidlib.impl.client.BasicCookieStore;
+import ch.boye.httpclientandroidlib.impl.client.DefaultConnectionKeepAliveStrategy;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+import ch.boye.httpclientandroidlib.impl.conn.DefaultClientConnectionOperator;
 import ch.boye.httpclientandroidlib.impl.conn.tsccm.ThreadSafeClientConnManager;
 import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
 import ch.boye.httpclientandroidlib.params.HttpParams;
@@ -67,6 +80,19 @@ public class BaseResource implements Resource {
   private static final int MAX_TOTAL_CONNECTIONS     = 20;
   private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
 
+  /**
+   * How long to keep a pooled connection if the server doesn't say. We don't
+   * check for stale connections, so don't keep them forever.
+   */
+  private static final long DEFAULT_KEEP_ALIVE_MSEC = 30 * 1000;     // 30 seconds.
+  private static final long MAX_KEEP_ALIVE_MSEC     = 5 * 60 * 1000; // 5 minutes.
+
+  /**
+   * Pooled connections idle for longer than this are closed by
+   * <code>closeExpiredConnections</code>.
+   */
+  private static final long MAX_IDLE_CONNECTION_MSEC = 30 * 1000;    // 30 seconds.
+
   private boolean retryOnFailedRequest = true;
 
   public static boolean rewriteLocalhost = true;
@@ -80,6 +106,10 @@ public class BaseResource implements Resource {
   protected HttpRequestBase request;
   public final String charset = "utf-8";
 
+  // If set, this request gets a client of its own, so that it can log in
+  // detail without changing the shared clients.
+  protected boolean debugLogging = false;
+
   /**
    * We have very few writes (observers tend to be installed around sync
    * sessions) and many iterations (every HTTP request iterates observers), so
@@ -88,6 +118,35 @@ public class BaseResource implements Resource {
   protected static final CopyOnWriteArrayList<WeakReference<HttpResponseObserver>>
     httpResponseObservers = new CopyOnWriteArrayList<>();
 
+  protected static final CopyOnWriteArrayList<WeakReference<HttpConnectionObserver>>
+    httpConnectionObservers = new CopyOnWriteArrayList<>();
+
+  protected static final CopyOnWriteArrayList<WeakReference<HttpTimingObserver>>
+    httpTimingObservers = new CopyOnWriteArrayList<>();
+
+  private static final AtomicLong requestsExecuted = new AtomicLong(0);
+  private static final AtomicLong connectionsOpened = new AtomicLong(0);
+
+  // Body bytes sent and received, as they appear on the wire. Request bodies
+  // of unknown length aren't counted; response bodies are counted as read.
+  private static final AtomicLong requestBodyBytes = new AtomicLong(0);
+  private static final AtomicLong responseBodyBytes = new AtomicLong(0);
+
+  // Sizes of gzip-encoded response bodies, on the wire and once decoded.
+  // Only counted as bodies are read.
+  private static final AtomicLong compressedResponseWireBytes = new AtomicLong(0);
+  private static final AtomicLong compressedResponseDecodedBytes = new AtomicLong(0);
+
+  // Sizes of request bodies we compressed, before and after compression.
+  private static final AtomicLong compressedRequestRawBytes = new AtomicLong(0);
+  private static final AtomicLong compressedRequestWireBytes = new AtomicLong(0);
+
+  /**
+   * Set when a connection is opened on this thread, so that
+   * <code>execute</code> can tell whether its request needed a new connection.
+   */
+  private static final ThreadLocal<Boolean> connectionOpenedOnThread = new ThreadLocal<Boolean>();
+
   public BaseResource(String uri) throws URISyntaxException {
     this(uri, rewriteLocalhost);
   }
@@ -147,6 +206,135 @@ public class BaseResource implements Resource {
     return false;
   }
 
+  public static void addHttpConnectionObserver(HttpConnectionObserver newHttpConnectionObserver) {
+    if (newHttpConnectionObserver == null) {
+      return;
+    }
+    httpConnectionObservers.add(new WeakReference<HttpConnectionObserver>(newHttpConnectionObserver));
+  }
+
+  public static boolean removeHttpConnectionObserver(HttpConnectionObserver httpConnectionObserver) {
+    for (WeakReference<HttpConnectionObserver> weakReference : httpConnectionObservers) {
+      HttpConnectionObserver innerHttpConnectionObserver = weakReference.get();
+      if (innerHttpConnectionObserver == httpConnectionObserver) {
+        httpConnectionObservers.remove(weakReference);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static void addHttpTimingObserver(HttpTimingObserver newHttpTimingObserver) {
+    if (newHttpTimingObserver == null) {
+      return;
+    }
+    httpTimingObservers.add(new WeakReference<HttpTimingObserver>(newHttpTimingObserver));
+  }
+
+  public static boolean removeHttpTimingObserver(HttpTimingObserver httpTimingObserver) {
+    for (WeakReference<HttpTimingObserver> weakReference : httpTimingObservers) {
+      HttpTimingObserver innerHttpTimingObserver = weakReference.get();
+      if (innerHttpTimingObserver == httpTimingObserver) {
+        httpTimingObservers.remove(weakReference);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of requests that have been executed and answered.
+   */
+  public static long getRequestsExecutedCount() {
+    return requestsExecuted.get();
+  }
+
+  /**
+   * @return the number of connections opened, including for requests that
+   *         later failed.
+   */
+  public static long getConnectionsOpenedCount() {
+    return connectionsOpened.get();
+  }
+
+  /**
+   * @return the number of request body bytes sent, for bodies of known length.
+   */
+  public static long getRequestBodyBytes() {
+    return requestBodyBytes.get();
+  }
+
+  /**
+   * @return the number of response body bytes read off the wire.
+   */
+  public static long getResponseBodyBytes() {
+    return responseBodyBytes.get();
+  }
+
+  /**
+   * @return the number of gzip-encoded response body bytes read off the wire.
+   */
+  public static long getCompressedResponseWireBytes() {
+    return compressedResponseWireBytes.get();
+  }
+
+  /**
+   * @return the number of bytes those gzip-encoded response bodies decoded to.
+   */
+  public static long getCompressedResponseDecodedBytes() {
+    return compressedResponseDecodedBytes.get();
+  }
+
+  /**
+   * @return the number of request body bytes we compressed before sending.
+   */
+  public static long getCompressedRequestRawBytes() {
+    return compressedRequestRawBytes.get();
+  }
+
+  /**
+   * @return the number of bytes those request bodies compressed to.
+   */
+  public static long getCompressedRequestWireBytes() {
+    return compressedRequestWireBytes.get();
+  }
+
+  /**
+   * Record that a request body of <code>rawBytes</code> bytes was sent
+   * compressed as <code>wireBytes</code> bytes.
+   */
+  public static void countCompressedRequest(long rawBytes, long wireBytes) {
+    compressedRequestRawBytes.addAndGet(rawBytes);
+    compressedRequestWireBytes.addAndGet(wireBytes);
+  }
+
+  /**
+   * If <code>response</code> has a gzip-encoded body, replace its entity with
+   * one that decodes as it is read, so that consumers (including streaming
+   * consumers that read line by line) see the plain body.
+   * <p>
+   * The <code>Content-Encoding</code> and <code>Content-Length</code>
+   * headers describe the encoded body, so they are removed.
+   */
+  public static void decodeResponseEntity(HttpResponse response) {
+    final HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      return;
+    }
+    final Header encoding = entity.getContentEncoding();
+    if (encoding == null || encoding.getValue() == null) {
+      return;
+    }
+    final String value = encoding.getValue().trim();
+    if (!"gzip".equalsIgnoreCase(value) && !"x-gzip".equalsIgnoreCase(value)) {
+      return;
+    }
+    final HttpEntity wire = new ByteCountingEntity(entity, compressedResponseWireBytes);
+    response.setEntity(new ByteCountingEntity(new GzipDecompressingEntity(wire), compressedResponseDecodedBytes));
+    response.removeHeaders("Content-Encoding");
+    response.removeHeaders("Content-Length");
+  }
+
   @Override
   public URI getURI() {
     return this.uri;
@@ -171,6 +359,13 @@ public class BaseResource implements Resource {
     context.setAttribute(ClientContext.AUTH_CACHE, authCache);
   }
 
+  /**
+   * Log this request's HTTP traffic in detail. Call before making the request.
+   */
+  public void enableDebugLogging() {
+    debugLogging = true;
+  }
+
   /**
    * Invoke this after delegate and request have been set.
    * @throws NoSuchAlgorithmException
@@ -179,9 +374,16 @@ public class BaseResource implements Resource {
   protected void prepareClient() throws KeyManagementException, NoSuchAlgorithmException, GeneralSecurityException {
     context = new BasicHttpContext();
 
-    // We could reuse these client instances, except that we mess around
-    // with their parameters… so we'd need a pool of some kind.
-    client = new DefaultHttpClient(getConnectionManager());
+    // Clients are shared, so anything specific to this request goes in the
+    // context or the request's own parameters. That includes cookies, which
+    // must not leak between servers or accounts.
+    context.setAttribute(ClientContext.COOKIE_STORE, new BasicCookieStore());
+    if (debugLogging) {
+      client = createClient(delegate.connectionTimeout(), delegate.socketTimeout());
+      client.log.enableDebug(true);
+    } else {
+      client = getClient(delegate.connectionTimeout(), delegate.socketTimeout());
+    }
 
     // TODO: Eventually we should use Apache HttpAsyncClient. It's not out of alpha yet.
     // Until then, we synchronously make the request, then invoke our delegate's callback.
@@ -196,15 +398,10 @@ public class BaseResource implements Resource {
 
     addAuthCacheToContext(request, context);
 
-    HttpParams params = client.getParams();
-    HttpConnectionParams.setConnectionTimeout(params, delegate.connectionTimeout());
-    HttpConnectionParams.setSoTimeout(params, delegate.socketTimeout());
-    HttpConnectionParams.setStaleCheckingEnabled(params, false);
-    HttpProtocolParams.setContentCharset(params, charset);
-    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    // Request parameters take precedence over the client's.
     final String userAgent = delegate.getUserAgent();
     if (userAgent != null) {
-      HttpProtocolParams.setUserAgent(params, userAgent);
+      HttpProtocolParams.setUserAgent(request.getParams(), userAgent);
     }
     delegate.addHeaders(request, client);
   }
@@ -212,6 +409,60 @@ public class BaseResource implements Resource {
   private static final Object connManagerMonitor = new Object();
   private static ClientConnectionManager connManager;
 
+  /**
+   * Clients for <code>connManager</code>, keyed by timeout profile. Guarded
+   * by <code>connManagerMonitor</code>.
+   */
+  private static final Map<String, DefaultHttpClient> clients = new HashMap<String, DefaultHttpClient>();
+
+  /**
+   * Return a shared client using the current connection manager with the
+   * given timeouts.
+   * <p>
+   * <code>DefaultHttpClient</code> is safe to use from several threads with
+   * a thread-safe connection manager, as long as nobody changes its
+   * parameters after creation, so callers must not.
+   */
+  protected static DefaultHttpClient getClient(int connectionTimeout, int socketTimeout) throws KeyManagementException, NoSuchAlgorithmException {
+    final String key = connectionTimeout + ":" + socketTimeout;
+    synchronized (connManagerMonitor) {
+      DefaultHttpClient client = clients.get(key);
+      if (client != null) {
+        return client;
+      }
+
+      Logger.debug(LOG_TAG, "Creating client with timeouts " + key + ".");
+      client = createClient(connectionTimeout, socketTimeout);
+      clients.put(key, client);
+      return client;
+    }
+  }
+
+  /**
+   * Return a new client using the current connection manager with the given
+   * timeouts.
+   */
+  protected static DefaultHttpClient createClient(int connectionTimeout, int socketTimeout) throws KeyManagementException, NoSuchAlgorithmException {
+    final DefaultHttpClient client = new DefaultHttpClient(getConnectionManager());
+    HttpParams params = client.getParams();
+    HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+    HttpConnectionParams.setSoTimeout(params, socketTimeout);
+    HttpConnectionParams.setStaleCheckingEnabled(params, false);
+    HttpProtocolParams.setContentCharset(params, "utf-8");
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        final long duration = super.getKeepAliveDuration(response, context);
+        if (duration <= 0) {
+          return DEFAULT_KEEP_ALIVE_MSEC;
+        }
+        return Math.min(duration, MAX_KEEP_ALIVE_MSEC);
+      }
+    });
+    return client;
+  }
+
   // Call within a synchronized block on connManagerMonitor.
   private static ClientConnectionManager enableTLSConnectionManager() throws KeyManagementException, NoSuchAlgorithmException  {
     SSLContext sslContext = SSLContext.getInstance("TLS");
@@ -222,7 +473,12 @@ public class BaseResource implements Resource {
     SchemeRegistry schemeRegistry = new SchemeRegistry();
     schemeRegistry.register(new Scheme("https", 443, sf));
     schemeRegistry.register(new Scheme("http", 80, new PlainSocketFactory()));
-    ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(schemeRegistry);
+    ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(schemeRegistry) {
+      @Override
+      protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
+        return new CountingClientConnectionOperator(schreg);
+      }
+    };
 
     cm.setMaxTotal(MAX_TOTAL_CONNECTIONS);
     cm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
@@ -252,8 +508,9 @@ public class BaseResource implements Resource {
     if (connectionManager == null) {
       return;
     }
-    Logger.trace(LOG_TAG, "Closing expired connections.");
+    Logger.trace(LOG_TAG, "Closing expired and idle connections.");
     connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(MAX_IDLE_CONNECTION_MSEC, TimeUnit.MILLISECONDS);
   }
 
   public static void shutdownConnectionManager() {
@@ -261,24 +518,50 @@ public class BaseResource implements Resource {
     synchronized (connManagerMonitor) {
       connectionManager = connManager;
       connManager = null;
+      clients.clear();
     }
     if (connectionManager == null) {
       return;
     }
-    Logger.debug(LOG_TAG, "Shutting down connection manager.");
+    Logger.debug(LOG_TAG, "Shutting down connection manager. Opened " + getConnectionsOpenedCount() +
+                          " connections for " + getRequestsExecutedCount() + " requests.");
     connectionManager.shutdown();
   }
 
+  /**
+   * Count connections as they're opened.
+   */
+  private static class CountingClientConnectionOperator extends DefaultClientConnectionOperator {
+    public CountingClientConnectionOperator(SchemeRegistry schemes) {
+      super(schemes);
+    }
+
+    @Override
+    public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local,
+                               HttpContext context, HttpParams params) throws IOException {
+      connectionsOpened.incrementAndGet();
+      connectionOpenedOnThread.set(Boolean.TRUE);
+      super.openConnection(conn, target, local, context, params);
+    }
+  }
+
   private void execute() {
     HttpResponse response;
+    final boolean reused;
+    final long requestStart = System.currentTimeMillis();
     try {
+      connectionOpenedOnThread.set(Boolean.FALSE);
       response = client.execute(request, context);
-      Logger.debug(LOG_TAG, "Response: " + response.getStatusLine().toString());
+      reused = !connectionOpenedOnThread.get();
+      Logger.debug(LOG_TAG, "Response: " + response.getStatusLine().toString() +
+                            (reused ? " (reused connection)." : " (new connection)."));
     } catch (ClientProtocolException e) {
+      notifyTimingObservers(null, System.currentTimeMillis() - requestStart);
       delegate.handleHttpProtocolException(e);
       return;
     } catch (IOException e) {
       Logger.debug(LOG_TAG, "I/O exception returned from execute.");
+      notifyTimingObservers(null, System.currentTimeMillis() - requestStart);
       if (!retryOnFailedRequest) {
         delegate.handleHttpIOException(e);
       } else {
@@ -286,6 +569,7 @@ public class BaseResource implements Resource {
       }
       return;
     } catch (Exception e) {
+      notifyTimingObservers(null, System.currentTimeMillis() - requestStart);
       // Bug 740731: Don't let an exception fall through. Wrapping isn't
       // optimal, but often the exception is treated as an Exception anyway.
       if (!retryOnFailedRequest) {
@@ -299,7 +583,18 @@ public class BaseResource implements Resource {
       return;
     }
 
+    requestsExecuted.incrementAndGet();
+    countBodyBytes(request, response);
+    decodeResponseEntity(response);
+
     // Don't retry if the observer or delegate throws!
+    notifyTimingObservers(response, System.currentTimeMillis() - requestStart);
+    for (WeakReference<HttpConnectionObserver> weakReference : httpConnectionObservers) {
+      HttpConnectionObserver observer = weakReference.get();
+      if (observer != null) {
+        observer.observeHttpConnection(request, reused);
+      }
+    }
     for (WeakReference<HttpResponseObserver> weakReference : httpResponseObservers) {
       HttpResponseObserver observer = weakReference.get();
       if (observer != null) {
@@ -309,6 +604,32 @@ public class BaseResource implements Resource {
     delegate.handleHttpResponse(response);
   }
 
+  /**
+   * Count the request body, and arrange for the response body to be counted
+   * as it is read. Must be called before the response entity is decoded.
+   */
+  protected static void countBodyBytes(HttpUriRequest request, HttpResponse response) {
+    if (request instanceof HttpEntityEnclosingRequest) {
+      final HttpEntity sent = ((HttpEntityEnclosingRequest) request).getEntity();
+      if (sent != null && sent.getContentLength() > 0) {
+        requestBodyBytes.addAndGet(sent.getContentLength());
+      }
+    }
+    final HttpEntity received = response.getEntity();
+    if (received != null) {
+      response.setEntity(new ByteCountingEntity(received, responseBodyBytes));
+    }
+  }
+
+  private void notifyTimingObservers(HttpResponse response, long latencyMsec) {
+    for (WeakReference<HttpTimingObserver> weakReference : httpTimingObservers) {
+      HttpTimingObserver observer = weakReference.get();
+      if (observer != null) {
+        observer.observeHttpTiming(request, response, latencyMsec);
+      }
+    }
+  }
+
   private void retryRequest() {
     // Only retry once.
     retryOnFailedRequest = false;
@@ -0,0 +1,85 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.entity.HttpEntityWrapper;
+
+/**
+ * Wrap an entity so that every byte read from its content is added to a
+ * counter.
+ */
+public class ByteCountingEntity extends HttpEntityWrapper {
+  protected final AtomicLong counter;
+
+  /**
+   * Streaming entities must return the same stream from every call to
+   * <code>getContent</code>.
+   */
+  private InputStream content;
+
+  public ByteCountingEntity(HttpEntity wrapped, AtomicLong counter) {
+    super(wrapped);
+    this.counter = counter;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    if (!wrappedEntity.isStreaming()) {
+      return new CountingInputStream(wrappedEntity.getContent(), counter);
+    }
+    if (content == null) {
+      content = new CountingInputStream(wrappedEntity.getContent(), counter);
+    }
+    return content;
+  }
+
+  protected static class CountingInputStream extends FilterInputStream {
+    private final AtomicLong counter;
+
+    public CountingInputStream(InputStream in, AtomicLong counter) {
+      super(in);
+      this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b != -1) {
+        counter.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int read = super.read(b, off, len);
+      if (read > 0) {
+        counter.addAndGet(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped = super.skip(n);
+      if (skipped > 0) {
+        counter.addAndGet(skipped);
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      // Re-reading after reset would double count.
+      return false;
+    }
+  }
+}
@@ -0,0 +1,20 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
+
+public interface HttpConnectionObserver {
+  /**
+   * Observe which kind of connection carried a request.
+   * @param request
+   *          The <code>HttpUriRequest<code> that was executed.
+   *
+   * @param reused
+   *          true if the request was sent on a pooled connection; false if a
+   *          new connection was opened for it.
+   */
+  public void observeHttpConnection(HttpUriRequest request, boolean reused);
+}
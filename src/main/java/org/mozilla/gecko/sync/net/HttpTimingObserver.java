@@ -0,0 +1,25 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
+
+public interface HttpTimingObserver {
+  /**
+   * Observe how long a request took to be answered.
+   * @param request
+   *          The <code>HttpUriRequest<code> that was executed.
+   *
+   * @param response
+   *          The <code>HttpResponse</code>, or null if the request failed
+   *          without a response.
+   *
+   * @param latencyMsec
+   *          Milliseconds from sending the request to receiving the response
+   *          headers, or to the failure.
+   */
+  public void observeHttpTiming(HttpUriRequest request, HttpResponse response, long latencyMsec);
+}
@@ -11,6 +11,7 @@ import java.io.InputStreamReader;
 import java.net.URI;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.CryptoRecord;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
@@ -19,9 +20,11 @@ import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 
 /**
- * A request class that handles line-by-line responses. Eventually this will
- * handle real stream processing; for now, just parse the returned body
- * line-by-line.
+ * A request class that handles line-by-line responses.
+ * <p>
+ * If the delegate is a {@link WBOCollectionRequestDelegate}, records are
+ * parsed directly from the response stream by a {@link WBOStreamReader};
+ * otherwise each line is handed to the delegate as a <code>String</code>.
  *
  * @author rnewman
  *
@@ -97,8 +100,13 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       // will allow it to seamlessly correct timestamps on the records
       // it processes. Bug 721887.
 
-      // Line-by-line processing, then invoke success.
       SyncStorageCollectionRequestDelegate delegate = (SyncStorageCollectionRequestDelegate) this.request.delegate;
+      if (delegate instanceof WBOCollectionRequestDelegate) {
+        handleWBOStream(response, entity, (WBOCollectionRequestDelegate) delegate);
+        return;
+      }
+
+      // Line-by-line processing, then invoke success.
       InputStream content = null;
       BufferedReader br = null;
       try {
@@ -141,5 +149,64 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       BaseResource.consumeEntity(entity);
       delegate.handleRequestSuccess(new SyncStorageResponse(response));
     }
+
+    /**
+     * Parse records straight from the response stream, then invoke success.
+     * As with line-by-line processing, a record that can't be parsed is
+     * reported as an error and processing continues.
+     */
+    protected void handleWBOStream(HttpResponse response, HttpEntity entity, WBOCollectionRequestDelegate delegate) {
+      InputStream content = null;
+      try {
+        content = entity.getContent();
+        final WBOStreamReader reader = new WBOStreamReader(content, FETCH_BUFFER_SIZE);
+
+        // This relies on connection timeouts at the HTTP layer.
+        while (!aborting) {
+          final CryptoRecord record;
+          try {
+            record = reader.next();
+          } catch (IOException ex) {
+            throw ex;
+          } catch (Exception ex) {
+            delegate.handleRequestError(ex);
+            continue;
+          }
+          if (record == null) {
+            break;
+          }
+          try {
+            delegate.handleRequestProgress(record);
+          } catch (Exception ex) {
+            delegate.handleRequestError(new HandleProgressException(ex));
+            BaseResource.consumeEntity(entity);
+            return;
+          }
+        }
+        if (aborting) {
+          // So we don't hit the success case below.
+          return;
+        }
+        Logger.debug(LOG_TAG, "Read " + reader.getRecordCount() + " records; " +
+                              reader.getFallbackCount() + " needed the JSON parser.");
+      } catch (IOException ex) {
+        if (!aborting) {
+          delegate.handleRequestError(ex);
+        }
+        BaseResource.consumeEntity(entity);
+        return;
+      } finally {
+        if (content != null) {
+          try {
+            content.close();
+          } catch (IOException e) {
+            // We don't care if this fails.
+          }
+        }
+      }
+      // We're done processing the entity. Don't let fetching the body succeed!
+      BaseResource.consumeEntity(entity);
+      delegate.handleRequestSuccess(new SyncStorageResponse(response));
+    }
   }
 }
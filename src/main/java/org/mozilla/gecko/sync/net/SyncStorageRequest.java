@@ -159,6 +159,9 @@ public class SyncStorageRequest implements Resource {
       if (request.getMethod().equalsIgnoreCase("DELETE")) {
         request.addHeader("x-confirm-delete", "1");
       }
+      if (this.request.acceptCompressedResponses) {
+        request.setHeader("Accept-Encoding", "gzip");
+      }
     }
   }
 
@@ -166,6 +169,12 @@ public class SyncStorageRequest implements Resource {
   public SyncStorageRequestDelegate delegate;
   protected BaseResource resource;
 
+  /**
+   * If true, ask the server to gzip the response body. Compressed bodies are
+   * decoded transparently by <code>BaseResource</code>.
+   */
+  public boolean acceptCompressedResponses = false;
+
   public SyncStorageRequest() {
     super();
   }
@@ -32,4 +32,19 @@ implements KeyBundleProvider {
       // TODO: abort?! Allow exception to propagate to fail?
     }
   }
+
+  /**
+   * Handle a record parsed directly from the response stream by
+   * {@link WBOStreamReader}, rather than a line of text.
+   *
+   * @param record the fetched record.
+   */
+  public void handleRequestProgress(CryptoRecord record) {
+    try {
+      record.keyBundle = this.keyBundle();
+      this.handleWBO(record);
+    } catch (Exception e) {
+      this.handleRequestError(e);
+    }
+  }
 }
@@ -0,0 +1,699 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import org.json.simple.parser.ParseException;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+/**
+ * Read <code>CryptoRecord</code>s from an <code>application/newlines</code>
+ * stream of WBOs.
+ * <p>
+ * Each line is tokenized directly from a reusable byte buffer: we don't build
+ * a <code>String</code> for the line, and we don't parse the envelope and the
+ * nested <code>payload</code> string separately with json-simple. The only
+ * objects allocated per record are the record itself, its payload object and
+ * its string fields.
+ * <p>
+ * The fast path understands the WBOs that the storage server produces: an
+ * envelope of strings and numbers whose payload is a flat object of strings
+ * (ciphertext, IV and hmac). Any line it doesn't understand is handed to
+ * {@link CryptoRecord#fromJSONRecord(String)}, so results and errors are
+ * identical to line-by-line parsing.
+ * <p>
+ * Not thread-safe.
+ */
+public class WBOStreamReader {
+  private static final String LOG_TAG = "WBOStreamReader";
+
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  private static final byte[] KEY_ID         = asciiBytes("id");
+  private static final byte[] KEY_COLLECTION = asciiBytes("collection");
+  private static final byte[] KEY_PAYLOAD    = asciiBytes("payload");
+  private static final byte[] KEY_MODIFIED   = asciiBytes("modified");
+  private static final byte[] KEY_SORTINDEX  = asciiBytes("sortindex");
+  private static final byte[] KEY_TTL        = asciiBytes("ttl");
+
+  // Payload keys that we expect to see in every encrypted record.
+  private static final String[] PAYLOAD_KEYS = new String[] { "ciphertext", "IV", "hmac" };
+  private static final byte[][] PAYLOAD_KEY_BYTES = new byte[][] {
+    asciiBytes(PAYLOAD_KEYS[0]), asciiBytes(PAYLOAD_KEYS[1]), asciiBytes(PAYLOAD_KEYS[2]),
+  };
+
+  private static final byte[] LITERAL_TRUE  = asciiBytes("true");
+  private static final byte[] LITERAL_FALSE = asciiBytes("false");
+  private static final byte[] LITERAL_NULL  = asciiBytes("null");
+
+  private static byte[] asciiBytes(String s) {
+    final byte[] out = new byte[s.length()];
+    for (int i = 0; i < out.length; i++) {
+      out[i] = (byte) s.charAt(i);
+    }
+    return out;
+  }
+
+  /**
+   * Thrown internally when the fast path meets input it doesn't handle.
+   * Preallocated and without a stack trace, so falling back is cheap.
+   */
+  private static class FallbackException extends Exception {
+    private static final long serialVersionUID = 5309718414372640522L;
+
+    public FallbackException() {
+      super("Falling back to JSON parser.");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static final FallbackException FALLBACK = new FallbackException();
+
+  protected final InputStream in;
+
+  // Unconsumed input is buffer[bufferStart, bufferEnd). There is no newline in
+  // buffer[bufferStart, scanFrom).
+  protected byte[] buffer;
+  protected int bufferStart = 0;
+  protected int bufferEnd = 0;
+  protected int scanFrom = 0;
+  protected boolean eof = false;
+
+  // Tokenizer state: we're reading src[pos, end).
+  protected byte[] src;
+  protected int pos;
+  protected int end;
+
+  // Unescaped payload JSON, and unescaped string values.
+  protected byte[] payloadScratch = new byte[1024];
+  protected byte[] stringScratch = new byte[256];
+
+  // Set by readNumber.
+  protected boolean numberIsIntegral;
+  protected long longValue;
+  protected double doubleValue;
+
+  protected int recordCount = 0;
+  protected int fallbackCount = 0;
+
+  public WBOStreamReader(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public WBOStreamReader(InputStream in, int bufferSize) {
+    if (in == null) {
+      throw new IllegalArgumentException("in must not be null.");
+    }
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("bufferSize must be positive.");
+    }
+    this.in = in;
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * @return the number of records returned so far.
+   */
+  public int getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * @return the number of records that were not handled by the fast path.
+   */
+  public int getFallbackCount() {
+    return fallbackCount;
+  }
+
+  /**
+   * Read the next record from the stream. Blank lines are skipped.
+   * <p>
+   * If a line cannot be parsed, the exception is thrown after the line has
+   * been consumed, so the caller can report it and continue reading.
+   *
+   * @return the next record, or null at the end of the stream.
+   * @throws IOException if reading the underlying stream fails.
+   * @throws ParseException if the line is not valid JSON.
+   * @throws NonObjectJSONException if the line or its payload is not a JSON object.
+   * @throws RecordParseException if a record field has the wrong type.
+   */
+  public CryptoRecord next() throws IOException, ParseException, NonObjectJSONException, RecordParseException {
+    while (true) {
+      final int lineEnd = nextLineEnd();
+      if (lineEnd < 0) {
+        return null;
+      }
+
+      int start = bufferStart;
+      int stop = lineEnd;
+
+      // Consume the line and its newline. The line's bytes stay put until the
+      // next fill.
+      bufferStart = (lineEnd < bufferEnd) ? lineEnd + 1 : lineEnd;
+      scanFrom = bufferStart;
+
+      while (start < stop && isWhitespace(buffer[start])) {
+        start++;
+      }
+      while (stop > start && isWhitespace(buffer[stop - 1])) {
+        stop--;
+      }
+      if (start == stop) {
+        continue;
+      }
+
+      recordCount++;
+      try {
+        return parseRecord(buffer, start, stop);
+      } catch (FallbackException e) {
+        fallbackCount++;
+        Logger.trace(LOG_TAG, "Falling back to JSON parser for record.");
+        return CryptoRecord.fromJSONRecord(new String(buffer, start, stop - start, "UTF-8"));
+      }
+    }
+  }
+
+  /**
+   * @return the index of the newline ending the next line, the end of the
+   *         buffer if the stream ends without a newline, or -1 if there are no
+   *         more lines.
+   */
+  protected int nextLineEnd() throws IOException {
+    while (true) {
+      for (int i = scanFrom; i < bufferEnd; i++) {
+        if (buffer[i] == '\n') {
+          return i;
+        }
+      }
+      scanFrom = bufferEnd;
+      if (eof) {
+        return (bufferStart < bufferEnd) ? bufferEnd : -1;
+      }
+      fill();
+    }
+  }
+
+  /**
+   * Move unconsumed input to the front of the buffer, growing it if a single
+   * line fills it, and read more.
+   */
+  protected void fill() throws IOException {
+    if (bufferStart > 0) {
+      final int remaining = bufferEnd - bufferStart;
+      System.arraycopy(buffer, bufferStart, buffer, 0, remaining);
+      scanFrom -= bufferStart;
+      bufferEnd = remaining;
+      bufferStart = 0;
+    }
+    if (bufferEnd == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    final int read = in.read(buffer, bufferEnd, buffer.length - bufferEnd);
+    if (read < 0) {
+      eof = true;
+    } else {
+      bufferEnd += read;
+    }
+  }
+
+  protected CryptoRecord parseRecord(byte[] bytes, int start, int stop) throws FallbackException, UnsupportedEncodingException {
+    src = bytes;
+    pos = start;
+    end = stop;
+
+    String id = null;
+    String collection = null;
+    ExtendedJSONObject payload = null;
+    boolean hasModified = false;
+    boolean hasSortIndex = false;
+    boolean hasTTL = false;
+    long modified = 0;
+    long sortIndex = 0;
+    long ttl = 0;
+
+    expect('{');
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+    } else {
+      while (true) {
+        skipWhitespace();
+        expect('"');
+        final int keyStart = pos;
+        final int keyEnd = skipStringContents();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+
+        if (keyIs(keyStart, keyEnd, KEY_ID)) {
+          id = readStringOrNull();
+        } else if (keyIs(keyStart, keyEnd, KEY_COLLECTION)) {
+          collection = readStringOrNull();
+        } else if (keyIs(keyStart, keyEnd, KEY_PAYLOAD)) {
+          payload = readPayload();
+        } else if (keyIs(keyStart, keyEnd, KEY_MODIFIED)) {
+          readNumber();
+          hasModified = true;
+          // Match ExtendedJSONObject.getTimestamp.
+          modified = numberIsIntegral ? longValue * 1000 : Double.valueOf(doubleValue * 1000).longValue();
+        } else if (keyIs(keyStart, keyEnd, KEY_SORTINDEX)) {
+          sortIndex = readIntegral();
+          hasSortIndex = true;
+        } else if (keyIs(keyStart, keyEnd, KEY_TTL)) {
+          ttl = readIntegral();
+          hasTTL = true;
+        } else {
+          skipScalar();
+        }
+
+        skipWhitespace();
+        final byte b = nextByte();
+        if (b == '}') {
+          break;
+        }
+        if (b != ',') {
+          throw FALLBACK;
+        }
+      }
+    }
+    skipWhitespace();
+    if (pos != end) {
+      throw FALLBACK;
+    }
+
+    // A missing payload is parsed as an empty object by CryptoRecord.fromJSONRecord.
+    final CryptoRecord record = new CryptoRecord(payload == null ? new ExtendedJSONObject() : payload);
+    record.guid = id;
+    record.collection = collection;
+    if (hasModified) {
+      record.lastModified = modified;
+    }
+    if (hasSortIndex) {
+      record.sortIndex = sortIndex;
+    }
+    if (hasTTL) {
+      record.ttl = ttl;
+    }
+    return record;
+  }
+
+  /**
+   * Unescape the payload string into <code>payloadScratch</code> and tokenize
+   * it as a flat object of strings.
+   */
+  protected ExtendedJSONObject readPayload() throws FallbackException, UnsupportedEncodingException {
+    if (peek() == 'n') {
+      expectLiteral(LITERAL_NULL);
+      return null;
+    }
+    expect('"');
+    final int start = pos;
+    final int stop = skipStringContents();
+    payloadScratch = ensureCapacity(payloadScratch, stop - start);
+    final int length = unescape(src, start, stop, payloadScratch);
+
+    final byte[] savedSrc = src;
+    final int savedPos = pos;
+    final int savedEnd = end;
+    src = payloadScratch;
+    pos = 0;
+    end = length;
+
+    final ExtendedJSONObject payload = new ExtendedJSONObject();
+    skipWhitespace();
+    expect('{');
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+    } else {
+      while (true) {
+        skipWhitespace();
+        expect('"');
+        final int keyStart = pos;
+        final int keyEnd = skipStringContents();
+        final String key = payloadKey(keyStart, keyEnd);
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        payload.put(key, readStringOrNull());
+        skipWhitespace();
+        final byte b = nextByte();
+        if (b == '}') {
+          break;
+        }
+        if (b != ',') {
+          throw FALLBACK;
+        }
+      }
+    }
+    skipWhitespace();
+    if (pos != end) {
+      throw FALLBACK;
+    }
+
+    src = savedSrc;
+    pos = savedPos;
+    end = savedEnd;
+    return payload;
+  }
+
+  /**
+   * Return a shared <code>String</code> for the usual payload keys, so that we
+   * don't allocate keys for every record.
+   */
+  protected String payloadKey(int keyStart, int keyEnd) throws FallbackException, UnsupportedEncodingException {
+    for (int i = 0; i < PAYLOAD_KEYS.length; i++) {
+      if (keyIs(keyStart, keyEnd, PAYLOAD_KEY_BYTES[i])) {
+        return PAYLOAD_KEYS[i];
+      }
+    }
+    return decodeString(keyStart, keyEnd);
+  }
+
+  /**
+   * Read a string or null at <code>pos</code>.
+   */
+  protected String readStringOrNull() throws FallbackException, UnsupportedEncodingException {
+    if (peek() == 'n') {
+      expectLiteral(LITERAL_NULL);
+      return null;
+    }
+    expect('"');
+    final int start = pos;
+    final int stop = skipStringContents();
+    return decodeString(start, stop);
+  }
+
+  protected String decodeString(int start, int stop) throws FallbackException, UnsupportedEncodingException {
+    for (int i = start; i < stop; i++) {
+      if (src[i] == '\\') {
+        stringScratch = ensureCapacity(stringScratch, stop - start);
+        final int length = unescape(src, start, stop, stringScratch);
+        return new String(stringScratch, 0, length, "UTF-8");
+      }
+    }
+    return new String(src, start, stop - start, "UTF-8");
+  }
+
+  /**
+   * Advance past the closing quote of the string whose contents begin at
+   * <code>pos</code>.
+   *
+   * @return the index of the closing quote.
+   */
+  protected int skipStringContents() throws FallbackException {
+    while (pos < end) {
+      final byte b = src[pos];
+      if (b == '"') {
+        return pos++;
+      }
+      if (b == '\\') {
+        pos += 2;
+        continue;
+      }
+      if (b >= 0 && b < 0x20) {
+        // Unescaped control character.
+        throw FALLBACK;
+      }
+      pos++;
+    }
+    throw FALLBACK;
+  }
+
+  /**
+   * Write the unescaped UTF-8 bytes of the JSON string contents
+   * <code>in[start, stop)</code> to <code>out</code>, which must be at least
+   * <code>stop - start</code> long. Escapes never expand, so this is enough.
+   *
+   * @return number of bytes written.
+   */
+  protected static int unescape(byte[] in, int start, int stop, byte[] out) throws FallbackException {
+    int o = 0;
+    int i = start;
+    while (i < stop) {
+      final byte b = in[i++];
+      if (b != '\\') {
+        out[o++] = b;
+        continue;
+      }
+      if (i >= stop) {
+        throw FALLBACK;
+      }
+      final byte e = in[i++];
+      switch (e) {
+      case '"':
+      case '\\':
+      case '/':
+        out[o++] = e;
+        break;
+      case 'b':
+        out[o++] = '\b';
+        break;
+      case 'f':
+        out[o++] = '\f';
+        break;
+      case 'n':
+        out[o++] = '\n';
+        break;
+      case 'r':
+        out[o++] = '\r';
+        break;
+      case 't':
+        out[o++] = '\t';
+        break;
+      case 'u':
+        int c = hex4(in, i, stop);
+        i += 4;
+        if (c >= 0xD800 && c <= 0xDBFF) {
+          // High surrogate: must be followed by an escaped low surrogate.
+          if (i + 6 > stop || in[i] != '\\' || in[i + 1] != 'u') {
+            throw FALLBACK;
+          }
+          final int low = hex4(in, i + 2, stop);
+          if (low < 0xDC00 || low > 0xDFFF) {
+            throw FALLBACK;
+          }
+          i += 6;
+          c = 0x10000 + ((c - 0xD800) << 10) + (low - 0xDC00);
+        } else if (c >= 0xDC00 && c <= 0xDFFF) {
+          throw FALLBACK;
+        }
+        o = encodeUTF8(c, out, o);
+        break;
+      default:
+        throw FALLBACK;
+      }
+    }
+    return o;
+  }
+
+  private static int hex4(byte[] in, int start, int stop) throws FallbackException {
+    if (start + 4 > stop) {
+      throw FALLBACK;
+    }
+    int value = 0;
+    for (int i = start; i < start + 4; i++) {
+      final int b = in[i];
+      final int digit;
+      if (b >= '0' && b <= '9') {
+        digit = b - '0';
+      } else if (b >= 'a' && b <= 'f') {
+        digit = b - 'a' + 10;
+      } else if (b >= 'A' && b <= 'F') {
+        digit = b - 'A' + 10;
+      } else {
+        throw FALLBACK;
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  private static int encodeUTF8(int c, byte[] out, int o) {
+    if (c < 0x80) {
+      out[o++] = (byte) c;
+    } else if (c < 0x800) {
+      out[o++] = (byte) (0xC0 | (c >> 6));
+      out[o++] = (byte) (0x80 | (c & 0x3F));
+    } else if (c < 0x10000) {
+      out[o++] = (byte) (0xE0 | (c >> 12));
+      out[o++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      out[o++] = (byte) (0x80 | (c & 0x3F));
+    } else {
+      out[o++] = (byte) (0xF0 | (c >> 18));
+      out[o++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+      out[o++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      out[o++] = (byte) (0x80 | (c & 0x3F));
+    }
+    return o;
+  }
+
+  /**
+   * Read a JSON number at <code>pos</code>, setting
+   * <code>numberIsIntegral</code> and one of <code>longValue</code> or
+   * <code>doubleValue</code>, as json-simple would.
+   */
+  protected void readNumber() throws FallbackException, UnsupportedEncodingException {
+    final int start = pos;
+    if (pos < end && src[pos] == '-') {
+      pos++;
+    }
+    final int digitsStart = pos;
+    skipDigits();
+    final int digitsEnd = pos;
+    if (digitsEnd == digitsStart) {
+      throw FALLBACK;
+    }
+
+    boolean integral = true;
+    if (pos < end && src[pos] == '.') {
+      integral = false;
+      pos++;
+      if (skipDigits() == 0) {
+        throw FALLBACK;
+      }
+    }
+    if (pos < end && (src[pos] == 'e' || src[pos] == 'E')) {
+      integral = false;
+      pos++;
+      if (pos < end && (src[pos] == '+' || src[pos] == '-')) {
+        pos++;
+      }
+      if (skipDigits() == 0) {
+        throw FALLBACK;
+      }
+    }
+
+    numberIsIntegral = integral;
+    if (!integral) {
+      doubleValue = Double.parseDouble(new String(src, start, pos - start, "US-ASCII"));
+      return;
+    }
+
+    // Leave anything that might overflow to the real parser.
+    if (digitsEnd - digitsStart > 18) {
+      throw FALLBACK;
+    }
+    long value = 0;
+    for (int i = digitsStart; i < digitsEnd; i++) {
+      value = value * 10 + (src[i] - '0');
+    }
+    longValue = (digitsStart > start) ? -value : value;
+  }
+
+  protected long readIntegral() throws FallbackException, UnsupportedEncodingException {
+    readNumber();
+    if (!numberIsIntegral) {
+      throw FALLBACK;
+    }
+    return longValue;
+  }
+
+  private int skipDigits() {
+    final int start = pos;
+    while (pos < end && src[pos] >= '0' && src[pos] <= '9') {
+      pos++;
+    }
+    return pos - start;
+  }
+
+  /**
+   * Skip a string, number, or literal. Objects and arrays are left to the
+   * real parser.
+   */
+  protected void skipScalar() throws FallbackException, UnsupportedEncodingException {
+    final byte b = peek();
+    switch (b) {
+    case '"':
+      pos++;
+      skipStringContents();
+      return;
+    case 't':
+      expectLiteral(LITERAL_TRUE);
+      return;
+    case 'f':
+      expectLiteral(LITERAL_FALSE);
+      return;
+    case 'n':
+      expectLiteral(LITERAL_NULL);
+      return;
+    default:
+      readNumber();
+    }
+  }
+
+  protected boolean keyIs(int keyStart, int keyEnd, byte[] key) {
+    if (keyEnd - keyStart != key.length) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (src[keyStart + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  protected void expectLiteral(byte[] literal) throws FallbackException {
+    if (pos + literal.length > end) {
+      throw FALLBACK;
+    }
+    for (int i = 0; i < literal.length; i++) {
+      if (src[pos + i] != literal[i]) {
+        throw FALLBACK;
+      }
+    }
+    pos += literal.length;
+  }
+
+  protected void expect(char c) throws FallbackException {
+    if (nextByte() != c) {
+      throw FALLBACK;
+    }
+  }
+
+  protected byte peek() throws FallbackException {
+    if (pos >= end) {
+      throw FALLBACK;
+    }
+    return src[pos];
+  }
+
+  protected byte nextByte() throws FallbackException {
+    if (pos >= end) {
+      throw FALLBACK;
+    }
+    return src[pos++];
+  }
+
+  protected void skipWhitespace() {
+    while (pos < end && isWhitespace(src[pos])) {
+      pos++;
+    }
+  }
+
+  protected static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  protected static byte[] ensureCapacity(byte[] buffer, int capacity) {
+    if (buffer.length >= capacity) {
+      return buffer;
+    }
+    return new byte[Math.max(capacity, buffer.length * 2)];
+  }
+}
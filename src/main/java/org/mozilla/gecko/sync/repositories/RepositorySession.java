@@ -126,6 +126,17 @@ public abstract class RepositorySession {
   }
   public abstract void store(Record record) throws NoStoreDelegateException;
 
+  /**
+   * Override this if {@link #store(Record)} can safely be invoked from several
+   * threads at once. Callers such as <code>RecordsChannel</code> may then store
+   * records concurrently.
+   *
+   * @return true if concurrent calls to <code>store</code> are safe.
+   */
+  public boolean storeIsThreadSafe() {
+    return false;
+  }
+
   public void storeDone() {
     // Our default behavior will be to assume that the Runnable is
     // executed as soon as all the stores synchronously finish, so
@@ -9,6 +9,7 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 
 import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
@@ -27,6 +28,30 @@ public class Server11Repository extends Repository {
   protected final AuthHeaderProvider authHeaderProvider;
   protected final InfoCollections infoCollections;
 
+  /**
+   * By default, sessions upload one batch of records at a time.
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT_UPLOADS = 1;
+
+  protected int maxInFlightUploads = DEFAULT_MAX_IN_FLIGHT_UPLOADS;
+
+  /**
+   * Server limits for uploads, or <code>null</code> to use local defaults.
+   */
+  protected InfoConfiguration infoConfiguration;
+  protected UploadBatchPolicy.Observer uploadBatchObserver;
+
+  /**
+   * Whether to ask the server to gzip fetched records. Off by default.
+   */
+  protected boolean acceptCompressedResponses = false;
+
+  /**
+   * Whether to gzip upload POST bodies. Off by default: only enable this
+   * against servers known to accept <code>Content-Encoding: gzip</code>.
+   */
+  protected boolean compressUploads = false;
+
   /**
    * Construct a new repository that fetches and stores against the Sync 1.1. API.
    *
@@ -112,6 +137,63 @@ public class Server11Repository extends Repository {
     return null;
   }
 
+  /**
+   * @return the maximum number of record upload POSTs a session will have
+   *         outstanding at any one time.
+   */
+  public int getMaxInFlightUploads() {
+    return maxInFlightUploads;
+  }
+
+  /**
+   * Allow sessions to keep more than one upload POST outstanding, trading
+   * server politeness for fewer round trips. Must be called before sessions
+   * are created.
+   *
+   * @param maxInFlightUploads a positive number of POSTs.
+   */
+  public void setMaxInFlightUploads(int maxInFlightUploads) {
+    if (maxInFlightUploads < 1) {
+      throw new IllegalArgumentException("maxInFlightUploads must be positive.");
+    }
+    this.maxInFlightUploads = maxInFlightUploads;
+  }
+
+  public void setInfoConfiguration(InfoConfiguration infoConfiguration) {
+    this.infoConfiguration = infoConfiguration;
+  }
+
+  public void setUploadBatchObserver(UploadBatchPolicy.Observer observer) {
+    this.uploadBatchObserver = observer;
+  }
+
+  /**
+   * Override this to change how sessions size their upload batches.
+   *
+   * @return a new policy for a single session.
+   */
+  public UploadBatchPolicy createUploadBatchPolicy() {
+    final UploadBatchPolicy policy = new UploadBatchPolicy(infoConfiguration);
+    policy.setObserver(uploadBatchObserver);
+    return policy;
+  }
+
+  public boolean getAcceptCompressedResponses() {
+    return acceptCompressedResponses;
+  }
+
+  public void setAcceptCompressedResponses(boolean acceptCompressedResponses) {
+    this.acceptCompressedResponses = acceptCompressedResponses;
+  }
+
+  public boolean getCompressUploads() {
+    return compressUploads;
+  }
+
+  public void setCompressUploads(boolean compressUploads) {
+    this.compressUploads = compressUploads;
+  }
+
   public AuthHeaderProvider getAuthHeaderProvider() {
     return authHeaderProvider;
   }
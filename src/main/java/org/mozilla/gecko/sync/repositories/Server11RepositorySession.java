@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.repositories;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
@@ -13,7 +14,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import org.json.simple.JSONArray;
 import org.mozilla.gecko.background.common.log.Logger;
@@ -26,6 +32,7 @@ import org.mozilla.gecko.sync.Server11RecordPostFailedException;
 import org.mozilla.gecko.sync.UnexpectedJSONException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
@@ -33,11 +40,14 @@ import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
 import ch.boye.httpclientandroidlib.entity.ContentProducer;
 import ch.boye.httpclientandroidlib.entity.EntityTemplate;
 
@@ -58,8 +68,6 @@ public class Server11RepositorySession extends RepositorySession {
 
   public static final String LOG_TAG = "Server11Session";
 
-  private static final int UPLOAD_BYTE_THRESHOLD = 1024 * 1024;    // 1MB.
-  private static final int UPLOAD_ITEM_THRESHOLD = 50;
   private static final int PER_RECORD_OVERHEAD   = 2;              // Comma, newline.
   // {}, newlines, but we get to skip one record overhead.
   private static final int PER_BATCH_OVERHEAD    = 5 - PER_RECORD_OVERHEAD;
@@ -104,6 +112,18 @@ public class Server11RepositorySession extends RepositorySession {
       request.abort();
     }
     pending.clear();
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdownNow();
+    }
+  }
+
+  @Override
+  public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    if (uploadExecutor != null) {
+      // storeDone has already waited for uploads to finish.
+      uploadExecutor.shutdown();
+    }
+    super.finish(delegate);
   }
 
   /**
@@ -209,6 +229,28 @@ public class Server11RepositorySession extends RepositorySession {
   Server11Repository serverRepository;
   AtomicLong uploadTimestamp = new AtomicLong(0);
 
+  /**
+   * Upload POSTs are dispatched in order from <code>storeWorkQueue</code>.
+   * If more than one may be outstanding, they run on
+   * <code>uploadExecutor</code>, and each holds one of
+   * <code>uploadPermits</code> for its duration.
+   */
+  protected final int maxInFlightUploads;
+  protected final Semaphore uploadPermits;
+  protected final ExecutorService uploadExecutor;
+
+  /**
+   * Upload delegate callbacks are serialized on this, so that pipelined
+   * uploads don't call the store delegate concurrently.
+   */
+  protected final Object uploadDelegateMonitor = new Object();
+
+  /**
+   * Decides when to flush <code>recordsBuffer</code>, and learns from the
+   * outcome of each upload.
+   */
+  protected final UploadBatchPolicy uploadBatchPolicy;
+
   private void bumpUploadTimestamp(long ts) {
     while (true) {
       long existing = uploadTimestamp.get();
@@ -224,6 +266,10 @@ public class Server11RepositorySession extends RepositorySession {
   public Server11RepositorySession(Repository repository) {
     super(repository);
     serverRepository = (Server11Repository) repository;
+    maxInFlightUploads = (serverRepository == null) ? Server11Repository.DEFAULT_MAX_IN_FLIGHT_UPLOADS : serverRepository.getMaxInFlightUploads();
+    uploadPermits = new Semaphore(maxInFlightUploads);
+    uploadExecutor = (maxInFlightUploads > 1) ? Executors.newFixedThreadPool(maxInFlightUploads) : null;
+    uploadBatchPolicy = (serverRepository == null) ? new UploadBatchPolicy() : serverRepository.createUploadBatchPolicy();
   }
 
   private String flattenIDs(String[] guids) {
@@ -261,6 +307,7 @@ public class Server11RepositorySession extends RepositorySession {
     URI collectionURI = serverRepository.collectionURI(full, newer, limit, sort, ids);
     SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(collectionURI);
     request.delegate = delegate;
+    request.acceptCompressedResponses = serverRepository.getAcceptCompressedResponses();
 
     // So it can clean up.
     delegate.setRequest(request);
@@ -345,9 +392,8 @@ public class Server11RepositorySession extends RepositorySession {
   }
 
   /**
-   * Batch incoming records until some reasonable threshold (e.g., 50),
-   * some size limit is hit (probably way less than 3MB!), or storeDone
-   * is received.
+   * Batch incoming records until <code>uploadBatchPolicy</code>'s record or
+   * byte limit is hit, or storeDone is received.
    * @param record
    */
   protected void enqueue(Record record) {
@@ -355,8 +401,7 @@ public class Server11RepositorySession extends RepositorySession {
     byte[] json = record.toJSONBytes();
     int delta   = json.length;
     synchronized (recordsBufferMonitor) {
-      if ((delta + byteCount     > UPLOAD_BYTE_THRESHOLD) ||
-          (recordsBuffer.size() >= UPLOAD_ITEM_THRESHOLD)) {
+      if (uploadBatchPolicy.shouldFlush(recordsBuffer.size(), byteCount, delta)) {
 
         // POST the existing contents, then enqueue.
         flush();
@@ -374,7 +419,12 @@ public class Server11RepositorySession extends RepositorySession {
       final ArrayList<byte[]> outgoing = recordsBuffer;
       final ArrayList<String> outgoingGuids = recordGuidsBuffer;
       RepositorySessionStoreDelegate uploadDelegate = this.delegate;
-      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount));
+      final RecordUploadRunnable upload = new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount);
+      if (uploadExecutor == null) {
+        storeWorkQueue.execute(upload);
+      } else {
+        storeWorkQueue.execute(new PipelinedUploadRunnable(upload));
+      }
 
       recordsBuffer = new ArrayList<byte[]>();
       recordGuidsBuffer = new ArrayList<String>();
@@ -391,6 +441,12 @@ public class Server11RepositorySession extends RepositorySession {
       final Runnable r = new Runnable() {
         @Override
         public void run() {
+          try {
+            awaitInFlightUploads();
+          } catch (InterruptedException e) {
+            Logger.warn(LOG_TAG, "Interrupted waiting for uploads to finish. Not calling storeDone.", e);
+            return;
+          }
           synchronized (recordsBufferMonitor) {
             final long end = uploadTimestamp.get();
             Logger.debug(LOG_TAG, "Calling storeDone with " + end);
@@ -402,12 +458,67 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  /**
+   * Block until every dispatched upload has completed. Must only be called
+   * from <code>storeWorkQueue</code>, after the uploads have been dispatched.
+   */
+  protected void awaitInFlightUploads() throws InterruptedException {
+    if (uploadExecutor == null) {
+      // Uploads ran synchronously on storeWorkQueue.
+      return;
+    }
+    uploadPermits.acquire(maxInFlightUploads);
+    uploadPermits.release(maxInFlightUploads);
+  }
+
+  /**
+   * Dispatch a <code>RecordUploadRunnable</code> to <code>uploadExecutor</code>
+   * once fewer than <code>maxInFlightUploads</code> uploads are outstanding.
+   * <p>
+   * Runs on <code>storeWorkQueue</code>, so blocking here applies
+   * backpressure to later uploads and to <code>storeDone</code>.
+   */
+  protected class PipelinedUploadRunnable implements Runnable {
+    private final RecordUploadRunnable upload;
+
+    public PipelinedUploadRunnable(RecordUploadRunnable upload) {
+      this.upload = upload;
+    }
+
+    @Override
+    public void run() {
+      try {
+        uploadPermits.acquire();
+      } catch (InterruptedException e) {
+        upload.handleRequestError(e);
+        return;
+      }
+      try {
+        uploadExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              upload.run();
+            } finally {
+              uploadPermits.release();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        uploadPermits.release();
+        upload.handleRequestError(e);
+      }
+    }
+  }
+
   /**
    * <code>true</code> if a record upload has failed this session.
    * <p>
    * This is only set in begin and possibly by <code>RecordUploadRunnable</code>.
-   * Since those are executed serially, we can use an unsynchronized
-   * volatile boolean here.
+   * It is only ever set to <code>true</code> while uploads are running, so
+   * an unsynchronized volatile boolean suffices even when uploads are
+   * pipelined. Uploads already in flight when it is set are not cancelled,
+   * but every upload started afterwards fails without being sent.
    */
   protected volatile boolean recordUploadFailed;
 
@@ -430,6 +541,12 @@ public class Server11RepositorySession extends RepositorySession {
     private final ArrayList<byte[]> outgoing;
     private ArrayList<String> outgoingGuids;
     private final long byteCount;
+    private final int recordCount;
+
+    /**
+     * When the POST was started, or -1 if it hasn't been.
+     */
+    private long startTime = -1;
 
     public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
                                 ArrayList<byte[]> outgoing,
@@ -441,6 +558,11 @@ public class Server11RepositorySession extends RepositorySession {
       this.outgoing = outgoing;
       this.outgoingGuids = outgoingGuids;
       this.byteCount = byteCount;
+      this.recordCount = outgoing.size();
+    }
+
+    private long latency() {
+      return System.currentTimeMillis() - startTime;
     }
 
     @Override
@@ -455,6 +577,12 @@ public class Server11RepositorySession extends RepositorySession {
 
     @Override
     public void handleRequestSuccess(SyncStorageResponse response) {
+      synchronized (uploadDelegateMonitor) {
+        handleRequestSuccessLocked(response);
+      }
+    }
+
+    protected void handleRequestSuccessLocked(SyncStorageResponse response) {
       Logger.trace(LOG_TAG, "POST of " + outgoing.size() + " records done.");
 
       ExtendedJSONObject body;
@@ -478,6 +606,7 @@ public class Server11RepositorySession extends RepositorySession {
         Logger.warn(LOG_TAG, "POST success body does not contain key 'modified': " + body.toJSONString());
       }
 
+      int failedCount = 0;
       try {
         JSONArray          success = body.getArray("success");
         if ((success != null) &&
@@ -506,6 +635,7 @@ public class Server11RepositorySession extends RepositorySession {
           for (String guid : failed.keySet()) {
             delegate.onRecordStoreFailed(ex, guid);
           }
+          failedCount = failed.object.size();
         }
         failed = null; // Want to GC this ASAP.
       } catch (UnexpectedJSONException e) {
@@ -513,6 +643,7 @@ public class Server11RepositorySession extends RepositorySession {
         // TODO
         return;
       }
+      uploadBatchPolicy.onBatchUploaded(recordCount, byteCount, latency(), failedCount);
       Logger.debug(LOG_TAG, "POST of " + outgoing.size() + " records handled.");
     }
 
@@ -526,11 +657,16 @@ public class Server11RepositorySession extends RepositorySession {
     public void handleRequestError(final Exception ex) {
       Logger.warn(LOG_TAG, "Got request error.", ex);
 
+      if (startTime >= 0) {
+        uploadBatchPolicy.onBatchFailed(recordCount, byteCount, latency());
+      }
       recordUploadFailed = true;
-      ArrayList<String> failedOutgoingGuids = outgoingGuids;
-      outgoingGuids = null; // Want to GC this ASAP.
-      for (String guid : failedOutgoingGuids) {
-        delegate.onRecordStoreFailed(ex, guid);
+      synchronized (uploadDelegateMonitor) {
+        ArrayList<String> failedOutgoingGuids = outgoingGuids;
+        outgoingGuids = null; // Want to GC this ASAP.
+        for (String guid : failedOutgoingGuids) {
+          delegate.onRecordStoreFailed(ex, guid);
+        }
       }
       return;
     }
@@ -580,13 +716,34 @@ public class Server11RepositorySession extends RepositorySession {
       return body;
     }
 
+    /**
+     * Gzip the body up front, so that the entity is repeatable and has a
+     * known length (needed for payload hashing and for retries).
+     */
+    public HttpEntity getCompressedBodyEntity() throws IOException {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(byteCount / 2 + 64, Integer.MAX_VALUE));
+      final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+      try {
+        getBodyEntity().writeTo(gzip);
+      } finally {
+        gzip.close();
+      }
+      final ByteArrayEntity body = new ByteArrayEntity(bytes.toByteArray());
+      body.setContentType("application/json");
+      body.setContentEncoding("gzip");
+      BaseResource.countCompressedRequest(byteCount, body.getContentLength());
+      return body;
+    }
+
     @Override
     public void run() {
       if (recordUploadFailed) {
         Logger.info(LOG_TAG, "Previous record upload failed.  Failing all records and not retrying.");
         Exception ex = new Server11PreviousPostFailedException();
-        for (String guid : outgoingGuids) {
-          delegate.onRecordStoreFailed(ex, guid);
+        synchronized (uploadDelegateMonitor) {
+          for (String guid : outgoingGuids) {
+            delegate.onRecordStoreFailed(ex, guid);
+          }
         }
         return;
       }
@@ -602,14 +759,35 @@ public class Server11RepositorySession extends RepositorySession {
 
       request.delegate = this;
 
-      // We don't want the task queue to proceed until this request completes.
+      // We don't want the task queue (or, when pipelining, this upload's
+      // permit) to proceed until this request completes.
       // Fortunately, BaseResource is currently synchronous.
       // If that ever changes, you'll need to block here.
-      ByteArraysEntity body = getBodyEntity();
+      HttpEntity body;
+      if (serverRepository.getCompressUploads()) {
+        try {
+          body = getCompressedBodyEntity();
+        } catch (IOException e) {
+          Logger.warn(LOG_TAG, "Couldn't compress upload; sending it uncompressed.", e);
+          body = getBodyEntity();
+        }
+      } else {
+        body = getBodyEntity();
+      }
+      startTime = System.currentTimeMillis();
       request.post(body);
     }
   }
 
+  /**
+   * Records are serialized outside of <code>recordsBufferMonitor</code> and
+   * buffered inside it, so concurrent stores are safe.
+   */
+  @Override
+  public boolean storeIsThreadSafe() {
+    return true;
+  }
+
   @Override
   public boolean dataAvailable() {
     return serverRepository.updateNeeded(getLastSyncTimestamp());
@@ -0,0 +1,179 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.InfoConfiguration;
+
+/**
+ * Decide how many records, and how many bytes, to put in each upload POST.
+ * <p>
+ * The hard limits come from the server's <code>info/configuration</code> (or
+ * local defaults). Within those limits the policy adapts, additive-increase
+ * multiplicative-decrease style:
+ * <ul>
+ * <li>a full batch that uploads quickly and cleanly grows the batch size;</li>
+ * <li>a slow batch, a batch with failed records, or a failed POST halves it.</li>
+ * </ul>
+ * <p>
+ * Instances are thread-safe, so that pipelined uploads can report back
+ * concurrently.
+ */
+public class UploadBatchPolicy {
+  private static final String LOG_TAG = "UploadBatchPolicy";
+
+  /**
+   * Receives the limits chosen by a policy, and the outcome of each batch.
+   */
+  public interface Observer {
+    public void onBatchLimitsChanged(int maxRecords, long maxBytes);
+    public void onBatchUploaded(int records, long bytes, long latencyMsec, int failedRecords);
+    public void onBatchFailed(int records, long bytes, long latencyMsec);
+  }
+
+  public static final int  INITIAL_MAX_RECORDS = 50;
+  public static final int  MIN_MAX_RECORDS     = 10;
+  public static final long MIN_MAX_BYTES       = 64 * 1024;
+
+  /**
+   * Batches that complete faster than this may grow.
+   */
+  public static final long FAST_LATENCY_MSEC = 2 * 1000;
+
+  /**
+   * Batches that take longer than this shrink.
+   */
+  public static final long SLOW_LATENCY_MSEC = 15 * 1000;
+
+  protected final int recordLimit;
+  protected final long byteLimit;
+
+  protected int maxRecords;
+  protected long maxBytes;
+
+  protected volatile Observer observer;
+
+  public UploadBatchPolicy() {
+    this(new InfoConfiguration());
+  }
+
+  public UploadBatchPolicy(InfoConfiguration configuration) {
+    if (configuration == null) {
+      configuration = new InfoConfiguration();
+    }
+    this.recordLimit = configuration.maxPostRecords;
+    this.byteLimit = configuration.maxPostBytes;
+    this.maxRecords = Math.min(INITIAL_MAX_RECORDS, recordLimit);
+    this.maxBytes = byteLimit;
+  }
+
+  public void setObserver(Observer observer) {
+    this.observer = observer;
+    if (observer != null) {
+      observer.onBatchLimitsChanged(getMaxRecords(), getMaxBytes());
+    }
+  }
+
+  public synchronized int getMaxRecords() {
+    return maxRecords;
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Return true if the current batch must be sent before a record of
+   * <code>incomingBytes</code> bytes can be added to it.
+   *
+   * @param batchRecords number of records already in the batch.
+   * @param batchBytes size of the batch so far, including framing.
+   * @param incomingBytes size of the record to add.
+   */
+  public synchronized boolean shouldFlush(int batchRecords, long batchBytes, long incomingBytes) {
+    if (batchRecords == 0) {
+      // Always allow one record per batch, however large.
+      return false;
+    }
+    return (batchRecords >= maxRecords) ||
+           (batchBytes + incomingBytes > maxBytes);
+  }
+
+  /**
+   * Adapt to a POST that the server answered with a success body.
+   *
+   * @param failedRecords the number of records the server rejected.
+   */
+  public void onBatchUploaded(int records, long bytes, long latencyMsec, int failedRecords) {
+    final Observer observer = this.observer;
+    if (observer != null) {
+      observer.onBatchUploaded(records, bytes, latencyMsec, failedRecords);
+    }
+    if (failedRecords > 0 || latencyMsec > SLOW_LATENCY_MSEC) {
+      shrink(records, bytes);
+      return;
+    }
+    if (latencyMsec < FAST_LATENCY_MSEC) {
+      grow(records, bytes);
+    }
+  }
+
+  /**
+   * Adapt to a POST that failed outright.
+   */
+  public void onBatchFailed(int records, long bytes, long latencyMsec) {
+    final Observer observer = this.observer;
+    if (observer != null) {
+      observer.onBatchFailed(records, bytes, latencyMsec);
+    }
+    shrink(records, bytes);
+  }
+
+  protected void grow(int records, long bytes) {
+    int newRecords;
+    long newBytes;
+    synchronized (this) {
+      // Only a batch that hit a limit tells us the limit is too low.
+      final boolean hitRecords = records >= maxRecords;
+      final boolean hitBytes = bytes > maxBytes / 2;
+      if (!hitRecords && !hitBytes) {
+        return;
+      }
+      newRecords = hitRecords ? Math.min(recordLimit, maxRecords + Math.max(1, maxRecords / 2)) : maxRecords;
+      newBytes = hitBytes ? Math.min(byteLimit, maxBytes + maxBytes / 2) : maxBytes;
+      if (newRecords == maxRecords && newBytes == maxBytes) {
+        return;
+      }
+      maxRecords = newRecords;
+      maxBytes = newBytes;
+    }
+    limitsChanged(newRecords, newBytes);
+  }
+
+  protected void shrink(int records, long bytes) {
+    int newRecords;
+    long newBytes;
+    synchronized (this) {
+      // Base the new limits on what was actually sent, so that concurrent
+      // reports for batches sized under older limits don't compound.
+      newRecords = Math.max(Math.min(recordLimit, MIN_MAX_RECORDS), Math.min(maxRecords, Math.max(1, records / 2)));
+      newBytes = Math.max(Math.min(byteLimit, MIN_MAX_BYTES), Math.min(maxBytes, Math.max(1, bytes / 2)));
+      if (newRecords == maxRecords && newBytes == maxBytes) {
+        return;
+      }
+      maxRecords = newRecords;
+      maxBytes = newBytes;
+    }
+    limitsChanged(newRecords, newBytes);
+  }
+
+  protected void limitsChanged(int newRecords, long newBytes) {
+    Logger.debug(LOG_TAG, "Upload batch limits now " + newRecords + " records, " + newBytes + " bytes.");
+    final Observer observer = this.observer;
+    if (observer != null) {
+      observer.onBatchLimitsChanged(newRecords, newBytes);
+    }
+  }
+}
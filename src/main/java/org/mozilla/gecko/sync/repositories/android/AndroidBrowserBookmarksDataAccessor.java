@@ -7,6 +7,7 @@ package org.mozilla.gecko.sync.repositories.android;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.json.simple.JSONArray;
@@ -16,11 +17,14 @@ import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositoryDataAccessor {
 
@@ -115,6 +119,61 @@ public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositor
     return context.getContentResolver().update(getPositionsUri(), new ContentValues(), null, args);
   }
 
+  /**
+   * Apply position updates for several folders, and bump the modified time
+   * of the given records, in one batch. The provider applies a batch in a
+   * single transaction, rather than one per folder.
+   *
+   * @param childArrays
+   *        Sequences of GUID strings, as for {@link #updatePositions(ArrayList)}.
+   * @param bumpIDs
+   *        Android IDs of records whose modified time should be set.
+   * @param modified
+   *        The new modified time.
+   */
+  public void updatePositionsAndBumpModified(Collection<ArrayList<String>> childArrays,
+                                             Collection<Long> bumpIDs,
+                                             long modified) throws RemoteException, OperationApplicationException {
+    final int perOperation = AndroidBrowserBookmarksRepositorySession.REPOSITION_FOLDERS_PER_QUERY;
+    final int bumpOperations = (bumpIDs.size() + perOperation - 1) / perOperation;
+    final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(childArrays.size() + bumpOperations);
+
+    // Keep each IN clause well below SQLite's limit on bound arguments.
+    final ArrayList<String> ids = new ArrayList<String>(bumpIDs.size());
+    for (Long id : bumpIDs) {
+      ids.add(String.valueOf(id));
+    }
+    for (int start = 0; start < ids.size(); start += perOperation) {
+      final List<String> chunk = ids.subList(start, Math.min(ids.size(), start + perOperation));
+      ops.add(ContentProviderOperation.newUpdate(getUri())
+                                      .withSelection(RepoUtils.computeSQLInClause(chunk.size(), BrowserContract.Bookmarks._ID),
+                                                     chunk.toArray(new String[chunk.size()]))
+                                      .withValue(BrowserContract.Bookmarks.DATE_MODIFIED, modified)
+                                      .build());
+    }
+
+    int positions = 0;
+    for (ArrayList<String> childArray : childArrays) {
+      final int size = childArray.size();
+      if (size == 0) {
+        continue;
+      }
+      positions += size;
+      // The positions URI ignores values, but ContentProviderOperation
+      // won't build an update without any.
+      ops.add(ContentProviderOperation.newUpdate(getPositionsUri())
+                                      .withSelection(null, childArray.toArray(new String[size]))
+                                      .withValue(BrowserContract.Bookmarks.POSITION, 0)
+                                      .build());
+    }
+
+    if (ops.isEmpty()) {
+      return;
+    }
+    Logger.debug(LOG_TAG, "Updating positions for " + positions + " items and bumping " + bumpIDs.size() + " folders.");
+    context.getContentResolver().applyBatch(getUri().getAuthority(), ops);
+  }
+
   public int bumpModifiedByGUID(Collection<String> ids, long modified) {
     final int size = ids.size();
     if (size == 0) {
@@ -319,6 +378,33 @@ public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositor
   }
 
   
+  private static final String[] CHILD_POSITION_COLUMNS = new String[] { BrowserContract.SyncColumns.GUID,
+                                                                         BrowserContract.Bookmarks.PARENT,
+                                                                         BrowserContract.Bookmarks.POSITION };
+
+  /**
+   * Returns a cursor over the GUID, parent, and position of the non-deleted
+   * children of each of the given folders. Rows are grouped by parent, and
+   * within each parent ordered as by {@link #getChildren(long)}.
+   *
+   * @param folderIDs the Android IDs of the folders, as strings.
+   */
+  public Cursor getChildrenOfFolders(String[] folderIDs) throws NullCursorException {
+    final String where = RepoUtils.computeSQLInClause(folderIDs.length, BrowserContract.Bookmarks.PARENT) + " AND " +
+                         BrowserContract.SyncColumns.GUID + " <> ? AND " +
+                         BrowserContract.SyncColumns.IS_DELETED + " = 0";
+
+    final String[] args = new String[folderIDs.length + 1];
+    System.arraycopy(folderIDs, 0, args, 0, folderIDs.length);
+    args[folderIDs.length] = "places";
+
+    final String order = BrowserContract.Bookmarks.PARENT + ", " +
+                         BrowserContract.Bookmarks.POSITION + ", " +
+                         BrowserContract.SyncColumns.DATE_CREATED + ", " +
+                         BrowserContract.Bookmarks._ID;
+    return queryHelper.safeQuery(".getChildrenOfFolders", CHILD_POSITION_COLUMNS, where, args, order);
+  }
+
   @Override
   protected String[] getAllColumns() {
     return BrowserContractHelpers.BookmarkColumns;
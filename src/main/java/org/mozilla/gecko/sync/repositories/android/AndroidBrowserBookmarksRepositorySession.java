@@ -8,6 +8,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -41,6 +43,12 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
   public static final int DEFAULT_DELETION_FLUSH_THRESHOLD = 50;
   public static final int DEFAULT_INSERTION_FLUSH_THRESHOLD = 50;
 
+  /**
+   * Folder IDs per children query, and per modified-time update, when
+   * repositioning. Keeps us well under SQLite's limit on bound parameters.
+   */
+  static final int REPOSITION_FOLDERS_PER_QUERY = 500;
+
   // TODO: synchronization for these.
   private final HashMap<String, Long> parentGuidToIDMap = new HashMap<String, Long>();
   private final HashMap<Long, String> parentIDToGuidMap = new HashMap<Long, String>();
@@ -352,31 +360,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
         children.moveToNext();
       }
 
-      // This will suffice for taking a jumble of records and indices and
-      // producing a sorted sequence that preserves some kind of order --
-      // from the abs of the position, falling back on cursor order (that
-      // is, creation time and ID).
-      // Note that this code is not intended to merge values from two sources!
-      boolean changed = false;
-      int i = 0;
-      for (Entry<Long, ArrayList<String>> entry : guids.entrySet()) {
-        long pos = entry.getKey();
-        int atPos = entry.getValue().size();
-
-        // If every element has a different index, and the indices are
-        // in strict natural order, then changed will be false.
-        if (atPos > 1 || pos != i) {
-          changed = true;
-        }
-
-        ++i;
-
-        for (String guid : entry.getValue()) {
-          if (!forbiddenGUID(guid)) {
-            childArray.add(guid);
-          }
-        }
-      }
+      final boolean changed = !appendInPositionOrder(guids, childArray);
 
       if (Logger.shouldLogVerbose(LOG_TAG)) {
         // Don't JSON-encode unless we're logging.
@@ -405,10 +389,111 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     }
   }
 
+  /**
+   * Append the GUIDs in <code>guids</code> to <code>childArray</code>,
+   * ordered by position.
+   *
+   * @param guids
+   *        GUIDs bucketed by the absolute value of their position. May be null.
+   * @return
+   *        True if the positions were already 0..n-1, with no ties.
+   */
+  @SuppressWarnings("unchecked")
+  private static boolean appendInPositionOrder(TreeMap<Long, ArrayList<String>> guids, JSONArray childArray) {
+    if (guids == null) {
+      return true;
+    }
+
+    // This will suffice for taking a jumble of records and indices and
+    // producing a sorted sequence that preserves some kind of order --
+    // from the abs of the position, falling back on cursor order (that
+    // is, creation time and ID).
+    // Note that this code is not intended to merge values from two sources!
+    boolean changed = false;
+    int i = 0;
+    for (Entry<Long, ArrayList<String>> entry : guids.entrySet()) {
+      long pos = entry.getKey();
+      int atPos = entry.getValue().size();
+
+      // If every element has a different index, and the indices are
+      // in strict natural order, then changed will be false.
+      if (atPos > 1 || pos != i) {
+        changed = true;
+      }
+
+      ++i;
+
+      for (String guid : entry.getValue()) {
+        if (!forbiddenGUID(guid)) {
+          childArray.add(guid);
+        }
+      }
+    }
+    return !changed;
+  }
+
+  /**
+   * Read the children of each of the given folders, as
+   * {@link #getChildrenArray(long, boolean, JSONArray)} would, but with one
+   * query per {@link #REPOSITION_FOLDERS_PER_QUERY} folders rather than one
+   * per folder.
+   *
+   * @return a map from folder ID to the GUIDs of its children, bucketed by
+   *         the absolute value of their position. Empty folders are absent.
+   */
+  private Map<Long, TreeMap<Long, ArrayList<String>>> getChildrenByPosition(Collection<Long> folderIDs) throws NullCursorException {
+    final HashMap<Long, TreeMap<Long, ArrayList<String>>> out = new HashMap<Long, TreeMap<Long, ArrayList<String>>>();
+    final ArrayList<String> ids = new ArrayList<String>(folderIDs.size());
+    for (Long folderID : folderIDs) {
+      ids.add(String.valueOf(folderID));
+    }
+
+    for (int start = 0; start < ids.size(); start += REPOSITION_FOLDERS_PER_QUERY) {
+      final int end = Math.min(ids.size(), start + REPOSITION_FOLDERS_PER_QUERY);
+      final List<String> chunk = ids.subList(start, end);
+      final Cursor children = dataAccessor.getChildrenOfFolders(chunk.toArray(new String[chunk.size()]));
+      try {
+        if (!children.moveToFirst()) {
+          continue;
+        }
+        final int guidIndex = children.getColumnIndexOrThrow(BrowserContract.SyncColumns.GUID);
+        final int parentIndex = children.getColumnIndexOrThrow(BrowserContract.Bookmarks.PARENT);
+        final int positionIndex = children.getColumnIndexOrThrow(BrowserContract.Bookmarks.POSITION);
+
+        // Rows arrive grouped by parent.
+        long currentParent = -1;
+        TreeMap<Long, ArrayList<String>> current = null;
+        while (!children.isAfterLast()) {
+          final long parent = children.getLong(parentIndex);
+          if (current == null || parent != currentParent) {
+            currentParent = parent;
+            current = new TreeMap<Long, ArrayList<String>>();
+            out.put(parent, current);
+          }
+          Utils.addToIndexBucketMap(current, Math.abs(getPosition(children, positionIndex)), children.getString(guidIndex));
+          children.moveToNext();
+        }
+      } finally {
+        children.close();
+      }
+    }
+    return out;
+  }
+
   protected static boolean isDeleted(Cursor cur) {
     return RepoUtils.getLongFromCursor(cur, BrowserContract.SyncColumns.IS_DELETED) != 0;
   }
 
+  /**
+   * Storing a bookmark can reparent, reposition, or rename the folders that
+   * other incoming records are read against, so look each one up as it's
+   * stored.
+   */
+  @Override
+  protected int getStoreLookupBatchSize() {
+    return 1;
+  }
+
   @Override
   protected Record retrieveDuringStore(Cursor cur) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     // During storing of a retrieved record, we never care about the children
@@ -900,48 +985,79 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     }
   }
 
-  @SuppressWarnings("unchecked")
   private void finishUp() {
     try {
       flushQueues();
       Logger.debug(LOG_TAG, "Have " + parentToChildArray.size() + " folders whose children might need repositioning.");
-      for (Entry<String, JSONArray> entry : parentToChildArray.entrySet()) {
-        String guid = entry.getKey();
-        JSONArray onServer = entry.getValue();
-        try {
-          final long folderID = getIDForGUID(guid);
-          final JSONArray inDB = new JSONArray();
-          final boolean clean = getChildrenArray(folderID, false, inDB);
-          final boolean sameArrays = Utils.sameArrays(onServer, inDB);
-
-          // If the local children and the remote children are already
-          // the same, then we don't need to bump the modified time of the
-          // parent: we wouldn't upload a different record, so avoid the cycle.
-          if (!sameArrays) {
-            int added = 0;
-            for (Object o : inDB) {
-              if (!onServer.contains(o)) {
-                onServer.add(o);
-                added++;
-              }
-            }
-            Logger.debug(LOG_TAG, "Added " + added + " items locally.");
-            Logger.debug(LOG_TAG, "Untracking and bumping " + guid + "(" + folderID + ")");
-            dataAccessor.bumpModified(folderID, now());
-            untrackGUID(guid);
-          }
+      repositionChildren();
+    } finally {
+      super.storeDone();
+    }
+  }
 
-          // If the arrays are different, or they're the same but not flushed to disk,
-          // write them out now.
-          if (!sameArrays || !clean) {
-            dataAccessor.updatePositions(new ArrayList<String>(onServer));
-          }
-        } catch (Exception e) {
-          Logger.warn(LOG_TAG, "Error repositioning children for " + guid, e);
+  /**
+   * Reconcile the children array of each folder we received with that
+   * folder's children in the database, and write out the resulting order.
+   * <p>
+   * Folders can hold thousands of children, so this reads the children of
+   * every touched folder in bulk, merges using hash lookups, and applies all
+   * of the position updates in a single batch.
+   */
+  private void repositionChildren() {
+    if (parentToChildArray.isEmpty()) {
+      return;
+    }
+
+    final HashMap<String, Long> folderIDs = new HashMap<String, Long>();
+    for (String guid : parentToChildArray.keySet()) {
+      folderIDs.put(guid, getIDForGUID(guid));
+    }
+
+    final Map<Long, TreeMap<Long, ArrayList<String>>> childrenByFolder;
+    try {
+      childrenByFolder = getChildrenByPosition(new HashSet<Long>(folderIDs.values()));
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to fetch children for repositioning.", e);
+      return;
+    }
+
+    final ArrayList<ArrayList<String>> childArrays = new ArrayList<ArrayList<String>>();
+    final ArrayList<Long> modifiedFolders = new ArrayList<Long>();
+    for (Entry<String, JSONArray> entry : parentToChildArray.entrySet()) {
+      final String guid = entry.getKey();
+      final JSONArray onServer = entry.getValue();
+      final long folderID = folderIDs.get(guid);
+
+      final JSONArray inDB = new JSONArray();
+      final boolean clean = appendInPositionOrder(childrenByFolder.get(folderID), inDB);
+      final boolean sameArrays = Utils.sameArrays(onServer, inDB);
+
+      // If the local children and the remote children are already
+      // the same, then we don't need to bump the modified time of the
+      // parent: we wouldn't upload a different record, so avoid the cycle.
+      if (!sameArrays) {
+        final int added = Utils.appendMissing(onServer, inDB);
+        Logger.debug(LOG_TAG, "Added " + added + " items locally.");
+        Logger.debug(LOG_TAG, "Untracking and bumping " + guid + "(" + folderID + ")");
+        modifiedFolders.add(folderID);
+        untrackGUID(guid);
+      }
+
+      // If the arrays are different, or they're the same but not flushed to disk,
+      // write them out now.
+      if (!sameArrays || !clean) {
+        final ArrayList<String> children = new ArrayList<String>(onServer.size());
+        for (Object child : onServer) {
+          children.add((String) child);
         }
+        childArrays.add(children);
       }
-    } finally {
-      super.storeDone();
+    }
+
+    try {
+      dataAccessor.updatePositionsAndBumpModified(childArrays, modifiedFolders, now());
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Error repositioning children.", e);
     }
   }
 
@@ -18,6 +18,7 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 
 public class AndroidBrowserHistoryDataAccessor extends
@@ -99,6 +100,21 @@ public class AndroidBrowserHistoryDataAccessor extends
     dataExtender.close();
   }
 
+  /**
+   * Fetch records with the provided URL.
+   * <p>
+   * The caller is responsible for closing the cursor.
+   *
+   * @param url The URL of the records to fetch.
+   * @return A cursor. You <b>must</b> close this when you're done with it.
+   * @throws NullCursorException
+   */
+  public Cursor fetchByURL(String url) throws NullCursorException {
+    return queryHelper.safeQuery(".fetchByURL", getAllColumns(),
+                                 BrowserContract.History.URL + " = ?",
+                                 new String[] { url }, null);
+  }
+
   public static String[] GUID_AND_ID = new String[] { BrowserContract.History.GUID, BrowserContract.History._ID };
 
   /**
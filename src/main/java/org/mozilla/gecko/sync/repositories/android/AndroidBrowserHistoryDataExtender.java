@@ -4,18 +4,24 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
 
@@ -23,14 +29,38 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
 
   // Database Specifications.
   protected static final String DB_NAME = "history_extension_database";
-  protected static final int SCHEMA_VERSION = 1;
+  protected static final int SCHEMA_VERSION = 2;
 
   // History Table.
   public static final String   TBL_HISTORY_EXT = "HistoryExtension";
   public static final String   COL_GUID = "guid";
   public static final String   GUID_IS = COL_GUID + " = ?";
+
+  /**
+   * Visits as JSON text. Only used for visits that can't be packed; see
+   * {@link #COL_PACKED_VISITS}. Version 1 stored every record this way.
+   */
   public static final String   COL_VISITS = "visits";
-  public static final String[] TBL_COLUMNS = { COL_GUID, COL_VISITS };
+
+  /**
+   * Visits packed as big-endian (date, type) pairs of longs. Null if the
+   * visits are in {@link #COL_VISITS} instead.
+   */
+  public static final String   COL_PACKED_VISITS = "packed_visits";
+  public static final String[] TBL_COLUMNS = { COL_GUID, COL_VISITS, COL_PACKED_VISITS };
+
+  public static final String KEY_DATE = "date";
+  public static final String KEY_TYPE = "type";
+
+  /**
+   * The number of GUIDs to look up with a single query in
+   * {@link #visitsForGUIDs(Collection)}. Keeps us well under SQLite's limit
+   * on bound parameters.
+   */
+  protected static final int VISITS_LOOKUP_BATCH_SIZE = 500;
+
+  protected static final String UPSERT_SQL = "INSERT OR REPLACE INTO " + TBL_HISTORY_EXT +
+      " (" + COL_GUID + ", " + COL_VISITS + ", " + COL_PACKED_VISITS + ") VALUES (?, ?, ?)";
 
   private final RepoUtils.QueryHelper queryHelper;
 
@@ -43,48 +73,156 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   public void onCreate(SQLiteDatabase db) {
     String createTableSql = "CREATE TABLE " + TBL_HISTORY_EXT + " ("
         + COL_GUID + " TEXT PRIMARY KEY, "
-        + COL_VISITS + " TEXT)";
+        + COL_VISITS + " TEXT, "
+        + COL_PACKED_VISITS + " BLOB)";
     db.execSQL(createTableSql);
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // For now we'll just drop and recreate the tables.
+    if (oldVersion == 1 && newVersion == 2) {
+      upgradeFrom1To2(db);
+      return;
+    }
+    // Otherwise we'll just drop and recreate the tables.
+    recreate(db);
+  }
+
+  protected void recreate(SQLiteDatabase db) {
     db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
     onCreate(db);
   }
 
+  /**
+   * Add the packed column, and pack each existing row's visits in place.
+   * <code>SQLiteOpenHelper</code> runs this inside a transaction.
+   */
+  protected void upgradeFrom1To2(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + TBL_HISTORY_EXT + " ADD COLUMN " + COL_PACKED_VISITS + " BLOB");
+
+    final SQLiteStatement pack = db.compileStatement("UPDATE " + TBL_HISTORY_EXT +
+        " SET " + COL_VISITS + " = NULL, " + COL_PACKED_VISITS + " = ? WHERE " + GUID_IS);
+    final Cursor cur = db.query(TBL_HISTORY_EXT, new String[] { COL_GUID, COL_VISITS }, null, null, null, null, null);
+    int packed = 0;
+    try {
+      final int guidIndex = cur.getColumnIndexOrThrow(COL_GUID);
+      while (cur.moveToNext()) {
+        // Leave rows we can't parse or pack as they are.
+        final JSONArray visits = RepoUtils.getJSONArrayFromCursor(cur, COL_VISITS);
+        final byte[] blob = (visits == null) ? null : packVisits(visits);
+        if (blob == null) {
+          continue;
+        }
+        pack.bindBlob(1, blob);
+        pack.bindString(2, cur.getString(guidIndex));
+        pack.execute();
+        packed += 1;
+      }
+    } finally {
+      cur.close();
+      pack.close();
+    }
+    Logger.info(LOG_TAG, "Packed visits for " + packed + " history records.");
+  }
+
   public void wipe() {
     SQLiteDatabase db = this.getCachedWritableDatabase();
-    onUpgrade(db, SCHEMA_VERSION, SCHEMA_VERSION);
+    recreate(db);
+  }
+
+  /**
+   * Pack visits as (date, type) pairs.
+   *
+   * @return the packed visits, or null if any visit isn't exactly a
+   *         <code>date</code> and a <code>type</code>, both integers.
+   */
+  protected static byte[] packVisits(JSONArray visits) {
+    if (visits == null) {
+      return new byte[0];
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(visits.size() * 16);
+    for (Object o : visits) {
+      if (!(o instanceof JSONObject)) {
+        return null;
+      }
+      final JSONObject visit = (JSONObject) o;
+      final Object date = visit.get(KEY_DATE);
+      final Object type = visit.get(KEY_TYPE);
+      if (visit.size() != 2 || !isIntegral(date) || !isIntegral(type)) {
+        return null;
+      }
+      buffer.putLong(((Number) date).longValue());
+      buffer.putLong(((Number) type).longValue());
+    }
+    return buffer.array();
+  }
+
+  private static boolean isIntegral(Object o) {
+    return (o instanceof Long) || (o instanceof Integer);
+  }
+
+  /**
+   * Unpack visits packed by {@link #packVisits(JSONArray)}. Values come back
+   * as <code>Long</code>s, just as they do when parsed from JSON.
+   */
+  @SuppressWarnings("unchecked")
+  protected static JSONArray unpackVisits(byte[] blob) {
+    final JSONArray visits = new JSONArray();
+    final ByteBuffer buffer = ByteBuffer.wrap(blob);
+    while (buffer.remaining() >= 16) {
+      final JSONObject visit = new JSONObject();
+      visit.put(KEY_DATE, buffer.getLong());
+      visit.put(KEY_TYPE, buffer.getLong());
+      visits.add(visit);
+    }
+    return visits;
+  }
+
+  /**
+   * Read the visits in the current row of <code>cur</code>, which must
+   * include {@link #COL_VISITS} and {@link #COL_PACKED_VISITS}.
+   */
+  protected static JSONArray visitsFromCursor(Cursor cur) {
+    final int packedIndex = cur.getColumnIndexOrThrow(COL_PACKED_VISITS);
+    if (!cur.isNull(packedIndex)) {
+      return unpackVisits(cur.getBlob(packedIndex));
+    }
+    return RepoUtils.getJSONArrayFromCursor(cur, COL_VISITS);
+  }
+
+  /**
+   * Bind a row to a compiled {@link #UPSERT_SQL} statement and run it.
+   */
+  protected static void upsert(SQLiteStatement statement, String guid, JSONArray visits) {
+    statement.clearBindings();
+    statement.bindString(1, guid);
+    final byte[] packed = packVisits(visits);
+    if (packed == null) {
+      statement.bindString(2, visits.toJSONString());
+      statement.bindNull(3);
+    } else {
+      statement.bindNull(2);
+      statement.bindBlob(3, packed);
+    }
+    statement.executeInsert();
   }
 
   /**
    * Store visit data.
    *
    * If a row with GUID `guid` does not exist, insert a new row.
-   * If a row with GUID `guid` does exist, replace the visits column.
+   * If a row with GUID `guid` does exist, replace its visits.
    *
    * @param db The database to write to; must not be null.
    * @param guid The GUID to store to; must not be null.
    * @param visits New visits data.
    */
   protected void store(SQLiteDatabase db, String guid, JSONArray visits) {
-    ContentValues cv = new ContentValues();
-    cv.put(COL_GUID, guid);
-    if (visits == null) {
-      cv.put(COL_VISITS, "[]");
-    } else {
-      cv.put(COL_VISITS, visits.toJSONString());
-    }
-
-    String[] args = new String[] { guid };
-    int rowsUpdated = db.update(TBL_HISTORY_EXT, cv, GUID_IS, args);
-    if (rowsUpdated >= 1) {
-      Logger.debug(LOG_TAG, "Replaced history extension record for row with GUID " + guid);
-    } else {
-      long rowId = db.insert(TBL_HISTORY_EXT, null, cv);
-      Logger.debug(LOG_TAG, "Inserted history extension record into row: " + rowId);
+    final SQLiteStatement statement = db.compileStatement(UPSERT_SQL);
+    try {
+      upsert(statement, guid, visits);
+    } finally {
+      statement.close();
     }
   }
 
@@ -92,7 +230,7 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
    * Store visit data.
    *
    * If a row with GUID `guid` does not exist, insert a new row.
-   * If a row with GUID `guid` does exist, replace the visits column.
+   * If a row with GUID `guid` does exist, replace its visits.
    *
    * @param guid the GUID to store; must not be null.
    * @param visits new visits data.
@@ -103,15 +241,21 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   }
 
   /**
-   * Store (update or insert) visit data in a single database transaction.
+   * Store (update or insert) visit data in a single database transaction,
+   * reusing one compiled statement for every record.
    */
   public void bulkInsert(ArrayList<HistoryRecord> records) {
     SQLiteDatabase db = this.getCachedWritableDatabase();
     try {
       db.beginTransaction();
 
-      for (HistoryRecord record : records) {
-        store(db, record.guid, record.visits);
+      final SQLiteStatement statement = db.compileStatement(UPSERT_SQL);
+      try {
+        for (HistoryRecord record : records) {
+          upsert(statement, record.guid, record.visits);
+        }
+      } finally {
+        statement.close();
       }
 
       db.setTransactionSuccessful();
@@ -151,13 +295,45 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
         // Cursor is empty.
         return new JSONArray();
       } else {
-        return RepoUtils.getJSONArrayFromCursor(visits, COL_VISITS);
+        return visitsFromCursor(visits);
       }
     } finally {
       visits.close();
     }
   }
 
+  /**
+   * Fetch visits for many GUIDs, with one query per
+   * {@link #VISITS_LOOKUP_BATCH_SIZE} GUIDs.
+   *
+   * @return a map from GUID to visits. GUIDs without stored visits are absent.
+   */
+  public Map<String, JSONArray> visitsForGUIDs(Collection<String> guids) throws NullCursorException {
+    final HashMap<String, JSONArray> out = new HashMap<String, JSONArray>();
+    if (guids.isEmpty()) {
+      return out;
+    }
+
+    final List<String> all = new ArrayList<String>(guids);
+    final SQLiteDatabase db = this.getCachedReadableDatabase();
+    for (int start = 0; start < all.size(); start += VISITS_LOOKUP_BATCH_SIZE) {
+      final List<String> chunk = all.subList(start, Math.min(all.size(), start + VISITS_LOOKUP_BATCH_SIZE));
+      final String where = RepoUtils.computeSQLInClause(chunk.size(), COL_GUID);
+      final Cursor cur = queryHelper.safeQuery(db, ".visitsForGUIDs", TBL_HISTORY_EXT, TBL_COLUMNS,
+                                               where, chunk.toArray(new String[chunk.size()]));
+      try {
+        final int guidIndex = cur.getColumnIndexOrThrow(COL_GUID);
+        while (cur.moveToNext()) {
+          out.put(cur.getString(guidIndex), visitsFromCursor(cur));
+        }
+      } finally {
+        cur.close();
+      }
+    }
+    Logger.debug(LOG_TAG, "Fetched visits for " + out.size() + " of " + all.size() + " GUIDs.");
+    return out;
+  }
+
   /**
    * Delete a row.
    *
@@ -5,6 +5,8 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -36,6 +38,11 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
    */
   public static final int INSERT_RECORD_THRESHOLD = 50;
 
+  /**
+   * The number of fetched records whose visits are read with a single query.
+   */
+  public static final int FETCH_VISITS_BATCH_SIZE = 100;
+
   public AndroidBrowserHistoryRepositorySession(Repository repository, Context context) {
     super(repository);
     dbHelper = new AndroidBrowserHistoryDataAccessor(context);
@@ -69,6 +76,38 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return hist.histURI;
   }
 
+  /**
+   * A history record's record string is its URL, which the history table
+   * indexes, so ask the database rather than building a map of every local
+   * record.
+   */
+  @Override
+  protected Record findExistingRecord(Record record) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final String url = ((HistoryRecord) record).histURI;
+    if (url == null) {
+      return null;
+    }
+
+    Cursor cur = ((AndroidBrowserHistoryDataAccessor) dbHelper).fetchByURL(url);
+    try {
+      if (!cur.moveToFirst()) {
+        Logger.debug(LOG_TAG, "Failed to find existing record for " + record.guid);
+        return null;
+      }
+      return retrieveDuringStore(cur);
+    } finally {
+      cur.close();
+    }
+  }
+
+  /**
+   * There's no record string map to maintain: see <code>findExistingRecord</code>.
+   */
+  @Override
+  protected void updateBookkeeping(Record record) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    // Nothing to do.
+  }
+
   @Override
   public boolean shouldIgnore(Record record) {
     if (super.shouldIgnore(record)) {
@@ -86,6 +125,30 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return addVisitsToRecord(record);
   }
 
+  /**
+   * Fetch visits for a whole batch of records with one query.
+   */
+  @Override
+  protected List<Record> transformRecords(List<Record> records) throws NullCursorException {
+    final ArrayList<String> guids = new ArrayList<String>(records.size());
+    for (Record record : records) {
+      guids.add(record.guid);
+    }
+    final Map<String, JSONArray> visits = getDataExtender().visitsForGUIDs(guids);
+
+    final ArrayList<Record> out = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      final JSONArray recordVisits = visits.get(record.guid);
+      out.add(addVisitsToRecord((HistoryRecord) record, recordVisits == null ? new JSONArray() : recordVisits));
+    }
+    return out;
+  }
+
+  @Override
+  protected int getFetchTransformBatchSize() {
+    return FETCH_VISITS_BATCH_SIZE;
+  }
+
   @SuppressWarnings("unchecked")
   private void addVisit(JSONArray visits, long date, long visitType) {
     JSONObject visit = new JSONObject();
@@ -105,7 +168,10 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
   private Record addVisitsToRecord(Record record) throws NullCursorException {
     Logger.debug(LOG_TAG, "Adding visits for GUID " + record.guid);
     HistoryRecord hist = (HistoryRecord) record;
-    JSONArray visitsArray = getDataExtender().visitsForGUID(hist.guid);
+    return addVisitsToRecord(hist, getDataExtender().visitsForGUID(hist.guid));
+  }
+
+  private Record addVisitsToRecord(HistoryRecord hist, JSONArray visitsArray) {
     long missingRecords = hist.fennecVisitCount - visitsArray.size();
 
     // Note that Fennec visit times are milliseconds, and we are working
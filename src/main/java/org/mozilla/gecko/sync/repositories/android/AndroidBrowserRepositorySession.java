@@ -5,8 +5,16 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidRequestException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
@@ -29,7 +37,6 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 import android.content.ContentUris;
 import android.database.Cursor;
 import android.net.Uri;
-import android.util.SparseArray;
 
 /**
  * You'll notice that all delegate calls *either*:
@@ -67,11 +74,15 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
    * The "record string" above is a "record identifying unique key" produced by
    * <code>buildRecordString</code>.
    * <p>
-   * Since we hash each "record string", this map may produce a false positive.
-   * In this case, we search the database for a matching record explicitly using
-   * <code>findByRecordString</code>.
+   * The map is keyed by the record string itself, so it never produces a false
+   * positive because of a hash collision. Entries aren't removed when a record
+   * changes, though, so <code>findExistingRecord</code> checks every hit.
+   * <p>
+   * Subclasses that can query the database by record string directly should
+   * override <code>findExistingRecord</code> and <code>updateBookkeeping</code>
+   * so that this map is never built.
    */
-  protected SparseArray<String> recordToGuid;
+  protected Map<String, String> recordToGuid;
 
   public AndroidBrowserRepositorySession(Repository repository) {
     super(repository);
@@ -141,6 +152,34 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     return record;
   }
 
+  /**
+   * Transform a batch of fetched records, as {@link #transformRecord(Record)}
+   * does one. Override this if the extra fields can be fetched more cheaply
+   * for many records at once; see {@link #getFetchTransformBatchSize()}.
+   *
+   * @param records
+   *        The records to transform, in fetch order. Never contains null.
+   * @return The transformed records, in the same order. Can contain null.
+   * @throws NullCursorException
+   */
+  protected List<Record> transformRecords(List<Record> records) throws NullCursorException {
+    final ArrayList<Record> out = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      out.add(transformRecord(record));
+    }
+    return out;
+  }
+
+  /**
+   * Override this to change how many fetched records are handed to
+   * {@link #transformRecords(List)} at once.
+   *
+   * @return the maximum number of records to transform at once.
+   */
+  protected int getFetchTransformBatchSize() {
+    return 1;
+  }
+
   @Override
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     RepositorySessionBeginDelegate deferredDelegate = delegate.deferredBeginDelegate(delegateQueue);
@@ -189,6 +228,22 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
   }
 
+  /**
+   * Check for records modified since the last sync, other than those stored
+   * during this session. This only reads GUIDs, so an idle sync costs one
+   * small query rather than a full <code>fetchSince</code>.
+   */
+  @Override
+  public boolean dataAvailable() {
+    try {
+      final Cursor cur = dbHelper.getGUIDsSince(getLastSyncTimestamp());
+      return RepoUtils.containsUntrackedGUID(cur, BrowserContract.SyncColumns.GUID, storeTracker);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to check for local changes; assuming there are some.", e);
+      return true;
+    }
+  }
+
   @Override
   public void guidsSince(long timestamp, RepositorySessionGuidsSinceDelegate delegate) {
     GuidsSinceRunnable command = new GuidsSinceRunnable(timestamp, delegate);
@@ -265,18 +320,24 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
             delegate.onFetchCompleted(end);
             return;
           }
+          final int batchSize = Math.max(1, getFetchTransformBatchSize());
+          final ArrayList<Record> batch = new ArrayList<Record>(batchSize);
           while (!cursor.isAfterLast()) {
             Record r = retrieveDuringFetch(cursor);
             if (r != null) {
               if (filter == null || !filter.excludeRecord(r)) {
-                Logger.trace(LOG_TAG, "Processing record " + r.guid);
-                delegate.onFetchedRecord(transformRecord(r));
+                Logger.trace(LOG_TAG, "Processing record {}", r.guid);
+                batch.add(r);
+                if (batch.size() >= batchSize) {
+                  deliverFetched(batch);
+                }
               } else {
-                Logger.debug(LOG_TAG, "Skipping filtered record " + r.guid);
+                Logger.debug(LOG_TAG, "Skipping filtered record {}", r.guid);
               }
             }
             cursor.moveToNext();
           }
+          deliverFetched(batch);
           delegate.onFetchCompleted(end);
         } catch (NoGuidForIdException e) {
           Logger.warn(LOG_TAG, "No GUID for ID.", e);
@@ -291,6 +352,20 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         cursor.close();
       }
     }
+
+    /**
+     * Transform and hand the records in <code>batch</code> to the delegate,
+     * then empty it.
+     */
+    private void deliverFetched(ArrayList<Record> batch) throws NullCursorException {
+      if (batch.isEmpty()) {
+        return;
+      }
+      for (Record record : transformRecords(batch)) {
+        delegate.onFetchedRecord(record);
+      }
+      batch.clear();
+    }
   }
 
   public class FetchRunnable extends FetchingRunnable {
@@ -381,6 +456,49 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
   protected int storeCount = 0;
 
+  /**
+   * The default number of GUIDs to look up with a single query during store.
+   */
+  public static final int DEFAULT_STORE_LOOKUP_BATCH_SIZE = 100;
+
+  /**
+   * GUIDs of records passed to <code>store</code> whose store runnables have
+   * not yet started, in order. Guarded by itself.
+   */
+  protected final LinkedList<String> pendingStoreGUIDs = new LinkedList<String>();
+
+  /**
+   * Local records fetched ahead of time for pending incoming records, keyed by
+   * GUID. A <code>null</code> value means there is no local record with that
+   * GUID. Entries are consumed when used, and dropped when we write to the
+   * record they describe.
+   * <p>
+   * Only touched on the <code>storeWorkQueue</code> thread.
+   */
+  protected final Map<String, Record> prefetchedRecords = new HashMap<String, Record>();
+
+  /**
+   * GUIDs for which the prefetch query returned more than one local record.
+   * <p>
+   * Only touched on the <code>storeWorkQueue</code> thread.
+   */
+  protected final Set<String> prefetchedAmbiguousGUIDs = new HashSet<String>();
+
+  /**
+   * Override this to change how many local records are looked up by GUID in
+   * a single query during store.
+   * <p>
+   * Return 1 to look up each record as it is stored. Subclasses must do so if
+   * storing one record can change how another local record reads back (for
+   * example, by changing its parent), because batched lookups read records
+   * before earlier records in the batch are applied.
+   *
+   * @return the maximum number of GUIDs to fetch at once.
+   */
+  protected int getStoreLookupBatchSize() {
+    return DEFAULT_STORE_LOOKUP_BATCH_SIZE;
+  }
+
   @Override
   public void store(final Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -392,7 +510,9 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
 
     storeCount += 1;
-    Logger.debug(LOG_TAG, "Storing record with GUID " + record.guid + " (stored " + storeCount + " records this session).");
+    Logger.debug(LOG_TAG, "Storing record with GUID {} (stored {} records this session).", record.guid, storeCount);
+
+    final boolean batchLookups = getStoreLookupBatchSize() > 1;
 
     // Store Runnables *must* complete synchronously. It's OK, they
     // run on a background thread.
@@ -400,6 +520,12 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
       @Override
       public void run() {
+        if (batchLookups) {
+          synchronized (pendingStoreGUIDs) {
+            pendingStoreGUIDs.poll();
+          }
+        }
+
         if (!isActive()) {
           Logger.warn(LOG_TAG, "AndroidBrowserRepositorySession is inactive. Store failing.");
           delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
@@ -412,7 +538,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         // See Bug 708149. This might be resolved by Fennec changing its database
         // schema, or by Sync storing non-applied records in its own private database.
         if (shouldIgnore(record)) {
-          Logger.debug(LOG_TAG, "Ignoring record " + record.guid);
+          Logger.debug(LOG_TAG, "Ignoring record {}", record.guid);
 
           // Don't throw: we don't want to abort the entire sync when we get a livemark!
           // delegate.onRecordStoreFailed(new InvalidBookmarkTypeException(null));
@@ -433,7 +559,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         Record existingRecord;
         try {
           // GUID matching only: deleted records don't have a payload with which to search.
-          existingRecord = retrieveByGUIDDuringStore(record.guid);
+          existingRecord = batchLookups ? lookUpByGUIDDuringStore(record.guid) : retrieveByGUIDDuringStore(record.guid);
           if (record.deleted) {
             if (existingRecord == null) {
               // We're done. Don't bother with a callback. That can change later
@@ -539,7 +665,17 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         }
       }
     };
-    storeWorkQueue.execute(command);
+
+    if (!batchLookups) {
+      storeWorkQueue.execute(command);
+      return;
+    }
+
+    // Keep the queue of pending GUIDs in the same order as the runnables.
+    synchronized (pendingStoreGUIDs) {
+      pendingStoreGUIDs.add(record.guid);
+      storeWorkQueue.execute(command);
+    }
   }
 
   /**
@@ -552,12 +688,14 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected void storeRecordDeletion(final Record record, final Record existingRecord) {
     // TODO: we ought to mark the record as deleted rather than purging it,
     // in order to support syncing to multiple destinations. Bug 722607.
+    forgetPrefetchedRecord(record.guid);
     dbHelper.purgeGuid(record.guid);
     delegate.onRecordStoreSucceeded(record.guid);
   }
 
   protected void insert(Record record) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     Record toStore = prepareRecord(record);
+    forgetPrefetchedRecord(toStore.guid);
     Uri recordURI = dbHelper.insert(toStore);
     if (recordURI == null) {
       throw new NullCursorException(new RuntimeException("Got null URI inserting record with guid " + record.guid));
@@ -568,16 +706,18 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     trackRecord(toStore);
     delegate.onRecordStoreSucceeded(toStore.guid);
 
-    Logger.debug(LOG_TAG, "Inserted record with guid " + toStore.guid + " as androidID " + toStore.androidID);
+    Logger.debug(LOG_TAG, "Inserted record with guid {} as androidID {}", toStore.guid, toStore.androidID);
   }
 
   protected Record replace(Record newRecord, Record existingRecord) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     Record toStore = prepareRecord(newRecord);
 
     // newRecord should already have suitable androidID and guid.
+    forgetPrefetchedRecord(existingRecord.guid);
+    forgetPrefetchedRecord(toStore.guid);
     dbHelper.update(existingRecord.guid, toStore);
     updateBookkeeping(toStore);
-    Logger.debug(LOG_TAG, "replace() returning record " + toStore.guid);
+    Logger.debug(LOG_TAG, "replace() returning record {}", toStore.guid);
     return toStore;
   }
 
@@ -616,6 +756,88 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
   }
 
+  /**
+   * Like <code>retrieveByGUIDDuringStore</code>, but fetch local records for
+   * the next pending incoming records in the same query, so that a stream of
+   * incoming records costs one query per batch rather than one per record.
+   * <p>
+   * Must be called on the <code>storeWorkQueue</code> thread.
+   *
+   * @throws NoGuidForIdException
+   * @throws NullCursorException
+   * @throws ParentNotFoundException
+   * @throws MultipleRecordsForGuidException
+   */
+  protected Record lookUpByGUIDDuringStore(String guid) throws
+                                           NoGuidForIdException,
+                                           NullCursorException,
+                                           ParentNotFoundException,
+                                           MultipleRecordsForGuidException {
+    if (prefetchedAmbiguousGUIDs.remove(guid)) {
+      prefetchedRecords.remove(guid);
+      throw new MultipleRecordsForGuidException(null);
+    }
+    if (prefetchedRecords.containsKey(guid)) {
+      return prefetchedRecords.remove(guid);
+    }
+    if (guid == null) {
+      return retrieveByGUIDDuringStore(guid);
+    }
+
+    final int batchSize = getStoreLookupBatchSize();
+    final ArrayList<String> guids = new ArrayList<String>(batchSize);
+    guids.add(guid);
+    synchronized (pendingStoreGUIDs) {
+      final Iterator<String> it = pendingStoreGUIDs.iterator();
+      while (it.hasNext() && guids.size() < batchSize) {
+        final String pending = it.next();
+        if (pending != null && !guids.contains(pending)) {
+          guids.add(pending);
+        }
+      }
+    }
+
+    if (guids.size() == 1) {
+      return retrieveByGUIDDuringStore(guid);
+    }
+
+    Logger.debug(LOG_TAG, "Looking up " + guids.size() + " GUIDs in one query.");
+    prefetchedRecords.clear();
+    prefetchedAmbiguousGUIDs.clear();
+    for (String g : guids) {
+      prefetchedRecords.put(g, null);
+    }
+
+    final Set<String> seen = new HashSet<String>();
+    Cursor cursor = dbHelper.fetch(guids.toArray(new String[guids.size()]));
+    try {
+      if (cursor.moveToFirst()) {
+        while (!cursor.isAfterLast()) {
+          final String fetchedGUID = RepoUtils.getStringFromCursor(cursor, BrowserContract.SyncColumns.GUID);
+          if (!seen.add(fetchedGUID)) {
+            prefetchedAmbiguousGUIDs.add(fetchedGUID);
+          } else {
+            prefetchedRecords.put(fetchedGUID, retrieveDuringStore(cursor));  // Not transformed.
+          }
+          cursor.moveToNext();
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return lookUpByGUIDDuringStore(guid);
+  }
+
+  /**
+   * Drop any prefetched state for <code>guid</code>. Call this before writing
+   * to the local record with that GUID.
+   */
+  protected void forgetPrefetchedRecord(String guid) {
+    prefetchedRecords.remove(guid);
+    prefetchedAmbiguousGUIDs.remove(guid);
+  }
+
   /**
    * Attempt to find an equivalent record through some means other than GUID.
    *
@@ -632,10 +854,10 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   protected Record findExistingRecord(Record record) throws MultipleRecordsForGuidException,
     NoGuidForIdException, NullCursorException, ParentNotFoundException {
 
-    Logger.debug(LOG_TAG, "Finding existing record for incoming record with GUID " + record.guid);
+    Logger.debug(LOG_TAG, "Finding existing record for incoming record with GUID {}", record.guid);
     String recordString = buildRecordString(record);
     if (recordString == null) {
-      Logger.debug(LOG_TAG, "No record string for incoming record " + record.guid);
+      Logger.debug(LOG_TAG, "No record string for incoming record {}", record.guid);
       return null;
     }
 
@@ -646,38 +868,41 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
     String guid = getGuidForString(recordString);
     if (guid == null) {
-      Logger.debug(LOG_TAG, "Failed to find existing record for " + record.guid);
+      Logger.debug(LOG_TAG, "Failed to find existing record for {}", record.guid);
       return null;
     }
 
-    // Our map contained a match, but it could be a false positive. Since
-    // computed record string is supposed to be a unique key, we can easily
-    // verify our positive.
+    // The map is keyed by the record string itself, so a hit can't be a hash
+    // collision, but it can be stale: the record may have changed since it was
+    // mapped. Check it.
     Logger.debug(LOG_TAG, "Found one. Checking stored record.");
-    Record stored = retrieveByGUIDDuringStore(guid);
-    String storedRecordString = buildRecordString(record);
-    if (recordString.equals(storedRecordString)) {
-      Logger.debug(LOG_TAG, "Existing record matches incoming record.  Returning existing record.");
+    final Record stored = retrieveByGUIDDuringStore(guid);
+    if (stored != null && recordString.equals(buildRecordString(stored))) {
+      Logger.debug(LOG_TAG, "Existing record matches incoming record. Returning existing record.");
       return stored;
     }
 
-    // Oh no, we got a false positive! (This should be *very* rare --
-    // essentially, we got a hash collision.) Search the DB for this record
-    // explicitly by hand.
-    Logger.debug(LOG_TAG, "Existing record does not match incoming record.  Trying to find record by record string.");
-    return findByRecordString(recordString);
+    // Another local record might still have this record string. Search the
+    // DB for it by hand.
+    Logger.debug(LOG_TAG, "Existing record does not match incoming record. Trying to find record by record string.");
+    recordToGuid.remove(recordString);
+    final Record found = findByRecordString(recordString);
+    if (found != null) {
+      recordToGuid.put(recordString, found.guid);
+    }
+    return found;
   }
 
   protected String getGuidForString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     if (recordToGuid == null) {
       createRecordToGuidMap();
     }
-    return recordToGuid.get(recordString.hashCode());
+    return recordToGuid.get(recordString);
   }
 
   protected void createRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     Logger.info(LOG_TAG, "BEGIN: creating record -> GUID map.");
-    recordToGuid = new SparseArray<String>();
+    recordToGuid = new HashMap<String, String>();
 
     // TODO: we should be able to do this entire thing with string concatenations within SQL.
     // Also consider whether it's better to fetch and process every record in the DB into
@@ -692,7 +917,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         if (record != null) {
           final String recordString = buildRecordString(record);
           if (recordString != null) {
-            recordToGuid.put(recordString.hashCode(), record.guid);
+            recordToGuid.put(recordString, record.guid);
           }
         }
         cur.moveToNext();
@@ -706,14 +931,14 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
   /**
    * Search the local database for a record with the same "record string".
    * <p>
-   * We expect to do this only in the unlikely event of a hash
-   * collision, so we iterate the database completely.  Since we want
-   * to include information about the parents of bookmarks, it is
-   * difficult to do better purely using the
-   * <code>ContentProvider</code> interface.
+   * We expect to do this only when a record changed after it was added to
+   * <code>recordToGuid</code>, so we iterate the database completely. Since we
+   * want to include information about the parents of bookmarks, it is
+   * difficult to do better purely using the <code>ContentProvider</code>
+   * interface.
    *
    * @param recordString
-   *          the "record string" to search for; must be n
+   *          the "record string" to search for; must be non-null.
    * @return a <code>Record</code> with the same "record string", or
    *         <code>null</code> if none is present.
    * @throws ParentNotFoundException
@@ -750,7 +975,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     if (recordToGuid == null) {
       createRecordToGuidMap();
     }
-    recordToGuid.put(recordString.hashCode(), guid);
+    recordToGuid.put(recordString, guid);
   }
 
   protected abstract Record prepareRecord(Record record);
@@ -4,6 +4,9 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.util.Collection;
+import java.util.HashMap;
+
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.ClientRecord;
@@ -171,6 +174,83 @@ public class ClientsDatabase extends CachedSQLiteOpenHelper {
     }
   }
 
+  /**
+   * Make the clients table match the given records, in one transaction.
+   * <p>
+   * Only rows that differ are written: unchanged clients are left alone, and
+   * clients that aren't in <code>records</code> are deleted.
+   *
+   * @param profileId
+   * @param records - every remote client.
+   * @return the number of rows inserted, updated, or deleted.
+   */
+  public int replaceClients(String profileId, Collection<ClientRecord> records) {
+    final HashMap<String, ContentValues> incoming = new HashMap<String, ContentValues>();
+    for (ClientRecord record : records) {
+      incoming.put(record.guid, allClientValues(profileId, record));
+    }
+
+    int changed = 0;
+    final SQLiteDatabase db = this.getCachedWritableDatabase();
+    db.beginTransaction();
+    try {
+      final Cursor cur = db.query(TBL_CLIENTS, TBL_CLIENTS_COLUMNS, null, null, null, null, null);
+      try {
+        while (cur.moveToNext()) {
+          final String guid = cur.getString(cur.getColumnIndexOrThrow(COL_ACCOUNT_GUID));
+          final String profile = cur.getString(cur.getColumnIndexOrThrow(COL_PROFILE));
+          final String[] args = new String[] { guid, profile };
+          final ContentValues cv = profileId.equals(profile) ? incoming.remove(guid) : null;
+          if (cv == null) {
+            changed += db.delete(TBL_CLIENTS, TBL_CLIENTS_KEY, args);
+          } else if (!rowMatches(cur, cv)) {
+            changed += db.update(TBL_CLIENTS, cv, TBL_CLIENTS_KEY, args);
+          }
+        }
+      } finally {
+        cur.close();
+      }
+
+      // Whatever's left is new.
+      for (ContentValues cv : incoming.values()) {
+        db.insert(TBL_CLIENTS, null, cv);
+        changed += 1;
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    Logger.debug(LOG_TAG, "Replaced " + records.size() + " client records; changed " + changed + " rows.");
+    return changed;
+  }
+
+  // Unlike store, set every column, so that fields removed remotely are
+  // cleared locally.
+  protected static ContentValues allClientValues(String profileId, ClientRecord record) {
+    final ContentValues cv = new ContentValues();
+    cv.put(COL_ACCOUNT_GUID, record.guid);
+    cv.put(COL_PROFILE, profileId);
+    cv.put(COL_NAME, record.name);
+    cv.put(COL_TYPE, record.type);
+    cv.put(COL_FORMFACTOR, record.formfactor);
+    cv.put(COL_OS, record.os);
+    cv.put(COL_APPLICATION, record.application);
+    cv.put(COL_APP_PACKAGE, record.appPackage);
+    cv.put(COL_DEVICE, record.device);
+    return cv;
+  }
+
+  protected static boolean rowMatches(Cursor cur, ContentValues cv) {
+    for (String column : TBL_CLIENTS_COLUMNS) {
+      final String existing = cur.getString(cur.getColumnIndexOrThrow(column));
+      final String value = cv.getAsString(column);
+      if (existing == null ? value != null : !existing.equals(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Store a command in the commands database if it doesn't already exist.
    *
@@ -44,6 +44,16 @@ public class ClientsDatabaseAccessor {
     }
   }
 
+  /**
+   * Make the stored clients match <code>records</code>, writing only what
+   * changed.
+   *
+   * @return the number of rows changed.
+   */
+  public int replaceClients(Collection<ClientRecord> records) {
+    return db.replaceClients(getProfileId(), records);
+  }
+
   public void store(String accountGUID, Command command) throws NullCursorException {
     db.store(accountGUID, command.commandType, command.args.toJSONString());
   }
@@ -156,6 +166,19 @@ public class ClientsDatabaseAccessor {
 
   }
 
+  public int commandsCount() {
+    try {
+      final Cursor cur = db.fetchAllCommands();
+      try {
+        return cur.getCount();
+      } finally {
+        cur.close();
+      }
+    } catch (NullCursorException e) {
+      return 0;
+    }
+  }
+
   private String getProfileId() {
     return Constants.DEFAULT_PROFILE;
   }
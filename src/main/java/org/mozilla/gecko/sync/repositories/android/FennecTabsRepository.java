@@ -5,11 +5,17 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.background.db.Tab;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.db.BrowserContract.Clients;
+import org.mozilla.gecko.db.BrowserContract.Tabs;
 import org.mozilla.gecko.sync.delegates.ClientsDataDelegate;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoContentProviderException;
@@ -26,8 +32,10 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.mozilla.gecko.sync.repositories.domain.TabsRecord;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
@@ -35,10 +43,56 @@ import android.os.RemoteException;
 public class FennecTabsRepository extends Repository {
   private static final String LOG_TAG = "FennecTabsRepository";
 
+  // Prefs keys for what we last uploaded.
+  protected static final String PREF_UPLOADED_HASH = "uploadedHash";
+  protected static final String PREF_UPLOADED_TIMESTAMP = "uploadedTimestamp";
+
+  /**
+   * Upload our tabs at least this often, even if they haven't changed, so
+   * that our record doesn't expire on the server.
+   */
+  protected static final long UPLOAD_REFRESH_MSEC = TabsRecord.TABS_TTL * 1000 / 2;
+
   protected final ClientsDataDelegate clientsDataDelegate;
 
+  // May be null, in which case we upload whenever a tab has been used since
+  // the last sync.
+  protected final SharedPreferences prefs;
+
+  // What our session fetched for upload; persisted by uploadSucceeded.
+  protected volatile String pendingUploadHash;
+
   public FennecTabsRepository(ClientsDataDelegate clientsDataDelegate) {
+    this(clientsDataDelegate, null);
+  }
+
+  /**
+   * @param clientsDataDelegate
+   *          describes the local client.
+   * @param prefs
+   *          where to remember what we last uploaded, so that we only upload
+   *          our tabs when they change.
+   */
+  public FennecTabsRepository(ClientsDataDelegate clientsDataDelegate, SharedPreferences prefs) {
     this.clientsDataDelegate = clientsDataDelegate;
+    this.prefs = prefs;
+  }
+
+  /**
+   * Remember the local tabs fetched for upload as uploaded. Call this only
+   * once the upload has succeeded: until then, or if it fails, we keep
+   * uploading our tabs every sync.
+   */
+  public void uploadSucceeded() {
+    final String hash = pendingUploadHash;
+    pendingUploadHash = null;
+    if (prefs == null || hash == null) {
+      return;
+    }
+    prefs.edit()
+         .putString(PREF_UPLOADED_HASH, hash)
+         .putLong(PREF_UPLOADED_TIMESTAMP, System.currentTimeMillis())
+         .commit();
   }
 
   /**
@@ -160,8 +214,7 @@ public class FennecTabsRepository extends Repository {
               final String localClientName = clientsDataDelegate.getClientName();
               final TabsRecord tabsRecord = FennecTabsRepository.tabsRecordFromCursor(cursor, localClientGuid, localClientName);
 
-              if (tabsRecord.lastModified >= timestamp ||
-                  clientsDataDelegate.getLastModifiedTimestamp() >= timestamp) {
+              if (shouldUpload(tabsRecord, timestamp)) {
                 delegate.onFetchedRecord(tabsRecord);
               }
             } finally {
@@ -178,6 +231,34 @@ public class FennecTabsRepository extends Repository {
       delegateQueue.execute(command);
     }
 
+    /**
+     * Decide whether our tabs record needs uploading. Without prefs, upload if
+     * a tab has been used since <code>timestamp</code>. With prefs, upload
+     * only if the record differs from what we last uploaded, or if that was
+     * long enough ago that it might expire.
+     * <p>
+     * What we last uploaded is only updated by
+     * {@link FennecTabsRepository#uploadSucceeded()}.
+     */
+    protected boolean shouldUpload(final TabsRecord tabsRecord, final long timestamp) {
+      final boolean clientChanged = clientsDataDelegate.getLastModifiedTimestamp() >= timestamp;
+      if (prefs == null) {
+        return clientChanged || tabsRecord.lastModified >= timestamp;
+      }
+
+      final String hash = tabsRecord.contentHash();
+      final long lastUpload = prefs.getLong(PREF_UPLOADED_TIMESTAMP, 0L);
+      if (clientChanged ||
+          hash == null ||
+          !hash.equals(prefs.getString(PREF_UPLOADED_HASH, null)) ||
+          now() - lastUpload >= UPLOAD_REFRESH_MSEC) {
+        pendingUploadHash = hash;
+        return true;
+      }
+      Logger.debug(LOG_TAG, "Local tabs unchanged since last upload.");
+      return false;
+    }
+
     @Override
     public void fetch(final String[] guids,
                       final RepositorySessionFetchRecordsDelegate delegate) {
@@ -199,6 +280,7 @@ public class FennecTabsRepository extends Repository {
 
     private static final String TABS_CLIENT_GUID_IS = BrowserContract.Tabs.CLIENT_GUID + " = ?";
     private static final String CLIENT_GUID_IS = BrowserContract.Clients.GUID + " = ?";
+    private static final String TABS_ID_IS = BrowserContract.Tabs._ID + " = ?";
 
     @Override
     public void store(final Record record) throws NoStoreDelegateException {
@@ -254,22 +336,8 @@ public class FennecTabsRepository extends Repository {
                 clientsCV.put(Clients.DEVICE_TYPE, clientRecord.type);
             }
 
-            Logger.debug(LOG_TAG, "Updating clients provider.");
-            final int updated = clientsProvider.update(BrowserContractHelpers.CLIENTS_CONTENT_URI,
-                clientsCV,
-                CLIENT_GUID_IS,
-                selectionArgs);
-            if (0 == updated) {
-              clientsProvider.insert(BrowserContractHelpers.CLIENTS_CONTENT_URI, clientsCV);
-            }
-
-            // Now insert tabs.
-            final ContentValues[] tabsArray = tabsRecord.getTabsContentValues();
-            Logger.debug(LOG_TAG, "Inserting " + tabsArray.length + " tabs for client " + tabsRecord.guid);
-
-            tabsProvider.delete(BrowserContractHelpers.TABS_CONTENT_URI, TABS_CLIENT_GUID_IS, selectionArgs);
-            final int inserted = tabsProvider.bulkInsert(BrowserContractHelpers.TABS_CONTENT_URI, tabsArray);
-            Logger.trace(LOG_TAG, "Inserted: " + inserted);
+            storeClient(clientsCV, selectionArgs);
+            storeTabs(tabsRecord, selectionArgs);
 
             delegate.onRecordStoreSucceeded(record.guid);
           } catch (Exception e) {
@@ -282,6 +350,102 @@ public class FennecTabsRepository extends Repository {
       storeWorkQueue.execute(command);
     }
 
+    // Only write the client row if it has changed.
+    protected void storeClient(final ContentValues clientsCV, final String[] selectionArgs) throws RemoteException {
+      final Cursor cursor = clientsProvider.query(BrowserContractHelpers.CLIENTS_CONTENT_URI, null, CLIENT_GUID_IS, selectionArgs, null);
+      if (cursor != null) {
+        try {
+          if (cursor.moveToFirst()) {
+            if (rowMatches(cursor, clientsCV)) {
+              Logger.debug(LOG_TAG, "Client unchanged.");
+              return;
+            }
+            Logger.debug(LOG_TAG, "Updating clients provider.");
+            clientsProvider.update(BrowserContractHelpers.CLIENTS_CONTENT_URI, clientsCV, CLIENT_GUID_IS, selectionArgs);
+            return;
+          }
+        } finally {
+          cursor.close();
+        }
+      }
+      clientsProvider.insert(BrowserContractHelpers.CLIENTS_CONTENT_URI, clientsCV);
+    }
+
+    /**
+     * Make the stored tabs for a client match the record. Stored tabs are
+     * matched to incoming tabs by history, so a tab opened or closed only
+     * touches its own row and the positions of the rows after it. Everything
+     * is applied in one batch.
+     */
+    protected void storeTabs(final TabsRecord tabsRecord, final String[] selectionArgs) throws Exception {
+      final Map<String, LinkedList<StoredTab>> existing = new HashMap<String, LinkedList<StoredTab>>();
+      final Cursor cursor = tabsHelper.safeQuery(tabsProvider, ".storeTabs()", null,
+          TABS_CLIENT_GUID_IS, selectionArgs, Tabs.POSITION + " ASC");
+      try {
+        while (cursor.moveToNext()) {
+          final Tab tab = Tab.fromCursor(cursor);
+          final StoredTab stored = new StoredTab(RepoUtils.getLongFromCursor(cursor, Tabs._ID),
+              RepoUtils.getIntFromCursor(cursor, Tabs.POSITION), tab);
+          final String key = tabKey(tab);
+          LinkedList<StoredTab> withKey = existing.get(key);
+          if (withKey == null) {
+            withKey = new LinkedList<StoredTab>();
+            existing.put(key, withKey);
+          }
+          withKey.add(stored);
+        }
+      } finally {
+        cursor.close();
+      }
+
+      final ArrayList<ContentProviderOperation> writes = new ArrayList<ContentProviderOperation>();
+      final List<Tab> incoming = tabsRecord.tabs;
+      for (int i = 0; i < incoming.size(); i++) {
+        final Tab tab = incoming.get(i);
+        final LinkedList<StoredTab> withKey = existing.get(tabKey(tab));
+        final StoredTab stored = (withKey == null) ? null : withKey.poll();
+        if (stored == null) {
+          writes.add(ContentProviderOperation.newInsert(BrowserContractHelpers.TABS_CONTENT_URI)
+                                             .withValues(tab.toContentValues(tabsRecord.guid, i))
+                                             .build());
+          continue;
+        }
+
+        final ContentValues values;
+        if (!stored.tab.equals(tab)) {
+          values = tab.toContentValues(tabsRecord.guid, i);
+        } else if (stored.position != i) {
+          values = new ContentValues();
+          values.put(Tabs.POSITION, i);
+        } else {
+          continue;
+        }
+        writes.add(ContentProviderOperation.newUpdate(BrowserContractHelpers.TABS_CONTENT_URI)
+                                           .withSelection(TABS_ID_IS, new String[] { String.valueOf(stored.id) })
+                                           .withValues(values)
+                                           .build());
+      }
+
+      // Whatever wasn't matched has been closed. Delete before writing so
+      // positions never collide.
+      final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+      for (LinkedList<StoredTab> withKey : existing.values()) {
+        for (StoredTab stored : withKey) {
+          operations.add(ContentProviderOperation.newDelete(BrowserContractHelpers.TABS_CONTENT_URI)
+                                                 .withSelection(TABS_ID_IS, new String[] { String.valueOf(stored.id) })
+                                                 .build());
+        }
+      }
+      operations.addAll(writes);
+
+      if (operations.isEmpty()) {
+        Logger.debug(LOG_TAG, "Tabs unchanged for client " + tabsRecord.guid);
+        return;
+      }
+      Logger.debug(LOG_TAG, "Applying " + operations.size() + " tab changes for client " + tabsRecord.guid);
+      tabsProvider.applyBatch(operations);
+    }
+
     @Override
     public void wipe(RepositorySessionWipeDelegate delegate) {
       try {
@@ -307,6 +471,39 @@ public class FennecTabsRepository extends Repository {
     }
   }
 
+  // A stored tab, with where it is.
+  private static class StoredTab {
+    public final long id;
+    public final int position;
+    public final Tab tab;
+
+    public StoredTab(long id, int position, Tab tab) {
+      this.id = id;
+      this.position = position;
+      this.tab = tab;
+    }
+  }
+
+  // Tabs are identified by their history, which starts with the current URL.
+  protected static String tabKey(final Tab tab) {
+    return (tab.history == null) ? "" : tab.history.toJSONString();
+  }
+
+  protected static boolean rowMatches(final Cursor cursor, final ContentValues values) {
+    for (Entry<String, Object> entry : values.valueSet()) {
+      final int index = cursor.getColumnIndex(entry.getKey());
+      if (index == -1) {
+        return false;
+      }
+      final String existing = cursor.getString(index);
+      final String value = entry.getValue() == null ? null : entry.getValue().toString();
+      if (existing == null ? value != null : !existing.equals(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Extract a <code>TabsRecord</code> from a cursor.
    * <p>
@@ -6,6 +6,7 @@ package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -29,8 +30,11 @@ import org.mozilla.gecko.sync.repositories.domain.FormHistoryRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
@@ -40,7 +44,7 @@ public class FormHistoryRepositorySession extends
   public static final String LOG_TAG = "FormHistoryRepoSess";
 
   /**
-   * Number of records to insert in one batch.
+   * Number of records to insert, or operations to apply, in one batch.
    */
   public static final int INSERT_ITEM_THRESHOLD = 200;
 
@@ -121,6 +125,27 @@ public class FormHistoryRepositorySession extends
 
   protected static final String[] GUID_COLUMNS = new String[] { FormHistory.GUID };
 
+  /**
+   * Check both tables for records modified since the last sync, other than
+   * those stored during this session.
+   */
+  @Override
+  public boolean dataAvailable() {
+    final long timestamp = getLastSyncTimestamp();
+    final long end = now();
+    try {
+      final Cursor regular = regularHelper.safeQuery(formsProvider, ".dataAvailable(regular)", GUID_COLUMNS, regularBetween(timestamp, end), null, null);
+      if (RepoUtils.containsUntrackedGUID(regular, FormHistory.GUID, storeTracker)) {
+        return true;
+      }
+      final Cursor deleted = deletedHelper.safeQuery(formsProvider, ".dataAvailable(deleted)", GUID_COLUMNS, deletedBetween(timestamp, end), null, null);
+      return RepoUtils.containsUntrackedGUID(deleted, FormHistory.GUID, storeTracker);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to check for local changes; assuming there are some.", e);
+      return true;
+    }
+  }
+
   @Override
   public void guidsSince(final long timestamp, final RepositorySessionGuidsSinceDelegate delegate) {
     Runnable command = new Runnable() {
@@ -353,56 +378,108 @@ public class FormHistoryRepositorySession extends
 
   protected static final String GUID_IS = FormHistory.GUID + " = ?";
 
-  protected Record findExistingRecordByGuid(String guid)
-      throws RemoteException, NullCursorException {
-    Cursor cursor = null;
+  protected static final String[] REGULAR_INDEX_COLUMNS = new String[] {
+    FormHistory.ID, FormHistory.GUID, FormHistory.FIELD_NAME, FormHistory.VALUE, FormHistory.FIRST_USED
+  };
+  protected static final String[] DELETED_INDEX_COLUMNS = new String[] {
+    DeletedFormHistory.ID, DeletedFormHistory.GUID, DeletedFormHistory.TIME_DELETED
+  };
+
+  /*
+   * Local records, by GUID and by (field name, value), so that matching an
+   * incoming record doesn't cost any provider queries.
+   *
+   * The index is loaded with one scan of each table when the first record
+   * is stored, kept up to date as records are stored, and dropped when
+   * storing is done. It is only touched from storeWorkQueue. Changes made
+   * to the provider by anything else while we're storing are not seen.
+   */
+  protected HashMap<String, FormHistoryRecord> recordsByGuid;
+  protected HashMap<String, FormHistoryRecord> regularRecordsByPayload;
+
+  protected static String payloadKey(FormHistoryRecord record) {
+    return record.fieldName + "\u0000" + record.fieldValue;
+  }
+
+  // Should always be called from storeWorkQueue.
+  protected void loadIndexIfNecessary() throws RemoteException, NullCursorException {
+    if (recordsByGuid != null) {
+      return;
+    }
+
+    final long before = System.currentTimeMillis();
+    final HashMap<String, FormHistoryRecord> byGuid = new HashMap<String, FormHistoryRecord>();
+    final HashMap<String, FormHistoryRecord> byPayload = new HashMap<String, FormHistoryRecord>();
+
+    Cursor cursor = regularHelper.safeQuery(formsProvider, ".loadIndex(regular)", REGULAR_INDEX_COLUMNS, null, null, null);
     try {
-      cursor = regularHelper.safeQuery(formsProvider, ".findExistingRecordByGuid(regular)",
-          null, GUID_IS, new String[] { guid }, null);
-      if (cursor.moveToFirst()) {
-        return formHistoryRecordFromCursor(cursor);
+      while (cursor.moveToNext()) {
+        final FormHistoryRecord record = formHistoryRecordFromCursor(cursor);
+        byGuid.put(record.guid, record);
+        // Like a query, match the first of any duplicates.
+        final String key = payloadKey(record);
+        if (!byPayload.containsKey(key)) {
+          byPayload.put(key, record);
+        }
       }
     } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
+      cursor.close();
     }
 
+    cursor = deletedHelper.safeQuery(formsProvider, ".loadIndex(deleted)", DELETED_INDEX_COLUMNS, null, null, null);
     try {
-      cursor = deletedHelper.safeQuery(formsProvider, ".findExistingRecordByGuid(deleted)",
-          null, GUID_IS, new String[] { guid }, null);
-      if (cursor.moveToFirst()) {
-        return deletedFormHistoryRecordFromCursor(cursor);
+      while (cursor.moveToNext()) {
+        final FormHistoryRecord record = deletedFormHistoryRecordFromCursor(cursor);
+        // A GUID shouldn't be in both tables; if it is, prefer the regular record.
+        if (!byGuid.containsKey(record.guid)) {
+          byGuid.put(record.guid, record);
+        }
       }
     } finally {
-      if (cursor != null) {
-        cursor.close();
+      cursor.close();
+    }
+
+    recordsByGuid = byGuid;
+    regularRecordsByPayload = byPayload;
+    Logger.debug(LOG_TAG, "Indexed " + byGuid.size() + " local form history items in " +
+                          (System.currentTimeMillis() - before) + " milliseconds.");
+  }
+
+  protected void dropIndex() {
+    recordsByGuid = null;
+    regularRecordsByPayload = null;
+  }
+
+  protected void indexRecord(FormHistoryRecord record) {
+    recordsByGuid.put(record.guid, record);
+    if (!record.deleted) {
+      regularRecordsByPayload.put(payloadKey(record), record);
+    }
+  }
+
+  protected void unindexRecord(FormHistoryRecord record) {
+    recordsByGuid.remove(record.guid);
+    if (!record.deleted) {
+      final String key = payloadKey(record);
+      if (regularRecordsByPayload.get(key) == record) {
+        regularRecordsByPayload.remove(key);
       }
     }
+  }
 
-    return null;
+  protected Record findExistingRecordByGuid(String guid)
+      throws RemoteException, NullCursorException {
+    loadIndexIfNecessary();
+    return recordsByGuid.get(guid);
   }
 
   protected Record findExistingRecordByPayload(Record rawRecord)
       throws RemoteException, NullCursorException {
-    if (!rawRecord.deleted) {
-      FormHistoryRecord record = (FormHistoryRecord) rawRecord;
-      Cursor cursor = null;
-      try {
-        String where = FormHistory.FIELD_NAME + " = ? AND " + FormHistory.VALUE + " = ?";
-        cursor = regularHelper.safeQuery(formsProvider, ".findExistingRecordByPayload",
-            null, where, new String[] { record.fieldName, record.fieldValue }, null);
-        if (cursor.moveToFirst()) {
-          return formHistoryRecordFromCursor(cursor);
-        }
-      } finally {
-        if (cursor != null) {
-          cursor.close();
-        }
-      }
+    if (rawRecord.deleted) {
+      return null;
     }
-
-    return null;
+    loadIndexIfNecessary();
+    return regularRecordsByPayload.get(payloadKey((FormHistoryRecord) rawRecord));
   }
 
   /**
@@ -414,13 +491,14 @@ public class FormHistoryRepositorySession extends
    * @param existingRecord
    *          The local <code>Record</code> to replace.
    * @throws RemoteException
+   * @throws OperationApplicationException
    */
-  protected void deleteExistingRecord(Record existingRecord) throws RemoteException {
-    if (existingRecord.deleted) {
-      formsProvider.delete(DELETED_FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid });
-      return;
-    }
-    formsProvider.delete(FORM_HISTORY_CONTENT_URI, GUID_IS, new String[] { existingRecord.guid });
+  protected void deleteExistingRecord(Record existingRecord) throws RemoteException, OperationApplicationException {
+    final Uri uri = existingRecord.deleted ? DELETED_FORM_HISTORY_CONTENT_URI : FORM_HISTORY_CONTENT_URI;
+    enqueueOperation(ContentProviderOperation.newDelete(uri)
+                                             .withSelection(GUID_IS, new String[] { existingRecord.guid })
+                                             .build());
+    unindexRecord((FormHistoryRecord) existingRecord);
   }
 
   protected static ContentValues contentValuesForRegularRecord(Record rawRecord) {
@@ -437,11 +515,33 @@ public class FormHistoryRepositorySession extends
     return cv;
   }
 
+  /*
+   * Writes are buffered so that the provider sees a few large batches rather
+   * than one call per record. New records are inserted with bulkInsert;
+   * replacements and deletions are applied with applyBatch.
+   *
+   * Writes must reach the provider in the order they were made: a
+   * replacement can rename a record to a GUID that a later insert relies on
+   * being free, and so on. So while any operations are buffered, inserts
+   * are buffered as operations too, and only one of the two buffers is ever
+   * non-empty.
+   */
   protected final Object recordsBufferMonitor = new Object();
   protected ArrayList<ContentValues> recordsBuffer = new ArrayList<ContentValues>();
+  protected ArrayList<ContentProviderOperation> operationsBuffer = new ArrayList<ContentProviderOperation>();
 
   protected void enqueueRegularRecord(Record record) {
     synchronized (recordsBufferMonitor) {
+      if (!operationsBuffer.isEmpty()) {
+        try {
+          enqueueOperation(ContentProviderOperation.newInsert(FORM_HISTORY_CONTENT_URI)
+                                                   .withValues(contentValuesForRegularRecord(record))
+                                                   .build());
+        } catch (Exception e) {
+          delegate.onRecordStoreFailed(e, record.guid);
+        }
+        return;
+      }
       if (recordsBuffer.size() >= INSERT_ITEM_THRESHOLD) {
         // Insert the existing contents, then enqueue.
         try {
@@ -456,6 +556,26 @@ public class FormHistoryRepositorySession extends
     }
   }
 
+  // Should always be called from storeWorkQueue.
+  protected void enqueueOperation(ContentProviderOperation operation)
+      throws RemoteException, OperationApplicationException {
+    synchronized (recordsBufferMonitor) {
+      if (!recordsBuffer.isEmpty()) {
+        // Keep buffered inserts ahead of this operation.
+        for (ContentValues cv : recordsBuffer) {
+          operationsBuffer.add(ContentProviderOperation.newInsert(FORM_HISTORY_CONTENT_URI)
+                                                       .withValues(cv)
+                                                       .build());
+        }
+        recordsBuffer = new ArrayList<ContentValues>();
+      }
+      if (operationsBuffer.size() >= INSERT_ITEM_THRESHOLD) {
+        flushOperationQueue();
+      }
+      operationsBuffer.add(operation);
+    }
+  }
+
   // Should always be called from storeWorkQueue.
   protected void flushInsertQueue() throws RemoteException {
     synchronized (recordsBufferMonitor) {
@@ -476,16 +596,50 @@ public class FormHistoryRepositorySession extends
     }
   }
 
+  // Should always be called from storeWorkQueue.
+  protected void flushOperationQueue() throws RemoteException, OperationApplicationException {
+    synchronized (recordsBufferMonitor) {
+      if (operationsBuffer.isEmpty()) {
+        return;
+      }
+      final ArrayList<ContentProviderOperation> outgoing = operationsBuffer;
+      operationsBuffer = new ArrayList<ContentProviderOperation>();
+
+      long before = System.currentTimeMillis();
+      final ContentProviderResult[] results = formsProvider.applyBatch(outgoing);
+      long after = System.currentTimeMillis();
+      Logger.debug(LOG_TAG, "Applied " + outgoing.size() + " form history operations in (" + (after - before) + " milliseconds).");
+
+      // Inserts return a URI; updates and deletes return a count.
+      int missed = 0;
+      for (ContentProviderResult result : results) {
+        if (result.uri == null && result.count != null && result.count == 0) {
+          missed += 1;
+        }
+      }
+      if (missed > 0) {
+        Logger.warn(LOG_TAG, "Expected every form history operation to change a record, but " + missed + " did not.");
+      }
+    }
+  }
+
+  // Should always be called from storeWorkQueue.
+  protected void flushQueues() throws RemoteException, OperationApplicationException {
+    synchronized (recordsBufferMonitor) {
+      flushInsertQueue();
+      flushOperationQueue();
+    }
+  }
+
   @Override
   public void storeDone() {
     Runnable command = new Runnable() {
       @Override
       public void run() {
-        Logger.debug(LOG_TAG, "Checking for residual form history items to insert.");
+        Logger.debug(LOG_TAG, "Checking for residual form history items to write.");
+        dropIndex();
         try {
-          synchronized (recordsBufferMonitor) {
-            flushInsertQueue();
-          }
+          flushQueues();
           storeDone(now());
         } catch (Exception e) {
           // XXX TODO
@@ -508,6 +662,7 @@ public class FormHistoryRepositorySession extends
   protected void insertNewRegularRecord(Record record)
       throws RemoteException {
     enqueueRegularRecord(record);
+    indexRecord((FormHistoryRecord) record);
   }
 
   /**
@@ -524,7 +679,7 @@ public class FormHistoryRepositorySession extends
    * @throws RemoteException
    */
   protected void replaceExistingRecordWithRegularRecord(Record toStore, Record existingRecord)
-      throws RemoteException {
+      throws RemoteException, OperationApplicationException {
     if (existingRecord.deleted) {
       // Need two database operations -- purge from deleted table, insert into regular table.
       deleteExistingRecord(existingRecord);
@@ -533,10 +688,12 @@ public class FormHistoryRepositorySession extends
     }
 
     final ContentValues cv = contentValuesForRegularRecord(toStore);
-    int updated = formsProvider.update(FORM_HISTORY_CONTENT_URI, cv, GUID_IS, new String[] { existingRecord.guid });
-    if (updated != 1) {
-      Logger.warn(LOG_TAG, "Expected to update 1 record with guid " + existingRecord.guid + " but updated " + updated + " records.");
-    }
+    enqueueOperation(ContentProviderOperation.newUpdate(FORM_HISTORY_CONTENT_URI)
+                                             .withSelection(GUID_IS, new String[] { existingRecord.guid })
+                                             .withValues(cv)
+                                             .build());
+    unindexRecord((FormHistoryRecord) existingRecord);
+    indexRecord((FormHistoryRecord) toStore);
   }
 
   @Override
@@ -707,6 +864,9 @@ public class FormHistoryRepositorySession extends
         }
 
         try {
+          // Anything stored before the wipe is written before the wipe.
+          dropIndex();
+          flushQueues();
           Logger.debug(LOG_TAG, "Wiping form history and deleted form history...");
           purgeDatabases(formsProvider);
           Logger.debug(LOG_TAG, "Wiping form history and deleted form history... DONE");
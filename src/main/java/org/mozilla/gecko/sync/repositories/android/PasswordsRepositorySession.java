@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import org.mozilla.gecko.background.common.log.Logger;
@@ -28,11 +29,12 @@ import org.mozilla.gecko.sync.repositories.domain.PasswordRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentProviderClient;
-import android.content.ContentUris;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.RemoteException;
 
 public class PasswordsRepositorySession extends
@@ -51,6 +53,11 @@ public class PasswordsRepositorySession extends
   private static final String LOG_TAG = "PasswordsRepoSession";
   private static final String COLLECTION = "passwords";
 
+  /**
+   * Number of provider operations to apply in one batch.
+   */
+  public static final int OPERATION_BATCH_SIZE = 200;
+
   private final RepoUtils.QueryHelper passwordsHelper;
   private final RepoUtils.QueryHelper deletedPasswordsHelper;
   private final ContentProviderClient passwordsProvider;
@@ -71,6 +78,26 @@ public class PasswordsRepositorySession extends
   private static final String WHERE_GUID_IS = Passwords.GUID + " = ?";
   private static final String WHERE_DELETED_GUID_IS = DeletedPasswords.GUID + " = ?";
 
+  /**
+   * Check both tables for records modified since the last sync, other than
+   * those stored during this session.
+   */
+  @Override
+  public boolean dataAvailable() {
+    final long timestamp = getLastSyncTimestamp();
+    try {
+      final Cursor data = passwordsHelper.safeQuery(passwordsProvider, ".dataAvailable", GUID_COLS, dateModifiedWhere(timestamp), null, null);
+      if (RepoUtils.containsUntrackedGUID(data, Passwords.GUID, storeTracker)) {
+        return true;
+      }
+      final Cursor deleted = deletedPasswordsHelper.safeQuery(passwordsProvider, ".dataAvailable", DELETED_GUID_COLS, dateModifiedWhereDeleted(timestamp), null, null);
+      return RepoUtils.containsUntrackedGUID(deleted, DeletedColumns.GUID, storeTracker);
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Unable to check for local changes; assuming there are some.", e);
+      return true;
+    }
+  }
+
   @Override
   public void guidsSince(final long timestamp, final RepositorySessionGuidsSinceDelegate delegate) {
     final Runnable guidsSinceRunnable = new Runnable() {
@@ -267,15 +294,19 @@ public class PasswordsRepositorySession extends
           return;
         }
 
-        PasswordRecord existingRecord;
+        // Start a new batch between records, so that each batch holds whole
+        // records; then make sure we have an index to reconcile against.
+        flushOperationsIfFull();
         try {
-          existingRecord = retrieveByGUID(guid);
-        } catch (NullCursorException | RemoteException e) {
-          // Indicates a serious problem.
+          loadIndexIfNecessary();
+        } catch (Exception e) {
+          Logger.error(LOG_TAG, "Unable to index local logins.", e);
           delegate.onRecordStoreFailed(e, record.guid);
           return;
         }
 
+        PasswordRecord existingRecord = retrieveByGUID(guid);
+
         long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
         long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
         boolean remotelyModified = remoteRecord.lastModified > lastRemoteRetrieval;
@@ -334,31 +365,16 @@ public class PasswordsRepositorySession extends
         // Now we're processing a non-deleted incoming record.
         if (existingRecord == null) {
           trace("Looking up match for record " + remoteRecord.guid);
-          try {
-            existingRecord = findExistingRecord(remoteRecord);
-          } catch (RemoteException e) {
-            Logger.error(LOG_TAG, "Remote exception in findExistingRecord.");
-            delegate.onRecordStoreFailed(e, record.guid);
-          } catch (NullCursorException e) {
-            Logger.error(LOG_TAG, "Null cursor in findExistingRecord.");
-            delegate.onRecordStoreFailed(e, record.guid);
-          }
+          existingRecord = findExistingRecord(remoteRecord);
         }
 
         if (existingRecord == null) {
           // The record is new.
           trace("No match. Inserting.");
           Logger.debug(LOG_TAG, "Didn't find matching record. Inserting.");
-          Record inserted = null;
-          try {
-            inserted = insert(remoteRecord);
-          } catch (RemoteException e) {
-            Logger.debug(LOG_TAG, "Record insert caused a RemoteException.");
-            delegate.onRecordStoreFailed(e, record.guid);
-            return;
-          }
+          final Record inserted = insert(remoteRecord);
           trackRecord(inserted);
-          delegate.onRecordStoreSucceeded(inserted.guid);
+          pendingGuids.add(inserted.guid);
           return;
         }
 
@@ -374,26 +390,31 @@ public class PasswordsRepositorySession extends
 
         // TODO: pass in timestamps?
         Logger.debug(LOG_TAG, "Replacing " + existingRecord.guid + " with record " + toStore.guid);
-        Record replaced = null;
-        try {
-          replaced = replace(existingRecord, toStore);
-        } catch (RemoteException e) {
-          Logger.debug(LOG_TAG, "Record replace caused a RemoteException.");
-          delegate.onRecordStoreFailed(e, record.guid);
-          return;
-        }
+        final Record replaced = replace(existingRecord, toStore);
 
         // Note that we don't track records here; deciding that is the job
         // of reconcileRecords.
-        Logger.debug(LOG_TAG, "Calling delegate callback with guid " + replaced.guid +
+        Logger.debug(LOG_TAG, "Queued replacement with guid " + replaced.guid +
                               "(" + replaced.androidID + ")");
-        delegate.onRecordStoreSucceeded(record.guid);
+        pendingGuids.add(record.guid);
         return;
       }
     };
     storeWorkQueue.execute(storeRunnable);
   }
 
+  @Override
+  public void storeDone() {
+    storeWorkQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        // Reports every queued record as stored or failed.
+        flushOperations();
+        storeDone(now());
+      }
+    });
+  }
+
   @Override
   public void wipe(final RepositorySessionWipeDelegate delegate) {
     Logger.info(LOG_TAG, "Wiping " + BrowserContractHelpers.PASSWORDS_CONTENT_URI + ", " + BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI);
@@ -406,10 +427,13 @@ public class PasswordsRepositorySession extends
           return;
         }
 
-        // Wipe both data and deleted.
+        // Wipe both data and deleted. Anything stored before the wipe is
+        // written before the wipe.
+        flushOperations();
         try {
           context.getContentResolver().delete(BrowserContractHelpers.PASSWORDS_CONTENT_URI, null, null);
           context.getContentResolver().delete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, null, null);
+          dropIndex();
         } catch (Exception e) {
           delegate.onWipeFailed(e);
           return;
@@ -432,39 +456,109 @@ public class PasswordsRepositorySession extends
     super.finish(delegate);
   }
 
-  public void deleteGUID(String guid) throws RemoteException {
-    final String[] args = new String[] { guid };
+  /*
+   * Writes are queued and applied in order, in batches, by flushOperations.
+   * A record is only reported stored once the batch holding its writes has
+   * been applied. The queues are only touched from storeWorkQueue.
+   */
+  protected ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+  protected ArrayList<String> pendingGuids = new ArrayList<String>();
 
-    int deleted = passwordsProvider.delete(BrowserContractHelpers.PASSWORDS_CONTENT_URI, WHERE_GUID_IS, args) +
-                  passwordsProvider.delete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI, WHERE_DELETED_GUID_IS, args);
-    if (deleted == 1) {
-      return;
+  protected void enqueueOperation(ContentProviderOperation operation) {
+    operations.add(operation);
+  }
+
+  // Should always be called from storeWorkQueue, between records.
+  protected void flushOperationsIfFull() {
+    if (operations.size() >= OPERATION_BATCH_SIZE) {
+      flushOperations();
+    }
+  }
+
+  /**
+   * Apply queued writes, and report each queued record as stored or, if the
+   * batch fails, as failed. Should always be called from storeWorkQueue.
+   */
+  protected void flushOperations() {
+    final ArrayList<ContentProviderOperation> outgoing = operations;
+    final ArrayList<String> guids = pendingGuids;
+    operations = new ArrayList<ContentProviderOperation>();
+    pendingGuids = new ArrayList<String>();
+
+    if (!outgoing.isEmpty()) {
+      final long before = System.currentTimeMillis();
+      final ContentProviderResult[] results;
+      try {
+        results = passwordsProvider.applyBatch(outgoing);
+      } catch (RemoteException | OperationApplicationException e) {
+        Logger.error(LOG_TAG, "Unable to apply " + outgoing.size() + " password operations.", e);
+        // The index already reflects these writes; rebuild it when next needed.
+        dropIndex();
+        for (String guid : guids) {
+          delegate.onRecordStoreFailed(e, guid);
+        }
+        return;
+      }
+      final long after = System.currentTimeMillis();
+      Logger.debug(LOG_TAG, "Applied " + outgoing.size() + " password operations in " + (after - before) + " milliseconds.");
+
+      // Inserts return a URI; updates return a count. Deletions purge a GUID
+      // from both tables, so half of them are expected to miss.
+      int missed = 0;
+      for (ContentProviderResult result : results) {
+        if (result.uri == null && result.count != null && result.count == 0) {
+          missed += 1;
+        }
+      }
+      Logger.debug(LOG_TAG, missed + " password operations changed no rows.");
     }
-    Logger.warn(LOG_TAG, "Unexpectedly deleted " + deleted + " rows for guid " + guid);
+
+    for (String guid : guids) {
+      delegate.onRecordStoreSucceeded(guid);
+    }
+  }
+
+  /**
+   * Queue the deletion of a GUID from both the data and deleted tables.
+   */
+  public void deleteGUID(String guid) {
+    final String[] args = new String[] { guid };
+
+    enqueueOperation(ContentProviderOperation.newDelete(BrowserContractHelpers.PASSWORDS_CONTENT_URI)
+                                             .withSelection(WHERE_GUID_IS, args)
+                                             .build());
+    enqueueOperation(ContentProviderOperation.newDelete(BrowserContractHelpers.DELETED_PASSWORDS_CONTENT_URI)
+                                             .withSelection(WHERE_DELETED_GUID_IS, args)
+                                             .build());
+    unindexGUID(guid);
   }
 
   /**
-   * Insert record and return the record with its updated androidId set.
+   * Queue the insertion of a record.
+   * <p>
+   * The insertion is applied in a later batch, so the returned record's
+   * androidID is not set.
    *
    * @param record the record to insert.
    * @return updated record.
-   * @throws RemoteException
    */
-  public PasswordRecord insert(PasswordRecord record) throws RemoteException {
+  public PasswordRecord insert(PasswordRecord record) {
     record.timePasswordChanged = now();
     // TODO: are these necessary for Fennec autocomplete?
     // record.timesUsed = 1;
     // record.timeLastUsed = now();
     ContentValues cv = getContentValues(record);
-    Uri insertedUri = passwordsProvider.insert(BrowserContractHelpers.PASSWORDS_CONTENT_URI, cv);
-    if (insertedUri == null) {
-      throw new RemoteException(); // Not much to be done here, save throw.
-    }
-    record.androidID = ContentUris.parseId(insertedUri);
+    enqueueOperation(ContentProviderOperation.newInsert(BrowserContractHelpers.PASSWORDS_CONTENT_URI)
+                                             .withValues(cv)
+                                             .build());
+    indexRecord(record);
     return record;
   }
 
-  public Record replace(Record origRecord, Record newRecord) throws RemoteException {
+  /**
+   * Queue the replacement of a local record.
+   */
+  public Record replace(Record origRecord, Record newRecord) {
     PasswordRecord newPasswordRecord = (PasswordRecord) newRecord;
     PasswordRecord origPasswordRecord = (PasswordRecord) origRecord;
     propagateTimes(newPasswordRecord, origPasswordRecord);
@@ -472,10 +566,12 @@ public class PasswordsRepositorySession extends
 
     final String[] args = new String[] { origRecord.guid };
 
-    int updated = context.getContentResolver().update(BrowserContractHelpers.PASSWORDS_CONTENT_URI, cv, WHERE_GUID_IS, args);
-    if (updated != 1) {
-      Logger.warn(LOG_TAG, "Unexpectedly updated " + updated + " rows for guid " + origPasswordRecord.guid);
-    }
+    enqueueOperation(ContentProviderOperation.newUpdate(BrowserContractHelpers.PASSWORDS_CONTENT_URI)
+                                             .withSelection(WHERE_GUID_IS, args)
+                                             .withValues(cv)
+                                             .build());
+    unindexGUID(origPasswordRecord.guid);
+    indexRecord(newPasswordRecord);
     return newRecord;
   }
 
@@ -559,86 +655,130 @@ public class PasswordsRepositorySession extends
     return true;
   }
 
-  private PasswordRecord retrieveByGUID(String guid) throws NullCursorException, RemoteException {
-    final String[] guidArg = new String[] { guid };
+  /*
+   * Local logins, by GUID and by identity, loaded the first time we store
+   * and kept up to date as records are stored. Only touched from
+   * storeWorkQueue. Changes made to the provider by anything else while
+   * we're storing are not seen.
+   */
+  protected HashMap<String, PasswordRecord> recordsByGuid;
+  protected HashMap<String, PasswordRecord> recordsByIdentity;
+
+  /**
+   * Everything that <code>findExistingRecord</code> matches on. We can't
+   * decrypt usernames, so we match on the encrypted username; a null field
+   * only matches a null field.
+   */
+  protected static String identityKey(PasswordRecord record) {
+    final String[] fields = new String[] {
+      record.hostname,
+      record.httpRealm,
+      record.formSubmitURL,
+      record.usernameField,
+      record.passwordField,
+      record.encryptedUsername
+    };
+    final StringBuilder sb = new StringBuilder();
+    for (String field : fields) {
+      if (field == null) {
+        sb.append('\u0001');
+      } else {
+        sb.append(field);
+      }
+      sb.append('\u0000');
+    }
+    return sb.toString();
+  }
+
+  // Should always be called from storeWorkQueue.
+  protected void loadIndexIfNecessary() throws NullCursorException, RemoteException {
+    if (recordsByGuid != null) {
+      return;
+    }
 
-    // Check data table.
-    final Cursor data = passwordsHelper.safeQuery(passwordsProvider, ".store", BrowserContractHelpers.PasswordColumns, WHERE_GUID_IS, guidArg, null);
+    final long before = System.currentTimeMillis();
+    final HashMap<String, PasswordRecord> byGuid = new HashMap<String, PasswordRecord>();
+    final HashMap<String, PasswordRecord> byIdentity = new HashMap<String, PasswordRecord>();
+
+    final Cursor data = passwordsHelper.safeQuery(passwordsProvider, ".loadIndex", getAllColumns(), null, null, null);
     try {
-      if (data.moveToFirst()) {
-        return passwordRecordFromCursor(data);
+      while (data.moveToNext()) {
+        final PasswordRecord record = passwordRecordFromCursor(data);
+        byGuid.put(record.guid, record);
+        // Like a query, match the first of any duplicates.
+        final String key = identityKey(record);
+        if (!byIdentity.containsKey(key)) {
+          byIdentity.put(key, record);
+        }
       }
     } finally {
       data.close();
     }
 
-    // Check deleted table.
-    final Cursor deleted = deletedPasswordsHelper.safeQuery(passwordsProvider, ".retrieveByGuid", BrowserContractHelpers.DeletedColumns, WHERE_DELETED_GUID_IS, guidArg, null);
+    final Cursor deleted = deletedPasswordsHelper.safeQuery(passwordsProvider, ".loadIndex", getAllDeletedColumns(), null, null, null);
     try {
-      if (deleted.moveToFirst()) {
-        return deletedPasswordRecordFromCursor(deleted);
+      while (deleted.moveToNext()) {
+        final PasswordRecord record = deletedPasswordRecordFromCursor(deleted);
+        // The data table wins if a GUID is in both, as it did for lookups.
+        if (!byGuid.containsKey(record.guid)) {
+          byGuid.put(record.guid, record);
+        }
       }
     } finally {
       deleted.close();
     }
 
-    return null;
+    recordsByGuid = byGuid;
+    recordsByIdentity = byIdentity;
+    Logger.debug(LOG_TAG, "Indexed " + byGuid.size() + " local logins in " + (System.currentTimeMillis() - before) + " milliseconds.");
   }
 
-  private static final String WHERE_RECORD_DATA =
-    Passwords.HOSTNAME        + " = ? AND " +
-    Passwords.HTTP_REALM      + " = ? AND " +
-    Passwords.FORM_SUBMIT_URL + " = ? AND " +
-    Passwords.USERNAME_FIELD  + " = ? AND " +
-    Passwords.PASSWORD_FIELD  + " = ?";
-
-  private PasswordRecord findExistingRecord(PasswordRecord record) throws NullCursorException, RemoteException {
-    PasswordRecord foundRecord = null;
-    Cursor cursor = null;
-    // Only check the data table.
-    // We can't encrypt username directly for query, so run a more general query and then filter.
-    final String[] whereArgs = new String[] {
-      record.hostname,
-      record.httpRealm,
-      record.formSubmitURL,
-      record.usernameField,
-      record.passwordField
-    };
+  protected void dropIndex() {
+    recordsByGuid = null;
+    recordsByIdentity = null;
+  }
 
-    try {
-      cursor = passwordsHelper.safeQuery(passwordsProvider, ".findRecord", getAllColumns(), WHERE_RECORD_DATA, whereArgs, null);
-      while (cursor.moveToNext()) {
-        foundRecord = passwordRecordFromCursor(cursor);
-
-        // We don't directly query for username because the
-        // username/password values are encrypted in the db.
-        // We don't have the keys for encrypting our query,
-        // so we run a more general query and then filter
-        // the returned records for a matching username.
-        Logger.pii(LOG_TAG, "Checking incoming [" + record.encryptedUsername + "] to [" + foundRecord.encryptedUsername + "]");
-        if (record.encryptedUsername.equals(foundRecord.encryptedUsername)) {
-          Logger.trace(LOG_TAG, "Found matching record: " + foundRecord.guid);
-          return foundRecord;
-        }
-      }
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
+  protected void indexRecord(PasswordRecord record) {
+    if (recordsByGuid == null) {
+      return;
+    }
+    recordsByGuid.put(record.guid, record);
+    if (!record.deleted) {
+      recordsByIdentity.put(identityKey(record), record);
     }
-    Logger.debug(LOG_TAG, "No matching records, returning null.");
-    return null;
   }
 
-  private void storeRecordDeletion(Record record) {
-    try {
-      deleteGUID(record.guid);
-    } catch (RemoteException e) {
-      Logger.error(LOG_TAG, "RemoteException in password delete.");
-      delegate.onRecordStoreFailed(e, record.guid);
+  protected void unindexGUID(String guid) {
+    if (recordsByGuid == null) {
+      return;
+    }
+    final PasswordRecord existing = recordsByGuid.remove(guid);
+    if (existing == null || existing.deleted) {
       return;
     }
-    delegate.onRecordStoreSucceeded(record.guid);
+    final String key = identityKey(existing);
+    if (recordsByIdentity.get(key) == existing) {
+      recordsByIdentity.remove(key);
+    }
+  }
+
+  private PasswordRecord retrieveByGUID(String guid) {
+    return recordsByGuid.get(guid);
+  }
+
+  private PasswordRecord findExistingRecord(PasswordRecord record) {
+    final PasswordRecord foundRecord = recordsByIdentity.get(identityKey(record));
+    if (foundRecord == null) {
+      Logger.debug(LOG_TAG, "No matching records, returning null.");
+      return null;
+    }
+    Logger.trace(LOG_TAG, "Found matching record: " + foundRecord.guid);
+    return foundRecord;
+  }
+
+  private void storeRecordDeletion(Record record) {
+    deleteGUID(record.guid);
+    pendingGuids.add(record.guid);
   }
 
   /**
@@ -13,6 +13,7 @@ import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.NonArrayJSONException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
+import org.mozilla.gecko.sync.repositories.StoreTracker;
 import org.mozilla.gecko.sync.repositories.domain.ClientRecord;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 
@@ -118,6 +119,27 @@ public class RepoUtils {
     return cur.getString(cur.getColumnIndex(colId));
   }
 
+  /**
+   * Return true if any row of <code>cur</code> has a GUID, in column
+   * <code>colId</code>, that <code>tracker</code> isn't excluding from fetches.
+   * Closes the cursor.
+   *
+   * @param tracker may be null, in which case any row counts.
+   */
+  public static boolean containsUntrackedGUID(final Cursor cur, final String colId, final StoreTracker tracker) {
+    try {
+      final int index = cur.getColumnIndexOrThrow(colId);
+      while (cur.moveToNext()) {
+        if (tracker == null || !tracker.isTrackedForExclusion(cur.getString(index))) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      cur.close();
+    }
+  }
+
   public static long getLongFromCursor(Cursor cur, String colId) {
     return cur.getLong(cur.getColumnIndex(colId));
   }
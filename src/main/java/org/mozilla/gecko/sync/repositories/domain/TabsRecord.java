@@ -4,6 +4,9 @@
 
 package org.mozilla.gecko.sync.repositories.domain;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 
 import org.json.simple.JSONArray;
@@ -103,6 +106,42 @@ public class TabsRecord extends Record {
     return out;
   }
 
+  /**
+   * Compute a digest of what other clients see of this record: the client
+   * name and each tab, in order.
+   *
+   * @return a hex string, or null if no digest could be computed.
+   */
+  public String contentHash() {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      updateDigest(digest, this.clientName);
+      if (this.tabs != null) {
+        for (Tab tab : this.tabs) {
+          updateDigest(digest, tab.title);
+          updateDigest(digest, tab.icon);
+          updateDigest(digest, tab.history == null ? null : tab.history.toJSONString());
+          updateDigest(digest, Long.toString(tab.lastUsed));
+        }
+      }
+      return Utils.byte2Hex(digest.digest());
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      Logger.warn(LOG_TAG, "Unable to hash tabs record.", e);
+      return null;
+    }
+  }
+
+  // Terminate each value, so that moving text between fields changes the
+  // digest; mark null, so that it differs from the empty string.
+  private static void updateDigest(MessageDigest digest, String value) throws UnsupportedEncodingException {
+    if (value == null) {
+      digest.update((byte) 1);
+    } else {
+      digest.update(value.getBytes("UTF-8"));
+    }
+    digest.update((byte) 0);
+  }
+
   public ContentValues getClientsContentValues() {
     ContentValues cv = new ContentValues();
     cv.put(BrowserContract.Clients.GUID, this.guid);
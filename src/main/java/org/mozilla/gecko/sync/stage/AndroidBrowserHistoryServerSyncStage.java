@@ -21,6 +21,7 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
   // and all this hard-coding can go away.
   private static final String HISTORY_SORT          = "index";
   private static final long   HISTORY_REQUEST_LIMIT = 250;
+  private static final int    HISTORY_DECRYPT_WORKERS = Math.min(4, Runtime.getRuntime().availableProcessors());
 
   @Override
   protected String getCollection() {
@@ -59,6 +60,12 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
     return new HistoryRecordFactory();
   }
 
+  // History records are independent of each other, so arrival order doesn't matter.
+  @Override
+  protected int getDecryptWorkerCount() {
+    return HISTORY_DECRYPT_WORKERS;
+  }
+
   @Override
   protected boolean isEnabled() throws MetaGlobalException {
     if (session == null || session.getContext() == null) {
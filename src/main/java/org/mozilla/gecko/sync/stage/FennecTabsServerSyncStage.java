@@ -9,10 +9,13 @@ import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.android.FennecTabsRepository;
 import org.mozilla.gecko.sync.repositories.domain.TabsRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.VersionConstants;
+import org.mozilla.gecko.sync.synchronizer.Synchronizer;
 
 public class FennecTabsServerSyncStage extends ServerSyncStage {
   private static final String COLLECTION = "tabs";
 
+  protected FennecTabsRepository localRepository;
+
   @Override
   protected String getCollection() {
     return COLLECTION;
@@ -30,11 +33,24 @@ public class FennecTabsServerSyncStage extends ServerSyncStage {
 
   @Override
   protected Repository getLocalRepository() {
-    return new FennecTabsRepository(session.getClientsDelegate());
+    localRepository = new FennecTabsRepository(session.getClientsDelegate(), session.config.getBranch(bundlePrefix()));
+    return localRepository;
   }
 
   @Override
   protected RecordFactory getRecordFactory() {
     return new TabsRecordFactory();
   }
+
+  /**
+   * We only get here if every record, including our own tabs, was uploaded:
+   * remote store failures fail the synchronizer.
+   */
+  @Override
+  public void onSynchronized(Synchronizer synchronizer) {
+    if (localRepository != null) {
+      localRepository.uploadSucceeded();
+    }
+    super.onSynchronized(synchronizer);
+  }
 }
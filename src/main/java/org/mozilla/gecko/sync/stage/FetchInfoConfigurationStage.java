@@ -0,0 +1,89 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.stage;
+
+import java.net.URISyntaxException;
+
+import org.json.simple.parser.ParseException;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.delegates.JSONRecordFetchDelegate;
+import org.mozilla.gecko.sync.net.SyncStorageResponse;
+
+/**
+ * Fetch the server's upload limits from <code>info/configuration</code>.
+ * <p>
+ * Not every server provides this document: a 404 or a malformed document
+ * means we use local defaults. Other failures abort the sync, as they do
+ * when fetching <code>info/collections</code>.
+ * <p>
+ * The limits rarely change, so what we fetch, or the fact that there's
+ * nothing to fetch, is persisted and reused until it's
+ * <code>REFETCH_INTERVAL_MILLISECONDS</code> old.
+ */
+public class FetchInfoConfigurationStage extends AbstractNonRepositorySyncStage {
+  private static final String LOG_TAG = "FetchInfoConfigStage";
+
+  public static final long REFETCH_INTERVAL_MILLISECONDS = 24 * 60 * 60 * 1000;  // 24 hours.
+
+  public class StageInfoConfigurationDelegate implements JSONRecordFetchDelegate {
+
+    @Override
+    public void handleSuccess(ExtendedJSONObject result) {
+      session.config.infoConfiguration = new InfoConfiguration(result);
+      session.config.persistInfoConfiguration(result, System.currentTimeMillis());
+      session.advance();
+    }
+
+    @Override
+    public void handleFailure(SyncStorageResponse response) {
+      if (response.getStatusCode() != 404) {
+        session.handleHTTPError(response, "Failure fetching info/configuration.");
+        return;
+      }
+      Logger.info(LOG_TAG, "Server has no info/configuration; using defaults.");
+      useDefaults();
+    }
+
+    @Override
+    public void handleError(Exception e) {
+      if (!(e instanceof ParseException) && !(e instanceof NonObjectJSONException)) {
+        session.abort(e, "Failure fetching info/configuration.");
+        return;
+      }
+      Logger.warn(LOG_TAG, "Malformed info/configuration; using defaults.", e);
+      useDefaults();
+    }
+
+    protected void useDefaults() {
+      session.config.infoConfiguration = new InfoConfiguration();
+      session.config.persistInfoConfiguration(null, System.currentTimeMillis());
+      session.advance();
+    }
+  }
+
+  @Override
+  public void execute() throws NoSuchStageException {
+    final long lastFetched = session.config.getPersistedInfoConfigurationTimestamp();
+    final long age = System.currentTimeMillis() - lastFetched;
+    if (lastFetched > 0 && age >= 0 && age < REFETCH_INTERVAL_MILLISECONDS) {
+      final InfoConfiguration persisted = session.config.getPersistedInfoConfiguration();
+      if (persisted != null) {
+        Logger.info(LOG_TAG, "Using info/configuration persisted " + age + "ms ago.");
+        session.config.infoConfiguration = persisted;
+        session.advance();
+        return;
+      }
+    }
+
+    try {
+      session.fetchInfoConfiguration(new StageInfoConfigurationDelegate());
+    } catch (URISyntaxException e) {
+      session.abort(e, "Invalid URI.");
+    }
+  }
+}
@@ -19,6 +19,7 @@ public interface GlobalSyncStage {
     checkPreconditions,         // Preparation of the basics. TODO: clear status
     ensureClusterURL,           // Setting up where we talk to.
     fetchInfoCollections,       // Take a look at timestamps.
+    fetchInfoConfiguration,     // Take a look at upload limits.
     fetchMetaGlobal,
     ensureKeysStage,
     attemptMigrationStage,
@@ -149,6 +149,17 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
                                   session.config.infoCollections);
   }
 
+  /**
+   * Override this in subclasses to decrypt incoming records in parallel.
+   * Only do so if the local repository doesn't care about the order in
+   * which records arrive.
+   *
+   * @return the number of threads to use to decrypt fetched records.
+   */
+  protected int getDecryptWorkerCount() {
+    return 1;
+  }
+
   /**
    * Return a Crypto5Middleware-wrapped Server11Repository.
    *
@@ -158,8 +169,18 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
   protected Repository wrappedServerRepo() throws NoCollectionKeysSetException, URISyntaxException {
     String collection = this.getCollection();
     KeyBundle collectionKey = session.keyBundleForCollection(collection);
-    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(getRemoteRepository(), collectionKey);
+    Repository remote = getRemoteRepository();
+    if (remote instanceof Server11Repository) {
+      // Size upload batches to the server's advertised limits.
+      ((Server11Repository) remote).setInfoConfiguration(session.config.infoConfiguration);
+      // Fetched records can be large; let the server compress them. Uploads
+      // stay uncompressed: servers don't advertise support for gzip bodies.
+      ((Server11Repository) remote).setAcceptCompressedResponses(true);
+    }
+    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, collectionKey);
     cryptoRepo.recordFactory = getRecordFactory();
+    cryptoRepo.decryptWorkerCount = getDecryptWorkerCount();
+    cryptoRepo.metrics = session.metrics.engine(getEngineName());
     return cryptoRepo;
   }
 
@@ -182,6 +203,7 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     synchronizer.repositoryA = remote;
     synchronizer.repositoryB = this.getLocalRepository();
     synchronizer.load(getConfig());
+    synchronizer.metrics = session.metrics.engine(getEngineName());
 
     return synchronizer;
   }
@@ -480,7 +502,7 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     try {
       if (!this.isEnabled()) {
         Logger.info(LOG_TAG, "Skipping stage " + name + ".");
-        session.advance();
+        session.advance(this);
         return;
       }
     } catch (MetaGlobalException.MetaGlobalMalformedSyncIDException e) {
@@ -491,7 +513,7 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
         wipeServer(session);
         Logger.info(LOG_TAG, "Wiped server after malformed engine sync ID found in meta/global.");
       } catch (Exception ex) {
-        session.abort(ex, "Failed to wipe server after malformed engine sync ID found in meta/global.");
+        session.abort(this, ex, "Failed to wipe server after malformed engine sync ID found in meta/global.");
       }
     } catch (MetaGlobalException.MetaGlobalMalformedVersionException e) {
       // Bad engine version. This should never happen. Wipe the server.
@@ -501,7 +523,7 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
         wipeServer(session);
         Logger.info(LOG_TAG, "Wiped server after malformed engine version found in meta/global.");
       } catch (Exception ex) {
-        session.abort(ex, "Failed to wipe server after malformed engine version found in meta/global.");
+        session.abort(this, ex, "Failed to wipe server after malformed engine version found in meta/global.");
       }
     } catch (MetaGlobalException.MetaGlobalStaleClientSyncIDException e) {
       // Our syncID is wrong. Reset client and take the server syncID.
@@ -513,9 +535,14 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
       if (!isEnabled) {
         // Engine has been disabled; update meta/global with engine removal for upload.
         session.removeEngineFromMetaGlobal(name);
-        session.config.declinedEngineNames.add(name);
+        // Collection stages can run concurrently.
+        synchronized (session.config) {
+          session.config.declinedEngineNames.add(name);
+        }
       } else {
-        session.config.declinedEngineNames.remove(name);
+        synchronized (session.config) {
+          session.config.declinedEngineNames.remove(name);
+        }
         // Add engine with new syncID to meta/global for upload.
         String newSyncID = Utils.generateGuid();
         session.recordForMetaGlobalUpdate(name, new EngineSettings(newSyncID, this.getStorageVersion()));
@@ -528,15 +555,15 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
         wipeServer(session);
         Logger.warn(LOG_TAG, "Wiped server because engine sync state changed.");
       } catch (Exception ex) {
-        session.abort(ex, "Failed to wipe server after engine sync state changed");
+        session.abort(this, ex, "Failed to wipe server after engine sync state changed");
       }
       if (!isEnabled) {
         Logger.warn(LOG_TAG, "Stage has been disabled. Advancing to next stage.");
-        session.advance();
+        session.advance(this);
         return;
       }
     } catch (MetaGlobalException e) {
-      session.abort(e, "Inappropriate meta/global; refusing to execute " + name + " stage.");
+      session.abort(this, e, "Inappropriate meta/global; refusing to execute " + name + " stage.");
       return;
     }
 
@@ -544,13 +571,13 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     try {
       synchronizer = this.getConfiguredSynchronizer(session);
     } catch (NoCollectionKeysSetException e) {
-      session.abort(e, "No CollectionKeys.");
+      session.abort(this, e, "No CollectionKeys.");
       return;
     } catch (URISyntaxException e) {
-      session.abort(e, "Invalid URI syntax for server repository.");
+      session.abort(this, e, "Invalid URI syntax for server repository.");
       return;
     } catch (NonObjectJSONException | ParseException | IOException e) {
-      session.abort(e, "Invalid persisted JSON for config.");
+      session.abort(this, e, "Invalid persisted JSON for config.");
       return;
     }
 
@@ -591,8 +618,9 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     Logger.info(LOG_TAG, "Stage " + getEngineName() +
         " received " + inboundCount + " and sent " + outboundCount +
         " records in " + getStageDurationString() + ".");
+    session.metrics.engine(getEngineName()).stageFinished(stageStartTimestamp, stageCompleteTimestamp, true);
     Logger.info(LOG_TAG, "Advancing session.");
-    session.advance();
+    session.advance(this);
   }
 
   /**
@@ -607,13 +635,14 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
                                   Exception lastException, String reason) {
     stageCompleteTimestamp = System.currentTimeMillis();
     Logger.warn(LOG_TAG, "Synchronize failed: " + reason, lastException);
+    session.metrics.engine(getEngineName()).stageFinished(stageStartTimestamp, stageCompleteTimestamp, false);
 
     // This failure could be due to a 503 or a 401 and it could have headers.
     // Interrogate the headers but only abort the global session if Retry-After header is set.
     if (lastException instanceof HTTPFailureException) {
       SyncStorageResponse response = ((HTTPFailureException)lastException).response;
       if (response.retryAfterInSeconds() > 0) {
-        session.handleHTTPError(response, reason); // Calls session.abort().
+        session.handleHTTPError(this, response, reason); // Calls session.abort().
         return;
       } else {
         session.interpretHTTPFailure(response.httpResponse()); // Does not call session.abort().
@@ -622,6 +651,6 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
 
     Logger.info(LOG_TAG, "Advancing session even though stage failed (took " + getStageDurationString() +
         "). Timestamps not persisted.");
-    session.advance();
+    session.advance(this);
   }
 }
@@ -20,6 +20,7 @@ import org.mozilla.gecko.sync.CommandProcessor.Command;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.NoCollectionKeysSetException;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.CryptoException;
@@ -60,6 +61,7 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
   protected volatile boolean shouldUploadLocalRecord;     // Set if, e.g., we received commands or need to refresh our version.
   protected final AtomicInteger uploadAttemptsCount = new AtomicInteger();
   protected final List<ClientRecord> toUpload = new ArrayList<ClientRecord>();
+  protected final List<ClientRecord> remoteClients = new ArrayList<ClientRecord>();
 
   protected int getClientsCount() {
     return getClientsDatabaseAccessor().clientsCount();
@@ -116,8 +118,8 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
       session.config.persistServerClientsTimestamp(response.normalizedWeaveTimestamp());
       BaseResource.consumeEntity(response);
 
-      // Wipe the clients table if it still hasn't been wiped but needs to be.
-      wipeAndStore(null);
+      // Write the downloaded clients in one go.
+      storeRemoteClients();
 
       // If we successfully downloaded all records but ours was not one of them
       // then reset the timestamp.
@@ -139,7 +141,6 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
       Logger.debug(LOG_TAG, "Database contains " + clientsCount + " clients.");
       Logger.debug(LOG_TAG, "Server response asserts " + response.weaveRecords() + " records.");
 
-      // TODO: persist the response timestamp to know whether to download next time (Bug 726055).
       clientUploadDelegate = new ClientUploadDelegate();
       clientsDelegate.setClientsCount(clientsCount);
 
@@ -189,7 +190,7 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
           handleDownloadedLocalRecord(r);
         } else {
           // Only need to store record if it isn't our local one.
-          wipeAndStore(r);
+          remoteClients.add(r);
           addCommands(r);
         }
         RepoUtils.logClient(r);
@@ -256,11 +257,15 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
       BaseResource.consumeEntity(response);
       session.config.persistServerClientsTimestamp(responseTimestamp);
 
+      // Remote records and their commands are sent now.
+      // TODO: check failed uploads in body.
+      if (!toUpload.isEmpty()) {
+        clearRecordsToUpload();
+      }
+
       // If we're not uploading our record, we're done here; just
       // clean up and finish.
       if (!currentlyUploadingLocalRecord) {
-        // TODO: check failed uploads in body.
-        clearRecordsToUpload();
         checkAndUpload();
         return;
       }
@@ -283,9 +288,7 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
           uploadAttemptsCount.incrementAndGet() > MAX_UPLOAD_FAILURE_COUNT) {
 
         Logger.debug(LOG_TAG, "Client upload failed. Aborting sync.");
-        if (!currentlyUploadingLocalRecord) {
-          toUpload.clear(); // These will be redownloaded.
-        }
+        toUpload.clear(); // These will be redownloaded.
         BaseResource.consumeEntity(response); // The exception thrown should need the response body.
         session.abort(new HTTPFailureException(response), "Client upload failed.");
         return;
@@ -295,6 +298,10 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
       // shouldUploadLocalRecord == true &&
       // statusCode != 412 &&
       // uploadAttemptCount < MAX_UPLOAD_FAILURE_COUNT
+      if (!toUpload.isEmpty()) {
+        uploadRemoteRecords();
+        return;
+      }
       checkAndUpload();
     }
 
@@ -328,9 +335,13 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
 
     if (shouldDownload()) {
       downloadClientRecords();   // Will kick off upload, too…
-    } else {
-      // Upload if necessary.
+      return;
     }
+
+    // Nothing has changed on the server, so our stored clients are current.
+    Logger.info(LOG_TAG, "Clients collection unchanged since last sync. Not downloading.");
+    clientUploadDelegate = new ClientUploadDelegate();
+    checkAndUpload();
   }
 
   @Override
@@ -388,10 +399,31 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
     return r;
   }
 
-  // TODO: Bug 726055 - More considered handling of when to sync.
+  /**
+   * We download clients if the collection has changed since we last saw it,
+   * either by downloading it or by uploading to it. We also download if we
+   * have commands queued: they are sent by adding them to the downloaded
+   * records of the clients they are for.
+   */
   protected boolean shouldDownload() {
-    // Ask info/collections whether a download is needed.
-    return true;
+    final InfoCollections infoCollections = session.config.infoCollections;
+    if (infoCollections == null) {
+      return true;
+    }
+
+    final int commandsCount;
+    try {
+      commandsCount = getClientsDatabaseAccessor().commandsCount();
+    } finally {
+      closeDataAccessor();
+    }
+    if (commandsCount > 0) {
+      Logger.debug(LOG_TAG, commandsCount + " commands waiting to be sent.");
+      return true;
+    }
+
+    final long lastModified = session.config.getPersistedServerClientsTimestamp();   // Defaults to 0.
+    return infoCollections.updateNeeded(COLLECTION_NAME, lastModified);
   }
 
   protected boolean shouldUpload() {
@@ -444,7 +476,7 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
   @SuppressWarnings("unchecked")
   protected void addCommands(ClientRecord record) throws NullCursorException {
     Logger.trace(LOG_TAG, "Adding commands to " + record.guid);
-    List<Command> commands = db.fetchCommandsForClient(record.guid);
+    List<Command> commands = getClientsDatabaseAccessor().fetchCommandsForClient(record.guid);
 
     if (commands == null || commands.size() == 0) {
       Logger.trace(LOG_TAG, "No commands to add.");
@@ -461,35 +493,39 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
     toUpload.add(record);
   }
 
+  /**
+   * Upload remote records that carry new commands. If our own record needs
+   * uploading too, it goes in the same request.
+   */
   @SuppressWarnings("unchecked")
   protected void uploadRemoteRecords() {
     Logger.trace(LOG_TAG, "In uploadRemoteRecords. Uploading " + toUpload.size() + " records" );
 
-    for (ClientRecord r : toUpload) {
-      Logger.trace(LOG_TAG, ">> Uploading record " + r.guid + ": " + r.name);
-    }
+    JSONArray cryptoRecords = new JSONArray();
+    for (ClientRecord record : toUpload) {
+      Logger.trace(LOG_TAG, ">> Uploading record " + record.guid + ": " + record.name);
 
-    if (toUpload.size() == 1) {
-      ClientRecord record = toUpload.get(0);
-      Logger.debug(LOG_TAG, "Only 1 remote record to upload.");
-      Logger.debug(LOG_TAG, "Record last modified: " + record.lastModified);
       CryptoRecord cryptoRecord = encryptClientRecord(record);
-      if (cryptoRecord != null) {
-        clientUploadDelegate.setUploadDetails(false);
-        this.uploadClientRecord(cryptoRecord);
+      if (cryptoRecord == null) {
+        // We've aborted.
+        return;
       }
-      return;
+      cryptoRecords.add(cryptoRecord.toJSONObject());
     }
 
-    JSONArray cryptoRecords = new JSONArray();
-    for (ClientRecord record : toUpload) {
-      Logger.trace(LOG_TAG, "Record " + record.guid + " is being uploaded" );
-
-      CryptoRecord cryptoRecord = encryptClientRecord(record);
+    final boolean includeLocalRecord = shouldUpload();
+    if (includeLocalRecord) {
+      Logger.debug(LOG_TAG, "Including local client record in upload.");
+      final ClientRecord localClient = newLocalClientRecord(session.getClientsDelegate());
+      CryptoRecord cryptoRecord = encryptClientRecord(localClient);
+      if (cryptoRecord == null) {
+        return;
+      }
       cryptoRecords.add(cryptoRecord.toJSONObject());
     }
+
     Logger.debug(LOG_TAG, "Uploading records: " + cryptoRecords.size());
-    clientUploadDelegate.setUploadDetails(false);
+    clientUploadDelegate.setUploadDetails(includeLocalRecord);
     this.uploadClientRecords(cryptoRecords);
   }
 
@@ -539,6 +575,7 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
 
   protected void downloadClientRecords() {
     shouldWipe = true;
+    remoteClients.clear();
     clientDownloadDelegate = makeClientDownloadDelegate();
 
     try {
@@ -586,14 +623,18 @@ public class SyncClientsEngineStage extends AbstractSessionManagingSyncStage {
     return new ClientDownloadDelegate();
   }
 
-  protected void wipeAndStore(ClientRecord record) {
+  /**
+   * Store the downloaded remote clients. After a complete download they
+   * replace whatever we had; only changed rows are written.
+   */
+  protected void storeRemoteClients() {
     final ClientsDatabaseAccessor db = getClientsDatabaseAccessor();
     if (shouldWipe) {
-      db.wipeClientsTable();
+      db.replaceClients(remoteClients);
       shouldWipe = false;
+    } else {
+      db.store(remoteClients);
     }
-    if (record != null) {
-      db.store(record);
-    }
+    remoteClients.clear();
   }
 }
@@ -533,6 +533,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements BaseGlob
   @Override
   public void handleError(GlobalSession globalSession, Exception ex) {
     Logger.info(LOG_TAG, "GlobalSession indicated error.");
+    if (globalSession != null) {
+      Logger.info(LOG_TAG, "Sync metrics: {}", globalSession.metrics);
+    }
     this.processException(globalSession, ex);
   }
 
@@ -545,6 +548,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements BaseGlob
   @Override
   public void handleSuccess(GlobalSession globalSession) {
     Logger.info(LOG_TAG, "GlobalSession indicated success.");
+    Logger.info(LOG_TAG, "Sync metrics: {}", globalSession.metrics);
     globalSession.config.persistToPrefs();
     notifyMonitor();
   }
@@ -4,13 +4,31 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 /**
  * Consume records from a queue inside a RecordsChannel, as fast as we can.
- * TODO: rewrite this in terms of an ExecutorService and a CompletionService.
- * See Bug 713483.
+ * <p>
+ * Records are taken from the delegate's bounded queue by one or more workers
+ * submitted to an <code>ExecutorService</code>. A <code>CompletionService</code>
+ * tracks the workers: <code>consumerIsDone</code> is only invoked once every
+ * worker has returned, which means that every <code>store</code> invocation
+ * has synchronously completed. This preserves the ordering guarantees
+ * documented in {@link RecordsChannel}.
+ * <p>
+ * More than one worker should only be used if the sink's <code>store</code>
+ * is safe to call concurrently.
  *
  * @author rnewman
  *
@@ -18,76 +36,94 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 class ConcurrentRecordConsumer extends RecordConsumer {
   private static final String LOG_TAG = "CRecordConsumer";
 
+  /**
+   * How long an idle worker waits for a record before re-checking whether
+   * it has been told to stop.
+   */
+  protected static final long POLL_INTERVAL_MSEC = 100;
+
   /**
    * When this is true and all records have been processed, the consumer
    * will notify its delegate.
    */
-  protected boolean allRecordsQueued = false;
-  private long counter = 0;
+  protected volatile boolean allRecordsQueued = false;
+  private final AtomicLong counter = new AtomicLong(0);
+
+  protected final int workerCount;
+  protected final ExecutorService executor;
 
   public ConcurrentRecordConsumer(RecordsConsumerDelegate delegate) {
+    this(delegate, 1);
+  }
+
+  public ConcurrentRecordConsumer(RecordsConsumerDelegate delegate, int workerCount) {
+    this(delegate, workerCount, ThreadPool.executorService);
+  }
+
+  public ConcurrentRecordConsumer(RecordsConsumerDelegate delegate, int workerCount, ExecutorService executor) {
+    if (workerCount < 1) {
+      throw new IllegalArgumentException("workerCount must be positive.");
+    }
     this.delegate = delegate;
+    this.workerCount = workerCount;
+    this.executor = executor;
   }
 
-  private final Object monitor = new Object();
   @Override
   public void doNotify() {
-    synchronized (monitor) {
-      monitor.notify();
-    }
+    // Workers block on the queue itself; nothing to do.
   }
 
   @Override
   public void queueFilled() {
     Logger.debug(LOG_TAG, "Queue filled.");
-    synchronized (monitor) {
-      this.allRecordsQueued = true;
-      monitor.notify();
-    }
+    this.allRecordsQueued = true;
   }
 
   @Override
   public void halt() {
-    synchronized (monitor) {
-      this.stopImmediately = true;
-      monitor.notify();
-    }
+    this.stopImmediately = true;
   }
 
-  private final Object countMonitor = new Object();
   @Override
   public void stored() {
-    Logger.trace(LOG_TAG, "Record stored. Notifying.");
-    synchronized (countMonitor) {
-      counter++;
-    }
+    Logger.trace(LOG_TAG, "Record stored.");
+    counter.incrementAndGet();
   }
 
   private void consumerIsDone() {
-    Logger.debug(LOG_TAG, "Consumer is done. Processed " + counter + ((counter == 1) ? " record." : " records."));
+    final long count = counter.get();
+    Logger.debug(LOG_TAG, "Consumer is done. Processed " + count + ((count == 1) ? " record." : " records."));
     delegate.consumerIsDone(!allRecordsQueued);
   }
 
-  @Override
-  public void run() {
-    Record record;
-
-    while (true) {
-      // The queue is concurrent-safe.
-      while ((record = delegate.getQueue().poll()) != null) {
-        synchronized (monitor) {
-          Logger.trace(LOG_TAG, "run() took monitor.");
-          if (stopImmediately) {
-            Logger.debug(LOG_TAG, "Stopping immediately. Clearing queue.");
-            delegate.getQueue().clear();
-            Logger.debug(LOG_TAG, "Notifying consumer.");
-            consumerIsDone();
-            return;
+  /**
+   * Take records from the queue and store them until the queue is exhausted
+   * and no more records will arrive, or until we're halted.
+   */
+  protected class Worker implements Callable<Void> {
+    @Override
+    public Void call() throws Exception {
+      final BlockingQueue<Record> queue = delegate.getQueue();
+      while (true) {
+        if (stopImmediately) {
+          Logger.debug(LOG_TAG, "Stopping immediately. Clearing queue.");
+          queue.clear();
+          return null;
+        }
+
+        final Record record = queue.poll(POLL_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+        if (record == null) {
+          // allRecordsQueued is only set after the last record has been
+          // queued, so check it before checking the queue one last time.
+          if (allRecordsQueued && queue.isEmpty()) {
+            Logger.debug(LOG_TAG, "Done with records and no more to come.");
+            return null;
           }
-          Logger.debug(LOG_TAG, "run() dropped monitor.");
+          continue;
         }
 
-        Logger.trace(LOG_TAG, "Storing record with guid " + record.guid + ".");
+        Logger.trace(LOG_TAG, "Storing record with guid {}.", record.guid);
         try {
           delegate.store(record);
         } catch (Exception e) {
@@ -96,27 +132,30 @@ class ConcurrentRecordConsumer extends RecordConsumer {
         }
         Logger.trace(LOG_TAG, "Done with record.");
       }
-      synchronized (monitor) {
-        Logger.trace(LOG_TAG, "run() took monitor.");
+    }
+  }
 
-        if (allRecordsQueued) {
-          Logger.debug(LOG_TAG, "Done with records and no more to come. Notifying consumerIsDone.");
-          consumerIsDone();
-          return;
-        }
-        if (stopImmediately) {
-          Logger.debug(LOG_TAG, "Done with records and told to stop immediately. Notifying consumerIsDone.");
-          consumerIsDone();
-          return;
-        }
-        try {
-          Logger.debug(LOG_TAG, "Not told to stop but no records. Waiting.");
-          monitor.wait(10000);
-        } catch (InterruptedException e) {
-          // TODO
-        }
-        Logger.trace(LOG_TAG, "run() dropped monitor.");
+  @Override
+  public void run() {
+    final CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+    for (int i = 0; i < workerCount; ++i) {
+      completion.submit(new Worker());
+    }
+
+    Logger.debug(LOG_TAG, "Started " + workerCount + " store worker(s).");
+    for (int i = 0; i < workerCount; ++i) {
+      try {
+        completion.take().get();
+      } catch (InterruptedException e) {
+        Logger.warn(LOG_TAG, "Interrupted waiting for store worker. Halting.", e);
+        halt();
+        // Keep waiting: consumerIsDone must not race outstanding stores.
+        i--;
+      } catch (ExecutionException e) {
+        Logger.error(LOG_TAG, "Store worker failed. Halting.", e.getCause());
+        halt();
       }
     }
+    consumerIsDone();
   }
 }
@@ -17,7 +17,15 @@ public abstract class RecordConsumer implements Runnable {
 
   public abstract void doNotify();
 
-  protected boolean stopImmediately = false;
+  /**
+   * @return true if this consumer has been told to halt, and will discard any
+   *         further records rather than storing them.
+   */
+  public boolean isHalted() {
+    return stopImmediately;
+  }
+
+  protected volatile boolean stopImmediately = false;
   protected RecordsConsumerDelegate delegate;
 
   public RecordConsumer() {
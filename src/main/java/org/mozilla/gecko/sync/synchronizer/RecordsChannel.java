@@ -4,11 +4,14 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.SyncMetrics;
 import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
@@ -57,6 +60,12 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  *
  * RecordsChannel exists to enforce this ordering of operations.
  *
+ * Fetched records are buffered in a bounded queue. If the sink can't keep up,
+ * the fetch callback blocks until there is room, pushing back on the source
+ * rather than buffering an unbounded number of records in memory. If the sink
+ * declares that its <code>store</code> is thread-safe, several consumer workers
+ * store records concurrently.
+ *
  * @author rnewman
  *
  */
@@ -67,6 +76,23 @@ public class RecordsChannel implements
   RepositorySessionBeginDelegate {
 
   private static final String LOG_TAG = "RecordsChannel";
+
+  /**
+   * Maximum number of fetched records buffered before the fetch is made to wait.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  /**
+   * Number of consumer workers used when the sink can store concurrently.
+   */
+  public static final int DEFAULT_STORE_WORKER_COUNT = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * How long to wait for room in a full queue before checking whether the
+   * consumer has been halted.
+   */
+  protected static final long QUEUE_OFFER_TIMEOUT_MSEC = 1000;
+
   public RepositorySession source;
   public RepositorySession sink;
   private final RecordsChannelDelegate delegate;
@@ -77,6 +103,8 @@ public class RecordsChannel implements
   protected final AtomicInteger numStored = new AtomicInteger();
   protected final AtomicInteger numStoreFailed = new AtomicInteger();
 
+  protected volatile SyncMetrics.FlowMetrics metrics;
+
   public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate) {
     this.source    = source;
     this.sink      = sink;
@@ -94,13 +122,61 @@ public class RecordsChannel implements
    */
   private RecordConsumer consumer;
   private boolean waitingForQueueDone = false;
-  private final ConcurrentLinkedQueue<Record> toProcess = new ConcurrentLinkedQueue<Record>();
+  private volatile BlockingQueue<Record> toProcess = new LinkedBlockingQueue<Record>(DEFAULT_QUEUE_CAPACITY);
+
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private int storeWorkerCount = DEFAULT_STORE_WORKER_COUNT;
 
   @Override
-  public ConcurrentLinkedQueue<Record> getQueue() {
+  public BlockingQueue<Record> getQueue() {
     return toProcess;
   }
 
+  /**
+   * Set the number of fetched records that can be buffered before the fetch
+   * is made to wait for the sink. Takes effect at the next <code>flow()</code>.
+   *
+   * @param queueCapacity a positive number of records.
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("queueCapacity must be positive.");
+    }
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Set the number of consumer workers to use if the sink declares that it can
+   * store concurrently. Otherwise a single worker is always used. Takes effect
+   * at the next <code>flow()</code>.
+   *
+   * @param storeWorkerCount a positive number of workers.
+   */
+  public void setStoreWorkerCount(int storeWorkerCount) {
+    if (storeWorkerCount < 1) {
+      throw new IllegalArgumentException("storeWorkerCount must be positive.");
+    }
+    this.storeWorkerCount = storeWorkerCount;
+  }
+
+  /**
+   * Report the records this channel moves, and how long it takes, to
+   * <code>metrics</code>. May be null.
+   */
+  public void setMetrics(SyncMetrics.FlowMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Override this to plug in a different consumer stage.
+   *
+   * @param workerCount number of workers that may store concurrently.
+   * @return a new <code>RecordConsumer</code> reading from <code>getQueue()</code>.
+   */
+  protected RecordConsumer createConsumer(int workerCount) {
+    return new ConcurrentRecordConsumer(this, workerCount);
+  }
+
   protected boolean isReady() {
     return source.isActive() && sink.isActive();
   }
@@ -154,9 +230,11 @@ public class RecordsChannel implements
       return;
     }
 
+    // Take the timestamp before checking, so that a change made while the
+    // source is looking isn't skipped by the next sync.
+    final long now = System.currentTimeMillis();
     if (!source.dataAvailable()) {
       Logger.info(LOG_TAG, "No data available: short-circuiting flow from source " + source);
-      long now = System.currentTimeMillis();
       this.delegate.onFlowCompleted(this, now, now);
       return;
     }
@@ -166,8 +244,15 @@ public class RecordsChannel implements
     numFetchFailed.set(0);
     numStored.set(0);
     numStoreFailed.set(0);
+    this.toProcess = new LinkedBlockingQueue<Record>(queueCapacity);
+    if (metrics != null) {
+      metrics.flowStarted(now);
+    }
+
     // Start a consumer thread.
-    this.consumer = new ConcurrentRecordConsumer(this);
+    final int workerCount = sink.storeIsThreadSafe() ? storeWorkerCount : 1;
+    Logger.debug(LOG_TAG, "Using " + workerCount + " store worker(s) for sink " + sink);
+    this.consumer = createConsumer(workerCount);
     ThreadPool.run(this.consumer);
     waitingForQueueDone = true;
     source.fetchSince(source.getLastSyncTimestamp(), this);
@@ -185,6 +270,10 @@ public class RecordsChannel implements
   @Override
   public void store(Record record) {
     numStored.incrementAndGet();
+    final SyncMetrics.FlowMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.recordStored();
+    }
     try {
       sink.store(record);
     } catch (NoStoreDelegateException e) {
@@ -197,6 +286,9 @@ public class RecordsChannel implements
   public void onFetchFailed(Exception ex, Record record) {
     Logger.warn(LOG_TAG, "onFetchFailed. Calling for immediate stop.", ex);
     numFetchFailed.incrementAndGet();
+    if (metrics != null) {
+      metrics.recordFetchFailed();
+    }
     this.consumer.halt();
     delegate.onFlowFetchFailed(this, ex);
   }
@@ -204,7 +296,29 @@ public class RecordsChannel implements
   @Override
   public void onFetchedRecord(Record record) {
     numFetched.incrementAndGet();
-    this.toProcess.add(record);
+    final SyncMetrics.FlowMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.recordFetched();
+    }
+    // Once halted, nothing drains the queue; don't wait on it.
+    if (this.consumer.isHalted()) {
+      Logger.trace(LOG_TAG, "Consumer halted. Dropping fetched record.");
+      return;
+    }
+    try {
+      // Block while the queue is full, so that the fetch can't outrun the sink.
+      while (!this.toProcess.offer(record, QUEUE_OFFER_TIMEOUT_MSEC, TimeUnit.MILLISECONDS)) {
+        if (this.consumer.isHalted()) {
+          Logger.debug(LOG_TAG, "Consumer halted. Dropping fetched record.");
+          return;
+        }
+        Logger.trace(LOG_TAG, "Queue full. Waiting for consumer.");
+      }
+    } catch (InterruptedException e) {
+      Logger.warn(LOG_TAG, "Interrupted waiting to queue fetched record.", e);
+      this.onFetchFailed(e, record);
+      return;
+    }
     this.consumer.doNotify();
   }
 
@@ -213,6 +327,9 @@ public class RecordsChannel implements
     Logger.trace(LOG_TAG, "onFetchCompleted. Stopping consumer once stores are done.");
     Logger.trace(LOG_TAG, "Fetch timestamp is " + fetchEnd);
     this.fetchEnd = fetchEnd;
+    if (metrics != null) {
+      metrics.fetchCompleted(System.currentTimeMillis());
+    }
     this.consumer.queueFilled();
   }
 
@@ -220,6 +337,9 @@ public class RecordsChannel implements
   public void onRecordStoreFailed(Exception ex, String recordGuid) {
     Logger.trace(LOG_TAG, "Failed to store record with guid " + recordGuid);
     numStoreFailed.incrementAndGet();
+    if (metrics != null) {
+      metrics.recordStoreFailed();
+    }
     this.consumer.stored();
     delegate.onFlowStoreFailed(this, ex, recordGuid);
     // TODO: abort?
@@ -245,6 +365,9 @@ public class RecordsChannel implements
   public void onStoreCompleted(long storeEnd) {
     Logger.trace(LOG_TAG, "onStoreCompleted. Notifying delegate of onFlowCompleted. " +
                           "Fetch end is " + fetchEnd + ", store end is " + storeEnd);
+    if (metrics != null) {
+      metrics.storeCompleted(System.currentTimeMillis());
+    }
     // TODO: synchronize on consumer callback?
     delegate.onFlowCompleted(this, fetchEnd, storeEnd);
   }
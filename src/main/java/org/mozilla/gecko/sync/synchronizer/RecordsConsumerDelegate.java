@@ -4,12 +4,12 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 interface RecordsConsumerDelegate {
-  public abstract ConcurrentLinkedQueue<Record> getQueue();
+  public abstract BlockingQueue<Record> getQueue();
 
   /**
    * Called when no more items will be processed.
@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.synchronizer;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.SyncMetrics;
 import org.mozilla.gecko.sync.SynchronizerConfiguration;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
@@ -70,6 +71,12 @@ public class Synchronizer implements SynchronizerSessionDelegate {
   public RepositorySessionBundle bundleA;
   public RepositorySessionBundle bundleB;
 
+  /**
+   * If non-null, the A to B flow reports to its <code>inbound</code>
+   * measurements and the B to A flow to its <code>outbound</code>.
+   */
+  public SyncMetrics.EngineMetrics metrics;
+
   /**
    * Fetch a synchronizer session appropriate for this <code>Synchronizer</code>
    */
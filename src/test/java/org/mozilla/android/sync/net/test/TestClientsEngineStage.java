@@ -37,6 +37,7 @@ import org.mozilla.gecko.sync.CommandProcessor.Command;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.GlobalSession;
+import org.mozilla.gecko.sync.InfoCollections;
 import org.mozilla.gecko.sync.NonObjectJSONException;
 import org.mozilla.gecko.sync.SyncConfiguration;
 import org.mozilla.gecko.sync.SyncConfigurationException;
@@ -525,22 +526,54 @@ public class TestClientsEngineStage extends MockSyncClientsEngineStage {
   }
 
   @Test
-  public void testWipeAndStoreShouldNotWipe() {
+  public void testStoreRemoteClientsShouldNotReplace() {
     assertFalse(shouldWipe);
-    wipeAndStore(new ClientRecord());
+    remoteClients.add(new ClientRecord());
+    storeRemoteClients();
     assertFalse(shouldWipe);
-    assertFalse(getMockDataAccessor().clientsTableWiped);
-    assertTrue(getMockDataAccessor().storedRecord);
+    assertFalse(getMockDataAccessor().clientsReplaced);
+    assertTrue(getMockDataAccessor().storedArrayList);
+    assertTrue(remoteClients.isEmpty());
   }
 
   @Test
-  public void testWipeAndStoreShouldWipe() {
+  public void testStoreRemoteClientsShouldReplace() {
     assertFalse(shouldWipe);
     shouldWipe = true;
-    wipeAndStore(new ClientRecord());
+    remoteClients.add(new ClientRecord());
+    storeRemoteClients();
     assertFalse(shouldWipe);
-    assertTrue(getMockDataAccessor().clientsTableWiped);
-    assertTrue(getMockDataAccessor().storedRecord);
+    assertTrue(getMockDataAccessor().clientsReplaced);
+    assertFalse(getMockDataAccessor().clientsTableWiped);
+    assertTrue(remoteClients.isEmpty());
+  }
+
+  @Test
+  public void testShouldDownload() throws Exception {
+    // No info/collections: always download.
+    session.config.infoCollections = null;
+    assertTrue(shouldDownload());
+
+    final long lastModified = 1234567890000L;
+    ExtendedJSONObject info = new ExtendedJSONObject();
+    info.put(COLLECTION_NAME, 1234567890L);
+    session.config.infoCollections = new InfoCollections(info);
+    try {
+      // Never downloaded.
+      session.config.persistServerClientsTimestamp(0L);
+      assertTrue(shouldDownload());
+
+      // Changed since we last saw it.
+      session.config.persistServerClientsTimestamp(lastModified - 1000);
+      assertTrue(shouldDownload());
+
+      // Unchanged.
+      session.config.persistServerClientsTimestamp(lastModified);
+      assertFalse(shouldDownload());
+    } finally {
+      session.config.infoCollections = null;
+      session.config.persistServerClientsTimestamp(0L);
+    }
   }
 
   @Test
@@ -0,0 +1,90 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.net.BaseResource;
+
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.HttpVersion;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
+import ch.boye.httpclientandroidlib.entity.InputStreamEntity;
+import ch.boye.httpclientandroidlib.message.BasicHttpResponse;
+
+public class TestCompressedResponses {
+  protected static final String BODY =
+      "{\"id\": \"one\", \"payload\": \"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\"}\n" +
+      "{\"id\": \"two\", \"payload\": \"bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb\"}\n";
+
+  protected static byte[] gzip(String body) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+    gzip.write(body.getBytes("UTF-8"));
+    gzip.close();
+    return bytes.toByteArray();
+  }
+
+  protected static HttpResponse responseWithEntity(HttpEntity entity, String encoding) {
+    final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(entity);
+    response.setHeader("Content-Length", Long.toString(entity.getContentLength()));
+    if (encoding != null) {
+      response.setHeader("Content-Encoding", encoding);
+    }
+    return response;
+  }
+
+  @Test
+  public void testGzipResponseIsDecodedLineByLine() throws Exception {
+    final byte[] compressed = gzip(BODY);
+    final ByteArrayEntity wire = new ByteArrayEntity(compressed);
+    wire.setContentEncoding("gzip");
+    // Streaming, like a real response.
+    final InputStreamEntity streaming = new InputStreamEntity(wire.getContent(), compressed.length);
+    streaming.setContentEncoding("gzip");
+    final HttpResponse response = responseWithEntity(streaming, "gzip");
+
+    final long wireBefore = BaseResource.getCompressedResponseWireBytes();
+    final long decodedBefore = BaseResource.getCompressedResponseDecodedBytes();
+
+    BaseResource.decodeResponseEntity(response);
+    assertNull(response.getFirstHeader("Content-Encoding"));
+    assertNull(response.getFirstHeader("Content-Length"));
+    assertNull(response.getEntity().getContentEncoding());
+
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), "UTF-8"));
+    assertTrue(reader.readLine().contains("\"one\""));
+    assertTrue(reader.readLine().contains("\"two\""));
+    assertNull(reader.readLine());
+    reader.close();
+
+    assertEquals(compressed.length, BaseResource.getCompressedResponseWireBytes() - wireBefore);
+    assertEquals(BODY.getBytes("UTF-8").length, BaseResource.getCompressedResponseDecodedBytes() - decodedBefore);
+  }
+
+  @Test
+  public void testUncompressedResponseIsUntouched() throws Exception {
+    final ByteArrayEntity entity = new ByteArrayEntity(BODY.getBytes("UTF-8"));
+    final HttpResponse response = responseWithEntity(entity, null);
+    BaseResource.decodeResponseEntity(response);
+    assertSame(entity, response.getEntity());
+    assertEquals(Long.toString(entity.getContentLength()), response.getFirstHeader("Content-Length").getValue());
+
+    final HttpResponse identity = responseWithEntity(entity, "identity");
+    entity.setContentEncoding("identity");
+    BaseResource.decodeResponseEntity(identity);
+    assertSame(entity, identity.getEntity());
+  }
+}
@@ -16,6 +16,8 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.AssertionFailedError;
 
@@ -333,6 +335,162 @@ public class TestGlobalSession {
     assertFalse(callback.calledRequestBackoff);
   }
 
+  /**
+   * A stage that advances (or aborts) from another thread after a delay,
+   * recording how many such stages were running at once.
+   */
+  protected static class ConcurrentMockStage extends MockServerSyncStage {
+    protected static final AtomicInteger running = new AtomicInteger(0);
+    protected static final AtomicInteger maxRunning = new AtomicInteger(0);
+
+    protected final long delay;
+    protected final boolean shouldAdvance;
+    public final AtomicBoolean executed = new AtomicBoolean(false);
+    public final AtomicBoolean finished = new AtomicBoolean(false);
+
+    public ConcurrentMockStage(long delay, boolean shouldAdvance) {
+      this.delay = delay;
+      this.shouldAdvance = shouldAdvance;
+    }
+
+    @Override
+    public void execute() {
+      executed.set(true);
+      final int now = running.incrementAndGet();
+      int max;
+      while ((max = maxRunning.get()) < now && !maxRunning.compareAndSet(max, now)) {
+        // Try again.
+      }
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(delay);
+          } catch (InterruptedException e) {
+            // Carry on.
+          }
+          running.decrementAndGet();
+          finished.set(true);
+          if (shouldAdvance) {
+            session.advance(ConcurrentMockStage.this);
+          } else {
+            session.abort(ConcurrentMockStage.this, null, "Stage intentionally failed.");
+          }
+        }
+      }).start();
+    }
+  }
+
+  protected void startAndWait(final GlobalSession session) {
+    getTestWaiter().performWait(WaitHelper.onThreadRunnable(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          session.start();
+        } catch (Exception e) {
+          final AssertionFailedError error = new AssertionFailedError();
+          error.initCause(e);
+          getTestWaiter().performNotify(error);
+        }
+      }
+    }));
+  }
+
+  @Test
+  public void testConcurrentStages() throws Exception {
+    ConcurrentMockStage.maxRunning.set(0);
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback(TEST_CLUSTER_URL);
+    SyncConfiguration config = new SyncConfiguration(TEST_USERNAME, new BasicAuthHeaderProvider(TEST_USERNAME, TEST_PASSWORD), new MockSharedPreferences(), new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY));
+    final MockGlobalSession session = new MockGlobalSession(config, callback);
+    session.setMaxConcurrentStages(2);
+
+    final List<ConcurrentMockStage> concurrentStages = new ArrayList<ConcurrentMockStage>();
+    for (Stage stage : GlobalSession.CONCURRENT_STAGES) {
+      final ConcurrentMockStage mockStage = new ConcurrentMockStage(50, true);
+      concurrentStages.add(mockStage);
+      session.withStage(stage, mockStage);
+    }
+
+    startAndWait(session);
+
+    assertTrue(callback.calledSuccess);
+    assertFalse(callback.calledError);
+    assertEquals(0, callback.stageCounter);
+    assertEquals(2, ConcurrentMockStage.maxRunning.get());
+    for (ConcurrentMockStage stage : concurrentStages) {
+      assertTrue(stage.finished.get());
+    }
+  }
+
+  @Test
+  public void testConcurrentStageAbortWaitsForRunningStages() throws Exception {
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback(TEST_CLUSTER_URL);
+    SyncConfiguration config = new SyncConfiguration(TEST_USERNAME, new BasicAuthHeaderProvider(TEST_USERNAME, TEST_PASSWORD), new MockSharedPreferences(), new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY));
+    final MockGlobalSession session = new MockGlobalSession(config, callback);
+    session.setMaxConcurrentStages(2);
+
+    final ConcurrentMockStage failing = new ConcurrentMockStage(10, false);
+    final ConcurrentMockStage slow = new ConcurrentMockStage(200, true);
+    final ConcurrentMockStage later = new ConcurrentMockStage(10, true);
+    final ConcurrentMockStage upload = new ConcurrentMockStage(10, true);
+    session.withStage(Stage.syncTabs, failing)
+           .withStage(Stage.syncPasswords, slow)
+           .withStage(Stage.syncBookmarks, later)
+           .withStage(Stage.uploadMetaGlobal, upload);
+
+    startAndWait(session);
+
+    assertFalse(callback.calledSuccess);
+    assertTrue(callback.calledError);
+    // The abort was only delivered once the running stage finished...
+    assertTrue(slow.finished.get());
+    // ... and no more stages were started.
+    assertFalse(later.executed.get());
+    assertFalse(upload.executed.get());
+  }
+
+  @Test
+  public void testConcurrentStageIgnoresDuplicateReports() throws Exception {
+    final MockGlobalSessionCallback callback = new MockGlobalSessionCallback(TEST_CLUSTER_URL);
+    SyncConfiguration config = new SyncConfiguration(TEST_USERNAME, new BasicAuthHeaderProvider(TEST_USERNAME, TEST_PASSWORD), new MockSharedPreferences(), new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY));
+    final MockGlobalSession session = new MockGlobalSession(config, callback);
+    session.setMaxConcurrentStages(2);
+
+    // Aborts, then carries on and advances too.
+    final MockServerSyncStage failing = new MockServerSyncStage() {
+      @Override
+      public void execute() {
+        session.abort(this, null, "Stage intentionally failed.");
+        session.abort(this, null, "Stage intentionally failed again.");
+        session.advance(this);
+      }
+    };
+    final ConcurrentMockStage slow = new ConcurrentMockStage(200, true);
+    final ConcurrentMockStage later = new ConcurrentMockStage(10, true);
+    session.withStage(Stage.syncTabs, failing)
+           .withStage(Stage.syncPasswords, slow)
+           .withStage(Stage.syncBookmarks, later);
+
+    startAndWait(session);
+
+    assertFalse(callback.calledSuccess);
+    assertTrue(callback.calledError);
+    // The extra reports didn't count as the running stage finishing.
+    assertTrue(slow.finished.get());
+    assertFalse(later.executed.get());
+  }
+
+  @Test
+  public void testMaxConcurrentStagesFromConfig() throws Exception {
+    final MockSharedPreferences prefs = new MockSharedPreferences();
+    SyncConfiguration config = new SyncConfiguration(TEST_USERNAME, new BasicAuthHeaderProvider(TEST_USERNAME, TEST_PASSWORD), prefs, new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY));
+    assertEquals(1, new MockGlobalSession(config, new MockGlobalSessionCallback()).getMaxConcurrentStages());
+
+    prefs.edit().putInt(SyncConfiguration.PREF_MAX_CONCURRENT_STAGES, 3).commit();
+    config = new SyncConfiguration(TEST_USERNAME, new BasicAuthHeaderProvider(TEST_USERNAME, TEST_PASSWORD), prefs, new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY));
+    assertEquals(3, new MockGlobalSession(config, new MockGlobalSessionCallback()).getMaxConcurrentStages());
+  }
+
   @Test
   public void testGenerateNewMetaGlobalNonePersisted() throws Exception {
     final MockGlobalSessionCallback callback = new MockGlobalSessionCallback();
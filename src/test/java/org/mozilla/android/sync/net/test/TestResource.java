@@ -17,6 +17,7 @@ import org.mozilla.android.sync.test.helpers.MockResourceDelegate;
 import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
 import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.HttpConnectionObserver;
 import org.mozilla.gecko.sync.net.HttpResponseObserver;
 
 import ch.boye.httpclientandroidlib.HttpResponse;
@@ -97,4 +98,40 @@ public class TestResource {
 
     data.stopHTTPServer();
   }
+
+  public static class MockHttpConnectionObserver implements HttpConnectionObserver {
+    public int observed = 0;
+    public int reused = 0;
+
+    @Override
+    public void observeHttpConnection(HttpUriRequest request, boolean reused) {
+      this.observed += 1;
+      if (reused) {
+        this.reused += 1;
+      }
+    }
+  }
+
+  @Test
+  public void testConnectionObservers() throws URISyntaxException {
+    data.startHTTPServer();
+    MockHttpConnectionObserver observer = new MockHttpConnectionObserver();
+    BaseResource.addHttpConnectionObserver(observer);
+    try {
+      final long executedBefore = BaseResource.getRequestsExecutedCount();
+      final long openedBefore = BaseResource.getConnectionsOpenedCount();
+
+      doGet();
+      doGet();
+
+      assertEquals(2, observer.observed);
+      assertEquals(executedBefore + 2, BaseResource.getRequestsExecutedCount());
+      // Every request that didn't reuse a connection opened one.
+      final long opened = BaseResource.getConnectionsOpenedCount() - openedBefore;
+      assertTrue(opened >= 2 - observer.reused);
+    } finally {
+      BaseResource.removeHttpConnectionObserver(observer);
+      data.stopHTTPServer();
+    }
+  }
 }
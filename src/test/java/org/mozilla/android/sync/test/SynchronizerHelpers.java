@@ -256,6 +256,25 @@ public class SynchronizerHelpers {
     }
   }
 
+  public static class ThreadSafeStoreWBORepository extends TrackingWBORepository {
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate,
+                              Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new ThreadSafeStoreWBORepositorySession(this));
+    }
+
+    public class ThreadSafeStoreWBORepositorySession extends WBORepositorySession {
+      public ThreadSafeStoreWBORepositorySession(WBORepository repository) {
+        super(repository);
+      }
+
+      @Override
+      public boolean storeIsThreadSafe() {
+        return true;
+      }
+    }
+  }
+
   public static class ShouldSkipWBORepository extends TrackingWBORepository {
     public boolean shouldSkip = true;
 
@@ -235,10 +235,42 @@ public class TestRecord {
     assertEquals(record.guid, parsed.guid);
     assertEquals(record.clientName, parsed.clientName);
     assertEquals(record.tabs, parsed.tabs);
+    assertEquals(record.contentHash(), parsed.contentHash());
 
     // Verify that equality test doesn't always return true.
     parsed.tabs.get(0).history.add("http://test.com/different.html");
     assertFalse(record.tabs.equals(parsed.tabs));
+    assertFalse(record.contentHash().equals(parsed.contentHash()));
+  }
+
+  @SuppressWarnings({ "unchecked", "static-method" })
+  @Test
+  public void testTabsRecordContentHash() throws Exception {
+    final JSONArray history = new JSONArray();
+    history.add("http://test.com/test1.html");
+
+    final TabsRecord record = new TabsRecord("testGuid");
+    record.clientName = "test client name";
+    record.tabs = new ArrayList<Tab>();
+    record.tabs.add(new Tab("ab", null, history, 1000));
+    final String hash = record.contentHash();
+
+    // Server metadata doesn't matter.
+    record.lastModified = 12345;
+    assertEquals(hash, record.contentHash());
+
+    // Moving text between fields, or from null to empty, does.
+    record.tabs.set(0, new Tab("a", "b", history, 1000));
+    assertFalse(hash.equals(record.contentHash()));
+    record.tabs.set(0, new Tab("ab", "", history, 1000));
+    assertFalse(hash.equals(record.contentHash()));
+
+    // So does when a tab was last used.
+    record.tabs.set(0, new Tab("ab", null, history, 1001));
+    assertFalse(hash.equals(record.contentHash()));
+
+    record.tabs.set(0, new Tab("ab", null, history, 1000));
+    assertEquals(hash, record.contentHash());
   }
 
   public static class URITestBookmarkRecord extends BookmarkRecord {
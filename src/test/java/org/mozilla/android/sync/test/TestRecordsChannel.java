@@ -16,6 +16,7 @@ import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionCreat
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionFinishDelegate;
 import org.mozilla.gecko.background.testhelpers.WBORepository;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.SyncMetrics;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.Repository;
@@ -39,6 +40,10 @@ public class TestRecordsChannel {
   protected AtomicInteger numFlowCompleted;
   protected AtomicBoolean flowBeginFailed;
   protected AtomicBoolean flowFinishFailed;
+  protected SyncMetrics.FlowMetrics flowMetrics;
+
+  protected int queueCapacity = RecordsChannel.DEFAULT_QUEUE_CAPACITY;
+  protected int storeWorkerCount = RecordsChannel.DEFAULT_STORE_WORKER_COUNT;
 
   public void doFlow(final Repository remote, final Repository local) throws Exception {
     WaitHelper.getTestWaiter().performWait(new Runnable() {
@@ -68,6 +73,7 @@ public class TestRecordsChannel {
     numFlowCompleted = new AtomicInteger(0);
     flowBeginFailed = new AtomicBoolean(false);
     flowFinishFailed = new AtomicBoolean(false);
+    flowMetrics = new SyncMetrics.FlowMetrics();
 
     rcDelegate = new RecordsChannelDelegate() {
       @Override
@@ -118,6 +124,9 @@ public class TestRecordsChannel {
     };
 
     final RecordsChannel rc = new RecordsChannel(source,  sink, rcDelegate);
+    rc.setQueueCapacity(queueCapacity);
+    rc.setStoreWorkerCount(storeWorkerCount);
+    rc.setMetrics(flowMetrics);
     WaitHelper.getTestWaiter().performWait(new Runnable() {
       @Override
       public void run() {
@@ -177,6 +186,11 @@ public class TestRecordsChannel {
     assertEquals(0, numFlowFetchFailed.get());
     assertEquals(0, numFlowStoreFailed.get());
     assertEquals(source.wbos, sink.wbos);
+    assertEquals(6, flowMetrics.getFetchedCount());
+    assertEquals(6, flowMetrics.getStoredCount());
+    assertEquals(0, flowMetrics.getStoreFailedCount());
+    assertTrue(flowMetrics.getFetchMsec() >= 0);
+    assertTrue(flowMetrics.getStoreMsec() >= 0);
   }
 
   @Test
@@ -210,6 +224,7 @@ public class TestRecordsChannel {
     assertEquals(0, numFlowFetchFailed.get());
     assertEquals(3, numFlowStoreFailed.get()); // One batch fails.
     assertEquals(3, sink.wbos.size()); // One batch succeeds.
+    assertEquals(3, flowMetrics.getStoreFailedCount());
   }
 
 
@@ -223,4 +238,42 @@ public class TestRecordsChannel {
     assertEquals(6, numFlowStoreFailed.get()); // One (big) batch fails.
     assertEquals(0, sink.wbos.size()); // No batches succeed.
   }
+
+  @Test
+  public void testBoundedQueueConcurrentStore() throws Exception {
+    WBORepository source = new SynchronizerHelpers.TrackingWBORepository();
+    for (int i = 0; i < 500; i++) {
+      BookmarkRecord record = new BookmarkRecord("outbound" + i, "bookmarks", 1, false);
+      source.wbos.put(record.guid, record);
+    }
+    WBORepository sink = new SynchronizerHelpers.ThreadSafeStoreWBORepository();
+    queueCapacity = 5;
+    storeWorkerCount = 4;
+    doFlow(source, sink);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(0, numFlowStoreFailed.get());
+    assertEquals(source.wbos, sink.wbos);
+  }
+
+  @Test
+  public void testHaltedConsumerDoesNotBlockFetch() throws Exception {
+    WBORepository source = new FailFetchWBORepository();
+    for (int i = 0; i < 50; i++) {
+      BookmarkRecord record = new BookmarkRecord("outbound" + i, "bookmarks", 1, false);
+      source.wbos.put(record.guid, record);
+    }
+    BookmarkRecord failing = new BookmarkRecord("outboundFail", "bookmarks", 1, false);
+    source.wbos.put(failing.guid, failing);
+    WBORepository sink = empty();
+    queueCapacity = 1;
+
+    // Records fetched after the failure are dropped, rather than each waiting
+    // for room in a queue that nothing drains.
+    final long start = System.currentTimeMillis();
+    doFlow(source, sink);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(1, numFlowCompleted.get());
+    assertTrue(numFlowFetchFailed.get() > 0);
+  }
 }
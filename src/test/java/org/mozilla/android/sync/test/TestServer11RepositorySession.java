@@ -5,12 +5,14 @@ package org.mozilla.android.sync.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.mozilla.android.sync.test.SynchronizerHelpers.TrackingWBORepository;
@@ -19,7 +21,9 @@ import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.gecko.background.testhelpers.MockRecord;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.JSONRecordFetcher;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
@@ -152,10 +156,30 @@ public class TestServer11RepositorySession {
   }
 
   protected Exception doSynchronize(MockServer server) throws Exception {
+    return doSynchronize(server, 100, Server11Repository.DEFAULT_MAX_IN_FLIGHT_UPLOADS);
+  }
+
+  /**
+   * Cap upload batches at <code>maxPostRecords</code>, so that the number of
+   * POSTs doesn't depend on how quickly the server answers.
+   */
+  protected static InfoConfiguration fixedBatchConfiguration(int maxPostRecords) throws Exception {
+    final ExtendedJSONObject o = new ExtendedJSONObject();
+    o.put(InfoConfiguration.MAX_POST_RECORDS_KEY, Long.valueOf(maxPostRecords));
+    return new InfoConfiguration(o);
+  }
+
+  protected Exception doSynchronize(MockServer server, int numRecords, int maxInFlightUploads) throws Exception {
+    return doSynchronize(server, numRecords, maxInFlightUploads, fixedBatchConfiguration(50));
+  }
+
+  protected Exception doSynchronize(MockServer server, int numRecords, int maxInFlightUploads, InfoConfiguration infoConfiguration) throws Exception {
     final String COLLECTION = "test";
 
-    final TrackingWBORepository local = getLocal(100);
+    final TrackingWBORepository local = getLocal(numRecords);
     final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider, infoCollections);
+    remote.setMaxInFlightUploads(maxInFlightUploads);
+    remote.setInfoConfiguration(infoConfiguration);
     KeyBundle collectionKey = new KeyBundle(TEST_USERNAME, SYNC_KEY);
     Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, collectionKey);
     cryptoRepo.recordFactory = new BookmarkRecordFactory();
@@ -213,6 +237,82 @@ public class TestServer11RepositorySession {
     assertEquals(StoreFailedException.class, e.getClass());
   }
 
+  /**
+   * Answer POSTs slowly, tracking how many are in flight at once.
+   */
+  public class SlowPOSTMockServer extends MockServer {
+    public final AtomicInteger posts = new AtomicInteger(0);
+    public final AtomicInteger inFlight = new AtomicInteger(0);
+    public final AtomicInteger maxInFlight = new AtomicInteger(0);
+    protected final int postStatusCode;
+
+    public SlowPOSTMockServer(int postStatusCode) {
+      this.postStatusCode = postStatusCode;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      if (!request.getMethod().equals("POST")) {
+        // An empty collection.
+        this.handle(request, response, 200, "");
+        return;
+      }
+      posts.incrementAndGet();
+      final int current = inFlight.incrementAndGet();
+      while (true) {
+        final int max = maxInFlight.get();
+        if (current <= max || maxInFlight.compareAndSet(max, current)) {
+          break;
+        }
+      }
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        // Carry on.
+      }
+      inFlight.decrementAndGet();
+      this.handle(request, response, postStatusCode, "{\"modified\": 1000, \"success\": [], \"failed\": {}}");
+    }
+  }
+
+  @Test
+  public void testPipelinedStore() throws Exception {
+    final SlowPOSTMockServer server = new SlowPOSTMockServer(200);
+    // 300 records is six batches of 50.
+    Exception e = doSynchronize(server, 300, 3);
+    assertNull(e);
+    assertEquals(6, server.posts.get());
+    assertTrue(server.maxInFlight.get() > 1);
+    assertTrue(server.maxInFlight.get() <= 3);
+  }
+
+  @Test
+  public void testSequentialStoreByDefault() throws Exception {
+    final SlowPOSTMockServer server = new SlowPOSTMockServer(200);
+    Exception e = doSynchronize(server, 300, Server11Repository.DEFAULT_MAX_IN_FLIGHT_UPLOADS);
+    assertNull(e);
+    assertEquals(6, server.posts.get());
+    assertEquals(1, server.maxInFlight.get());
+  }
+
+  @Test
+  public void testStoreRespectsServerLimits() throws Exception {
+    final SlowPOSTMockServer server = new SlowPOSTMockServer(200);
+    Exception e = doSynchronize(server, 100, Server11Repository.DEFAULT_MAX_IN_FLIGHT_UPLOADS, fixedBatchConfiguration(20));
+    assertNull(e);
+    assertEquals(5, server.posts.get());
+  }
+
+  @Test
+  public void testPipelinedStorePostFailure() throws Exception {
+    final SlowPOSTMockServer server = new SlowPOSTMockServer(404);
+    Exception e = doSynchronize(server, 300, 3);
+    assertNotNull(e);
+    assertEquals(StoreFailedException.class, e.getClass());
+    // Uploads dispatched after the first failure are never sent.
+    assertTrue(server.posts.get() < 6);
+  }
+
   @Test
   public void testConstraints() throws Exception {
     MockServer server = new MockServer() {
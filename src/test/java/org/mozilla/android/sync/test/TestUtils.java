@@ -11,6 +11,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import org.json.simple.JSONArray;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mozilla.gecko.sync.SyncConstants;
@@ -119,6 +120,24 @@ public class TestUtils extends Utils {
     assertEquals("test1, test2, test3", Utils.toCommaSeparatedString(xs));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAppendMissing() {
+    final JSONArray target = new JSONArray();
+    target.add("a");
+    target.add("b");
+    final JSONArray source = new JSONArray();
+    source.add("c");
+    source.add("b");
+    source.add("d");
+    source.add("c");
+
+    assertEquals(2, Utils.appendMissing(target, source));
+    assertEquals(Arrays.asList("a", "b", "c", "d"), target);
+    assertEquals(0, Utils.appendMissing(target, source));
+    assertEquals(0, Utils.appendMissing(target, new JSONArray()));
+  }
+
   @Test
   public void testUsernameFromAccount() throws NoSuchAlgorithmException, UnsupportedEncodingException {
     assertEquals("xee7ffonluzpdp66l6xgpyh2v2w6ojkc", Utils.sha1Base32("foobar@baz.com"));
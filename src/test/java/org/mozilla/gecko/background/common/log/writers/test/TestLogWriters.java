@@ -7,6 +7,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -15,6 +16,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.background.common.log.writers.AsyncLogWriter;
 import org.mozilla.gecko.background.common.log.writers.LevelFilteringLogWriter;
 import org.mozilla.gecko.background.common.log.writers.LogWriter;
 import org.mozilla.gecko.background.common.log.writers.PrintLogWriter;
@@ -174,4 +176,171 @@ public class TestLogWriters {
       Logger.stopLoggingTo(logWriter);
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testShouldLog() {
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.ERROR));
+
+    Logger.startLoggingTo(new LevelFilteringLogWriter(Log.INFO, new StringLogWriter()));
+    assertTrue(Logger.shouldLog(TEST_LOG_TAG_1, Log.ERROR));
+    assertTrue(Logger.shouldLog(TEST_LOG_TAG_1, Log.INFO));
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.DEBUG));
+    assertFalse(Logger.shouldLogVerbose(TEST_LOG_TAG_1));
+
+    // Tag writers ask about their own tag.
+    Logger.startLoggingTo(new SimpleTagLogWriter("XXX", new LevelFilteringLogWriter(Log.DEBUG, new StringLogWriter())));
+    assertTrue(Logger.shouldLog(TEST_LOG_TAG_1, Log.DEBUG));
+    assertFalse(Logger.shouldLog(TEST_LOG_TAG_1, Log.VERBOSE));
+  }
+
+  @Test
+  public void testLazyFormatting() {
+    assertEquals("a 1 b 2 c", Logger.format("a {} b {} c", 1, 2));
+    assertEquals("a 1 b {}", Logger.format("a {} b {}", 1));
+    assertEquals("a 1", Logger.format("a {}", 1, 2));
+    assertEquals("null!", Logger.format("{}!", (Object) null));
+    assertEquals("[x, y]", Logger.format("{}", (Object) new Object[] { "x", "y" }));
+    assertEquals("plain", Logger.format("plain"));
+
+    final StringLogWriter lw = new StringLogWriter();
+    Logger.startLoggingTo(new LevelFilteringLogWriter(Log.DEBUG, lw));
+
+    final Object expensive = new Object() {
+      @Override
+      public String toString() {
+        throw new IllegalStateException("Should not be formatted.");
+      }
+    };
+    Logger.trace(TEST_LOG_TAG_1, "Not built: {}", expensive);
+    Logger.trace(TEST_LOG_TAG_1, "Not built: {} {}", expensive, expensive);
+    Logger.trace(TEST_LOG_TAG_1, "Not built: {} {} {}", expensive, expensive, expensive);
+
+    Logger.debug(TEST_LOG_TAG_1, "Record {} of {}.", "abc", 5);
+    Logger.info(TEST_LOG_TAG_1, "{}", TEST_MESSAGE_1);
+    Logger.debug(TEST_LOG_TAG_1, TEST_MESSAGE_2, new RuntimeException());
+
+    final String s = lw.toString();
+    assertFalse(s.contains("Not built"));
+    assertTrue(s.contains(TEST_LOG_TAG_1 + PrintLogWriter.DEBUG + "Record abc of 5."));
+    assertTrue(s.contains(TEST_LOG_TAG_1 + PrintLogWriter.INFO + TEST_MESSAGE_1));
+    assertTrue(s.contains("RuntimeException"));
+  }
+
+  @Test
+  public void testAsyncLogWriter() {
+    final StringLogWriter lw = new StringLogWriter();
+    final AsyncLogWriter async = new AsyncLogWriter(lw);
+
+    Logger.startLoggingTo(async);
+    for (int i = 0; i < 100; i++) {
+      Logger.debug(TEST_LOG_TAG_1, "message " + i);
+    }
+    Logger.error(TEST_LOG_TAG_2, TEST_MESSAGE_1, new RuntimeException());
+
+    // Closing writes everything that's queued.
+    Logger.stopLoggingTo(async);
+    Logger.debug(TEST_LOG_TAG_1, TEST_MESSAGE_3);
+    Logger.error(TEST_LOG_TAG_1, TEST_MESSAGE_3);
+
+    // The error isn't queued, so it can be written before the debug messages.
+    final List<String> debug = new ArrayList<String>();
+    for (String line : lw.toString().split("\n")) {
+      if (line.startsWith(TEST_LOG_TAG_1)) {
+        debug.add(line);
+      }
+    }
+    assertEquals(100, debug.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(TEST_LOG_TAG_1 + PrintLogWriter.DEBUG + "message " + i, debug.get(i));
+    }
+    assertTrue(lw.toString().contains(TEST_LOG_TAG_2 + PrintLogWriter.ERROR + TEST_MESSAGE_1));
+    assertTrue(lw.toString().contains("RuntimeException"));
+    assertFalse(lw.toString().contains(TEST_MESSAGE_3));
+    assertEquals(0, async.getDroppedCount());
+  }
+
+  @Test
+  public void testAsyncLogWriterDropsWhenFull() throws InterruptedException {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final StringLogWriter lw = new StringLogWriter();
+    final LogWriter blocking = new LevelFilteringLogWriter(Log.VERBOSE, lw) {
+      @Override
+      public void debug(String tag, String message, Throwable error) {
+        writing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // Fall through.
+        }
+        super.debug(tag, message, error);
+      }
+    };
+
+    final AsyncLogWriter async = new AsyncLogWriter(blocking, 2);
+    async.debug(TEST_LOG_TAG_1, "first", null);
+    writing.await();
+
+    // The writing thread is stuck on the first message: fill the buffer.
+    async.debug(TEST_LOG_TAG_1, "second", null);
+    async.trace(TEST_LOG_TAG_1, "third", null);
+    async.debug(TEST_LOG_TAG_1, "dropped", null);
+    async.trace(TEST_LOG_TAG_1, "dropped", null);
+    assertEquals(2, async.getDroppedCount());
+
+    // Errors, warnings, and info are never dropped: they don't wait for the
+    // writing thread.
+    async.error(TEST_LOG_TAG_2, "error", null);
+    async.warn(TEST_LOG_TAG_2, "warning", null);
+    async.info(TEST_LOG_TAG_2, "info", null);
+    assertEquals(2, async.getDroppedCount());
+    final String written = lw.toString();
+    assertTrue(written.contains(TEST_LOG_TAG_2 + PrintLogWriter.ERROR + "error"));
+    assertTrue(written.contains(TEST_LOG_TAG_2 + PrintLogWriter.WARN + "warning"));
+    assertTrue(written.contains(TEST_LOG_TAG_2 + PrintLogWriter.INFO + "info"));
+    assertFalse(written.contains("first"));
+
+    release.countDown();
+    async.close();
+
+    final String s = lw.toString();
+    assertTrue(s.contains("first"));
+    assertTrue(s.contains("second"));
+    assertTrue(s.contains("third"));
+    assertFalse(s.contains("dropped"));
+    assertTrue(s.contains(AsyncLogWriter.LOG_TAG + PrintLogWriter.WARN + "Dropped 2 log messages."));
+  }
+
+  @Test
+  public void testConcurrentLogging() throws InterruptedException {
+    final StringLogWriter lw = new StringLogWriter();
+    Logger.startLoggingTo(lw);
+
+    final int threads = 4;
+    final int messages = 500;
+    final CountDownLatch latch = new CountDownLatch(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < messages; i++) {
+              Logger.info(TEST_LOG_TAG_1, TEST_MESSAGE_1);
+              if (i == messages / 2) {
+                // Writers can change while others are logging.
+                final LogWriter other = new StringLogWriter();
+                Logger.startLoggingTo(other);
+                Logger.stopLoggingTo(other);
+              }
+            }
+          } finally {
+            latch.countDown();
+          }
+        }
+      }).start();
+    }
+    latch.await();
+
+    assertEquals(threads * messages, lw.toString().split("\n").length);
+  }
+}
@@ -54,6 +54,39 @@ public class TestDeflation {
     assertEqualArrays(direct, entity);
   }
 
+  @SuppressWarnings("static-method")
+  @Test
+  public void testDeflatingWriterRoundtrip() throws Exception {
+    doWriterRoundtrip(TEST_BODY_A);
+    doWriterRoundtrip(TEST_BODY_B);
+    doWriterRoundtrip(TEST_BODY_D);
+
+    // Larger than any of the writer's buffers.
+    final StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      large.append(TEST_BODY_B).append(i);
+    }
+    doWriterRoundtrip(large.toString());
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testDeflatingWriterMustBeClosed() throws Exception {
+    final DeflateHelper.DeflatingWriter writer = new DeflateHelper.DeflatingWriter();
+    writer.write(TEST_BODY_C);
+    try {
+      writer.getEntity();
+      Assert.fail("Expected IllegalStateException.");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    writer.close();
+    writer.close();
+    final HttpEntity entity = writer.getEntity();
+    Assert.assertTrue(entity.isRepeatable());
+    assertEqualArrays(EntityTestHelper.bytesFromEntity(entity), EntityTestHelper.bytesFromEntity(entity));
+  }
+
   public static int reinflateBytes(byte[] input, byte[] output, int inLength) throws DataFormatException {
     final Inflater inflater = new Inflater();
     inflater.setInput(input, 0, inLength);
@@ -118,6 +151,22 @@ public class TestDeflation {
     Assert.assertEquals(in, outputString);
   }
 
+  private static void doWriterRoundtrip(final String in) throws Exception {
+    final DeflateHelper.DeflatingWriter writer = new DeflateHelper.DeflatingWriter();
+    // Write in small pieces, as a document generator would.
+    for (int i = 0; i < in.length(); i += 7) {
+      writer.write(in, i, Math.min(7, in.length() - i));
+    }
+    writer.close();
+
+    final byte[] bytes = EntityTestHelper.bytesFromEntity(writer.getEntity());
+    final byte[] expected = in.getBytes("UTF-8");
+    final byte[] result = new byte[expected.length + 1];
+    final int resultLength = reinflateBytes(bytes, result, bytes.length);
+    Assert.assertEquals(expected.length, resultLength);
+    Assert.assertEquals(in, new String(result, 0, resultLength, "UTF-8"));
+  }
+
   private static void assertEqualArrays(byte[] a, byte[] b) {
     Logger.trace("assertEqualArrays", "A: " + Arrays.toString(a));
     Logger.trace("assertEqualArrays", "B: " + Arrays.toString(b));
@@ -0,0 +1,140 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+
+import org.junit.Test;
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.crypto.CryptoContext;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+
+public class TestCryptoContext {
+  /**
+   * The HMAC computation used before <code>CryptoContext</code> existed.
+   */
+  protected static byte[] referenceHMACFor(byte[] message, KeyBundle keys) throws Exception {
+    Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
+    return hmacHasher.doFinal(Base64.encodeBase64(message));
+  }
+
+  @Test
+  public void testStreamedHMACMatchesEncoded() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    final Random random = new Random(1234);
+    // Cover every padding case and lengths either side of a chunk boundary.
+    final int[] lengths = { 0, 1, 2, 3, 4, 5, 3071, 3072, 3073, 3074, 10000 };
+    for (int length : lengths) {
+      final byte[] message = new byte[length];
+      random.nextBytes(message);
+      assertArrayEquals("Length " + length,
+          referenceHMACFor(message, keys), CryptoInfo.generatedHMACFor(message, keys));
+    }
+  }
+
+  @Test
+  public void testReuseAndRekey() throws Exception {
+    final CryptoContext context = CryptoContext.get();
+    final KeyBundle first = KeyBundle.withRandomKeys();
+    final KeyBundle second = KeyBundle.withRandomKeys();
+    final byte[] plaintext = "plaintext".getBytes("UTF-8");
+
+    // Warm up so that the context is keyed with first.
+    CryptoInfo.encrypt(plaintext, first);
+    final long macInits = context.getMacInitCount();
+    final long cipherInstances = context.getCipherInstanceCount();
+
+    for (int i = 0; i < 10; i++) {
+      final CryptoInfo info = CryptoInfo.encrypt(plaintext, first);
+      info.decrypt();
+      assertArrayEquals(plaintext, info.getMessage());
+    }
+    assertEquals(macInits, context.getMacInitCount());
+    assertEquals(cipherInstances, context.getCipherInstanceCount());
+
+    // Alternate bundles: results must still be correct.
+    final CryptoInfo a = CryptoInfo.encrypt(plaintext, first);
+    final CryptoInfo b = CryptoInfo.encrypt(plaintext, second);
+    assertArrayEquals(referenceHMACFor(a.getMessage(), first), a.getHMAC());
+    assertArrayEquals(referenceHMACFor(b.getMessage(), second), b.getHMAC());
+    a.decrypt();
+    b.decrypt();
+    assertArrayEquals(plaintext, a.getMessage());
+    assertArrayEquals(plaintext, b.getMessage());
+    assertEquals(cipherInstances, context.getCipherInstanceCount());
+
+    // Decrypting with the wrong keys must fail HMAC verification.
+    final CryptoInfo c = CryptoInfo.encrypt(plaintext, first);
+    c.setKeys(second);
+    try {
+      c.decrypt();
+      fail("Expected HMACVerificationException.");
+    } catch (HMACVerificationException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testMutatedKeyBundle() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    final byte[] plaintext = "plaintext".getBytes("UTF-8");
+    CryptoInfo.encrypt(plaintext, keys);
+
+    // Swapping key material in an existing bundle must be noticed.
+    final KeyBundle other = KeyBundle.withRandomKeys();
+    keys.setHMACKey(other.getHMACKey());
+    keys.setEncryptionKey(other.getEncryptionKey());
+    final CryptoInfo info = CryptoInfo.encrypt(plaintext, keys);
+    assertArrayEquals(referenceHMACFor(info.getMessage(), other), info.getHMAC());
+    info.setKeys(other);
+    info.decrypt();
+    assertArrayEquals(plaintext, info.getMessage());
+  }
+
+  @Test
+  public void testConcurrentUse() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      @SuppressWarnings("unchecked")
+      final Future<Boolean>[] results = new Future[8];
+      for (int i = 0; i < results.length; i++) {
+        final int seed = i;
+        results[i] = executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            final Random random = new Random(seed);
+            for (int j = 0; j < 200; j++) {
+              final byte[] plaintext = new byte[random.nextInt(500)];
+              random.nextBytes(plaintext);
+              final CryptoInfo info = CryptoInfo.encrypt(plaintext, keys);
+              info.decrypt();
+              assertArrayEquals(plaintext, info.getMessage());
+            }
+            return true;
+          }
+        });
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
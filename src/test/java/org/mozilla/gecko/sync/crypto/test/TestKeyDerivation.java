@@ -0,0 +1,165 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.HMACSHA256;
+import org.mozilla.gecko.sync.crypto.JavaKeyDerivation;
+import org.mozilla.gecko.sync.crypto.KeyDerivation;
+import org.mozilla.gecko.sync.crypto.KeyDerivationProvider;
+import org.mozilla.gecko.sync.crypto.PBKDF2;
+
+/**
+ * Check the pure Java key derivation against published vectors and against the
+ * <code>javax.crypto</code> implementations in {@link PBKDF2} and {@link HKDF}.
+ */
+public class TestKeyDerivation {
+  protected final KeyDerivation keyDerivation = new JavaKeyDerivation();
+
+  protected static byte[] randomBytes(Random random, int length) {
+    final byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void testHMACMatchesMac() throws Exception {
+    final Random random = new Random(1);
+    // Key lengths either side of the block length; message lengths either side
+    // of where the padding spills into another block.
+    final int[] keyLengths = new int[] { 0, 1, 32, 63, 64, 65, 130 };
+    for (int keyLength : keyLengths) {
+      final byte[] key = randomBytes(random, keyLength);
+      final HMACSHA256 hmac = new HMACSHA256(key);
+      final Mac mac = Mac.getInstance("HmacSHA256");
+      // Mac rejects empty keys; HMAC pads them to zeroes anyway.
+      mac.init(new SecretKeySpec(keyLength == 0 ? new byte[1] : key, "HmacSHA256"));
+      for (int length = 0; length <= 200; length++) {
+        final byte[] message = randomBytes(random, length);
+        assertArrayEquals(mac.doFinal(message), hmac.mac(message));
+      }
+    }
+  }
+
+  @Test
+  public void testHMACOffsets() throws Exception {
+    final HMACSHA256 hmac = new HMACSHA256(Utils.hex2Byte("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"));
+    final String expected = "b0344c61d8db38535ca8afceaf0bf12b881dc200c9833da726e9376c2e32cff7";
+    assertEquals(expected, Utils.byte2Hex(hmac.mac("Hi There".getBytes("US-ASCII"))));
+
+    // Output may overwrite input.
+    final byte[] buffer = new byte[40];
+    System.arraycopy("Hi There".getBytes("US-ASCII"), 0, buffer, 4, 8);
+    hmac.mac(buffer, 4, 8, buffer, 2);
+    final byte[] out = new byte[32];
+    System.arraycopy(buffer, 2, out, 0, 32);
+    assertEquals(expected, Utils.byte2Hex(out));
+  }
+
+  @Test
+  public void testPBKDF2Vectors() throws Exception {
+    checkPBKDF2("password", "salt", 1, 32, "120fb6cffcf8b32c43e7225256c4f837a86548c92ccc35480805987cb70be17b");
+    checkPBKDF2("password", "salt", 4096, 32, "c5e478d59288c841aa530db6845c4c8d962893a001ce4e11a4963873aa98134a");
+    checkPBKDF2("passwordPASSWORDpassword", "saltSALTsaltSALTsaltSALTsaltSALTsalt", 4096, 40, "348c89dbcbd32b2f32d814b8116e84cf2b17347ebc1800181c4e2a1fb8dd53e1c635518c7dac47e9");
+    checkPBKDF2("passwd", "salt", 1, 64, "55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783");
+    checkPBKDF2("pass\0word", "sa\0lt", 4096, 16, "89b69d0516f829893c696226650a8687");
+  }
+
+  protected void checkPBKDF2(String p, String s, int c, int dkLen, String expected) throws Exception {
+    final byte[] password = p.getBytes("US-ASCII");
+    final byte[] salt = s.getBytes("US-ASCII");
+    assertEquals(expected, Utils.byte2Hex(keyDerivation.pbkdf2SHA256(password, salt, c, dkLen)));
+    assertEquals(expected, Utils.byte2Hex(PBKDF2.pbkdf2SHA256(password, salt, c, dkLen)));
+  }
+
+  @Test
+  public void testPBKDF2MatchesReference() throws Exception {
+    final Random random = new Random(2);
+    final int[] passwordLengths = new int[] { 0, 8, 64, 65, 100 };
+    final int[] saltLengths = new int[] { 0, 16, 51, 52, 60, 64 };
+    final int[] dkLengths = new int[] { 1, 31, 32, 33, 64, 100 };
+    for (int passwordLength : passwordLengths) {
+      for (int saltLength : saltLengths) {
+        for (int dkLength : dkLengths) {
+          final byte[] password = randomBytes(random, passwordLength);
+          final byte[] salt = randomBytes(random, saltLength);
+          final int c = 1 + random.nextInt(20);
+          if (passwordLength == 0) {
+            // Mac rejects empty keys; compare against a NUL key, which pads the same.
+            assertArrayEquals(PBKDF2.pbkdf2SHA256(new byte[1], salt, c, dkLength),
+                keyDerivation.pbkdf2SHA256(password, salt, c, dkLength));
+          } else {
+            assertArrayEquals(PBKDF2.pbkdf2SHA256(password, salt, c, dkLength),
+                keyDerivation.pbkdf2SHA256(password, salt, c, dkLength));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testHKDFVectors() throws Exception {
+    // RFC 5869 test cases 1 and 3.
+    assertEquals("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865",
+        Utils.byte2Hex(keyDerivation.hkdf(
+            Utils.hex2Byte("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"),
+            Utils.hex2Byte("000102030405060708090a0b0c"),
+            Utils.hex2Byte("f0f1f2f3f4f5f6f7f8f9"),
+            42)));
+    assertEquals("8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d9d201395faa4b61a96c8",
+        Utils.byte2Hex(keyDerivation.hkdf(
+            Utils.hex2Byte("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"),
+            new byte[0],
+            new byte[0],
+            42)));
+  }
+
+  @Test
+  public void testHKDFMatchesReference() throws Exception {
+    final Random random = new Random(3);
+    final int[] lengths = new int[] { 0, 1, 32, 33, 64, 65, 160, 255 * 32 };
+    for (int length : lengths) {
+      final byte[] ikm = randomBytes(random, 1 + random.nextInt(100));
+      final byte[] salt = randomBytes(random, random.nextInt(80));
+      final byte[] info = randomBytes(random, random.nextInt(80));
+      assertArrayEquals(HKDF.hkdfExpand(HKDF.hkdfExtract(salt, ikm), info, length),
+          keyDerivation.hkdf(ikm, salt, info, length));
+    }
+  }
+
+  @Test
+  public void testDeriveMany() throws Exception {
+    final byte[] skm = Utils.hex2Byte("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b");
+    final byte[] info = HKDF.bytes("identity.mozilla.com/picl/v1/keyFetchToken");
+    final byte[] derived = HKDF.hkdfExpand(HKDF.hkdfExtract(new byte[0], skm), info, 3 * 32);
+    assertArrayEquals(derived, HKDF.derive(skm, new byte[0], info, 3 * 32));
+
+    final byte[] a = new byte[32];
+    final byte[] b = new byte[48];
+    final byte[] c = new byte[16];
+    HKDF.deriveMany(skm, new byte[0], info, a, b, c);
+    final byte[] joined = Utils.concatAll(a, b, c);
+    assertArrayEquals(derived, joined);
+  }
+
+  @Test
+  public void testProviderFallsBackToJava() throws Exception {
+    // There's no mozglue outside of Android.
+    KeyDerivationProvider.set(null);
+    assertTrue(KeyDerivationProvider.get() instanceof JavaKeyDerivation);
+    assertEquals("120fb6cffcf8b32c43e7225256c4f837a86548c92ccc35480805987cb70be17b",
+        Utils.byte2Hex(KeyDerivationProvider.get().pbkdf2SHA256("password".getBytes("US-ASCII"), "salt".getBytes("US-ASCII"), 1, 32)));
+  }
+}
@@ -287,4 +287,48 @@ public class TestCrypto5MiddlewareRepositorySession {
     assertTrue(record1.title.equals(decryptedRecord1.title) || record1.title.equals(decryptedRecord2.title));
     assertTrue(record2.title.equals(decryptedRecord1.title) || record2.title.equals(decryptedRecord2.title));
   }
+
+  @Test
+  /**
+   * Verify that parallel decryption passes on every record, decrypted, before completing.
+   */
+  public void testParallelFetchAllDecrypts() throws UnsupportedEncodingException, CryptoException {
+    final int count = 200;
+    for (int i = 0; i < count; i++) {
+      final BookmarkRecord record = new BookmarkRecord("guid" + i, "coll", System.currentTimeMillis(), false);
+      record.title = "title " + i;
+      CryptoRecord encryptedRecord = record.getEnvelope();
+      encryptedRecord.keyBundle = keyBundle;
+      encryptedRecord = encryptedRecord.encrypt();
+      wboRepo.wbos.put(record.guid, encryptedRecord);
+    }
+
+    cmwRepo.decryptWorkerCount = 4;
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate fetchAllRecordsDelegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter());
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        cmwSession.fetchAll(fetchAllRecordsDelegate);
+      }
+    });
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    }));
+
+    assertEquals(count, fetchAllRecordsDelegate.fetchedRecords.size());
+    final boolean[] seen = new boolean[count];
+    for (Record fetched : fetchAllRecordsDelegate.fetchedRecords) {
+      BookmarkRecord decryptedRecord = new BookmarkRecord();
+      decryptedRecord.initFromEnvelope((CryptoRecord) fetched);
+      final int i = Integer.parseInt(decryptedRecord.guid.substring("guid".length()));
+      assertEquals("title " + i, decryptedRecord.title);
+      assertFalse(seen[i]);
+      seen[i] = true;
+    }
+  }
 }
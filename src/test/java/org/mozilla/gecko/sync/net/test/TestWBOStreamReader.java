@@ -0,0 +1,170 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.net.WBOStreamReader;
+
+public class TestWBOStreamReader {
+  private static final String REAL_RECORD = "{\"sortindex\": 131, \"payload\": \"{\\\"ciphertext\\\":\\\"YJB4dr0vZEIWPirfU2FCJvfzeSLiOP5QWasol2R6ILUxdHsJWuUuvTZVhxYQfTVNou6hVV67jfAvi5Cs+bqhhQsv7icZTiZhPTiTdVGt+uuMotxauVA5OryNGVEZgCCTvT3upzhDFdDbJzVd9O3/gU/b7r/CmAHykX8bTlthlbWeZ8oz6gwHJB5tPRU15nM/m/qW1vyKIw5pw/ZwtAy630AieRehGIGDk+33PWqsfyuT4EUFY9/Ly+8JlnqzxfiBCunIfuXGdLuqTjJOxgrK8mI4wccRFEdFEnmHvh5x7fjl1ID52qumFNQl8zkB75C8XK25alXqwvRR6/AQSP+BgQ==\\\",\\\"IV\\\":\\\"v/0BFgicqYQsd70T39rraA==\\\",\\\"hmac\\\":\\\"59605ed696f6e0e6e062a03510cff742bf6b50d695c042e8372a93f4c2d37dac\\\"}\", \"id\": \"0-P9fabp9vJD\", \"modified\": 1326254123.65}";
+
+  protected static WBOStreamReader reader(String body, int bufferSize) throws Exception {
+    return new WBOStreamReader(new ByteArrayInputStream(body.getBytes("UTF-8")), bufferSize);
+  }
+
+  protected static void assertSameRecord(CryptoRecord expected, CryptoRecord actual) {
+    assertEquals(expected.guid, actual.guid);
+    assertEquals(expected.collection, actual.collection);
+    assertEquals(expected.lastModified, actual.lastModified);
+    assertEquals(expected.sortIndex, actual.sortIndex);
+    assertEquals(expected.ttl, actual.ttl);
+    assertEquals(expected.payload, actual.payload);
+  }
+
+  /**
+   * Compare every line in <code>lines</code> against
+   * <code>CryptoRecord.fromJSONRecord</code>, across a range of buffer sizes.
+   */
+  protected static void assertMatchesLineByLine(List<String> lines) throws Exception {
+    final StringBuilder body = new StringBuilder();
+    for (String line : lines) {
+      body.append(line).append("\n");
+    }
+
+    for (int bufferSize : new int[] { 1, 7, 64, WBOStreamReader.DEFAULT_BUFFER_SIZE }) {
+      final WBOStreamReader reader = reader(body.toString(), bufferSize);
+      for (String line : lines) {
+        CryptoRecord expected = null;
+        Exception expectedException = null;
+        try {
+          expected = CryptoRecord.fromJSONRecord(line);
+        } catch (Exception e) {
+          expectedException = e;
+        }
+
+        try {
+          final CryptoRecord actual = reader.next();
+          if (expectedException != null) {
+            fail("Expected " + expectedException.getClass() + " for " + line);
+          }
+          assertSameRecord(expected, actual);
+        } catch (Exception e) {
+          if (expectedException == null) {
+            throw e;
+          }
+          assertEquals(expectedException.getClass(), e.getClass());
+        }
+      }
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void testRealRecord() throws Exception {
+    final WBOStreamReader reader = reader(REAL_RECORD + "\n", WBOStreamReader.DEFAULT_BUFFER_SIZE);
+    final CryptoRecord record = reader.next();
+    assertEquals("0-P9fabp9vJD", record.guid);
+    assertEquals(1326254123650L, record.lastModified);
+    assertEquals(131, record.sortIndex);
+    assertEquals("v/0BFgicqYQsd70T39rraA==", record.payload.getString("IV"));
+    assertEquals("59605ed696f6e0e6e062a03510cff742bf6b50d695c042e8372a93f4c2d37dac", record.payload.getString("hmac"));
+    assertNull(reader.next());
+    assertEquals(1, reader.getRecordCount());
+    assertEquals(0, reader.getFallbackCount());
+  }
+
+  @Test
+  public void testLineEndings() throws Exception {
+    final WBOStreamReader reader = reader(REAL_RECORD + "\r\n\n" + REAL_RECORD + "\n  \n" + REAL_RECORD, 7);
+    for (int i = 0; i < 3; i++) {
+      assertEquals("0-P9fabp9vJD", reader.next().guid);
+    }
+    assertNull(reader.next());
+  }
+
+  @Test
+  public void testEscapesAndEdgeCases() throws Exception {
+    final List<String> lines = new ArrayList<String>();
+    lines.add(REAL_RECORD);
+    // Escaped solidus, BMP and astral escapes inside the payload.
+    lines.add("{\"id\":\"a\",\"modified\":1326254123,\"payload\":\"{\\\"ciphertext\\\":\\\"x\\\\/y\\\",\\\"IV\\\":\\\"\\\\u00e9\\\\ud83d\\\\ude00\\\",\\\"hmac\\\":\\\"h\\\"}\"}");
+    // Escapes in the envelope, negative sortindex, ttl, null payload.
+    lines.add("{\"id\":\"b\\u00e9\\\"q\",\"collection\":\"c\",\"ttl\":5,\"sortindex\":-7,\"payload\":null}");
+    // Unknown keys with scalar values, exponent timestamp, unknown payload key.
+    lines.add("{\"id\":\"g\",\"other\":true,\"o2\":null,\"o3\":\"s\",\"o4\":-1.5e3,\"modified\":1.0E9,\"payload\":\"{\\\"extra\\\":null}\"}");
+    // Whitespace everywhere.
+    lines.add("  {\"id\" : \"k\" , \"payload\" : \" { \\\"IV\\\" : \\\"z\\\" } \" }  ");
+    // Raw non-ASCII.
+    lines.add("{\"id\":\"m\",\"payload\":\"{\\\"ciphertext\\\":\\\"é\\\"}\"}");
+    lines.add("{}");
+    assertMatchesLineByLine(lines);
+  }
+
+  @Test
+  public void testFallbackAndErrors() throws Exception {
+    final List<String> lines = new ArrayList<String>();
+    // Nested values are left to the JSON parser.
+    lines.add("{\"id\":\"c\",\"payload\":\"{\\\"x\\\":[1,2]}\"}");
+    lines.add("{\"id\":\"f\",\"other\":{\"a\":1},\"payload\":\"{}\"}");
+    // Fields of the wrong type.
+    lines.add("{\"id\":\"d\",\"modified\":\"str\",\"payload\":\"{}\"}");
+    lines.add("{\"id\":\"e\",\"sortindex\":1.5,\"payload\":\"{}\"}");
+    // Not JSON objects.
+    lines.add("not json");
+    lines.add("[1,2]");
+    lines.add("{\"id\":\"h\",\"payload\":\"[1]\"}");
+    // Processing continues after errors.
+    lines.add(REAL_RECORD);
+    assertMatchesLineByLine(lines);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected static String makeRecord(int i) {
+    final JSONObject payload = new JSONObject();
+    final StringBuilder ciphertext = new StringBuilder();
+    while (ciphertext.length() < 400) {
+      ciphertext.append("YJB4dr0vZEIWPirfU2FCJvfzeSLiOP5QWasol2R6ILUxdHsJWuUuvTZ/+");
+    }
+    payload.put("ciphertext", ciphertext.toString() + i);
+    payload.put("IV", "v/0BFgicqYQsd70T39rraA==");
+    payload.put("hmac", "59605ed696f6e0e6e062a03510cff742bf6b50d695c042e8372a93f4c2d37dac");
+    final JSONObject record = new JSONObject();
+    record.put("id", "guid" + i);
+    record.put("modified", 1326254123.65 + i);
+    record.put("sortindex", (long) i);
+    record.put("payload", payload.toJSONString());
+    return record.toJSONString();
+  }
+
+  @Test
+  public void testGeneratedRecords() throws Exception {
+    final List<String> lines = new ArrayList<String>();
+    final StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      lines.add(makeRecord(i));
+      body.append(makeRecord(i)).append("\n");
+    }
+    assertMatchesLineByLine(lines);
+
+    // Records like these never need the JSON parser.
+    final WBOStreamReader reader = reader(body.toString(), WBOStreamReader.DEFAULT_BUFFER_SIZE);
+    int count = 0;
+    while (reader.next() != null) {
+      count++;
+    }
+    assertEquals(100, count);
+    assertEquals(100, reader.getRecordCount());
+    assertEquals(0, reader.getFallbackCount());
+  }
+}
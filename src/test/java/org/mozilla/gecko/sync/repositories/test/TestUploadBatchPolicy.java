@@ -0,0 +1,142 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.repositories.UploadBatchPolicy;
+
+public class TestUploadBatchPolicy {
+  protected static final long FAST = 100;
+  protected static final long SLOW = UploadBatchPolicy.SLOW_LATENCY_MSEC + 1;
+
+  protected static class RecordingObserver implements UploadBatchPolicy.Observer {
+    public final List<Integer> recordLimits = new ArrayList<Integer>();
+    public int uploaded = 0;
+    public int failed = 0;
+
+    @Override
+    public void onBatchLimitsChanged(int maxRecords, long maxBytes) {
+      recordLimits.add(maxRecords);
+    }
+
+    @Override
+    public void onBatchUploaded(int records, long bytes, long latencyMsec, int failedRecords) {
+      uploaded++;
+    }
+
+    @Override
+    public void onBatchFailed(int records, long bytes, long latencyMsec) {
+      failed++;
+    }
+  }
+
+  protected static InfoConfiguration configuration(int maxRecords, long maxBytes) throws Exception {
+    return new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_post_records\": " + maxRecords + ", \"max_post_bytes\": " + maxBytes + "}"));
+  }
+
+  @Test
+  public void testDefaults() {
+    UploadBatchPolicy policy = new UploadBatchPolicy();
+    assertEquals(UploadBatchPolicy.INITIAL_MAX_RECORDS, policy.getMaxRecords());
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_BYTES, policy.getMaxBytes());
+
+    policy = new UploadBatchPolicy(null);
+    assertEquals(UploadBatchPolicy.INITIAL_MAX_RECORDS, policy.getMaxRecords());
+  }
+
+  @Test
+  public void testShouldFlush() throws Exception {
+    UploadBatchPolicy policy = new UploadBatchPolicy(configuration(3, 1000));
+    assertEquals(3, policy.getMaxRecords());
+
+    // A lone record is always sent, however large.
+    assertFalse(policy.shouldFlush(0, 0, 5000));
+    assertFalse(policy.shouldFlush(2, 500, 500));
+    assertTrue(policy.shouldFlush(2, 500, 501));
+    assertTrue(policy.shouldFlush(3, 10, 10));
+  }
+
+  @Test
+  public void testGrowsToServerLimit() throws Exception {
+    UploadBatchPolicy policy = new UploadBatchPolicy(configuration(100, 1024 * 1024));
+    assertEquals(50, policy.getMaxRecords());
+
+    // Partial batches don't tell us anything.
+    policy.onBatchUploaded(20, 1000, FAST, 0);
+    assertEquals(50, policy.getMaxRecords());
+
+    policy.onBatchUploaded(50, 1000, FAST, 0);
+    assertEquals(75, policy.getMaxRecords());
+    policy.onBatchUploaded(75, 1000, FAST, 0);
+    assertEquals(100, policy.getMaxRecords());
+    policy.onBatchUploaded(100, 1000, FAST, 0);
+    assertEquals(100, policy.getMaxRecords());
+
+    // Neither do batches of middling latency.
+    policy = new UploadBatchPolicy(configuration(100, 1024 * 1024));
+    policy.onBatchUploaded(50, 1000, UploadBatchPolicy.FAST_LATENCY_MSEC, 0);
+    assertEquals(50, policy.getMaxRecords());
+  }
+
+  @Test
+  public void testShrinks() throws Exception {
+    UploadBatchPolicy policy = new UploadBatchPolicy(configuration(100, 1024 * 1024));
+    policy.onBatchUploaded(50, 400 * 1024, SLOW, 0);
+    assertEquals(25, policy.getMaxRecords());
+    assertEquals(200 * 1024, policy.getMaxBytes());
+
+    policy.onBatchUploaded(25, 1000, FAST, 3);
+    assertEquals(12, policy.getMaxRecords());
+
+    policy.onBatchFailed(12, 1000, FAST);
+    assertEquals(UploadBatchPolicy.MIN_MAX_RECORDS, policy.getMaxRecords());
+    assertEquals(UploadBatchPolicy.MIN_MAX_BYTES, policy.getMaxBytes());
+
+    policy.onBatchFailed(10, 1000, FAST);
+    assertEquals(UploadBatchPolicy.MIN_MAX_RECORDS, policy.getMaxRecords());
+
+    // A stale report about a small batch doesn't raise the limit.
+    policy.onBatchFailed(2, 10, FAST);
+    assertEquals(UploadBatchPolicy.MIN_MAX_RECORDS, policy.getMaxRecords());
+  }
+
+  @Test
+  public void testNeverExceedsServerLimits() throws Exception {
+    UploadBatchPolicy policy = new UploadBatchPolicy(configuration(4, 1000));
+    policy.onBatchFailed(4, 1000, FAST);
+    assertEquals(4, policy.getMaxRecords());
+    assertEquals(1000, policy.getMaxBytes());
+    policy.onBatchUploaded(4, 1000, FAST, 0);
+    assertEquals(4, policy.getMaxRecords());
+    assertEquals(1000, policy.getMaxBytes());
+  }
+
+  @Test
+  public void testObserver() throws Exception {
+    UploadBatchPolicy policy = new UploadBatchPolicy(configuration(100, 1024 * 1024));
+    RecordingObserver observer = new RecordingObserver();
+    policy.setObserver(observer);
+
+    policy.onBatchUploaded(50, 1000, FAST, 0);
+    policy.onBatchUploaded(10, 1000, FAST, 0);
+    policy.onBatchFailed(75, 1000, SLOW);
+
+    assertEquals(2, observer.uploaded);
+    assertEquals(1, observer.failed);
+    assertEquals(3, observer.recordLimits.size());
+    assertEquals(Integer.valueOf(50), observer.recordLimits.get(0));
+    assertEquals(Integer.valueOf(75), observer.recordLimits.get(1));
+    assertEquals(Integer.valueOf(37), observer.recordLimits.get(2));
+  }
+}
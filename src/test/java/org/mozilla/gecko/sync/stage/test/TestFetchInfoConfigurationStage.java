@@ -0,0 +1,217 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.stage.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.gecko.background.testhelpers.DefaultGlobalSessionCallback;
+import org.mozilla.gecko.background.testhelpers.MockGlobalSession;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.SyncConfiguration;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.delegates.JSONRecordFetchDelegate;
+import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.stage.FetchInfoConfigurationStage;
+
+import ch.boye.httpclientandroidlib.ProtocolVersion;
+import ch.boye.httpclientandroidlib.message.BasicHttpResponse;
+import ch.boye.httpclientandroidlib.message.BasicStatusLine;
+
+public class TestFetchInfoConfigurationStage {
+  private static final String TEST_USERNAME = "johndoe";
+  private static final String TEST_PASSWORD = "password";
+  private static final String TEST_SYNC_KEY = "abcdeabcdeabcdeabcdeabcdea";
+
+  /**
+   * Answers fetches of info/configuration without a server.
+   */
+  protected interface Responder {
+    public void respond(JSONRecordFetchDelegate delegate) throws Exception;
+  }
+
+  protected Responder responder;
+  protected int fetches;
+  protected boolean advanced;
+  protected boolean aborted;
+  protected boolean handledHTTPError;
+
+  protected MockGlobalSession session;
+  protected FetchInfoConfigurationStage stage;
+
+  @Before
+  public void setUp() throws Exception {
+    fetches = 0;
+    session = new MockGlobalSession(TEST_USERNAME, TEST_PASSWORD,
+        new KeyBundle(TEST_USERNAME, TEST_SYNC_KEY), new DefaultGlobalSessionCallback()) {
+      @Override
+      public void fetchInfoConfiguration(JSONRecordFetchDelegate callback) throws URISyntaxException {
+        fetches += 1;
+        try {
+          responder.respond(callback);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      @Override
+      public void advance() {
+        advanced = true;
+      }
+
+      @Override
+      public void abort(Exception e, String reason) {
+        aborted = true;
+      }
+
+      @Override
+      public void handleHTTPError(SyncStorageResponse response, String reason) {
+        handledHTTPError = true;
+      }
+    };
+    stage = new FetchInfoConfigurationStage();
+  }
+
+  protected void execute() throws Exception {
+    advanced = false;
+    aborted = false;
+    handledHTTPError = false;
+    session.config.infoConfiguration = null;
+    stage.execute(session);
+  }
+
+  protected static SyncStorageResponse response(int statusCode) {
+    return new SyncStorageResponse(new BasicHttpResponse(
+        new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), statusCode, null)));
+  }
+
+  protected void respondWith(final String json) {
+    responder = new Responder() {
+      @Override
+      public void respond(JSONRecordFetchDelegate delegate) throws Exception {
+        delegate.handleSuccess(ExtendedJSONObject.parseJSONObject(json));
+      }
+    };
+  }
+
+  protected void respondWith(final int statusCode) {
+    responder = new Responder() {
+      @Override
+      public void respond(JSONRecordFetchDelegate delegate) {
+        delegate.handleFailure(response(statusCode));
+      }
+    };
+  }
+
+  protected void respondWith(final Exception e) {
+    responder = new Responder() {
+      @Override
+      public void respond(JSONRecordFetchDelegate delegate) {
+        delegate.handleError(e);
+      }
+    };
+  }
+
+  @Test
+  public void testFetchedConfigurationIsReused() throws Exception {
+    respondWith("{\"max_post_records\": 200}");
+    execute();
+    assertTrue(advanced);
+    assertEquals(1, fetches);
+    assertEquals(200, session.config.infoConfiguration.maxPostRecords);
+
+    execute();
+    assertTrue(advanced);
+    assertEquals(1, fetches);
+    assertEquals(200, session.config.infoConfiguration.maxPostRecords);
+  }
+
+  @Test
+  public void testMissingConfigurationIsRemembered() throws Exception {
+    respondWith(404);
+    execute();
+    assertTrue(advanced);
+    assertFalse(handledHTTPError);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_RECORDS, session.config.infoConfiguration.maxPostRecords);
+
+    execute();
+    assertTrue(advanced);
+    assertEquals(1, fetches);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_RECORDS, session.config.infoConfiguration.maxPostRecords);
+  }
+
+  @Test
+  public void testMalformedConfigurationUsesDefaults() throws Exception {
+    respondWith(new NonObjectJSONException("Not an object."));
+    execute();
+    assertTrue(advanced);
+    assertFalse(aborted);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_RECORDS, session.config.infoConfiguration.maxPostRecords);
+  }
+
+  @Test
+  public void testStaleConfigurationIsRefetched() throws Exception {
+    final long stale = System.currentTimeMillis() - FetchInfoConfigurationStage.REFETCH_INTERVAL_MILLISECONDS - 1;
+    session.config.persistInfoConfiguration(ExtendedJSONObject.parseJSONObject("{\"max_post_records\": 200}"), stale);
+
+    respondWith("{\"max_post_records\": 300}");
+    execute();
+    assertTrue(advanced);
+    assertEquals(1, fetches);
+    assertEquals(300, session.config.infoConfiguration.maxPostRecords);
+  }
+
+  @Test
+  public void testConfigurationFromAnotherServerIsRefetched() throws Exception {
+    respondWith("{\"max_post_records\": 200}");
+    execute();
+    assertEquals(1, fetches);
+
+    session.config.clusterURL = new URI("http://other.example.com/");
+    respondWith("{\"max_post_records\": 300}");
+    execute();
+    assertEquals(2, fetches);
+    assertEquals(300, session.config.infoConfiguration.maxPostRecords);
+  }
+
+  @Test
+  public void testHTTPErrorIsHandled() throws Exception {
+    respondWith(401);
+    execute();
+    assertTrue(handledHTTPError);
+    assertFalse(advanced);
+    assertNull(session.config.infoConfiguration);
+    assertEquals(0L, session.config.getPersistedInfoConfigurationTimestamp());
+  }
+
+  @Test
+  public void testNetworkErrorAborts() throws Exception {
+    respondWith(new IOException("Connection reset."));
+    execute();
+    assertTrue(aborted);
+    assertFalse(advanced);
+    assertEquals(0L, session.config.getPersistedInfoConfigurationTimestamp());
+  }
+
+  @Test
+  public void testUnreadablePersistedConfigurationIsRefetched() throws Exception {
+    respondWith("{\"max_post_records\": 200}");
+    execute();
+    session.config.getEditor().putString(SyncConfiguration.PREF_INFO_CONFIGURATION, "not JSON").commit();
+
+    execute();
+    assertEquals(2, fetches);
+    assertEquals(200, session.config.infoConfiguration.maxPostRecords);
+  }
+}
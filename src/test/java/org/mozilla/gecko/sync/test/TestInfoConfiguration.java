@@ -0,0 +1,47 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoConfiguration;
+
+public class TestInfoConfiguration {
+  @SuppressWarnings("static-method")
+  @Test
+  public void testDefaults() throws Exception {
+    InfoConfiguration defaults = new InfoConfiguration();
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_RECORDS, defaults.maxPostRecords);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_BYTES, defaults.maxPostBytes);
+
+    InfoConfiguration empty = new InfoConfiguration(new ExtendedJSONObject("{}"));
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_RECORDS, empty.maxPostRecords);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_BYTES, empty.maxPostBytes);
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testFromRecord() throws Exception {
+    InfoConfiguration configuration = new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_post_records\": 200, \"max_post_bytes\": 2097152, \"max_request_bytes\": 2101248}"));
+    assertEquals(200, configuration.maxPostRecords);
+    assertEquals(2097152L, configuration.maxPostBytes);
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testMalformedValues() throws Exception {
+    InfoConfiguration configuration = new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_post_records\": \"200\", \"max_post_bytes\": -1}"));
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_RECORDS, configuration.maxPostRecords);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_BYTES, configuration.maxPostBytes);
+
+    configuration = new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_post_records\": 1.5, \"max_post_bytes\": 99999999999}"));
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_RECORDS, configuration.maxPostRecords);
+    assertEquals(InfoConfiguration.DEFAULT_MAX_POST_BYTES, configuration.maxPostBytes);
+  }
+}
@@ -0,0 +1,126 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.UTF8ByteArrayReader;
+
+public class TestJSONParsing {
+  protected static final String RECORD =
+      "{\"id\":\"abcdefghijkl\",\"modified\":1400000000.12,\"sortindex\":100," +
+      "\"payload\":\"{\\\"ciphertext\\\":\\\"AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA\\\"," +
+      "\\\"IV\\\":\\\"BBBBBBBBBBBBBBBBBBBBBB==\\\",\\\"hmac\\\":\\\"0123456789abcdef0123456789abcdef\\\"}\"}";
+
+  protected static String readAll(UTF8ByteArrayReader reader, int chunk) throws Exception {
+    final StringBuilder sb = new StringBuilder();
+    final char[] buffer = new char[chunk];
+    int read;
+    while ((read = reader.read(buffer, 0, chunk)) != -1) {
+      sb.append(buffer, 0, read);
+    }
+    return sb.toString();
+  }
+
+  protected static String randomString(Random random, int length) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      switch (random.nextInt(4)) {
+      case 0:
+        sb.append((char) (0x20 + random.nextInt(0x5F)));
+        break;
+      case 1:
+        sb.append((char) (0x80 + random.nextInt(0x780)));
+        break;
+      case 2:
+        sb.append((char) (0x800 + random.nextInt(0xD000 - 0x800)));
+        break;
+      default:
+        sb.appendCodePoint(0x10000 + random.nextInt(0x100000));
+        break;
+      }
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testReaderMatchesStringDecoding() throws Exception {
+    final Random random = new Random(1234);
+    for (int i = 0; i < 50; i++) {
+      final String expected = randomString(random, random.nextInt(200));
+      final byte[] bytes = expected.getBytes("UTF-8");
+      for (int chunk : new int[] { 1, 2, 3, 7, 4096 }) {
+        assertEquals(expected, readAll(new UTF8ByteArrayReader(bytes), chunk));
+      }
+    }
+  }
+
+  @Test
+  public void testReaderReplacesMalformedInput() throws Exception {
+    final byte[][] inputs = {
+      { 'a', (byte) 0xC3, '(', 'b' },                  // Bad continuation.
+      { (byte) 0xFF, (byte) 0xFE },                    // Never valid.
+      { 'a', (byte) 0xE2, (byte) 0x82 },               // Truncated.
+      { (byte) 0xC0, (byte) 0xAF },                    // Overlong.
+      { (byte) 0xED, (byte) 0xA0, (byte) 0x80 },       // Surrogate.
+      { (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80 }, // Above U+10FFFF.
+    };
+    for (byte[] input : inputs) {
+      final String decoded = readAll(new UTF8ByteArrayReader(input), 16);
+      assertTrue(decoded.indexOf('\uFFFD') >= 0);
+      for (int i = 0; i < decoded.length(); i++) {
+        final char c = decoded.charAt(i);
+        assertTrue(c == '\uFFFD' || c < 0x80);
+      }
+    }
+    assertEquals("a\uFFFD(b", readAll(new UTF8ByteArrayReader(inputs[0]), 16));
+  }
+
+  @Test
+  public void testParseUTF8MatchesJSONParser() throws Exception {
+    final Random random = new Random(42);
+    for (int i = 0; i < 20; i++) {
+      final JSONObject o = new JSONObject();
+      o.put("id", randomString(random, 12));
+      o.put("title", randomString(random, random.nextInt(100)));
+      o.put("count", (long) random.nextInt());
+      final String json = o.toJSONString();
+      final Object expected = new JSONParser().parse(json);
+      assertEquals(expected, ExtendedJSONObject.parseUTF8AsJSONObject(json.getBytes("UTF-8")).object);
+      assertEquals(expected, new ExtendedJSONObject(json).object);
+    }
+  }
+
+  @Test
+  public void testParserIsReused() throws Exception {
+    // Warm up this thread's parser.
+    ExtendedJSONObject.parseJSONObject(RECORD);
+    final long created = ExtendedJSONObject.getParsersCreatedCount();
+    for (int i = 0; i < 100; i++) {
+      ExtendedJSONObject.parseUTF8AsJSONObject(RECORD.getBytes("UTF-8"));
+      ExtendedJSONObject.parseJSONObject(RECORD);
+      ExtendedJSONObject.parseJSONArray("[1, 2, 3]");
+    }
+    assertEquals(created, ExtendedJSONObject.getParsersCreatedCount());
+
+    // Failures leave the parser usable.
+    try {
+      ExtendedJSONObject.parseJSONObject("{\"a\": ");
+      fail("Expected ParseException.");
+    } catch (ParseException e) {
+      // Expected.
+    }
+    assertEquals("b", ExtendedJSONObject.parseJSONObject("{\"a\": \"b\"}").getString("a"));
+    assertEquals(created, ExtendedJSONObject.getParsersCreatedCount());
+  }
+}
@@ -0,0 +1,120 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.SyncMetrics;
+
+import ch.boye.httpclientandroidlib.HttpVersion;
+import ch.boye.httpclientandroidlib.client.methods.HttpGet;
+import ch.boye.httpclientandroidlib.message.BasicHttpResponse;
+
+public class TestSyncMetrics {
+  @Test
+  public void testHistogram() {
+    SyncMetrics.Histogram histogram = new SyncMetrics.Histogram(new long[] { 10, 100 });
+    histogram.record(0);
+    histogram.record(10);
+    histogram.record(11);
+    histogram.record(1000);
+    assertEquals(4, histogram.getCount());
+    assertEquals(2, histogram.getBucketCount(0));
+    assertEquals(1, histogram.getBucketCount(1));
+    assertEquals(1, histogram.getBucketCount(2));
+
+    ExtendedJSONObject json = histogram.toJSON();
+    assertEquals(1021L, json.getLong("total").longValue());
+    assertEquals(1000L, json.getLong("max").longValue());
+    assertEquals(4L, json.getLong("count").longValue());
+  }
+
+  @Test
+  public void testFlow() {
+    SyncMetrics.FlowMetrics flow = new SyncMetrics.FlowMetrics();
+    assertEquals(-1, flow.getFetchMsec());
+    assertEquals(-1, flow.getStoreMsec());
+
+    flow.flowStarted(1000);
+    for (int i = 0; i < 10; i++) {
+      flow.recordFetched();
+    }
+    flow.recordFetchFailed();
+    flow.fetchCompleted(3000);
+    assertEquals(2000, flow.getFetchMsec());
+
+    // Nothing stored: store time runs from the end of the fetch.
+    flow.storeCompleted(3500);
+    assertEquals(500, flow.getStoreMsec());
+
+    ExtendedJSONObject json = flow.toJSON();
+    assertEquals(10L, json.getLong("fetched").longValue());
+    assertEquals(1L, json.getLong("fetchFailed").longValue());
+    assertEquals(5.0, (Double) json.get("fetchedPerSecond"), 0.001);
+  }
+
+  @Test
+  public void testEngines() {
+    SyncMetrics metrics = new SyncMetrics();
+    SyncMetrics.EngineMetrics bookmarks = metrics.engine("bookmarks");
+    assertSame(bookmarks, metrics.engine("bookmarks"));
+
+    bookmarks.recordCrypto(3 * 1000 * 1000);
+    bookmarks.recordCrypto(2 * 1000 * 1000);
+    bookmarks.outbound.flowStarted(100);
+    bookmarks.outbound.fetchCompleted(150);
+    bookmarks.stageFinished(0, 400, true);
+    metrics.engine("history").recordCrypto(1000 * 1000);
+    assertEquals(5, bookmarks.getCryptoMsec());
+    assertEquals(50, bookmarks.getDatabaseMsec());
+
+    ExtendedJSONObject json = metrics.toJSON();
+    assertEquals(6L, json.getLong("cryptoMsec").longValue());
+    assertEquals(50L, json.getLong("dbMsec").longValue());
+  }
+
+  @Test
+  public void testStagesAndHttp() throws Exception {
+    SyncMetrics metrics = new SyncMetrics();
+    metrics.start();
+    metrics.recordStage("fetchInfoCollections", 20);
+    metrics.recordStage("fetchInfoCollections", 5);
+    metrics.recordStage(SyncMetrics.CONCURRENT_STAGES, 300);
+    assertEquals(25, metrics.getStageMsec("fetchInfoCollections"));
+    assertEquals(-1, metrics.getStageMsec("syncBookmarks"));
+
+    HttpGet request = new HttpGet("http://example.com/");
+    metrics.observeHttpTiming(request, new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"), 40);
+    metrics.observeHttpTiming(request, new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"), 70);
+    metrics.observeHttpTiming(request, new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Unavailable"), 20000);
+    metrics.observeHttpTiming(request, null, 60000);
+    metrics.finish();
+
+    assertEquals(4, metrics.getHttpRequestCount());
+    assertEquals(1, metrics.getHttpFailureCount());
+    assertEquals(1, metrics.getHttpLatency().getBucketCount(0));
+    assertEquals(1, metrics.getHttpLatency().getBucketCount(1));
+    assertEquals(1, metrics.getHttpLatency().getBucketCount(SyncMetrics.LATENCY_BUCKETS_MSEC.length));
+
+    // Round-trip through JSON, as a dashboard would.
+    ExtendedJSONObject json = ExtendedJSONObject.parseJSONObject(metrics.toJSONString());
+    assertEquals(25L, json.getObject("stages").getLong("fetchInfoCollections").longValue());
+    assertEquals(300L, json.getObject("stages").getLong(SyncMetrics.CONCURRENT_STAGES).longValue());
+    ExtendedJSONObject http = json.getObject("http");
+    assertEquals(4L, http.getLong("requests").longValue());
+    assertEquals(2L, http.getObject("statuses").getLong("200").longValue());
+    assertEquals(1L, http.getObject("statuses").getLong("503").longValue());
+    assertEquals(60000L, http.getObject("latencyMsec").getLong("max").longValue());
+    assertTrue(json.getLong("msec") >= 0);
+
+    // Finished metrics don't change duration.
+    final long duration = metrics.getDurationMsec();
+    Thread.sleep(5);
+    assertEquals(duration, metrics.getDurationMsec());
+  }
+}
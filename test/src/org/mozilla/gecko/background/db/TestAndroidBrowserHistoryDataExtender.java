@@ -5,6 +5,7 @@ package org.mozilla.gecko.background.db;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -20,7 +21,9 @@ import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryDataExte
 import org.mozilla.gecko.sync.repositories.android.RepoUtils;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
 
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 public class TestAndroidBrowserHistoryDataExtender extends AndroidSyncTestCase {
 
@@ -146,4 +149,77 @@ public class TestAndroidBrowserHistoryDataExtender extends AndroidSyncTestCase {
       assertTrue(record.equals(toCompare));
     }
   }
+
+  public void testVisitsForGUIDs() throws Exception {
+    final ArrayList<HistoryRecord> records = new ArrayList<HistoryRecord>();
+    records.add(HistoryHelpers.createHistory1());
+    records.add(HistoryHelpers.createHistory2());
+    records.add(HistoryHelpers.createHistory3());
+    extender.bulkInsert(records);
+
+    // Visits that can't be packed are stored as they are.
+    final String odd = Utils.generateGuid();
+    final JSONArray oddVisits = new ExtendedJSONObject("{ \"visits\": [ { \"date\" : 1, \"type\" : 1, \"extra\" : true } ] }").getArray("visits");
+    extender.store(odd, oddVisits);
+
+    final ArrayList<String> guids = new ArrayList<String>();
+    for (HistoryRecord record : records) {
+      guids.add(record.guid);
+    }
+    guids.add(odd);
+    guids.add(Utils.generateGuid());
+
+    final Map<String, JSONArray> visits = extender.visitsForGUIDs(guids);
+    assertEquals(4, visits.size());
+    for (HistoryRecord record : records) {
+      assertEquals(record.visits, visits.get(record.guid));
+      assertEquals(extender.visitsForGUID(record.guid), visits.get(record.guid));
+    }
+    assertEquals(oddVisits, visits.get(odd));
+  }
+
+  public void testUpgradeFrom1To2() throws Exception {
+    final SQLiteDatabase db = SQLiteDatabase.create(null);
+    try {
+      db.execSQL("CREATE TABLE " + AndroidBrowserHistoryDataExtender.TBL_HISTORY_EXT + " (" +
+                 AndroidBrowserHistoryDataExtender.COL_GUID + " TEXT PRIMARY KEY, " +
+                 AndroidBrowserHistoryDataExtender.COL_VISITS + " TEXT)");
+
+      final HistoryRecord record = HistoryHelpers.createHistory1();
+      final String unpackable = "[{\"key\":\"value\"}]";
+      insertV1Row(db, record.guid, record.visits.toJSONString());
+      insertV1Row(db, "empty", "[]");
+      insertV1Row(db, "odd", unpackable);
+
+      extender.onUpgrade(db, 1, 2);
+
+      final Cursor cur = db.query(AndroidBrowserHistoryDataExtender.TBL_HISTORY_EXT,
+                                  AndroidBrowserHistoryDataExtender.TBL_COLUMNS,
+                                  null, null, null, null, AndroidBrowserHistoryDataExtender.COL_GUID);
+      try {
+        assertEquals(3, cur.getCount());
+        while (cur.moveToNext()) {
+          final String guid = cur.getString(0);
+          if ("odd".equals(guid)) {
+            assertEquals(unpackable, cur.getString(1));
+            assertTrue(cur.isNull(2));
+          } else {
+            assertTrue(cur.isNull(1));
+            assertFalse(cur.isNull(2));
+          }
+        }
+      } finally {
+        cur.close();
+      }
+    } finally {
+      db.close();
+    }
+  }
+
+  protected static void insertV1Row(SQLiteDatabase db, String guid, String visits) {
+    final ContentValues cv = new ContentValues();
+    cv.put(AndroidBrowserHistoryDataExtender.COL_GUID, guid);
+    cv.put(AndroidBrowserHistoryDataExtender.COL_VISITS, visits);
+    db.insert(AndroidBrowserHistoryDataExtender.TBL_HISTORY_EXT, null, cv);
+  }
 }
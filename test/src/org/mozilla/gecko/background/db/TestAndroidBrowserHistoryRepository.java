@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectFinishDelegate;
+import org.mozilla.gecko.background.sync.helpers.ExpectManyStoredDelegate;
 import org.mozilla.gecko.background.sync.helpers.HistoryHelpers;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Utils;
@@ -15,6 +16,7 @@ import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryDataAccessor;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryRepository;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryRepositorySession;
@@ -360,6 +362,33 @@ public class TestAndroidBrowserHistoryRepository extends AndroidBrowserRepositor
     session.abort();
   }
 
+  public void testDataAvailable() throws Exception {
+    final AndroidBrowserHistoryRepositorySession session = (AndroidBrowserHistoryRepositorySession) createAndBeginSession();
+    final AndroidBrowserRepositoryDataAccessor dbHelper = session.getDBHelper();
+
+    // Nothing to upload from an empty database.
+    assertFalse(session.dataAvailable());
+
+    // A local change is worth uploading.
+    dbHelper.insert(HistoryHelpers.createHistory1());
+    assertTrue(session.dataAvailable());
+
+    // But not once it's older than the last sync.
+    session.unbundle(new RepositorySessionBundle(System.currentTimeMillis() + 1));
+    Thread.sleep(5);
+    assertFalse(session.dataAvailable());
+
+    // Records we store ourselves don't count...
+    performWait(storeRunnable(session, HistoryHelpers.createHistory2()));
+    assertFalse(session.dataAvailable());
+
+    // ... but later local changes do.
+    dbHelper.insert(HistoryHelpers.createHistory3());
+    assertTrue(session.dataAvailable());
+
+    session.abort();
+  }
+
   public void testSqlInjectPurgeDelete() {
     // Some setup.
     RepositorySession session = createAndBeginSession();
@@ -459,6 +488,48 @@ public class TestAndroidBrowserHistoryRepository extends AndroidBrowserRepositor
     session.abort();
   }
 
+  /**
+   * Store a stream of records that update, dupe, delete, and add to local
+   * records, some of which touch records looked up earlier in the stream.
+   */
+  public void testStoreManyWithExistingRecords() {
+    final RepositorySession session = createAndBeginSession();
+
+    HistoryRecord local1 = HistoryHelpers.createHistory1();
+    HistoryRecord local2 = HistoryHelpers.createHistory2();
+    performWait(storeManyRunnable(session, new Record[] { local1, local2 }));
+
+    final long later = System.currentTimeMillis() + 60 * 1000;
+
+    // Same GUID as local1, newer.
+    HistoryRecord remote1 = HistoryHelpers.createHistory1();
+    remote1.guid = local1.guid;
+    remote1.title = "Remote history 1";
+    remote1.lastModified = later;
+
+    // New.
+    HistoryRecord remote3 = HistoryHelpers.createHistory3();
+    remote3.lastModified = later;
+
+    // Dupes to local2 by URI, and takes over its GUID.
+    HistoryRecord remote2 = HistoryHelpers.createHistory2();
+    remote2.title = "Remote history 2";
+    remote2.lastModified = later;
+
+    // By now there's no local record with local2's GUID, so this is a no-op.
+    HistoryRecord deleted2 = new HistoryRecord(local2.guid, "history", later, true);
+
+    // New.
+    HistoryRecord remote4 = HistoryHelpers.createHistory4();
+    remote4.lastModified = later;
+
+    Record[] incoming = new Record[] { remote1, remote3, remote2, deleted2, remote4 };
+    Record[] stored = new Record[] { remote1, remote3, remote2, remote4 };
+    performWait(storeManyRunnable(session, incoming, new ExpectManyStoredDelegate(stored)));
+    performWait(fetchAllRunnable(session, preparedExpectFetchDelegate(stored)));
+    dispose(session);
+  }
+
   public void testDataExtenderIsClosedBeforeBegin() {
     // Create a session but don't begin() it.
     final AndroidBrowserRepositorySession session = (AndroidBrowserRepositorySession) createSession();
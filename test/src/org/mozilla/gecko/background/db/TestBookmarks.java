@@ -389,6 +389,91 @@ public class TestBookmarks extends AndroidSyncTestCase {
     assertFalse(tracked.contains(folderGUID));
   }
 
+  /**
+   * Store a large synthetic tree -- several folders, one of them with
+   * thousands of children -- and verify that every folder ends up with its
+   * children in server order.
+   */
+  public void testRepositionLargeTree() {
+    AndroidBrowserBookmarksRepository repo = new AndroidBrowserBookmarksRepository();
+    wipe();
+
+    final long now = System.currentTimeMillis();
+    final int[] folderSizes = new int[] { 2000, 100, 10, 0 };
+    final ArrayList<BookmarkRecord> records = new ArrayList<BookmarkRecord>();
+    final ArrayList<BookmarkRecord> folders = new ArrayList<BookmarkRecord>();
+
+    for (int f = 0; f < folderSizes.length; f++) {
+      final BookmarkRecord folder = new BookmarkRecord(Utils.generateGuid(), "bookmarks", now, false);
+      folder.sortIndex  = 150;
+      folder.title      = "Folder " + f;
+      folder.parentID   = "toolbar";
+      folder.parentName = "Bookmarks Toolbar";
+      folder.type       = "folder";
+
+      final BookmarkRecord[] children = new BookmarkRecord[folderSizes[f]];
+      for (int i = 0; i < children.length; i++) {
+        final BookmarkRecord bookmark = new BookmarkRecord(Utils.generateGuid(), "bookmarks", now, false);
+        bookmark.parentID    = folder.guid;
+        bookmark.parentName  = folder.title;
+        bookmark.bookmarkURI = "http://example.com/" + f + "/" + i;
+        bookmark.title       = "Bookmark " + f + "/" + i;
+        bookmark.type        = "bookmark";
+        children[i] = bookmark;
+      }
+      folder.children = childrenFromRecords(children);
+
+      // Store children in reverse, so that positions have to be fixed up at the end.
+      for (int i = children.length - 1; i >= 0; i--) {
+        records.add(children[i]);
+      }
+      records.add(folder);
+      folders.add(folder);
+    }
+
+    storeRecordsInSession(repo, records.toArray(new BookmarkRecord[records.size()]), null);
+
+    final ContentResolver cr = getApplicationContext().getContentResolver();
+    for (BookmarkRecord folder : folders) {
+      final String[] expected = new String[folder.children.size()];
+      for (int i = 0; i < expected.length; i++) {
+        expected[i] = (String) folder.children.get(i);
+      }
+      assertChildrenAreDirect(fennecGetFolderId(cr, folder.guid), expected);
+    }
+  }
+
+  /**
+   * Bump the modified time of more folders than SQLite allows bound
+   * parameters in one statement.
+   */
+  public void testBumpManyFolders() throws Exception {
+    wipe();
+    final long mobile = setUpFennecMobileRecord();
+    final ArrayList<Long> bumpIDs = new ArrayList<Long>();
+    bumpIDs.add(mobile);
+    // IDs that match no rows still count against the limit.
+    for (long i = 1; i <= 1200; i++) {
+      bumpIDs.add(-i);
+    }
+
+    final long modified = System.currentTimeMillis() + 60000;
+    getDataAccessor().updatePositionsAndBumpModified(new ArrayList<ArrayList<String>>(), bumpIDs, modified);
+
+    final ContentResolver cr = getApplicationContext().getContentResolver();
+    final Cursor c = cr.query(appendProfile(BrowserContractHelpers.BOOKMARKS_CONTENT_URI),
+                              new String[] { BrowserContract.Bookmarks.DATE_MODIFIED },
+                              BrowserContract.Bookmarks._ID + " = ?",
+                              new String[] { String.valueOf(mobile) },
+                              null);
+    try {
+      assertTrue(c.moveToFirst());
+      assertEquals(modified, c.getLong(0));
+    } finally {
+      c.close();
+    }
+  }
+
   /**
    * Exercise the deletion of folders when their children have not been
    * marked as deleted. In a database with constraints, this would fail
@@ -601,6 +686,33 @@ public class TestBookmarks extends AndroidSyncTestCase {
     assertEquals(bmk2.title, fetchGUID(repo, bmk2.guid).title);
   }
 
+  /**
+   * Rename a bookmark, then store a bookmark that looks like it did before the
+   * rename. The new bookmark must not be reconciled against the renamed one.
+   */
+  public void testRenamedRecordIsNotReconciledByOldRecordString() {
+    AndroidBrowserBookmarksRepository repo = new AndroidBrowserBookmarksRepository();
+    wipe();
+
+    final long now = System.currentTimeMillis();
+    BookmarkRecord folder1 = BookmarkHelpers.createFolder1();
+    BookmarkRecord bmk1 = BookmarkHelpers.createBookmark1();   // child of folder1
+    BookmarkRecord renamed = BookmarkHelpers.createBookmark1();
+    renamed.title = renamed.title + "/NEW";
+    renamed.lastModified = now + 10000;
+    BookmarkRecord lookalike = BookmarkHelpers.createBookmark1();
+    lookalike.guid = Utils.generateGuid();
+
+    // All in one session, so that the record string map sees the rename.
+    storeRecordsInSession(repo, new BookmarkRecord[] { folder1, bmk1, renamed, lookalike }, null);
+
+    final ArrayList<String> guids = fetchGUIDs(repo);
+    assertTrue(guids.contains(bmk1.guid));
+    assertTrue(guids.contains(lookalike.guid));
+    assertEquals(renamed.title, fetchGUID(repo, bmk1.guid).title);
+    assertEquals(lookalike.title, fetchGUID(repo, lookalike.guid).title);
+  }
+
   /**
    * Create and begin a new session, handing control to the delegate when started.
    * Returns when the delegate has notified.
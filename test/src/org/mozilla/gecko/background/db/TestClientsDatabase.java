@@ -55,6 +55,52 @@ public class TestClientsDatabase extends AndroidTestCase {
     }
   }
 
+  public void testReplaceClients() throws NullCursorException {
+    String profileConst = Constants.DEFAULT_PROFILE;
+    ClientRecord unchanged = new ClientRecord();
+    ClientRecord changed = new ClientRecord();
+    changed.os = "Android";
+    ClientRecord removed = new ClientRecord();
+    db.store(profileConst, unchanged);
+    db.store(profileConst, changed);
+    db.store(profileConst, removed);
+
+    ArrayList<ClientRecord> records = new ArrayList<ClientRecord>();
+    records.add(unchanged);
+    records.add(changed);
+    ClientRecord added = new ClientRecord();
+    records.add(added);
+    changed.name = "New name";
+    changed.os = null;
+
+    // One update, one deletion, one insertion.
+    assertEquals(3, db.replaceClients(profileConst, records));
+    assertEquals(0, db.replaceClients(profileConst, records));
+
+    Cursor cur = db.fetchAllClients();
+    try {
+      assertEquals(3, cur.getCount());
+    } finally {
+      cur.close();
+    }
+
+    cur = db.fetchClientsCursor(changed.guid, profileConst);
+    try {
+      assertTrue(cur.moveToFirst());
+      assertEquals("New name", RepoUtils.getStringFromCursor(cur, ClientsDatabase.COL_NAME));
+      assertNull(RepoUtils.optStringFromCursor(cur, ClientsDatabase.COL_OS));
+    } finally {
+      cur.close();
+    }
+
+    cur = db.fetchClientsCursor(removed.guid, profileConst);
+    try {
+      assertFalse(cur.moveToFirst());
+    } finally {
+      cur.close();
+    }
+  }
+
   public void testStoreAndFetchSpecificCommands() {
     String accountGUID = Utils.generateGuid();
     ArrayList<String> args = new ArrayList<String>();
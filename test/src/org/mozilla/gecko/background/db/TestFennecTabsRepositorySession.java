@@ -3,6 +3,9 @@
 
 package org.mozilla.gecko.background.db;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.json.simple.JSONArray;
 import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchDelegate;
@@ -273,4 +276,83 @@ public class TestFennecTabsRepositorySession extends AndroidSyncTestCase {
       clientsClient.release();
     }
   }
+
+  protected List<Long> testTabIDs() throws RemoteException {
+    final List<Long> ids = new ArrayList<Long>();
+    final Cursor cursor = tabsClient.query(BrowserContractHelpers.TABS_CONTENT_URI, null,
+        TEST_TABS_CLIENT_GUID_IS_LOCAL_SELECTION, TEST_TABS_CLIENT_GUID_IS_LOCAL_SELECTION_ARGS, BrowserContract.Tabs.POSITION + " ASC");
+    try {
+      while (cursor.moveToNext()) {
+        ids.add(cursor.getLong(cursor.getColumnIndex(BrowserContract.Tabs._ID)));
+      }
+    } finally {
+      cursor.close();
+    }
+    return ids;
+  }
+
+  // Verify that storing a tabs record only touches the tabs that changed.
+  @SuppressWarnings("unchecked")
+  public void testStoreOnlyChangedTabs() throws NoContentProviderException, RemoteException {
+    final TabsRecord tabsRecord = insertTestTabsAndExtractTabsRecord();
+    final List<Long> before = testTabIDs();
+    assertEquals(3, before.size());
+
+    // Storing the same tabs writes nothing.
+    final FennecTabsRepositorySession session = createAndBeginSession();
+    performWait(AndroidBrowserRepositoryTestCase.storeRunnable(session, tabsRecord));
+    assertEquals(before, testTabIDs());
+
+    // Changing the middle tab replaces only that row.
+    final JSONArray history = new JSONArray();
+    history.add("http://test.com/changed.html");
+    tabsRecord.tabs.set(1, new Tab("changed", null, history, 4000));
+    performWait(AndroidBrowserRepositoryTestCase.storeRunnable(session, tabsRecord));
+    session.abort();
+
+    final List<Long> after = testTabIDs();
+    assertEquals(3, after.size());
+    assertEquals(before.get(0), after.get(0));
+    assertFalse(before.get(1).equals(after.get(1)));
+    assertEquals(before.get(2), after.get(2));
+
+    final Cursor cursor = tabsClient.query(BrowserContractHelpers.TABS_CONTENT_URI, null,
+        TEST_TABS_CLIENT_GUID_IS_LOCAL_SELECTION, TEST_TABS_CLIENT_GUID_IS_LOCAL_SELECTION_ARGS, BrowserContract.Tabs.POSITION + " ASC");
+    try {
+      final TabsRecord stored = FennecTabsRepository.tabsRecordFromCursor(cursor, TEST_CLIENT_GUID, TEST_CLIENT_NAME);
+      assertEquals(tabsRecord.contentHash(), stored.contentHash());
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testStoreInsertedAndClosedTabs() throws NoContentProviderException, RemoteException {
+    final TabsRecord tabsRecord = insertTestTabsAndExtractTabsRecord();
+    final List<Long> before = testTabIDs();
+    assertEquals(3, before.size());
+
+    // Opening a tab at the front keeps the existing rows.
+    final JSONArray history = new JSONArray();
+    history.add("http://test.com/new.html");
+    tabsRecord.tabs.add(0, new Tab("new", null, history, 5000));
+    final FennecTabsRepositorySession session = createAndBeginSession();
+    performWait(AndroidBrowserRepositoryTestCase.storeRunnable(session, tabsRecord));
+
+    final List<Long> opened = testTabIDs();
+    assertEquals(4, opened.size());
+    assertFalse(before.contains(opened.get(0)));
+    assertEquals(before, opened.subList(1, 4));
+
+    // Closing a tab deletes only its row.
+    tabsRecord.tabs.remove(2);
+    performWait(AndroidBrowserRepositoryTestCase.storeRunnable(session, tabsRecord));
+    session.abort();
+
+    final List<Long> closed = testTabIDs();
+    assertEquals(3, closed.size());
+    assertEquals(opened.get(0), closed.get(0));
+    assertEquals(opened.get(1), closed.get(1));
+    assertEquals(opened.get(3), closed.get(2));
+  }
 }
@@ -3,6 +3,7 @@
 
 package org.mozilla.gecko.background.db;
 
+import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 
 import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
@@ -433,6 +434,79 @@ public class TestFormHistoryRepositorySession extends AndroidSyncTestCase {
     session.abort();
   }
 
+  protected Runnable storeManyRunnable(final RepositorySession session, final Record[] records, final RepositorySessionStoreDelegate delegate) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(delegate);
+        try {
+          for (Record record : records) {
+            session.store(record);
+          }
+          session.storeDone();
+        } catch (NoStoreDelegateException e) {
+          performNotify("NoStoreDelegateException should not occur.", e);
+        }
+      }
+    };
+  }
+
+  public void testStoreManyInOneBatch() throws NoContentProviderException, RemoteException {
+    final FormHistoryRepositorySession session = createAndBeginSession();
+
+    insertFourRecords(session);
+    long newTimestamp = System.currentTimeMillis();
+
+    // Enough new records to fill more than one insert batch, with
+    // replacements and deletions mixed in, so that inserts are buffered
+    // both ways.
+    final int count = FormHistoryRepositorySession.INSERT_ITEM_THRESHOLD + 50;
+    final ArrayList<Record> records = new ArrayList<Record>();
+    for (int i = 0; i < count; i++) {
+      FormHistoryRecord rec = new FormHistoryRecord("many" + i, "forms", newTimestamp, false);
+      rec.fieldName  = "manyFieldName";
+      rec.fieldValue = "manyValue" + i;
+      records.add(rec);
+    }
+
+    // remote regular, local regular, remote newer => should update.
+    final FormHistoryRecord updated = new FormHistoryRecord(regular1.guid, regular1.collection, newTimestamp, false);
+    updated.fieldName  = regular1.fieldName;
+    updated.fieldValue = regular1.fieldValue + "NEW";
+    records.add(updated);
+
+    // remote regular with a new GUID, same payload as local regular => local takes remote GUID.
+    final FormHistoryRecord dupe = (FormHistoryRecord) regular2.copyWithIDs("distinct", 999);
+    dupe.lastModified = newTimestamp;
+    records.add(dupe);
+
+    // remote deleted, local deleted => should purge.
+    records.add(new FormHistoryRecord(deleted1.guid, deleted1.collection, newTimestamp, true));
+
+    // remote regular after the operations above => should insert.
+    final FormHistoryRecord last = new FormHistoryRecord("last", "forms", newTimestamp, false);
+    last.fieldName  = "lastFieldName";
+    last.fieldValue = "lastValue";
+    records.add(last);
+
+    // The same payload as a record stored earlier in this batch => should dupe to it.
+    final FormHistoryRecord lastDupe = (FormHistoryRecord) last.copyWithIDs("lastDupe", 999);
+    records.add(lastDupe);
+
+    performWait(storeManyRunnable(session, records.toArray(new Record[records.size()]), new ExpectStoreCompletedDelegate()));
+
+    assertEquals(2 + count + 1, numRecords(session, BrowserContractHelpers.FORM_HISTORY_CONTENT_URI));
+    assertEquals(1, numRecords(session, BrowserContractHelpers.DELETED_FORM_HISTORY_CONTENT_URI));
+
+    performWait(fetchRunnable(session, new String[] { regular1.guid }, new Record[] { updated }));
+    performWait(fetchRunnable(session, new String[] { regular2.guid, dupe.guid }, new Record[] { dupe }));
+    performWait(fetchRunnable(session, new String[] { deleted1.guid }, new Record[] { }));
+    performWait(fetchRunnable(session, new String[] { last.guid, lastDupe.guid }, new Record[] { lastDupe }));
+    performWait(fetchRunnable(session, new String[] { "many0", "many" + (count - 1) }, new Record[] { records.get(0), records.get(count - 1) }));
+
+    session.abort();
+  }
+
   public void testStoreDifferentGuid() throws NoContentProviderException, RemoteException {
     final FormHistoryRepositorySession session = createAndBeginSession();
 
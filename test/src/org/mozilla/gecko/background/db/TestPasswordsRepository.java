@@ -10,6 +10,7 @@ import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchSinceDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectGuidsSinceDelegate;
+import org.mozilla.gecko.background.sync.helpers.ExpectStoreCompletedDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectStoredDelegate;
 import org.mozilla.gecko.background.sync.helpers.PasswordHelpers;
 import org.mozilla.gecko.background.sync.helpers.SessionTestHelper;
@@ -290,7 +291,55 @@ public class TestPasswordsRepository extends AndroidSyncTestCase {
     dispose(session);
   }
 
+  /*
+   * Store a large number of logins in one session, then store them again with
+   * new GUIDs, as after a node reassignment. Every record in the second pass
+   * is reconciled against an existing login by identity, not by GUID.
+   */
+  public void testStoreManyLogins() throws RemoteException {
+    final int count = 2000;
+    final PasswordRecord[] records = new PasswordRecord[count];
+    for (int i = 0; i < count; i++) {
+      records[i] = PasswordHelpers.createPassword1();
+      records[i].hostname = "http://example" + i + ".com";
+      records[i].encryptedUsername = "username" + i;
+      records[i].guid = Utils.generateGuid();
+    }
+
+    RepositorySession session = createAndBeginSession();
+    performWait(storeManyRunnable(session, records));
+    dispose(session);
+    assertEquals(count, countLogins());
+
+    for (PasswordRecord record : records) {
+      record.guid = Utils.generateGuid();
+    }
+
+    session = createAndBeginSession();
+    performWait(storeManyRunnable(session, records));
+    dispose(session);
+    assertEquals(count, countLogins());
+
+    session = createAndBeginSession();
+    performWait(fetchAllRunnable(session, records));
+    dispose(session);
+  }
+
   // Helper methods.
+  private int countLogins() throws RemoteException {
+    ContentProviderClient client = getApplicationContext().getContentResolver().acquireContentProviderClient(BrowserContract.PASSWORDS_AUTHORITY_URI);
+    try {
+      Cursor cursor = client.query(BrowserContractHelpers.PASSWORDS_CONTENT_URI, null, null, null, null);
+      try {
+        return cursor.getCount();
+      } finally {
+        cursor.close();
+      }
+    } finally {
+      client.release();
+    }
+  }
+
   private RepositorySession createAndBeginSession() {
     return SessionTestHelper.createAndBeginSession(
         getApplicationContext(),
@@ -356,6 +405,23 @@ public class TestPasswordsRepository extends AndroidSyncTestCase {
     };
   }
 
+  private static Runnable storeManyRunnable(final RepositorySession session, final Record[] records) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(new ExpectStoreCompletedDelegate());
+        try {
+          for (Record record : records) {
+            session.store(record);
+          }
+          session.storeDone();
+        } catch (NoStoreDelegateException e) {
+          fail("NoStoreDelegateException should not occur.");
+        }
+      }
+    };
+  }
+
   private static Runnable fetchAllRunnable(final RepositorySession session, final Record[] records) {
     return new Runnable() {
       @Override
@@ -51,7 +51,11 @@ public class MockHealthReportDatabaseStorage extends HealthReportDatabaseStorage
     super(context, fakeProfileDirectory);
   }
 
+  /**
+   * Tests inspect the database directly, so write out anything still buffered.
+   */
   public SQLiteDatabase getDB() {
+    this.flushPendingEvents();
     return this.helper.getWritableDatabase();
   }
 
@@ -194,6 +194,51 @@ public class TestHealthReportDatabaseStorage extends FakeProfileTestCase {
     return c.moveToNext();
   }
 
+  public void testCoalescedWrites() throws Exception {
+    final MockHealthReportDatabaseStorage storage = new MockHealthReportDatabaseStorage(context, fakeProfileDirectory);
+    storage.beginInitialization();
+    storage.ensureMeasurementInitialized("testpA.testm", 1, new MockMeasurementFields());
+    storage.finishInitialization();
+
+    final MockDatabaseEnvironment environment = storage.getEnvironment();
+    environment.mockInit("v123");
+    environment.setJSONForAddons(EXAMPLE_ADDONS);
+    final int env = environment.register();
+    final int counterID = storage.getField("testpA.testm", 1, "testfield1").getID();
+    final int lastID = storage.getField("testpA.testm", 1, "testfield2").getID();
+
+    for (int i = 0; i < 500; i++) {
+      storage.incrementDailyCount(env, storage.getToday(), counterID);
+      storage.recordDailyLast(env, storage.getToday(), lastID, i);
+    }
+    storage.incrementDailyCount(env, storage.getYesterday(), counterID, 7);
+
+    // Reads see buffered values.
+    Cursor c = storage.getRawEventsSince(storage.getOneDayAgo());
+    try {
+      assertTrue(c.moveToFirst());
+      assertTrue(assertRowEquals(c, storage.getYesterday(), env, counterID, 7));
+      assertTrue(assertRowEquals(c, storage.getToday(), env, counterID, 500));
+      assertFalse(assertRowEquals(c, storage.getToday(), env, lastID, 499));
+    } finally {
+      c.close();
+    }
+
+    // Later increments add to the written value.
+    storage.incrementDailyCount(env, storage.getToday(), counterID, 5);
+    storage.recordDailyLast(env, storage.getToday(), lastID, 1000);
+    final SQLiteDatabase db = storage.getDB();
+    assertEquals(3, DBHelpers.getRowCount(db, "events_integer"));
+    c = storage.getRawEventsSince(storage.now);
+    try {
+      assertTrue(c.moveToFirst());
+      assertTrue(assertRowEquals(c, storage.getToday(), env, counterID, 505));
+      assertFalse(assertRowEquals(c, storage.getToday(), env, lastID, 1000));
+    } finally {
+      c.close();
+    }
+  }
+
   /**
    * Test robust insertions. This also acts as a test for the getPrepopulatedStorage method,
    * allowing faster debugging if this fails and other tests relying on getPrepopulatedStorage
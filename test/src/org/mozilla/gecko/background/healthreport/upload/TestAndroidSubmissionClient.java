@@ -3,6 +3,8 @@
 
 package org.mozilla.gecko.background.healthreport.upload;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Collection;
 
 import org.mozilla.gecko.background.bagheera.BagheeraRequestDelegate;
@@ -21,9 +23,9 @@ import org.mozilla.gecko.background.testhelpers.StubDelegate;
 import android.content.ContentProviderClient;
 import android.content.Context;
 import android.content.SharedPreferences;
+import ch.boye.httpclientandroidlib.HttpEntity;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class TestAndroidSubmissionClient extends FakeProfileTestCase {
   public static class MockAndroidSubmissionClient extends AndroidSubmissionClient {
@@ -50,7 +52,7 @@ public class TestAndroidSubmissionClient extends FakeProfileTestCase {
     }
 
     @Override
-    protected void uploadPayload(String id, String payload, Collection<String> oldIds,
+    protected void uploadPayload(String id, HttpEntity payload, Collection<String> oldIds,
         BagheeraRequestDelegate delegate) {
       switch (submissionState) {
       case SUCCESS:
@@ -96,16 +98,17 @@ public class TestAndroidSubmissionClient extends FakeProfileTestCase {
 
       public class MockTrackingGenerator extends TrackingGenerator {
         @Override
-        public JSONObject generateDocument(final long localTime, final long last,
-            final String profilePath, ConfigurationProvider config) throws JSONException {
+        public boolean writeDocument(final long localTime, final long last,
+            final String profilePath, ConfigurationProvider config, Writer writer) throws JSONException, IOException {
           switch (documentStatus) {
           case VALID:
-            return new JSONObject(); // Beyond == null, we don't check for valid FHR documents.
+            writer.write("{}"); // Beyond not being written, we don't check for valid FHR documents.
+            return true;
 
           case NULL:
-            // The overridden method should return null since we return a null has for the current
+            // The overridden method should write nothing since we return a null hash for the current
             // Environment.
-            return super.generateDocument(localTime, last, profilePath, config);
+            return super.writeDocument(localTime, last, profilePath, config, writer);
 
           case EXCEPTION:
             throw new IllegalStateException("Intended Exception");
@@ -115,7 +118,7 @@ public class TestAndroidSubmissionClient extends FakeProfileTestCase {
           }
         }
 
-        // Used in super.generateDocument, where a null document is returned if getHash returns null
+        // Used in super.writeDocument, where nothing is written if getHash returns null
         @Override
         public Environment getCurrentEnvironment() {
           return new Environment() {
@@ -8,11 +8,15 @@ import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
 import org.mozilla.gecko.background.nativecode.NativeCrypto;
 import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.JavaKeyDerivation;
+import org.mozilla.gecko.sync.crypto.KeyDerivationProvider;
+import org.mozilla.gecko.sync.crypto.NativeKeyDerivation;
 
 /*
  * Tests the Java wrapper over native implementations of crypto code. Test vectors from:
@@ -145,6 +149,29 @@ public class TestNativeCrypto extends TestCase {
     }
   }
 
+  /**
+   * Test that native and Java key derivation agree, and that we choose native
+   * on a device.
+   */
+  public final void testPBKDF2SHA256AgainstJava() throws GeneralSecurityException {
+    final Random random = new Random(1);
+    final JavaKeyDerivation java = new JavaKeyDerivation();
+    final NativeKeyDerivation nativeKeyDerivation = new NativeKeyDerivation();
+    final int[] dkLengths = { 1, 32, 33, 64 };
+    for (final int dkLen : dkLengths) {
+      final byte[] password = new byte[1 + random.nextInt(100)];
+      final byte[] salt = new byte[random.nextInt(70)];
+      random.nextBytes(password);
+      random.nextBytes(salt);
+      final int c = 1 + random.nextInt(1000);
+      assertTrue(Arrays.equals(java.pbkdf2SHA256(password, salt, c, dkLen),
+          nativeKeyDerivation.pbkdf2SHA256(password, salt, c, dkLen)));
+    }
+
+    KeyDerivationProvider.set(null);
+    assertTrue(KeyDerivationProvider.get() instanceof NativeKeyDerivation);
+  }
+
   private void checkPBKDF2SHA256(String p, String s, int c, int dkLen,
                                 final String expectedStr)
                                                     throws GeneralSecurityException, UnsupportedEncodingException {
@@ -0,0 +1,58 @@
+#!/usr/bin/env python
+
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this file,
+# You can obtain one at http://mozilla.org/MPL/2.0/.
+
+# Compare two JMH result files written with -rf json, and fail if any
+# benchmark got slower than the threshold allows.
+
+import json
+import sys
+
+from argparse_importer import argparse
+
+parser = argparse.ArgumentParser(description='Compare JMH results against a baseline.')
+parser.add_argument('-t', dest='threshold', type=float, default=10.0, help='percentage slowdown that counts as a regression (default 10)')
+parser.add_argument('baseline', help='JMH JSON results to compare against')
+parser.add_argument('results', help='JMH JSON results to check')
+
+args = parser.parse_args(sys.argv[1:])
+
+def key(result):
+    params = result.get('params', {})
+    return result['benchmark'] + ''.join('[%s=%s]' % (k, params[k]) for k in sorted(params))
+
+def load(filename):
+    with open(filename, 'rt') as f:
+        return dict((key(r), r) for r in json.load(f))
+
+baseline = load(args.baseline)
+results = load(args.results)
+
+regressions = 0
+for name in sorted(results):
+    result = results[name]
+    score = result['primaryMetric']['score']
+    unit = result['primaryMetric']['scoreUnit']
+    if name not in baseline:
+        print '%-90s %12.3f %-8s (new)' % (name, score, unit)
+        continue
+    base = baseline[name]['primaryMetric']['score']
+    # Throughput is better when higher; everything else is a time.
+    if result['mode'] == 'thrpt':
+        change = 100.0 * (base - score) / base
+    else:
+        change = 100.0 * (score - base) / base
+    flag = ''
+    if change > args.threshold:
+        flag = 'REGRESSION'
+        regressions += 1
+    print '%-90s %12.3f %-8s %+7.1f%% %s' % (name, score, unit, change, flag)
+
+for name in sorted(set(baseline) - set(results)):
+    print '%-90s (missing)' % name
+
+if regressions:
+    print '%d benchmarks regressed by more than %.0f%%.' % (regressions, args.threshold)
+    sys.exit(1)